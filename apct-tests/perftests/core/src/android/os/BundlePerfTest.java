@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package android.os;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+
+/**
+ * Measures the cost of delivering an Intent with a large set of extras the way
+ * ActivityThread does: unparcel the Intent, read a single extra, and hand the
+ * Intent on (re-parcel it), with and without lazy Bundle unparcelling.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class BundlePerfTest {
+    private static final int EXTRA_COUNT = 64;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private Parcel mIntentParcel;
+    private Parcel mOutParcel;
+
+    @Before
+    public void setUp() {
+        final Intent intent = new Intent(Intent.ACTION_VIEW);
+        intent.setComponent(new ComponentName("com.example", "com.example.Activity"));
+        for (int i = 0; i < EXTRA_COUNT; i++) {
+            intent.putExtra("string" + i, "value of extra number " + i);
+            intent.putExtra("ints" + i, new int[32]);
+            final ArrayList<String> list = new ArrayList<>();
+            list.add("item" + i);
+            intent.putStringArrayListExtra("list" + i, list);
+        }
+        final Bundle nested = new Bundle();
+        nested.putString("inner", "value");
+        intent.putExtra("nested", nested);
+        intent.putExtra("target", "com.example.Target");
+
+        mIntentParcel = Parcel.obtain();
+        intent.writeToParcel(mIntentParcel, 0);
+        mOutParcel = Parcel.obtain();
+    }
+
+    @After
+    public void tearDown() {
+        BaseBundle.setLazyUnparcelEnabled(false);
+        mIntentParcel.recycle();
+        mOutParcel.recycle();
+    }
+
+    private void deliverIntent() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mIntentParcel.setDataPosition(0);
+            final Intent intent = Intent.CREATOR.createFromParcel(mIntentParcel);
+            intent.setExtrasClassLoader(getClass().getClassLoader());
+            intent.getStringExtra("target");
+            mOutParcel.setDataPosition(0);
+            intent.writeToParcel(mOutParcel, 0);
+        }
+    }
+
+    @Test
+    public void timeDeliverIntentEager() {
+        BaseBundle.setLazyUnparcelEnabled(false);
+        deliverIntent();
+    }
+
+    @Test
+    public void timeDeliverIntentLazy() {
+        BaseBundle.setLazyUnparcelEnabled(true);
+        deliverIntent();
+    }
+
+    private void readOneExtra() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mIntentParcel.setDataPosition(0);
+            final Intent intent = Intent.CREATOR.createFromParcel(mIntentParcel);
+            intent.getStringExtra("target");
+        }
+    }
+
+    @Test
+    public void timeReadOneExtraEager() {
+        BaseBundle.setLazyUnparcelEnabled(false);
+        readOneExtra();
+    }
+
+    @Test
+    public void timeReadOneExtraLazy() {
+        BaseBundle.setLazyUnparcelEnabled(true);
+        readOneExtra();
+    }
+}
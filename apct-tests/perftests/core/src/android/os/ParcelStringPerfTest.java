@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package android.os;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Replays the argument shapes of common PackageManager and AppOps calls
+ * (checkPermission, getPackageInfo, noteOperation) and measures reading their
+ * strings with and without {@link Parcel#setStringDeduplicationEnabled}.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class ParcelStringPerfTest {
+    private static final String TAG = "ParcelStringPerfTest";
+
+    private static final int PACKAGE_COUNT = 200;
+    private static final String[] PERMISSIONS = {
+            "android.permission.INTERNET",
+            "android.permission.ACCESS_NETWORK_STATE",
+            "android.permission.WAKE_LOCK",
+            "android.permission.READ_EXTERNAL_STORAGE",
+            "android.permission.ACCESS_FINE_LOCATION",
+    };
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private Parcel[] mCalls;
+
+    @Before
+    public void setUp() {
+        mCalls = new Parcel[PACKAGE_COUNT * 3];
+        for (int i = 0; i < PACKAGE_COUNT; i++) {
+            final String packageName = "com.example.package" + i;
+
+            // checkPermission(String permName, String pkgName, int userId)
+            Parcel p = Parcel.obtain();
+            p.writeString(PERMISSIONS[i % PERMISSIONS.length]);
+            p.writeString(packageName);
+            p.writeInt(0);
+            mCalls[i * 3] = p;
+
+            // getPackageInfo(String packageName, int flags, int userId)
+            p = Parcel.obtain();
+            p.writeString(packageName);
+            p.writeInt(0);
+            p.writeInt(0);
+            mCalls[i * 3 + 1] = p;
+
+            // noteOperation(int code, int uid, String packageName)
+            p = Parcel.obtain();
+            p.writeInt(i % 64);
+            p.writeInt(10000 + i);
+            p.writeString(packageName);
+            mCalls[i * 3 + 2] = p;
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (Parcel p : mCalls) {
+            p.recycle();
+        }
+    }
+
+    private void replay(boolean deduplicate) {
+        for (int i = 0; i < mCalls.length; i += 3) {
+            Parcel p = mCalls[i];
+            p.setDataPosition(0);
+            p.setStringDeduplicationEnabled(deduplicate);
+            p.readString();
+            p.readString();
+            p.readInt();
+
+            p = mCalls[i + 1];
+            p.setDataPosition(0);
+            p.setStringDeduplicationEnabled(deduplicate);
+            p.readString();
+            p.readInt();
+            p.readInt();
+
+            p = mCalls[i + 2];
+            p.setDataPosition(0);
+            p.setStringDeduplicationEnabled(deduplicate);
+            p.readInt();
+            p.readInt();
+            p.readString();
+        }
+    }
+
+    private void timeReplay(boolean deduplicate) {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            replay(deduplicate);
+        }
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        replay(deduplicate);
+        final int allocations = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+        Log.i(TAG, "deduplicate=" + deduplicate + ": " + allocations
+                + " allocations per replay of " + mCalls.length + " calls");
+    }
+
+    @Test
+    public void timeReadStrings() {
+        timeReplay(false);
+    }
+
+    @Test
+    public void timeReadStringsDeduplicated() {
+        timeReplay(true);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package android.service.notification;
+
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+
+/**
+ * Measures delivering a ranking update for 100 active notifications to a
+ * listener, as a full update and as a delta in which one entry changed: the
+ * parcel round trip plus, for the delta, rebuilding the full update.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class NotificationRankingUpdatePerfTest {
+    private static final String TAG = "NotificationRankingUpdatePerfTest";
+    private static final int NOTIFICATION_COUNT = 100;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private NotificationRankingUpdate mFull;
+    private NotificationRankingUpdate mDelta;
+
+    @Before
+    public void setUp() {
+        final String[] keys = new String[NOTIFICATION_COUNT];
+        final int[] importance = new int[NOTIFICATION_COUNT];
+        for (int i = 0; i < NOTIFICATION_COUNT; i++) {
+            keys[i] = "0|com.example.messaging|" + i + "|null|10123";
+            importance[i] = NotificationManager.IMPORTANCE_DEFAULT;
+        }
+        mFull = makeUpdate(1, 0, keys, keys, importance);
+        mDelta = makeUpdate(2, 1, keys, new String[] { keys[0] }, importance);
+    }
+
+    private static NotificationRankingUpdate makeUpdate(long version, long baseVersion,
+            String[] keys, String[] entryKeys, int[] importance) {
+        final Bundle suppressedVisualEffects = new Bundle();
+        final Bundle explanation = new Bundle();
+        final Bundle overrideGroupKeys = new Bundle();
+        final Bundle channels = new Bundle();
+        final Bundle overridePeople = new Bundle();
+        final Bundle snoozeCriteria = new Bundle();
+        final Bundle showBadge = new Bundle();
+        for (String key : entryKeys) {
+            suppressedVisualEffects.putInt(key, 0);
+            explanation.putCharSequence(key, "app");
+            overrideGroupKeys.putString(key, null);
+            channels.putParcelable(key, new NotificationChannel("messages", "Messages",
+                    NotificationManager.IMPORTANCE_DEFAULT));
+            final ArrayList<String> people = new ArrayList<>();
+            people.add("tel:555-0100");
+            overridePeople.putStringArrayList(key, people);
+            snoozeCriteria.putParcelableArrayList(key, new ArrayList<SnoozeCriterion>());
+            showBadge.putBoolean(key, true);
+        }
+        return new NotificationRankingUpdate(version, baseVersion, entryKeys, keys,
+                new String[0], new Bundle(), suppressedVisualEffects, importance, explanation,
+                overrideGroupKeys, channels, overridePeople, snoozeCriteria, showBadge);
+    }
+
+    private static NotificationRankingUpdate roundTrip(NotificationRankingUpdate update) {
+        final Parcel p = Parcel.obtain();
+        update.writeToParcel(p, 0);
+        p.setDataPosition(0);
+        final NotificationRankingUpdate result = NotificationRankingUpdate.CREATOR
+                .createFromParcel(p);
+        // Unparcel the bundles, as the listener does when building its RankingMap.
+        result.getChannels().size();
+        result.getOverridePeople().size();
+        result.getSnoozeCriteria().size();
+        p.recycle();
+        return result;
+    }
+
+    private static int parcelSize(NotificationRankingUpdate update) {
+        final Parcel p = Parcel.obtain();
+        update.writeToParcel(p, 0);
+        final int size = p.dataSize();
+        p.recycle();
+        return size;
+    }
+
+    @Test
+    public void timeFullUpdate() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            roundTrip(mFull);
+        }
+        Log.i(TAG, "full update: " + parcelSize(mFull) + " bytes");
+    }
+
+    @Test
+    public void timeDeltaUpdate() {
+        final NotificationRankingUpdate previous = roundTrip(mFull);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            roundTrip(mDelta).applyTo(previous);
+        }
+        Log.i(TAG, "delta update: " + parcelSize(mDelta) + " bytes");
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.text;
+
+import android.graphics.Typeface;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.text.style.CharacterStyle;
+import android.text.style.ForegroundColorSpan;
+import android.text.style.MetricAffectingSpan;
+import android.text.style.ReplacementSpan;
+import android.text.style.StyleSpan;
+import android.text.style.TabStopSpan;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Measures typing into rich text with 10k spans, followed by the span queries that TextLine
+ * and DynamicLayout make for the edited paragraph.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class SpannableStringBuilderPerfTest {
+    private static final int SPAN_COUNT = 10000;
+    private static final int SPAN_LENGTH = 5;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private static SpannableStringBuilder buildText(boolean withStyles) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < SPAN_COUNT; i++) {
+            sb.append("word ");
+            if (i % 20 == 19) sb.append('\n');
+        }
+        final SpannableStringBuilder ssb = new SpannableStringBuilder(sb);
+        for (int i = 0; i < SPAN_COUNT; i++) {
+            final int start = i * SPAN_LENGTH;
+            final Object span = withStyles && i % 2 == 0
+                    ? new StyleSpan(Typeface.BOLD)
+                    : new ForegroundColorSpan(i);
+            ssb.setSpan(span, start, start + SPAN_LENGTH - 1, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+        return ssb;
+    }
+
+    private void typeAndQuery(SpannableStringBuilder ssb) {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final int where = ssb.length() / 2;
+        while (state.keepRunning()) {
+            ssb.insert(where, "x");
+            final int start = TextUtils.lastIndexOf(ssb, '\n', where) + 1;
+            int end = TextUtils.indexOf(ssb, '\n', where);
+            if (end < 0) end = ssb.length();
+            ssb.getSpans(start, end, CharacterStyle.class);
+            ssb.getSpans(start, end, TabStopSpan.class);
+            ssb.getSpans(start, end, ReplacementSpan.class);
+            for (int pos = start; pos < end;
+                    pos = ssb.nextSpanTransition(pos, end, MetricAffectingSpan.class)) {
+                ssb.getSpans(pos, pos + 1, MetricAffectingSpan.class);
+            }
+            ssb.delete(where, where + 1);
+        }
+    }
+
+    @Test
+    public void testTypingWithColorSpans() {
+        typeAndQuery(buildText(false));
+    }
+
+    @Test
+    public void testTypingWithColorAndStyleSpans() {
+        typeAndQuery(buildText(true));
+    }
+
+    @Test
+    public void testGetSpansWholeText() {
+        final SpannableStringBuilder ssb = buildText(true);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            ssb.getSpans(0, ssb.length(), MetricAffectingSpan.class);
+        }
+    }
+}
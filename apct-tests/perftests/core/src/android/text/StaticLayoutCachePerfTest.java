@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.text;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Compares laying out the same paragraph again, which is served from
+ * {@link ParagraphMeasureCache}, with laying out a paragraph never seen before.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class StaticLayoutCachePerfTest {
+    private static final String TEXT = "Lorem ipsum dolor sit amet, consectetur adipiscing elit, "
+            + "sed do eiusmod tempor incididunt ut labore et dolore magna aliqua.";
+    private static final int WIDTH = 300;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private final TextPaint mPaint = new TextPaint();
+
+    private void build(CharSequence text) {
+        StaticLayout.Builder.obtain(text, 0, text.length(), mPaint, WIDTH).build();
+    }
+
+    @Test
+    public void testRepeatedText() {
+        ParagraphMeasureCache.clear();
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            build(TEXT);
+        }
+    }
+
+    @Test
+    public void testUniqueText() {
+        ParagraphMeasureCache.clear();
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            final String text = TEXT + i++;
+            state.resumeTiming();
+            build(text);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util.perftests;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Pools;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * Compares the contended cost of recycling small container arrays through a single
+ * synchronized free list (the scheme ArrayMap and ArraySet used to have) against the
+ * striped lock-free pool, with at least eight threads hammering the cache at once.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class ArrayMapCachePerfTest {
+    private static final int THREADS = Math.max(8, Runtime.getRuntime().availableProcessors());
+    private static final int OPS_PER_THREAD = 1000;
+    private static final int CACHE_SIZE = 10;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private Thread[] mWorkers;
+    private CyclicBarrier mStart;
+    private CyclicBarrier mDone;
+    private volatile Runnable mTask;
+    private volatile boolean mStopped;
+
+    @Before
+    public void setUp() {
+        mStart = new CyclicBarrier(THREADS + 1);
+        mDone = new CyclicBarrier(THREADS + 1);
+        mWorkers = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            mWorkers[i] = new Thread(() -> {
+                try {
+                    while (true) {
+                        mStart.await();
+                        if (mStopped) {
+                            return;
+                        }
+                        mTask.run();
+                        mDone.await();
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }, "ArrayMapCachePerfTest-" + i);
+            mWorkers[i].start();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mStopped = true;
+        mStart.await();
+        for (Thread worker : mWorkers) {
+            worker.join();
+        }
+    }
+
+    private void runOnAllThreads(Runnable task) {
+        mTask = task;
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        try {
+            while (state.keepRunning()) {
+                mStart.await();
+                mDone.await();
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void churn(Pools.Pool<Object[]> pool) {
+        for (int i = 0; i < OPS_PER_THREAD; i++) {
+            Object[] array = pool.acquire();
+            if (array == null) {
+                array = new Object[8];
+            }
+            pool.release(array);
+        }
+    }
+
+    /**
+     * The free list ArrayMap and ArraySet used before the striped pool: cached arrays are
+     * chained through their first slot, with their hash array parked in the second, and the
+     * whole list is guarded by one class-wide lock.
+     */
+    private static final class SynchronizedFreeList implements Pools.Pool<Object[]> {
+        private static final int[] HASHES = new int[4];
+
+        private final Object mLock = new Object();
+        private Object[] mCache;
+        private int mCacheSize;
+
+        @Override
+        public Object[] acquire() {
+            synchronized (mLock) {
+                if (mCache == null) {
+                    return null;
+                }
+                final Object[] array = mCache;
+                mCache = (Object[]) array[0];
+                array[0] = array[1] = null;
+                mCacheSize--;
+                return array;
+            }
+        }
+
+        @Override
+        public boolean release(Object[] array) {
+            synchronized (mLock) {
+                if (mCacheSize >= CACHE_SIZE) {
+                    return false;
+                }
+                array[0] = mCache;
+                array[1] = HASHES;
+                for (int i = array.length - 1; i >= 2; i--) {
+                    array[i] = null;
+                }
+                mCache = array;
+                mCacheSize++;
+                return true;
+            }
+        }
+    }
+
+    @Test
+    public void timeSynchronizedFreeList() {
+        final Pools.Pool<Object[]> pool = new SynchronizedFreeList();
+        runOnAllThreads(() -> churn(pool));
+    }
+
+    @Test
+    public void timeStripedPool() {
+        final Pools.Pool<Object[]> pool = new Pools.StripedPool<>(CACHE_SIZE);
+        runOnAllThreads(() -> churn(pool));
+    }
+
+    @Test
+    public void timeArrayMapAllocFree() {
+        runOnAllThreads(() -> {
+            for (int i = 0; i < OPS_PER_THREAD; i++) {
+                final ArrayMap<Integer, Integer> map = new ArrayMap<>();
+                map.put(i, i);
+                map.clear();
+            }
+        });
+    }
+
+    @Test
+    public void timeArraySetAllocFree() {
+        runOnAllThreads(() -> {
+            for (int i = 0; i < OPS_PER_THREAD; i++) {
+                final ArraySet<Integer> set = new ArraySet<>();
+                set.add(i);
+                set.clear();
+            }
+        });
+    }
+}
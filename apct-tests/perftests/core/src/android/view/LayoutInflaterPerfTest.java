@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.view;
+
+import android.content.Context;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.widget.FrameLayout;
+
+import com.android.perftests.core.R;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * Compares inflating framework and list item layouts through reflection with inflating them
+ * through the LayoutInflater's built-in view factories.
+ */
+@LargeTest
+@RunWith(Parameterized.class)
+public class LayoutInflaterPerfTest {
+
+    @Parameters(name = "{0}_{2}")
+    public static Collection cases() {
+        final Object[][] layouts = {
+            { "simple_list_item_1", android.R.layout.simple_list_item_1 },
+            { "simple_list_item_2", android.R.layout.simple_list_item_2 },
+            { "activity_list_item", android.R.layout.activity_list_item },
+            { "select_dialog_multichoice", android.R.layout.select_dialog_multichoice },
+            { "twelve_key_entry", R.layout.twelve_key_entry },
+            { "test_relative_layout", R.layout.test_relative_layout },
+        };
+        final ArrayList<Object[]> cases = new ArrayList<>();
+        for (Object[] layout : layouts) {
+            cases.add(new Object[] { layout[0], layout[1], "reflection" });
+            cases.add(new Object[] { layout[0], layout[1], "builtInFactories" });
+        }
+        return cases;
+    }
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private final int mLayoutId;
+    private final boolean mUseBuiltInFactories;
+
+    public LayoutInflaterPerfTest(String name, int layoutId, String mode) {
+        mLayoutId = layoutId;
+        mUseBuiltInFactories = "builtInFactories".equals(mode);
+    }
+
+    @After
+    public void tearDown() {
+        LayoutInflater.setBuiltInFactoriesEnabled(false);
+    }
+
+    @Test
+    public void testInflate() {
+        final Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        final LayoutInflater inflater = LayoutInflater.from(context);
+        final FrameLayout root = new FrameLayout(context);
+        LayoutInflater.setBuiltInFactoriesEnabled(mUseBuiltInFactories);
+
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            inflater.inflate(mLayoutId, root, false);
+        }
+    }
+}
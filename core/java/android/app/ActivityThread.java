@@ -46,6 +46,7 @@ import android.content.res.CompatibilityInfo;
 import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.content.res.Resources.Theme;
+import android.content.res.SharedDrawableCache;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDebug;
 import android.database.sqlite.SQLiteDebug.DbStats;
@@ -96,6 +97,7 @@ import android.security.NetworkSecurityPolicy;
 import android.security.net.config.NetworkSecurityConfigProvider;
 import android.util.AndroidRuntimeException;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.DisplayMetrics;
 import android.util.EventLog;
 import android.util.Log;
@@ -1236,6 +1238,24 @@ public final class ActivityThread {
                 pw.print(assetAlloc);
             }
 
+            pw.println(" ");
+            SharedDrawableCache.getInstance().dump(pw, " ");
+
+            pw.println(" ");
+            pw.println(" Array Caches");
+            ArrayMap.dumpArrayCacheStats(pw, "  ");
+            ArraySet.dumpArrayCacheStats(pw, "  ");
+
+            pw.println(" ");
+            pw.println(" String Pools");
+            final AssetManager assets = mInitialApplication != null
+                    ? mInitialApplication.getAssets() : AssetManager.getSystem();
+            assets.dumpStringBlockStats(pw, "  ");
+
+            pw.println(" ");
+            pw.println(" Parcel String Deduplication");
+            Parcel.dumpStringDeduplicationStats(pw, "  ");
+
             // Unreachable native memory
             if (dumpUnreachable) {
                 boolean showContents = ((mBoundApplication != null)
@@ -5329,6 +5349,8 @@ public final class ActivityThread {
         // Ask text layout engine to free also as much as possible
         Canvas.freeTextLayoutCaches();
 
+        SharedDrawableCache.getInstance().trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+
         BinderInternal.forceGc("mem");
     }
 
@@ -5343,6 +5365,7 @@ public final class ActivityThread {
         }
 
         WindowManagerGlobal.getInstance().trimMemory(level);
+        SharedDrawableCache.getInstance().trimMemory(level);
     }
 
     private void setupGraphicsSupport(Context context) {
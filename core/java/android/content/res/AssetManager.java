@@ -33,6 +33,7 @@ import dalvik.annotation.optimization.FastNative;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
 import java.util.HashMap;
 
 /**
@@ -136,6 +137,35 @@ public final class AssetManager implements AutoCloseable {
         return sSystem;
     }
 
+    /**
+     * Decodes every string in this asset manager's string pools. The zygote
+     * calls this on the system asset manager so that the decoded framework
+     * strings are shared with every process it forks.
+     *
+     * @return the number of strings decoded
+     * {@hide}
+     */
+    public int preloadStringBlocks() {
+        final StringBlock[] blocks = ensureStringBlocks();
+        int count = 0;
+        for (StringBlock block : blocks) {
+            count += block.preload();
+        }
+        return count;
+    }
+
+    /**
+     * Prints the decoded-string cache statistics of each string pool.
+     * {@hide}
+     */
+    public void dumpStringBlockStats(PrintWriter pw, String prefix) {
+        final StringBlock[] blocks = ensureStringBlocks();
+        for (int i = 0; i < blocks.length; i++) {
+            pw.print(prefix); pw.print("#"); pw.print(i); pw.print(": ");
+            blocks[i].dump(pw, "");
+        }
+    }
+
     /**
      * Close this asset manager.
      */
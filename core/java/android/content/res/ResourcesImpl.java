@@ -135,6 +135,10 @@ public class ResourcesImpl {
 
     private final Configuration mConfiguration = new Configuration();
 
+    // Protected by mAccessLock. Null until a ResourcesKey has been set.
+    private ResourcesKey mResourcesKey;
+    private SharedDrawableCache.Owner mSharedCacheOwner;
+
     static {
         sPreloadedDrawables = new LongSparseArray[2];
         sPreloadedDrawables[0] = new LongSparseArray<>();
@@ -162,6 +166,18 @@ public class ResourcesImpl {
         mAssets.ensureStringBlocks();
     }
 
+    /**
+     * Sets the key this ResourcesImpl was created from, allowing drawables it
+     * loads to be shared through {@link SharedDrawableCache} with other
+     * ResourcesImpls created from an equal key.
+     */
+    public void setResourcesKey(@NonNull ResourcesKey key) {
+        synchronized (mAccessLock) {
+            mResourcesKey = key;
+            mSharedCacheOwner = new SharedDrawableCache.Owner(key, mConfiguration);
+        }
+    }
+
     public DisplayAdjustments getDisplayAdjustments() {
         return mDisplayAdjustments;
     }
@@ -447,6 +463,11 @@ public class ResourcesImpl {
                 mAnimatorCache.onConfigurationChange(configChanges);
                 mStateListAnimatorCache.onConfigurationChange(configChanges);
 
+                if (mResourcesKey != null) {
+                    mSharedCacheOwner = new SharedDrawableCache.Owner(mResourcesKey,
+                            mConfiguration);
+                }
+
                 flushLayoutCache();
             }
             synchronized (sSync) {
@@ -592,6 +613,16 @@ public class ResourcesImpl {
                 }
             }
 
+            // The weak per-instance cache may have lost a drawable that is
+            // still held by the process-wide cache.
+            if (!mPreloading && useCache && !isColorDrawable) {
+                final Drawable sharedDrawable = getSharedDrawable(key, wrapper, theme);
+                if (sharedDrawable != null) {
+                    sharedDrawable.setChangingConfigurations(value.changingConfigurations);
+                    return sharedDrawable;
+                }
+            }
+
             // Next, check preloaded drawables. Preloaded drawables may contain
             // unresolved theme attributes.
             final Drawable.ConstantState cs;
@@ -643,7 +674,8 @@ public class ResourcesImpl {
             if (dr != null) {
                 dr.setChangingConfigurations(value.changingConfigurations);
                 if (useCache) {
-                    cacheDrawable(value, isColorDrawable, caches, theme, canApplyTheme, key, dr);
+                    cacheDrawable(value, isColorDrawable, caches, theme, canApplyTheme, key, dr,
+                            cs != null);
                     if (needsNewDrawableAfterCache) {
                         Drawable.ConstantState state = dr.getConstantState();
                         if (state != null) {
@@ -674,7 +706,7 @@ public class ResourcesImpl {
     }
 
     private void cacheDrawable(TypedValue value, boolean isColorDrawable, DrawableCache caches,
-            Resources.Theme theme, boolean usesTheme, long key, Drawable dr) {
+            Resources.Theme theme, boolean usesTheme, long key, Drawable dr, boolean preloaded) {
         final Drawable.ConstantState cs = dr.getConstantState();
         if (cs == null) {
             return;
@@ -701,10 +733,46 @@ public class ResourcesImpl {
                 }
             }
         } else {
+            final SharedDrawableCache.Owner owner;
             synchronized (mAccessLock) {
                 caches.put(key, theme, cs, usesTheme);
+                owner = mSharedCacheOwner;
+            }
+            // Preloaded drawables are always at hand, and their memory is shared with the
+            // zygote, so they would only take budget from drawables this process loaded.
+            if (owner != null && !isColorDrawable && !preloaded) {
+                SharedDrawableCache.getInstance().put(owner, key, theme, usesTheme, cs, dr);
+            }
+        }
+    }
+
+    /**
+     * Returns a new drawable from the process-wide cache, re-populating this
+     * instance's cache with its constant state, or null if it isn't there.
+     */
+    @Nullable
+    private Drawable getSharedDrawable(long key, Resources wrapper, Resources.Theme theme) {
+        final SharedDrawableCache.Owner owner;
+        synchronized (mAccessLock) {
+            owner = mSharedCacheOwner;
+        }
+        if (owner == null) {
+            return null;
+        }
+
+        final SharedDrawableCache.Entry entry =
+                SharedDrawableCache.getInstance().get(owner, key, theme);
+        if (entry == null) {
+            return null;
+        }
+
+        synchronized (mAccessLock) {
+            // Only re-populate if the configuration hasn't moved on meanwhile.
+            if (owner == mSharedCacheOwner) {
+                mDrawableCache.put(key, theme, entry.mState, entry.mUsesTheme);
             }
         }
+        return entry.mState.newDrawable(wrapper, theme);
     }
 
     private boolean verifyPreloadConfig(@Config int changingConfigurations,
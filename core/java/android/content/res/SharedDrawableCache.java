@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content.res;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.ComponentCallbacks2;
+import android.content.res.Resources.Theme;
+import android.content.res.Resources.ThemeKey;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.LruCache;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+import java.util.Objects;
+
+/**
+ * Process-wide, byte-budgeted LRU cache of drawable constant states.
+ *
+ * <p>Each {@link ResourcesImpl} keeps its own {@link DrawableCache} of weak
+ * references, which is cleared whenever the GC runs and is lost entirely when
+ * the ResourcesImpl is collected. This cache sits behind those: it holds
+ * strong references to the most recently used constant states, up to a
+ * memory budget, keyed by the {@link ResourcesKey} and configuration they
+ * were loaded with. ResourcesImpl instances that share a key and
+ * configuration therefore share entries, and a drawable evicted from a weak
+ * cache can be recovered without decoding it again.</p>
+ *
+ * <p>Only drawables loaded by this process are cached here. Preloaded
+ * drawables are skipped, and color drawables, {@link ColorStateList}s and
+ * other {@link ComplexColor}s are left to the per-instance caches.</p>
+ *
+ * @hide
+ */
+public final class SharedDrawableCache {
+    /** Fraction of the heap limit the cache may use. */
+    private static final int HEAP_FRACTION = 32;
+
+    /** Size charged for constant states whose real footprint we can't see. */
+    private static final int DEFAULT_ENTRY_BYTES = 1024;
+
+    private static final Object sLock = new Object();
+
+    @GuardedBy("sLock")
+    private static SharedDrawableCache sInstance;
+
+    private final Cache mCache;
+
+    /**
+     * Identifies the resources an entry was loaded from. ResourcesImpls
+     * created from the same key and currently holding the same configuration
+     * resolve every resource ID to the same drawable.
+     */
+    static final class Owner {
+        private final Object mKey;
+        private final Configuration mConfiguration;
+        private final int mHashCode;
+
+        /**
+         * @param key the {@link ResourcesKey} the resources were created
+         *            from, or any object unique to them if there is none
+         * @param configuration the configuration the resources currently hold
+         */
+        Owner(@NonNull Object key, @NonNull Configuration configuration) {
+            mKey = key;
+            mConfiguration = new Configuration(configuration);
+            mHashCode = 31 * key.hashCode() + mConfiguration.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Owner)) {
+                return false;
+            }
+            final Owner other = (Owner) obj;
+            return mKey.equals(other.mKey) && mConfiguration.equals(other.mConfiguration);
+        }
+    }
+
+    private static final class Key {
+        final Owner mOwner;
+        final long mKey;
+        final ThemeKey mTheme;
+        final boolean mUsesTheme;
+        final int mHashCode;
+
+        Key(Owner owner, long key, @Nullable ThemeKey theme, boolean usesTheme) {
+            mOwner = owner;
+            mKey = key;
+            mTheme = theme;
+            mUsesTheme = usesTheme;
+            mHashCode = Objects.hash(owner, key, theme, usesTheme);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return mKey == other.mKey && mUsesTheme == other.mUsesTheme
+                    && mOwner.equals(other.mOwner) && Objects.equals(mTheme, other.mTheme);
+        }
+    }
+
+    static final class Entry {
+        final Drawable.ConstantState mState;
+        final boolean mUsesTheme;
+        final int mBytes;
+
+        Entry(Drawable.ConstantState state, boolean usesTheme, int bytes) {
+            mState = state;
+            mUsesTheme = usesTheme;
+            mBytes = bytes;
+        }
+    }
+
+    private static final class Cache extends LruCache<Key, Entry> {
+        Cache(int maxBytes) {
+            super(maxBytes);
+        }
+
+        @Override
+        protected int sizeOf(Key key, Entry value) {
+            return value.mBytes;
+        }
+    }
+
+    private SharedDrawableCache(int maxBytes) {
+        mCache = new Cache(maxBytes);
+    }
+
+    /**
+     * Returns the cache for this process.
+     */
+    public static SharedDrawableCache getInstance() {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                final long budget = Runtime.getRuntime().maxMemory() / HEAP_FRACTION;
+                sInstance = new SharedDrawableCache((int) Math.min(budget, Integer.MAX_VALUE));
+            }
+            return sInstance;
+        }
+    }
+
+    /**
+     * Returns a cached entry, looking first for one inflated against the
+     * given theme and then for a theme-agnostic one.
+     */
+    @Nullable
+    Entry get(@NonNull Owner owner, long key, @Nullable Theme theme) {
+        Entry entry = mCache.get(new Key(owner, key, theme != null ? theme.getKey() : null,
+                true));
+        if (entry == null) {
+            entry = mCache.get(new Key(owner, key, null, false));
+        }
+        return entry;
+    }
+
+    /**
+     * Adds a constant state to the cache, charging it for the memory used by
+     * the given drawable.
+     */
+    void put(@NonNull Owner owner, long key, @Nullable Theme theme, boolean usesTheme,
+            @NonNull Drawable.ConstantState state, @NonNull Drawable dr) {
+        final ThemeKey themeKey = usesTheme && theme != null ? theme.getKey().clone() : null;
+        mCache.put(new Key(owner, key, themeKey, usesTheme), new Entry(state, usesTheme,
+                estimateBytes(dr)));
+    }
+
+    private static int estimateBytes(Drawable dr) {
+        if (dr instanceof BitmapDrawable) {
+            final Bitmap bitmap = ((BitmapDrawable) dr).getBitmap();
+            if (bitmap != null) {
+                return Math.max(bitmap.getAllocationByteCount(), DEFAULT_ENTRY_BYTES);
+            }
+        }
+        return DEFAULT_ENTRY_BYTES;
+    }
+
+    /**
+     * Releases memory in response to {@link ComponentCallbacks2#onTrimMemory}.
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            mCache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            mCache.trimToSize(mCache.maxSize() / 2);
+        }
+    }
+
+    /**
+     * Prints the cache budget, usage and hit, miss and eviction counts.
+     */
+    public void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix); pw.print("Shared drawable cache: size="); pw.print(mCache.size() / 1024);
+        pw.print("K max="); pw.print(mCache.maxSize() / 1024);
+        pw.print("K hits="); pw.print(mCache.hitCount());
+        pw.print(" misses="); pw.print(mCache.missCount());
+        pw.print(" puts="); pw.print(mCache.putCount());
+        pw.print(" evictions="); pw.println(mCache.evictionCount());
+    }
+}
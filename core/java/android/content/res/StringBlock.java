@@ -25,6 +25,7 @@ import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.Typeface;
 
+import java.io.PrintWriter;
 import java.util.Arrays;
 
 /**
@@ -36,11 +37,17 @@ final class StringBlock {
     private static final String TAG = "AssetManager";
     private static final boolean localLOGV = false;
 
+    /** Number of strings decoded per JNI call when filling a dense pool. */
+    private static final int BULK_DECODE_SIZE = 32;
+
     private final long mNative;
     private final boolean mUseSparse;
     private final boolean mOwnsNative;
     private CharSequence[] mStrings;
     private SparseArray<CharSequence> mSparseStrings;
+    private long mHits;
+    private long mMisses;
+    private long mBulkDecodes;
     StyleIDs mStyleIDs = null;
 
     public StringBlock(byte[] data, boolean useSparse) {
@@ -64,11 +71,13 @@ final class StringBlock {
             if (mStrings != null) {
                 CharSequence res = mStrings[idx];
                 if (res != null) {
+                    mHits++;
                     return res;
                 }
             } else if (mSparseStrings != null) {
                 CharSequence res = mSparseStrings.get(idx);
                 if (res != null) {
+                    mHits++;
                     return res;
                 }
             } else {
@@ -79,6 +88,18 @@ final class StringBlock {
                     mStrings = new CharSequence[num];
                 }
             }
+            mMisses++;
+
+            // Small pools are decoded a chunk at a time, which costs one trip
+            // through JNI instead of one per string.
+            if (mStrings != null) {
+                final int start = idx - idx % BULK_DECODE_SIZE;
+                decodeRangeLocked(start, Math.min(BULK_DECODE_SIZE, mStrings.length - start));
+                if (mStrings[idx] != null) {
+                    return mStrings[idx];
+                }
+            }
+
             String str = nativeGetString(mNative, idx);
             CharSequence res = str;
             int[] style = nativeGetStyle(mNative, idx);
@@ -139,6 +160,56 @@ final class StringBlock {
         }
     }
 
+    /**
+     * Decodes every string in the pool up front. Used by the zygote on the
+     * framework string pools, so that forked processes share the decoded
+     * strings instead of each decoding them again.
+     *
+     * @return the number of strings in the pool
+     */
+    int preload() {
+        synchronized (this) {
+            final int num = nativeGetSize(mNative);
+            if (mStrings == null) {
+                mStrings = new CharSequence[num];
+                if (mSparseStrings != null) {
+                    for (int i = mSparseStrings.size() - 1; i >= 0; i--) {
+                        mStrings[mSparseStrings.keyAt(i)] = mSparseStrings.valueAt(i);
+                    }
+                    mSparseStrings = null;
+                }
+            }
+            decodeRangeLocked(0, num);
+            for (int i = 0; i < num; i++) {
+                if (mStrings[i] == null) {
+                    // Styled strings are decoded one by one with their spans.
+                    get(i);
+                }
+            }
+            return num;
+        }
+    }
+
+    private void decodeRangeLocked(int start, int count) {
+        final String[] strs = nativeGetStrings(mNative, start, count);
+        for (int i = 0; i < count; i++) {
+            if (strs[i] != null && mStrings[start + i] == null) {
+                mStrings[start + i] = strs[i];
+            }
+        }
+        mBulkDecodes++;
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        synchronized (this) {
+            pw.print(prefix); pw.print("size="); pw.print(nativeGetSize(mNative));
+            pw.print(mStrings != null ? " dense" : " sparse");
+            pw.print(" hits="); pw.print(mHits);
+            pw.print(" misses="); pw.print(mMisses);
+            pw.print(" bulkDecodes="); pw.println(mBulkDecodes);
+        }
+    }
+
     protected void finalize() throws Throwable {
         try {
             super.finalize();
@@ -491,6 +562,7 @@ final class StringBlock {
                                                  int size);
     private static native int nativeGetSize(long obj);
     private static native String nativeGetString(long obj, int idx);
+    private static native String[] nativeGetStrings(long obj, int start, int count);
     private static native int[] nativeGetStyle(long obj, int idx);
     private static native void nativeDestroy(long obj);
 }
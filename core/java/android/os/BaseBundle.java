@@ -58,6 +58,8 @@ public class BaseBundle {
 
     private static volatile boolean sShouldDefuse = false;
 
+    private static volatile boolean sLazyUnparcel = false;
+
     /**
      * Set global variable indicating that any Bundles parsed in this process
      * should be "defused." That is, any {@link BadParcelableException}
@@ -70,6 +72,20 @@ public class BaseBundle {
         sShouldDefuse = shouldDefuse;
     }
 
+    /**
+     * Set global variable indicating whether Bundles parsed in this process
+     * should be unparcelled one key at a time.  When enabled, the first
+     * single-key access to a parcelled Bundle scans the parcel once to find
+     * where each value starts, and values are only read when they are asked
+     * for.  Values whose length cannot be found without instantiating them
+     * (Parcelables, Lists, Maps, ...) are still read during that scan.
+     *
+     * @hide
+     */
+    public static void setLazyUnparcelEnabled(boolean enabled) {
+        sLazyUnparcel = enabled;
+    }
+
     // A parcel cannot be obtained during compile-time initialization. Put the
     // empty parcel into an inner class that can be initialized separately. This
     // allows to initialize BaseBundle, and classes depending on it.
@@ -78,8 +94,29 @@ public class BaseBundle {
         public static final Parcel EMPTY_PARCEL = Parcel.obtain();
     }
 
+    /**
+     * Placeholder stored in mMap for a value that has not been read out of
+     * mParcelledData yet.  Positions are offsets into mParcelledData, which
+     * is never modified while it is indexed, so placeholders can be shared
+     * between copies of the same parcelled data.
+     */
+    static final class LazyValue {
+        /** Start of the key that precedes this value. */
+        final int mEntryStart;
+        /** Start of the value itself, i.e. of its type tag. */
+        final int mValueStart;
+        /** Offset just past the end of the value. */
+        final int mEnd;
+
+        LazyValue(int entryStart, int valueStart, int end) {
+            mEntryStart = entryStart;
+            mValueStart = valueStart;
+            mEnd = end;
+        }
+    }
+
     // Invariant - exactly one of mMap / mParcelledData will be null
-    // (except inside a call to unparcel)
+    // (except inside a call to unparcel, or while mParcelledDataIndexed)
 
     ArrayMap<String, Object> mMap = null;
 
@@ -90,6 +127,15 @@ public class BaseBundle {
      */
     Parcel mParcelledData = null;
 
+    /*
+     * If true, mParcelledData has been indexed by key but not fully
+     * unparcelled: mMap holds every key, with a LazyValue for each value
+     * that has not been read yet.  Anything that needs the full map goes
+     * through unparcel(), which reads the remaining values and drops
+     * mParcelledData.
+     */
+    boolean mParcelledDataIndexed;
+
     /**
      * The ClassLoader used when unparcelling data from mParcelledData.
      */
@@ -222,7 +268,9 @@ public class BaseBundle {
     /* package */ void unparcel() {
         synchronized (this) {
             final Parcel source = mParcelledData;
-            if (source != null) {
+            if (source != null && mParcelledDataIndexed) {
+                resolveAllLazyValuesLocked();
+            } else if (source != null) {
                 initializeFromParcelLocked(source, /*recycleParcel=*/ true);
             } else {
                 if (DEBUG) {
@@ -291,6 +339,170 @@ public class BaseBundle {
         }
     }
 
+    /**
+     * Returns the value for the given key, reading just that value out of
+     * the parcelled data if lazy unparcelling is enabled.
+     */
+    Object getValue(String key) {
+        if (mParcelledData == null || !sLazyUnparcel) {
+            unparcel();
+            return mMap.get(key);
+        }
+        synchronized (this) {
+            if (!indexParcelledDataLocked()) {
+                return mMap.get(key);
+            }
+            final int i = mMap.indexOfKey(key);
+            if (i < 0) {
+                return null;
+            }
+            final Object value = mMap.valueAt(i);
+            if (value instanceof LazyValue) {
+                return resolveLazyValueLocked(i, (LazyValue) value);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Makes sure mMap holds every key, indexing mParcelledData if lazy
+     * unparcelling is enabled and unparcelling it fully otherwise.
+     */
+    private void ensureKeysLocked() {
+        if (mParcelledData == null) {
+            return;
+        }
+        if (!sLazyUnparcel) {
+            initializeFromParcelLocked(mParcelledData, /*recycleParcel=*/ true);
+            return;
+        }
+        indexParcelledDataLocked();
+    }
+
+    /**
+     * Scans mParcelledData once, recording where each value starts.
+     *
+     * @return true if the data are (now) indexed; false if they had to be
+     * unparcelled fully instead, in which case mParcelledData is null.
+     */
+    private boolean indexParcelledDataLocked() {
+        if (mParcelledDataIndexed) {
+            return true;
+        }
+        final Parcel source = mParcelledData;
+        if (source == null) {
+            return false;
+        }
+        if (isEmptyParcel(source)) {
+            initializeFromParcelLocked(source, /*recycleParcel=*/ true);
+            return false;
+        }
+        if (LOG_DEFUSABLE && sShouldDefuse && (mFlags & FLAG_DEFUSABLE) == 0) {
+            Slog.wtf(TAG, "Attempting to unparcel a Bundle while in transit; this may "
+                    + "clobber all data inside!", new Throwable());
+        }
+
+        final int start = source.dataPosition();
+        final int count = source.readInt();
+        if (count < 0) {
+            source.setDataPosition(start);
+            initializeFromParcelLocked(source, /*recycleParcel=*/ true);
+            return false;
+        }
+        final ArrayMap<String, Object> map = new ArrayMap<>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                final int entryStart = source.dataPosition();
+                final String key = source.readString();
+                final int valueStart = source.dataPosition();
+                if (source.skipValueIfPossible()) {
+                    map.append(key, new LazyValue(entryStart, valueStart, source.dataPosition()));
+                } else {
+                    map.append(key, source.readValue(mClassLoader));
+                }
+            }
+            map.validate();
+        } catch (RuntimeException e) {
+            // Let the regular path decide whether to defuse or rethrow.
+            source.setDataPosition(start);
+            initializeFromParcelLocked(source, /*recycleParcel=*/ true);
+            return false;
+        }
+        if (DEBUG) {
+            Log.d(TAG, "unparcel " + Integer.toHexString(System.identityHashCode(this))
+                    + ": indexed " + count + " maps");
+        }
+        mMap = map;
+        mParcelledDataIndexed = true;
+        return true;
+    }
+
+    /**
+     * Reads a value the index skipped.  Only values whose extent the index
+     * has already checked (strings and primitive arrays) are skipped, so
+     * this is not expected to fail; anything that can fail is read during
+     * the index, where it falls back to the regular unparcel path.
+     */
+    private Object resolveLazyValueLocked(int index, LazyValue lazy) {
+        final Parcel source = mParcelledData;
+        source.setDataPosition(lazy.mValueStart);
+        final Object value;
+        try {
+            value = source.readValue(mClassLoader);
+        } catch (BadParcelableException e) {
+            if (sShouldDefuse) {
+                // Same as failing in initializeFromParcelLocked(): drop everything.
+                Log.w(TAG, "Failed to parse Bundle, but defusing quietly", e);
+                mMap.erase();
+                recycleParcel(mParcelledData);
+                mParcelledData = null;
+                mParcelledDataIndexed = false;
+                return null;
+            } else {
+                throw e;
+            }
+        }
+        mMap.setValueAt(index, value);
+        return value;
+    }
+
+    private void resolveAllLazyValuesLocked() {
+        final ArrayMap<String, Object> map = mMap;
+        for (int i = 0; i < map.size(); i++) {
+            final Object value = map.valueAt(i);
+            if (value instanceof LazyValue) {
+                resolveLazyValueLocked(i, (LazyValue) value);
+                if (mParcelledData == null) {
+                    // Defused a bad value; the map has been dropped.
+                    return;
+                }
+            }
+        }
+        recycleParcel(mParcelledData);
+        mParcelledData = null;
+        mParcelledDataIndexed = false;
+    }
+
+    /**
+     * Returns true if writing mParcelledData out as-is is equivalent to
+     * writing mMap, i.e. no value that has been read could have been
+     * modified by whoever read it.
+     */
+    private boolean isParcelledDataCurrentLocked() {
+        if (!mParcelledDataIndexed) {
+            return true;
+        }
+        final ArrayMap<String, Object> map = mMap;
+        for (int i = 0; i < map.size(); i++) {
+            final Object value = map.valueAt(i);
+            if (value != null && !(value instanceof LazyValue) && !(value instanceof String)
+                    && !(value instanceof Number) && !(value instanceof Boolean)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * @hide
      */
@@ -330,7 +542,9 @@ public class BaseBundle {
      * @return the number of mappings as an int.
      */
     public int size() {
-        unparcel();
+        synchronized (this) {
+            ensureKeysLocked();
+        }
         return mMap.size();
     }
 
@@ -338,7 +552,9 @@ public class BaseBundle {
      * Returns true if the mapping of this Bundle is empty, false otherwise.
      */
     public boolean isEmpty() {
-        unparcel();
+        synchronized (this) {
+            ensureKeysLocked();
+        }
         return mMap.isEmpty();
     }
 
@@ -367,9 +583,20 @@ public class BaseBundle {
             // Big kind-of here!
             return false;
         } else if (isParcelled()) {
-            return mParcelledData.compareData(other.mParcelledData) == 0;
-        } else {
-            return mMap.equals(other.mMap);
+            if (isParcelledDataCurrent() && other.isParcelledDataCurrent()) {
+                return mParcelledData.compareData(other.mParcelledData) == 0;
+            }
+            // A value read out of the parcel may have been changed since, so
+            // the parcelled bytes no longer describe the Bundle.
+            unparcel();
+            other.unparcel();
+        }
+        return mMap.equals(other.mMap);
+    }
+
+    private boolean isParcelledDataCurrent() {
+        synchronized (this) {
+            return isParcelledDataCurrentLocked();
         }
     }
 
@@ -395,6 +622,8 @@ public class BaseBundle {
             } else {
                 mParcelledData = null;
             }
+            // The copy has the same layout, so any LazyValues in from.mMap still apply.
+            mParcelledDataIndexed = from.mParcelledDataIndexed;
 
             if (from.mMap != null) {
                 if (!deep) {
@@ -464,7 +693,9 @@ public class BaseBundle {
      * @return true if the key is part of the mapping, false otherwise
      */
     public boolean containsKey(String key) {
-        unparcel();
+        synchronized (this) {
+            ensureKeysLocked();
+        }
         return mMap.containsKey(key);
     }
 
@@ -476,8 +707,7 @@ public class BaseBundle {
      */
     @Nullable
     public Object get(String key) {
-        unparcel();
-        return mMap.get(key);
+        return getValue(key);
     }
 
     /**
@@ -817,7 +1047,6 @@ public class BaseBundle {
      * @return a boolean value
      */
     public boolean getBoolean(String key) {
-        unparcel();
         if (DEBUG) Log.d(TAG, "Getting boolean in "
                 + Integer.toHexString(System.identityHashCode(this)));
         return getBoolean(key, false);
@@ -854,8 +1083,7 @@ public class BaseBundle {
      * @return a boolean value
      */
     public boolean getBoolean(String key, boolean defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -888,8 +1116,7 @@ public class BaseBundle {
      * @return a byte value
      */
     Byte getByte(String key, byte defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -922,8 +1149,7 @@ public class BaseBundle {
      * @return a char value
      */
     char getChar(String key, char defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -956,8 +1182,7 @@ public class BaseBundle {
      * @return a short value
      */
     short getShort(String key, short defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -990,8 +1215,7 @@ public class BaseBundle {
      * @return an int value
      */
    public int getInt(String key, int defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1024,8 +1248,7 @@ public class BaseBundle {
      * @return a long value
      */
     public long getLong(String key, long defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1058,8 +1281,7 @@ public class BaseBundle {
      * @return a float value
      */
     float getFloat(String key, float defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1092,8 +1314,7 @@ public class BaseBundle {
      * @return a double value
      */
     public double getDouble(String key, double defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1115,8 +1336,7 @@ public class BaseBundle {
      */
     @Nullable
     public String getString(@Nullable String key) {
-        unparcel();
-        final Object o = mMap.get(key);
+        final Object o = getValue(key);
         try {
             return (String) o;
         } catch (ClassCastException e) {
@@ -1151,8 +1371,7 @@ public class BaseBundle {
      */
     @Nullable
     CharSequence getCharSequence(@Nullable String key) {
-        unparcel();
-        final Object o = mMap.get(key);
+        final Object o = getValue(key);
         try {
             return (CharSequence) o;
         } catch (ClassCastException e) {
@@ -1187,8 +1406,7 @@ public class BaseBundle {
      */
     @Nullable
     Serializable getSerializable(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1210,8 +1428,7 @@ public class BaseBundle {
      */
     @Nullable
     ArrayList<Integer> getIntegerArrayList(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1233,8 +1450,7 @@ public class BaseBundle {
      */
     @Nullable
     ArrayList<String> getStringArrayList(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1256,8 +1472,7 @@ public class BaseBundle {
      */
     @Nullable
     ArrayList<CharSequence> getCharSequenceArrayList(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1279,8 +1494,7 @@ public class BaseBundle {
      */
     @Nullable
     public boolean[] getBooleanArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1302,8 +1516,7 @@ public class BaseBundle {
      */
     @Nullable
     byte[] getByteArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1325,8 +1538,7 @@ public class BaseBundle {
      */
     @Nullable
     short[] getShortArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1348,8 +1560,7 @@ public class BaseBundle {
      */
     @Nullable
     char[] getCharArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1371,8 +1582,7 @@ public class BaseBundle {
      */
     @Nullable
     public int[] getIntArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1394,8 +1604,7 @@ public class BaseBundle {
      */
     @Nullable
     public long[] getLongArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1417,8 +1626,7 @@ public class BaseBundle {
      */
     @Nullable
     float[] getFloatArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1440,8 +1648,7 @@ public class BaseBundle {
      */
     @Nullable
     public double[] getDoubleArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1463,8 +1670,7 @@ public class BaseBundle {
      */
     @Nullable
     public String[] getStringArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1486,8 +1692,7 @@ public class BaseBundle {
      */
     @Nullable
     CharSequence[] getCharSequenceArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1518,11 +1723,13 @@ public class BaseBundle {
             if (mParcelledData != null) {
                 if (mParcelledData == NoImagePreloadHolder.EMPTY_PARCEL) {
                     parcel.writeInt(0);
-                } else {
+                } else if (isParcelledDataCurrentLocked()) {
                     int length = mParcelledData.dataSize();
                     parcel.writeInt(length);
                     parcel.writeInt(BUNDLE_MAGIC);
                     parcel.appendFrom(mParcelledData, 0, length);
+                } else {
+                    writeIndexedMapLocked(parcel);
                 }
                 return;
             }
@@ -1549,6 +1756,39 @@ public class BaseBundle {
         parcel.setDataPosition(endPos);
     }
 
+    /**
+     * Writes an indexed Bundle, copying the raw bytes of every entry whose
+     * value has not been read and writing the others normally.
+     */
+    private void writeIndexedMapLocked(Parcel parcel) {
+        final ArrayMap<String, Object> map = mMap;
+        final Parcel source = mParcelledData;
+        int lengthPos = parcel.dataPosition();
+        parcel.writeInt(-1); // dummy, will hold length
+        parcel.writeInt(BUNDLE_MAGIC);
+
+        int startPos = parcel.dataPosition();
+        final int N = map.size();
+        parcel.writeInt(N);
+        for (int i = 0; i < N; i++) {
+            final Object value = map.valueAt(i);
+            if (value instanceof LazyValue) {
+                final LazyValue lazy = (LazyValue) value;
+                parcel.appendFrom(source, lazy.mEntryStart, lazy.mEnd - lazy.mEntryStart);
+            } else {
+                parcel.writeString(map.keyAt(i));
+                parcel.writeValue(value);
+            }
+        }
+        int endPos = parcel.dataPosition();
+
+        // Backpatch length
+        parcel.setDataPosition(lengthPos);
+        int length = endPos - startPos;
+        parcel.writeInt(length);
+        parcel.setDataPosition(endPos);
+    }
+
     /**
      * Reads the Parcel contents into this Bundle, typically in order for
      * it to be passed through an IBinder connection.
@@ -1564,8 +1804,9 @@ public class BaseBundle {
     private void readFromParcelInner(Parcel parcel, int length) {
         if (length < 0) {
             throw new RuntimeException("Bad length in parcel: " + length);
-
-        } else if (length == 0) {
+        }
+        mParcelledDataIndexed = false;
+        if (length == 0) {
             // Empty Bundle or end of data.
             mParcelledData = NoImagePreloadHolder.EMPTY_PARCEL;
             return;
@@ -41,6 +41,7 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.ObjectStreamClass;
+import java.io.PrintWriter;
 import java.io.Serializable;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
@@ -364,6 +365,13 @@ public final class Parcel {
 
     private ReadWriteHelper mReadWriteHelper = ReadWriteHelper.DEFAULT;
 
+    /**
+     * Process-wide table backing {@link #setStringDeduplicationEnabled}.
+     */
+    private static final StringInternTable sStringTable = new StringInternTable(4096);
+
+    private boolean mDeduplicateStrings;
+
     /**
      * Retrieve a new Parcel object from the pool.
      */
@@ -422,6 +430,30 @@ public final class Parcel {
         mReadWriteHelper = helper != null ? helper : ReadWriteHelper.DEFAULT;
     }
 
+    /**
+     * Make {@link #readString} on this parcel return a shared instance for
+     * strings that have been read before (from any parcel with this enabled),
+     * instead of allocating a new String each time.  Meant for binder
+     * interfaces whose arguments are dominated by a small set of recurring
+     * strings such as package and permission names.  Reset when the parcel
+     * is recycled.  Has no effect while a {@link ReadWriteHelper} is set.
+     *
+     * @hide
+     */
+    public void setStringDeduplicationEnabled(boolean enabled) {
+        mDeduplicateStrings = enabled;
+    }
+
+    /**
+     * Print hit and miss counts for the table used by
+     * {@link #setStringDeduplicationEnabled}.
+     *
+     * @hide
+     */
+    public static void dumpStringDeduplicationStats(PrintWriter pw, String prefix) {
+        sStringTable.dump(pw, prefix);
+    }
+
     /**
      * @return whether this parcel has a {@link ReadWriteHelper}.
      *
@@ -2054,9 +2086,23 @@ public final class Parcel {
      * Read a string value from the parcel at the current dataPosition().
      */
     public final String readString() {
+        if (mDeduplicateStrings && mReadWriteHelper == ReadWriteHelper.DEFAULT) {
+            return readStringDeduplicated();
+        }
         return mReadWriteHelper.readString(this);
     }
 
+    private String readStringDeduplicated() {
+        final int lengthPos = dataPosition();
+        final int length = readInt();
+        if (length >= 0 && length <= StringInternTable.MAX_LENGTH
+                && length < (dataAvail() >> 1)) {
+            return sStringTable.read(this, length, lengthPos);
+        }
+        setDataPosition(lengthPos);
+        return nativeReadString(mNativePtr);
+    }
+
     /**
      * Read a string without going though a {@link ReadWriteHelper}.  Subclasses of
      * {@link ReadWriteHelper} must use this method instead of {@link #readString} to avoid
@@ -2704,6 +2750,108 @@ public final class Parcel {
         }
     }
 
+    /**
+     * Skip over the typed object at the current dataPosition() if its length
+     * can be worked out from the data alone, without instantiating any
+     * classes.  Used by {@link BaseBundle} to index a parcelled Bundle so
+     * values can be unparcelled one key at a time.
+     *
+     * @return true if the value was skipped, leaving the data position just
+     * after it; false if the value must be read with {@link #readValue},
+     * in which case the data position is left unchanged.
+     */
+    /* package */ boolean skipValueIfPossible() {
+        final int start = dataPosition();
+        final int type = readInt();
+        switch (type) {
+            case VAL_NULL:
+                return true;
+
+            case VAL_INTEGER:
+            case VAL_SHORT:
+            case VAL_FLOAT:
+            case VAL_BOOLEAN:
+            case VAL_BYTE:
+                skipBytes(4);
+                return true;
+
+            case VAL_LONG:
+            case VAL_DOUBLE:
+            case VAL_SIZE:
+            case VAL_SIZEF:
+                skipBytes(8);
+                return true;
+
+            case VAL_STRING:
+                skipString(readInt());
+                return true;
+
+            case VAL_STRINGARRAY: {
+                final int N = readInt();
+                for (int i = 0; i < N; i++) {
+                    skipString(readInt());
+                }
+                return true;
+            }
+
+            case VAL_BYTEARRAY:
+                skipArray(1);
+                return true;
+
+            case VAL_INTARRAY:
+            case VAL_BOOLEANARRAY:
+                skipArray(4);
+                return true;
+
+            case VAL_LONGARRAY:
+            case VAL_DOUBLEARRAY:
+                skipArray(8);
+                return true;
+
+            // Serializables are not skipped either: deserializing them can fail, and that
+            // must happen while the Bundle is unparcelled, where it is defused or rethrown,
+            // rather than later from a getter.
+
+            // Nested (Persistable)Bundles are not skipped: BaseBundle.readFromParcelInner()
+            // checks the magic and advances by the unpadded length, and an index must find
+            // exactly the entry boundaries a real read does.  Reading one only copies its bytes.
+            default:
+                setDataPosition(start);
+                return false;
+        }
+    }
+
+    private void skipBytes(int length) {
+        if (length < 0 || length > dataAvail()) {
+            throw new BadParcelableException("Value of " + length + " bytes at offset "
+                    + dataPosition() + " runs past the end of the parcel");
+        }
+        setDataPosition(dataPosition() + ((length + 3) & ~3));
+    }
+
+    private void skipString(int length) {
+        // Keep in sync with Parcel::writeString16(): the length has already been read
+        // and is followed by UTF-16 data including the terminator.
+        if (length >= 0) {
+            if (length >= (dataAvail() >> 1)) {
+                throw new BadParcelableException("String of " + length + " chars at offset "
+                        + dataPosition() + " runs past the end of the parcel");
+            }
+            skipBytes((length + 1) * 2);
+        }
+    }
+
+    private void skipArray(int elementSize) {
+        final int N = readInt();
+        if (N > 0) {
+            if (N > (dataAvail() / elementSize)) {
+                throw new BadParcelableException("Array of " + N + " elements at offset "
+                        + dataPosition() + " runs past the end of the parcel");
+            }
+            skipBytes(N * elementSize);
+        }
+    }
+
     /**
      * Read a typed object from a parcel.  The given class loader will be
      * used to load any enclosed Parcelables.  If it is null, the default class
@@ -3051,6 +3199,7 @@ public final class Parcel {
             updateNativeSize(nativeFreeBuffer(mNativePtr));
         }
         mReadWriteHelper = ReadWriteHelper.DEFAULT;
+        mDeduplicateStrings = false;
     }
 
     private void destroy() {
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import java.io.PrintWriter;
+import java.nio.ByteOrder;
+
+/**
+ * Bounded table of strings read out of {@link Parcel}s, used to hand back the
+ * same String instance for strings that keep coming across binder (package
+ * names, permission names, ...) instead of allocating a new one every time.
+ *
+ * <p>The table is direct-mapped: each string lives in the one slot its hash
+ * selects, and a new string simply replaces whatever was there.  Slots are
+ * read and written without locking; a reader racing with a writer sees either
+ * the old or the new String, both of which are immutable, so the worst case
+ * is an extra miss.  Hit and miss counts are likewise updated without
+ * synchronization and are only approximate.</p>
+ *
+ * <p>Lookups compare the UTF-16 data in the parcel against the cached string
+ * directly, so a hit does not allocate at all.</p>
+ */
+final class StringInternTable {
+    /** Strings longer than this are read normally; they are rarely repeated. */
+    static final int MAX_LENGTH = 128;
+
+    private static final boolean LITTLE_ENDIAN =
+            ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+    private final String[] mTable;
+    private final int mMask;
+
+    private long mHits;
+    private long mMisses;
+
+    /**
+     * @param capacity Number of slots; rounded up to a power of two.
+     */
+    StringInternTable(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        mTable = new String[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * Reads the UTF-16 data of a string whose length has already been read,
+     * returning the cached instance if there is one.
+     *
+     * @param p Parcel positioned just after the string length.
+     * @param length Length of the string in chars, between 0 and {@link #MAX_LENGTH}.
+     * @param lengthPos Position of the length in the parcel, used to re-read
+     *        the string normally on a miss.
+     * @return the cached string, or on a miss the string read again from
+     *         {@code lengthPos} with {@link Parcel#readStringNoHelper()}, which
+     *         then replaces the cached string in its slot. Either way the parcel
+     *         is left positioned after the string.
+     */
+    String read(Parcel p, int length, int lengthPos) {
+        // The data is length chars plus a terminating zero, padded to a multiple of 4 bytes.
+        final int words = (length + 2) >> 1;
+        final int dataPos = p.dataPosition();
+        int hash = 0;
+        for (int i = 0, c = 0; i < words; i++) {
+            final int word = p.readInt();
+            if (c++ < length) hash = 31 * hash + lowChar(word);
+            if (c++ < length) hash = 31 * hash + highChar(word);
+        }
+
+        final int slot = spread(hash) & mMask;
+        final String cached = mTable[slot];
+        if (cached != null && cached.length() == length && cached.hashCode() == hash) {
+            final int endPos = p.dataPosition();
+            p.setDataPosition(dataPos);
+            if (matches(p, cached, length, words)) {
+                p.setDataPosition(endPos);
+                mHits++;
+                return cached;
+            }
+        }
+
+        mMisses++;
+        p.setDataPosition(lengthPos);
+        final String s = p.readStringNoHelper();
+        if (s != null) {
+            mTable[slot] = s;
+        }
+        return s;
+    }
+
+    private static boolean matches(Parcel p, String s, int length, int words) {
+        for (int i = 0, c = 0; i < words; i++) {
+            final int word = p.readInt();
+            if (c < length && s.charAt(c++) != lowChar(word)) return false;
+            if (c < length && s.charAt(c++) != highChar(word)) return false;
+        }
+        return true;
+    }
+
+    private static char lowChar(int word) {
+        return (char) (LITTLE_ENDIAN ? word : word >>> 16);
+    }
+
+    private static char highChar(int word) {
+        return (char) (LITTLE_ENDIAN ? word >>> 16 : word);
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    long getHitCount() {
+        return mHits;
+    }
+
+    long getMissCount() {
+        return mMisses;
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        final long hits = mHits;
+        final long misses = mMisses;
+        pw.print(prefix); pw.print("slots="); pw.print(mTable.length);
+        pw.print(" hits="); pw.print(hits);
+        pw.print(" misses="); pw.print(misses);
+        pw.print(" hitRate=");
+        pw.print(hits + misses == 0 ? 0 : (100 * hits) / (hits + misses));
+        pw.println("%");
+    }
+}
@@ -266,6 +266,8 @@ public abstract class NotificationListenerService extends Service {
     private RankingMap mRankingMap;
 
     private INotificationManager mNoMan;
+    @GuardedBy("mLock")
+    private boolean mFullRankingUpdateRequested;
 
     /**
      * Only valid after a successful call to (@link registerAsService}.
@@ -1166,6 +1168,7 @@ public abstract class NotificationListenerService extends Service {
                 sbn = sbnHolder.get();
             } catch (RemoteException e) {
                 Log.w(TAG, "onNotificationPosted: Error receiving StatusBarNotification", e);
+                onRankingUpdateOnly(update);
                 return;
             }
 
@@ -1206,6 +1209,7 @@ public abstract class NotificationListenerService extends Service {
                 sbn = sbnHolder.get();
             } catch (RemoteException e) {
                 Log.w(TAG, "onNotificationRemoved: Error receiving StatusBarNotification", e);
+                onRankingUpdateOnly(update);
                 return;
             }
             // protect subclass from concurrent modifications of (@link mNotificationKeys}.
@@ -1221,6 +1225,16 @@ public abstract class NotificationListenerService extends Service {
 
         }
 
+        // Later updates may be deltas against this one, so it must be applied even when the
+        // notification it came with is lost.
+        private void onRankingUpdateOnly(NotificationRankingUpdate update) {
+            synchronized (mLock) {
+                applyUpdateLocked(update);
+                mHandler.obtainMessage(MyHandler.MSG_ON_NOTIFICATION_RANKING_UPDATE,
+                        mRankingMap).sendToTarget();
+            }
+        }
+
         @Override
         public void onListenerConnected(NotificationRankingUpdate update) {
             // protect subclass from concurrent modifications of (@link mNotificationKeys}.
@@ -1299,9 +1313,40 @@ public abstract class NotificationListenerService extends Service {
      * @hide
      */
     public final void applyUpdateLocked(NotificationRankingUpdate update) {
+        final NotificationRankingUpdate previous =
+                mRankingMap != null ? mRankingMap.mRankingUpdate : null;
+        if (update.isDelta()) {
+            if (previous == null || previous.getVersion() != update.getBaseVersion()) {
+                Log.w(TAG, "Ignoring ranking update " + update.getVersion()
+                        + " based on " + update.getBaseVersion());
+                // An update queued before a newer full update is simply stale.  Otherwise
+                // an update was lost, and every later delta will be ignored until the
+                // listener has a full update again.
+                if (previous == null || previous.getVersion() < update.getBaseVersion()) {
+                    requestFullRankingUpdateLocked();
+                }
+                return;
+            }
+            update = update.applyTo(previous);
+        } else if (previous != null && update.getVersion() < previous.getVersion()) {
+            Log.w(TAG, "Ignoring stale ranking update " + update.getVersion());
+            return;
+        } else {
+            mFullRankingUpdateRequested = false;
+        }
         mRankingMap = new RankingMap(update);
     }
 
+    private void requestFullRankingUpdateLocked() {
+        if (mFullRankingUpdateRequested || !isBound()) return;
+        mFullRankingUpdateRequested = true;
+        try {
+            getNotificationInterface().requestFullRankingUpdateFromListener(mWrapper);
+        } catch (android.os.RemoteException ex) {
+            Log.v(TAG, "Unable to contact notification manager", ex);
+        }
+    }
+
     /** @hide */
     protected Context getContext() {
         if (mSystemContext != null) {
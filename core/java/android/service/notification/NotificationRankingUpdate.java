@@ -18,12 +18,25 @@ package android.service.notification;
 import android.os.Bundle;
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.util.ArraySet;
+
+import java.util.Collections;
 
 /**
+ * Ranking information for the notifications visible to a listener.
+ *
+ * <p>An update is either full, carrying every per-notification entry, or a
+ * delta against the update with version {@link #getBaseVersion()}. A delta
+ * still carries the complete ordered and intercepted keys and importance, but
+ * the remaining per-notification entries only for {@link #getChangedKeys()};
+ * {@link #applyTo} rebuilds the full update from the previous one.</p>
+ *
  * @hide
  */
 public class NotificationRankingUpdate implements Parcelable {
-    // TODO: Support incremental updates.
+    private final long mVersion;
+    private final long mBaseVersion;
+    private final String[] mChangedKeys;
     private final String[] mKeys;
     private final String[] mInterceptedKeys;
     private final Bundle mVisibilityOverrides;
@@ -41,6 +54,27 @@ public class NotificationRankingUpdate implements Parcelable {
             int[] importance, Bundle explanation, Bundle overrideGroupKeys,
             Bundle channels, Bundle overridePeople, Bundle snoozeCriteria,
             Bundle showBadge) {
+        this(0, 0, null, keys, interceptedKeys, visibilityOverrides, suppressedVisualEffects,
+                importance, explanation, overrideGroupKeys, channels, overridePeople,
+                snoozeCriteria, showBadge);
+    }
+
+    /**
+     * @param version Version of this update, increasing with every update
+     *        sent to the same listener.
+     * @param baseVersion Version of the update this one is a delta against,
+     *        or 0 if this is a full update.
+     * @param changedKeys For a delta, the keys whose entries are included.
+     */
+    public NotificationRankingUpdate(long version, long baseVersion, String[] changedKeys,
+            String[] keys, String[] interceptedKeys,
+            Bundle visibilityOverrides, Bundle suppressedVisualEffects,
+            int[] importance, Bundle explanation, Bundle overrideGroupKeys,
+            Bundle channels, Bundle overridePeople, Bundle snoozeCriteria,
+            Bundle showBadge) {
+        mVersion = version;
+        mBaseVersion = baseVersion;
+        mChangedKeys = baseVersion != 0 ? changedKeys : null;
         mKeys = keys;
         mInterceptedKeys = interceptedKeys;
         mVisibilityOverrides = visibilityOverrides;
@@ -55,6 +89,9 @@ public class NotificationRankingUpdate implements Parcelable {
     }
 
     public NotificationRankingUpdate(Parcel in) {
+        mVersion = in.readLong();
+        mBaseVersion = in.readLong();
+        mChangedKeys = mBaseVersion != 0 ? in.readStringArray() : null;
         mKeys = in.readStringArray();
         mInterceptedKeys = in.readStringArray();
         mVisibilityOverrides = in.readBundle();
@@ -76,6 +113,11 @@ public class NotificationRankingUpdate implements Parcelable {
 
     @Override
     public void writeToParcel(Parcel out, int flags) {
+        out.writeLong(mVersion);
+        out.writeLong(mBaseVersion);
+        if (mBaseVersion != 0) {
+            out.writeStringArray(mChangedKeys);
+        }
         out.writeStringArray(mKeys);
         out.writeStringArray(mInterceptedKeys);
         out.writeBundle(mVisibilityOverrides);
@@ -100,6 +142,82 @@ public class NotificationRankingUpdate implements Parcelable {
         }
     };
 
+    public long getVersion() {
+        return mVersion;
+    }
+
+    public long getBaseVersion() {
+        return mBaseVersion;
+    }
+
+    public boolean isDelta() {
+        return mBaseVersion != 0;
+    }
+
+    public String[] getChangedKeys() {
+        return mChangedKeys;
+    }
+
+    /**
+     * Rebuilds the full update described by this delta.
+     *
+     * @param previous The full update with version {@link #getBaseVersion()}.
+     * @return a full update carrying this update's version
+     */
+    public NotificationRankingUpdate applyTo(NotificationRankingUpdate previous) {
+        if (!isDelta()) {
+            return this;
+        }
+        if (previous.isDelta() || previous.mVersion != mBaseVersion) {
+            throw new IllegalArgumentException("Update " + mVersion + " is based on "
+                    + mBaseVersion + ", not " + previous.mVersion);
+        }
+
+        final ArraySet<String> changed = new ArraySet<>(mChangedKeys.length);
+        Collections.addAll(changed, mChangedKeys);
+        final Bundle visibilityOverrides = new Bundle();
+        final Bundle suppressedVisualEffects = new Bundle();
+        final Bundle explanation = new Bundle();
+        final Bundle overrideGroupKeys = new Bundle();
+        final Bundle channels = new Bundle();
+        final Bundle overridePeople = new Bundle();
+        final Bundle snoozeCriteria = new Bundle();
+        final Bundle showBadge = new Bundle();
+        for (String key : mKeys) {
+            final NotificationRankingUpdate source = changed.contains(key) ? this : previous;
+            if (source.mVisibilityOverrides.containsKey(key)) {
+                visibilityOverrides.putInt(key, source.mVisibilityOverrides.getInt(key));
+            }
+            if (source.mSuppressedVisualEffects.containsKey(key)) {
+                suppressedVisualEffects.putInt(key, source.mSuppressedVisualEffects.getInt(key));
+            }
+            if (source.mImportanceExplanation.containsKey(key)) {
+                explanation.putCharSequence(key,
+                        source.mImportanceExplanation.getCharSequence(key));
+            }
+            if (source.mOverrideGroupKeys.containsKey(key)) {
+                overrideGroupKeys.putString(key, source.mOverrideGroupKeys.getString(key));
+            }
+            if (source.mChannels.containsKey(key)) {
+                channels.putParcelable(key, source.mChannels.getParcelable(key));
+            }
+            if (source.mOverridePeople.containsKey(key)) {
+                overridePeople.putStringArrayList(key,
+                        source.mOverridePeople.getStringArrayList(key));
+            }
+            if (source.mSnoozeCriteria.containsKey(key)) {
+                snoozeCriteria.putParcelableArrayList(key,
+                        source.mSnoozeCriteria.getParcelableArrayList(key));
+            }
+            if (source.mShowBadge.containsKey(key)) {
+                showBadge.putBoolean(key, source.mShowBadge.getBoolean(key));
+            }
+        }
+        return new NotificationRankingUpdate(mVersion, 0, null, mKeys, mInterceptedKeys,
+                visibilityOverrides, suppressedVisualEffects, mImportance, explanation,
+                overrideGroupKeys, channels, overridePeople, snoozeCriteria, showBadge);
+    }
+
     public String[] getOrderedKeys() {
         return mKeys;
     }
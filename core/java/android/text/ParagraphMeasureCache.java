@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.text;
+
+import android.graphics.Typeface;
+import android.os.LocaleList;
+import android.util.LruCache;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Process-wide cache of the character widths, font metrics and line breaks that
+ * {@link StaticLayout} computes for a paragraph of plain text, so that laying out the same
+ * paragraph again with the same paint and widths doesn't measure and break it again.
+ *
+ * Only paragraphs without spans or indents, drawn with a plain {@link TextPaint}, are cached:
+ * everything their measurement depends on is captured in {@link Key}.  The cache is bounded by
+ * the memory its entries use and is safe to use from any thread, so layouts can be built ahead
+ * of time on a background thread and found again when the text is bound.
+ *
+ * @hide
+ */
+public final class ParagraphMeasureCache {
+    private static final int MAX_SIZE_BYTES = 256 * 1024;
+    // Long paragraphs are rarely laid out again, and would evict many short ones.
+    private static final int MAX_PARAGRAPH_LENGTH = 1000;
+
+    private static final LruCache<Key, Result> sCache = new LruCache<Key, Result>(MAX_SIZE_BYTES) {
+        @Override
+        protected int sizeOf(Key key, Result result) {
+            return key.getSize() + result.getSize();
+        }
+    };
+
+    private ParagraphMeasureCache() {}
+
+    /** @return whether a paragraph of {@code length} chars drawn with {@code paint} is cached */
+    static boolean canCache(TextPaint paint, int length) {
+        return length > 0 && length <= MAX_PARAGRAPH_LENGTH && paint.getClass() == TextPaint.class;
+    }
+
+    static Result get(Key key) {
+        return sCache.get(key);
+    }
+
+    static void put(Key key, Result result) {
+        sCache.put(key, result);
+    }
+
+    public static int getHitCount() {
+        return sCache.hitCount();
+    }
+
+    public static int getMissCount() {
+        return sCache.missCount();
+    }
+
+    public static void clear() {
+        sCache.evictAll();
+    }
+
+    /** @return the size, hit rate and eviction count of the cache, for debugging */
+    public static String getStats() {
+        return sCache.toString() + " size=" + sCache.size() + " evictions="
+                + sCache.evictionCount();
+    }
+
+    /** Everything the measurement and line breaking of a plain paragraph depends on. */
+    static final class Key {
+        private final char[] mChars;
+        private final TextDirectionHeuristic mTextDir;
+        private final int mFirstWidth;
+        private final int mFirstWidthLineCount;
+        private final int mRestWidth;
+        private final int mBreakStrategy;
+        private final int mHyphenationFrequency;
+        private final boolean mJustify;
+
+        // Paint attributes that affect measurement.
+        private final Typeface mTypeface;
+        private final float mTextSize;
+        private final float mTextScaleX;
+        private final float mTextSkewX;
+        private final float mLetterSpacing;
+        private final float mWordSpacing;
+        private final int mFlags;
+        private final int mHinting;
+        private final boolean mElegantTextHeight;
+        private final int mHyphenEdit;
+        private final String mFontFeatureSettings;
+        private final String mFontVariationSettings;
+        private final LocaleList mTextLocales;
+
+        private final int mHashCode;
+
+        Key(char[] chars, int length, TextPaint paint, TextDirectionHeuristic textDir,
+                int firstWidth, int firstWidthLineCount, int restWidth, int breakStrategy,
+                int hyphenationFrequency, boolean justify) {
+            mChars = Arrays.copyOf(chars, length);
+            mTextDir = textDir;
+            mFirstWidth = firstWidth;
+            mFirstWidthLineCount = firstWidthLineCount;
+            mRestWidth = restWidth;
+            mBreakStrategy = breakStrategy;
+            mHyphenationFrequency = hyphenationFrequency;
+            mJustify = justify;
+
+            mTypeface = paint.getTypeface();
+            mTextSize = paint.getTextSize();
+            mTextScaleX = paint.getTextScaleX();
+            mTextSkewX = paint.getTextSkewX();
+            mLetterSpacing = paint.getLetterSpacing();
+            mWordSpacing = paint.getWordSpacing();
+            mFlags = paint.getFlags();
+            mHinting = paint.getHinting();
+            mElegantTextHeight = paint.isElegantTextHeight();
+            mHyphenEdit = paint.getHyphenEdit();
+            mFontFeatureSettings = paint.getFontFeatureSettings();
+            mFontVariationSettings = paint.getFontVariationSettings();
+            mTextLocales = paint.getTextLocales();
+
+            int hash = Arrays.hashCode(mChars);
+            hash = 31 * hash + Float.floatToIntBits(mTextSize);
+            hash = 31 * hash + Objects.hashCode(mTypeface);
+            hash = 31 * hash + mFirstWidth;
+            hash = 31 * hash + mRestWidth;
+            mHashCode = hash;
+        }
+
+        int getSize() {
+            // Rough: the chars plus the object and its fields.
+            return mChars.length * 2 + 96;
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            final Key other = (Key) o;
+            return mHashCode == other.mHashCode
+                    && mFirstWidth == other.mFirstWidth
+                    && mFirstWidthLineCount == other.mFirstWidthLineCount
+                    && mRestWidth == other.mRestWidth
+                    && mBreakStrategy == other.mBreakStrategy
+                    && mHyphenationFrequency == other.mHyphenationFrequency
+                    && mJustify == other.mJustify
+                    && mTextDir == other.mTextDir
+                    && Float.compare(mTextSize, other.mTextSize) == 0
+                    && Float.compare(mTextScaleX, other.mTextScaleX) == 0
+                    && Float.compare(mTextSkewX, other.mTextSkewX) == 0
+                    && Float.compare(mLetterSpacing, other.mLetterSpacing) == 0
+                    && Float.compare(mWordSpacing, other.mWordSpacing) == 0
+                    && mFlags == other.mFlags
+                    && mHinting == other.mHinting
+                    && mElegantTextHeight == other.mElegantTextHeight
+                    && mHyphenEdit == other.mHyphenEdit
+                    && Objects.equals(mTypeface, other.mTypeface)
+                    && Objects.equals(mFontFeatureSettings, other.mFontFeatureSettings)
+                    && Objects.equals(mFontVariationSettings, other.mFontVariationSettings)
+                    && Objects.equals(mTextLocales, other.mTextLocales)
+                    && Arrays.equals(mChars, other.mChars);
+        }
+    }
+
+    /** The measurement and line breaks of a paragraph.  Must not be modified once cached. */
+    static final class Result {
+        final float[] widths;
+        final int top;
+        final int bottom;
+        final int ascent;
+        final int descent;
+        final int[] breaks;
+        final float[] lineWidths;
+        final int[] flags;
+
+        Result(float[] widths, int length, int[] fmCache, StaticLayout.LineBreaks lineBreaks,
+                int breakCount) {
+            this.widths = Arrays.copyOf(widths, length);
+            // Same order as StaticLayout's fmCache.
+            top = fmCache[0];
+            bottom = fmCache[1];
+            ascent = fmCache[2];
+            descent = fmCache[3];
+            breaks = Arrays.copyOf(lineBreaks.breaks, breakCount);
+            lineWidths = Arrays.copyOf(lineBreaks.widths, breakCount);
+            flags = Arrays.copyOf(lineBreaks.flags, breakCount);
+        }
+
+        int getSize() {
+            return widths.length * 4 + breaks.length * 12 + 96;
+        }
+    }
+}
@@ -19,6 +19,7 @@ package android.text;
 import android.annotation.Nullable;
 import android.graphics.BaseCanvas;
 import android.graphics.Paint;
+import android.util.ArrayMap;
 import android.util.Log;
 
 import com.android.internal.annotations.GuardedBy;
@@ -254,6 +255,7 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
 
             mSpanCount = i;
             mSpans[i] = null;
+            updateKindCounts(what, -1);
 
             sendSpanRemoved(what, ostart, oend);
         }
@@ -489,6 +491,7 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
         System.arraycopy(mSpanOrder, i + 1, mSpanOrder, i, count);
 
         mSpanCount--;
+        updateKindCounts(object, -1);
 
         invalidateIndex(i);
         mSpans[mSpanCount] = null;
@@ -760,6 +763,7 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
         invalidateIndex(mSpanCount);
         mSpanCount++;
         mSpanInsertCount++;
+        updateKindCounts(what, 1);
         // Make sure there is enough room for empty interior nodes.
         // This magic formula computes the size of the smallest perfect binary
         // tree no smaller than mSpanCount.
@@ -853,7 +857,7 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
     public <T> T[] getSpans(int queryStart, int queryEnd, @Nullable Class<T> kind,
             boolean sortByInsertionOrder) {
         if (kind == null) return (T[]) ArrayUtils.emptyArray(Object.class);
-        if (mSpanCount == 0) return ArrayUtils.emptyArray(kind);
+        if (mSpanCount == 0 || !hasSpansOfKind(kind)) return ArrayUtils.emptyArray(kind);
         int count = countSpans(queryStart, queryEnd, kind, treeRoot());
         if (count == 0) {
             return ArrayUtils.emptyArray(kind);
@@ -1139,6 +1143,38 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
         return Integer.compare(priority2, priority1);
     }
 
+    /**
+     * Returns whether any span is an instance of {@code kind}.  Text layout asks for many kinds
+     * (replacements, metric affecting spans, tab stops...) that rich text often doesn't carry
+     * at all, and answering from a count saves walking the span tree for each of those queries.
+     */
+    private boolean hasSpansOfKind(Class kind) {
+        if (kind == Object.class) return mSpanCount != 0;
+        if (mSpanCountByKind == null) {
+            mSpanCountByKind = new ArrayMap<>();
+        }
+        Integer count = mSpanCountByKind.get(kind);
+        if (count == null) {
+            int n = 0;
+            for (int i = 0; i < mSpanCount; i++) {
+                if (kind.isInstance(mSpans[i])) n++;
+            }
+            count = n;
+            mSpanCountByKind.put(kind, count);
+        }
+        return count != 0;
+    }
+
+    // Call this when a span is added (delta = 1) or removed (delta = -1), after updating mSpans.
+    private void updateKindCounts(Object what, int delta) {
+        if (mSpanCountByKind == null) return;
+        for (int i = mSpanCountByKind.size() - 1; i >= 0; i--) {
+            if (mSpanCountByKind.keyAt(i).isInstance(what)) {
+                mSpanCountByKind.setValueAt(i, mSpanCountByKind.valueAt(i) + delta);
+            }
+        }
+    }
+
     /**
      * Return the next offset after <code>start</code> but less than or
      * equal to <code>limit</code> where a span of the specified type
@@ -1149,6 +1185,7 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
         if (kind == null) {
             kind = Object.class;
         }
+        if (!hasSpansOfKind(kind)) return limit;
         return nextSpanTransitionRec(start, limit, kind, treeRoot());
     }
 
@@ -1769,6 +1806,8 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
     private int mSpanCount;
     private IdentityHashMap<Object, Integer> mIndexOfSpan;
     private int mLowWaterMark;  // indices below this have not been touched
+    // Number of spans of each kind queried so far, see hasSpansOfKind().
+    private ArrayMap<Class<?>, Integer> mSpanCountByKind;
 
     // TextWatcher callbacks may trigger changes that trigger more callbacks. This keeps track of
     // how deep the callbacks go.
@@ -703,76 +703,111 @@ public class StaticLayout extends Layout {
                 }
             }
 
-            nSetupParagraph(b.mNativePtr, chs, paraEnd - paraStart,
-                    firstWidth, firstWidthLineCount, restWidth,
-                    variableTabStops, TAB_INCREMENT, b.mBreakStrategy, b.mHyphenationFrequency,
-                    // TODO: Support more justification mode, e.g. letter spacing, stretching.
-                    b.mJustificationMode != Layout.JUSTIFICATION_MODE_NONE);
-            if (mLeftIndents != null || mRightIndents != null) {
-                // TODO(raph) performance: it would be better to do this once per layout rather
-                // than once per paragraph, but that would require a change to the native
-                // interface.
-                int leftLen = mLeftIndents == null ? 0 : mLeftIndents.length;
-                int rightLen = mRightIndents == null ? 0 : mRightIndents.length;
-                int indentsLen = Math.max(1, Math.max(leftLen, rightLen) - mLineCount);
-                int[] indents = new int[indentsLen];
-                for (int i = 0; i < indentsLen; i++) {
-                    int leftMargin = mLeftIndents == null ? 0 :
-                            mLeftIndents[Math.min(i + mLineCount, leftLen - 1)];
-                    int rightMargin = mRightIndents == null ? 0 :
-                            mRightIndents[Math.min(i + mLineCount, rightLen - 1)];
-                    indents[i] = leftMargin + rightMargin;
-                }
-                nSetIndents(b.mNativePtr, indents);
+            // Plain paragraphs are looked up in the shared cache, so that laying out the same text
+            // again, possibly after it was first laid out on a background thread, doesn't measure
+            // and break it again.
+            final int paraLen = paraEnd - paraStart;
+            final boolean justify = b.mJustificationMode != Layout.JUSTIFICATION_MODE_NONE;
+            ParagraphMeasureCache.Key cacheKey = null;
+            ParagraphMeasureCache.Result cached = null;
+            if (spanned == null && mLeftIndents == null && mRightIndents == null
+                    && ParagraphMeasureCache.canCache(paint, paraLen)) {
+                cacheKey = new ParagraphMeasureCache.Key(chs, paraLen, paint, textDir,
+                        firstWidth, firstWidthLineCount, restWidth, b.mBreakStrategy,
+                        b.mHyphenationFrequency, justify);
+                cached = ParagraphMeasureCache.get(cacheKey);
             }
 
-            // measurement has to be done before performing line breaking
-            // but we don't want to recompute fontmetrics or span ranges the
-            // second time, so we cache those and then use those stored values
-            int fmCacheCount = 0;
-            int spanEndCacheCount = 0;
-            for (int spanStart = paraStart, spanEnd; spanStart < paraEnd; spanStart = spanEnd) {
-                if (fmCacheCount * 4 >= fmCache.length) {
-                    int[] grow = new int[fmCacheCount * 4 * 2];
-                    System.arraycopy(fmCache, 0, grow, 0, fmCacheCount * 4);
-                    fmCache = grow;
+            int breakCount;
+            if (cached != null) {
+                System.arraycopy(cached.widths, 0, widths, 0, paraLen);
+                fmCache[0] = cached.top;
+                fmCache[1] = cached.bottom;
+                fmCache[2] = cached.ascent;
+                fmCache[3] = cached.descent;
+                spanEndCache[0] = paraEnd;
+                // Copied, since ellipsizing below overwrites the breaks.
+                lineBreaks.breaks = cached.breaks.clone();
+                lineBreaks.widths = cached.lineWidths.clone();
+                lineBreaks.flags = cached.flags.clone();
+                breakCount = cached.breaks.length;
+            } else {
+                nSetupParagraph(b.mNativePtr, chs, paraLen,
+                        firstWidth, firstWidthLineCount, restWidth,
+                        variableTabStops, TAB_INCREMENT, b.mBreakStrategy, b.mHyphenationFrequency,
+                        // TODO: Support more justification mode, e.g. letter spacing, stretching.
+                        justify);
+                if (mLeftIndents != null || mRightIndents != null) {
+                    // TODO(raph) performance: it would be better to do this once per layout rather
+                    // than once per paragraph, but that would require a change to the native
+                    // interface.
+                    int leftLen = mLeftIndents == null ? 0 : mLeftIndents.length;
+                    int rightLen = mRightIndents == null ? 0 : mRightIndents.length;
+                    int indentsLen = Math.max(1, Math.max(leftLen, rightLen) - mLineCount);
+                    int[] indents = new int[indentsLen];
+                    for (int i = 0; i < indentsLen; i++) {
+                        int leftMargin = mLeftIndents == null ? 0 :
+                                mLeftIndents[Math.min(i + mLineCount, leftLen - 1)];
+                        int rightMargin = mRightIndents == null ? 0 :
+                                mRightIndents[Math.min(i + mLineCount, rightLen - 1)];
+                        indents[i] = leftMargin + rightMargin;
+                    }
+                    nSetIndents(b.mNativePtr, indents);
                 }
 
-                if (spanEndCacheCount >= spanEndCache.length) {
-                    int[] grow = new int[spanEndCacheCount * 2];
-                    System.arraycopy(spanEndCache, 0, grow, 0, spanEndCacheCount);
-                    spanEndCache = grow;
-                }
+                // measurement has to be done before performing line breaking
+                // but we don't want to recompute fontmetrics or span ranges the
+                // second time, so we cache those and then use those stored values
+                int fmCacheCount = 0;
+                int spanEndCacheCount = 0;
+                for (int spanStart = paraStart, spanEnd; spanStart < paraEnd; spanStart = spanEnd) {
+                    if (fmCacheCount * 4 >= fmCache.length) {
+                        int[] grow = new int[fmCacheCount * 4 * 2];
+                        System.arraycopy(fmCache, 0, grow, 0, fmCacheCount * 4);
+                        fmCache = grow;
+                    }
 
-                if (spanned == null) {
-                    spanEnd = paraEnd;
-                    int spanLen = spanEnd - spanStart;
-                    measured.addStyleRun(paint, spanLen, fm);
-                } else {
-                    spanEnd = spanned.nextSpanTransition(spanStart, paraEnd,
-                            MetricAffectingSpan.class);
-                    int spanLen = spanEnd - spanStart;
-                    MetricAffectingSpan[] spans =
-                            spanned.getSpans(spanStart, spanEnd, MetricAffectingSpan.class);
-                    spans = TextUtils.removeEmptySpans(spans, spanned, MetricAffectingSpan.class);
-                    measured.addStyleRun(paint, spans, spanLen, fm);
-                }
+                    if (spanEndCacheCount >= spanEndCache.length) {
+                        int[] grow = new int[spanEndCacheCount * 2];
+                        System.arraycopy(spanEndCache, 0, grow, 0, spanEndCacheCount);
+                        spanEndCache = grow;
+                    }
 
-                // the order of storage here (top, bottom, ascent, descent) has to match the code below
-                // where these values are retrieved
-                fmCache[fmCacheCount * 4 + 0] = fm.top;
-                fmCache[fmCacheCount * 4 + 1] = fm.bottom;
-                fmCache[fmCacheCount * 4 + 2] = fm.ascent;
-                fmCache[fmCacheCount * 4 + 3] = fm.descent;
-                fmCacheCount++;
+                    if (spanned == null) {
+                        spanEnd = paraEnd;
+                        int spanLen = spanEnd - spanStart;
+                        measured.addStyleRun(paint, spanLen, fm);
+                    } else {
+                        spanEnd = spanned.nextSpanTransition(spanStart, paraEnd,
+                                MetricAffectingSpan.class);
+                        int spanLen = spanEnd - spanStart;
+                        MetricAffectingSpan[] spans =
+                                spanned.getSpans(spanStart, spanEnd, MetricAffectingSpan.class);
+                        spans = TextUtils.removeEmptySpans(spans, spanned,
+                                MetricAffectingSpan.class);
+                        measured.addStyleRun(paint, spans, spanLen, fm);
+                    }
 
-                spanEndCache[spanEndCacheCount] = spanEnd;
-                spanEndCacheCount++;
-            }
+                    // the order of storage here (top, bottom, ascent, descent) has to match the
+                    // code below where these values are retrieved
+                    fmCache[fmCacheCount * 4 + 0] = fm.top;
+                    fmCache[fmCacheCount * 4 + 1] = fm.bottom;
+                    fmCache[fmCacheCount * 4 + 2] = fm.ascent;
+                    fmCache[fmCacheCount * 4 + 3] = fm.descent;
+                    fmCacheCount++;
 
-            nGetWidths(b.mNativePtr, widths);
-            int breakCount = nComputeLineBreaks(b.mNativePtr, lineBreaks, lineBreaks.breaks,
-                    lineBreaks.widths, lineBreaks.flags, lineBreaks.breaks.length);
+                    spanEndCache[spanEndCacheCount] = spanEnd;
+                    spanEndCacheCount++;
+                }
+
+                nGetWidths(b.mNativePtr, widths);
+                breakCount = nComputeLineBreaks(b.mNativePtr, lineBreaks, lineBreaks.breaks,
+                        lineBreaks.widths, lineBreaks.flags, lineBreaks.breaks.length);
+                if (cacheKey != null) {
+                    ParagraphMeasureCache.put(cacheKey, new ParagraphMeasureCache.Result(
+                            widths, paraLen, fmCache, lineBreaks, breakCount));
+                }
+            }
 
             int[] breaks = lineBreaks.breaks;
             float[] lineWidths = lineBreaks.widths;
@@ -18,6 +18,7 @@ package android.util;
 
 import libcore.util.EmptyArray;
 
+import java.io.PrintWriter;
 import java.util.Collection;
 import java.util.ConcurrentModificationException;
 import java.util.Map;
@@ -68,7 +69,7 @@ public final class ArrayMap<K, V> implements Map<K, V> {
     private static final int BASE_SIZE = 4;
 
     /**
-     * Maximum number of entries to have in array caches.
+     * Maximum number of entries to have in each stripe of the array caches.
      */
     private static final int CACHE_SIZE = 10;
 
@@ -83,15 +84,15 @@ public final class ArrayMap<K, V> implements Map<K, V> {
     public static final ArrayMap EMPTY = new ArrayMap<>(-1);
 
     /**
-     * Caches of small array objects to avoid spamming garbage.  The cache
-     * Object[] variable is a pointer to a linked list of array objects.
-     * The first entry in the array is a pointer to the next array in the
-     * list; the second entry is a pointer to the int[] hash code array for it.
+     * Caches of small array objects to avoid spamming garbage.  Each cached
+     * Object[] keeps the int[] hash code array that goes with it in its second
+     * entry.  The caches are striped by thread and lock-free, so allocating and
+     * freeing maps on different threads does not contend on a shared monitor.
      */
-    static Object[] mBaseCache;
-    static int mBaseCacheSize;
-    static Object[] mTwiceBaseCache;
-    static int mTwiceBaseCacheSize;
+    static final Pools.StripedPool<Object[]> sBaseCache =
+            new Pools.StripedPool<>(CACHE_SIZE);
+    static final Pools.StripedPool<Object[]> sTwiceBaseCache =
+            new Pools.StripedPool<>(CACHE_SIZE);
 
     final boolean mIdentityHashCode;
     int[] mHashes;
@@ -191,34 +192,20 @@ public final class ArrayMap<K, V> implements Map<K, V> {
         if (mHashes == EMPTY_IMMUTABLE_INTS) {
             throw new UnsupportedOperationException("ArrayMap is immutable");
         }
+        final Object[] array;
         if (size == (BASE_SIZE*2)) {
-            synchronized (ArrayMap.class) {
-                if (mTwiceBaseCache != null) {
-                    final Object[] array = mTwiceBaseCache;
-                    mArray = array;
-                    mTwiceBaseCache = (Object[])array[0];
-                    mHashes = (int[])array[1];
-                    array[0] = array[1] = null;
-                    mTwiceBaseCacheSize--;
-                    if (DEBUG) Log.d(TAG, "Retrieving 2x cache " + mHashes
-                            + " now have " + mTwiceBaseCacheSize + " entries");
-                    return;
-                }
-            }
+            array = sTwiceBaseCache.acquire();
         } else if (size == BASE_SIZE) {
-            synchronized (ArrayMap.class) {
-                if (mBaseCache != null) {
-                    final Object[] array = mBaseCache;
-                    mArray = array;
-                    mBaseCache = (Object[])array[0];
-                    mHashes = (int[])array[1];
-                    array[0] = array[1] = null;
-                    mBaseCacheSize--;
-                    if (DEBUG) Log.d(TAG, "Retrieving 1x cache " + mHashes
-                            + " now have " + mBaseCacheSize + " entries");
-                    return;
-                }
-            }
+            array = sBaseCache.acquire();
+        } else {
+            array = null;
+        }
+        if (array != null) {
+            mArray = array;
+            mHashes = (int[])array[1];
+            array[1] = null;
+            if (DEBUG) Log.d(TAG, "Retrieving " + (size / BASE_SIZE) + "x cache " + mHashes);
+            return;
         }
 
         mHashes = new int[size];
@@ -226,35 +213,32 @@ public final class ArrayMap<K, V> implements Map<K, V> {
     }
 
     private static void freeArrays(final int[] hashes, final Object[] array, final int size) {
+        final Pools.StripedPool<Object[]> cache;
         if (hashes.length == (BASE_SIZE*2)) {
-            synchronized (ArrayMap.class) {
-                if (mTwiceBaseCacheSize < CACHE_SIZE) {
-                    array[0] = mTwiceBaseCache;
-                    array[1] = hashes;
-                    for (int i=(size<<1)-1; i>=2; i--) {
-                        array[i] = null;
-                    }
-                    mTwiceBaseCache = array;
-                    mTwiceBaseCacheSize++;
-                    if (DEBUG) Log.d(TAG, "Storing 2x cache " + array
-                            + " now have " + mTwiceBaseCacheSize + " entries");
-                }
-            }
+            cache = sTwiceBaseCache;
         } else if (hashes.length == BASE_SIZE) {
-            synchronized (ArrayMap.class) {
-                if (mBaseCacheSize < CACHE_SIZE) {
-                    array[0] = mBaseCache;
-                    array[1] = hashes;
-                    for (int i=(size<<1)-1; i>=2; i--) {
-                        array[i] = null;
-                    }
-                    mBaseCache = array;
-                    mBaseCacheSize++;
-                    if (DEBUG) Log.d(TAG, "Storing 1x cache " + array
-                            + " now have " + mBaseCacheSize + " entries");
-                }
-            }
+            cache = sBaseCache;
+        } else {
+            return;
+        }
+        array[0] = null;
+        array[1] = hashes;
+        for (int i=(size<<1)-1; i>=2; i--) {
+            array[i] = null;
         }
+        if (cache.release(array)) {
+            if (DEBUG) Log.d(TAG, "Storing " + (hashes.length / BASE_SIZE) + "x cache " + array);
+        }
+    }
+
+    /**
+     * @hide Print hit and miss counts for the recycled array caches.
+     */
+    public static void dumpArrayCacheStats(PrintWriter pw, String prefix) {
+        pw.print(prefix); pw.println("ArrayMap 1x cache:");
+        sBaseCache.dump(pw, prefix + "  ");
+        pw.print(prefix); pw.println("ArrayMap 2x cache:");
+        sTwiceBaseCache.dump(pw, prefix + "  ");
     }
 
     /**
@@ -18,6 +18,7 @@ package android.util;
 
 import libcore.util.EmptyArray;
 
+import java.io.PrintWriter;
 import java.lang.reflect.Array;
 import java.util.Collection;
 import java.util.Iterator;
@@ -54,20 +55,20 @@ public final class ArraySet<E> implements Collection<E>, Set<E> {
     private static final int BASE_SIZE = 4;
 
     /**
-     * Maximum number of entries to have in array caches.
+     * Maximum number of entries to have in each stripe of the array caches.
      */
     private static final int CACHE_SIZE = 10;
 
     /**
-     * Caches of small array objects to avoid spamming garbage.  The cache
-     * Object[] variable is a pointer to a linked list of array objects.
-     * The first entry in the array is a pointer to the next array in the
-     * list; the second entry is a pointer to the int[] hash code array for it.
+     * Caches of small array objects to avoid spamming garbage.  Each cached
+     * Object[] keeps the int[] hash code array that goes with it in its second
+     * entry.  The caches are striped by thread and lock-free, so allocating and
+     * freeing sets on different threads does not contend on a shared monitor.
      */
-    static Object[] sBaseCache;
-    static int sBaseCacheSize;
-    static Object[] sTwiceBaseCache;
-    static int sTwiceBaseCacheSize;
+    static final Pools.StripedPool<Object[]> sBaseCache =
+            new Pools.StripedPool<>(CACHE_SIZE);
+    static final Pools.StripedPool<Object[]> sTwiceBaseCache =
+            new Pools.StripedPool<>(CACHE_SIZE);
 
     final boolean mIdentityHashCode;
     int[] mHashes;
@@ -152,56 +153,29 @@ public final class ArraySet<E> implements Collection<E>, Set<E> {
     }
 
     private void allocArrays(final int size) {
+        final Object[] array;
         if (size == (BASE_SIZE * 2)) {
-            synchronized (ArraySet.class) {
-                if (sTwiceBaseCache != null) {
-                    final Object[] array = sTwiceBaseCache;
-                    try {
-                        mArray = array;
-                        sTwiceBaseCache = (Object[]) array[0];
-                        mHashes = (int[]) array[1];
-                        array[0] = array[1] = null;
-                        sTwiceBaseCacheSize--;
-                        if (DEBUG) {
-                            Log.d(TAG, "Retrieving 2x cache " + mHashes + " now have "
-                                    + sTwiceBaseCacheSize + " entries");
-                    }
-                    return;
-                    } catch (ClassCastException e) {
-                    }
-                    // Whoops!  Someone trampled the array (probably due to not protecting
-                    // their access with a lock).  Our cache is corrupt; report and give up.
-                    Slog.wtf(TAG, "Found corrupt ArraySet cache: [0]=" + array[0]
-                            + " [1]=" + array[1]);
-                    sTwiceBaseCache = null;
-                    sTwiceBaseCacheSize = 0;
-                }
-            }
+            array = sTwiceBaseCache.acquire();
         } else if (size == BASE_SIZE) {
-            synchronized (ArraySet.class) {
-                if (sBaseCache != null) {
-                    final Object[] array = sBaseCache;
-                    try {
-                        mArray = array;
-                        sBaseCache = (Object[]) array[0];
-                        mHashes = (int[]) array[1];
-                        array[0] = array[1] = null;
-                        sBaseCacheSize--;
-                        if (DEBUG) {
-                            Log.d(TAG, "Retrieving 1x cache " + mHashes + " now have " + sBaseCacheSize
-                                    + " entries");
-                        }
-                        return;
-                    } catch (ClassCastException e) {
-                    }
-                    // Whoops!  Someone trampled the array (probably due to not protecting
-                    // their access with a lock).  Our cache is corrupt; report and give up.
-                    Slog.wtf(TAG, "Found corrupt ArraySet cache: [0]=" + array[0]
-                            + " [1]=" + array[1]);
-                    sBaseCache = null;
-                    sBaseCacheSize = 0;
+            array = sBaseCache.acquire();
+        } else {
+            array = null;
+        }
+        if (array != null) {
+            try {
+                mHashes = (int[]) array[1];
+                mArray = array;
+                array[1] = null;
+                if (DEBUG) {
+                    Log.d(TAG, "Retrieving " + (size / BASE_SIZE) + "x cache " + mHashes);
                 }
+                return;
+            } catch (ClassCastException e) {
             }
+            // Whoops!  Someone trampled the array (probably due to writing to a set
+            // after freeing it).  Report it and allocate fresh arrays instead.
+            Slog.wtf(TAG, "Found corrupt ArraySet cache: [0]=" + array[0]
+                    + " [1]=" + array[1]);
         }
 
         mHashes = new int[size];
@@ -209,41 +183,36 @@ public final class ArraySet<E> implements Collection<E>, Set<E> {
     }
 
     private static void freeArrays(final int[] hashes, final Object[] array, final int size) {
+        final Pools.StripedPool<Object[]> cache;
         if (hashes.length == (BASE_SIZE * 2)) {
-            synchronized (ArraySet.class) {
-                if (sTwiceBaseCacheSize < CACHE_SIZE) {
-                    array[0] = sTwiceBaseCache;
-                    array[1] = hashes;
-                    for (int i = size - 1; i >= 2; i--) {
-                        array[i] = null;
-                    }
-                    sTwiceBaseCache = array;
-                    sTwiceBaseCacheSize++;
-                    if (DEBUG) {
-                        Log.d(TAG, "Storing 2x cache " + array + " now have " + sTwiceBaseCacheSize
-                                + " entries");
-                    }
-                }
-            }
+            cache = sTwiceBaseCache;
         } else if (hashes.length == BASE_SIZE) {
-            synchronized (ArraySet.class) {
-                if (sBaseCacheSize < CACHE_SIZE) {
-                    array[0] = sBaseCache;
-                    array[1] = hashes;
-                    for (int i = size - 1; i >= 2; i--) {
-                        array[i] = null;
-                    }
-                    sBaseCache = array;
-                    sBaseCacheSize++;
-                    if (DEBUG) {
-                        Log.d(TAG, "Storing 1x cache " + array + " now have "
-                                + sBaseCacheSize + " entries");
-                    }
-                }
+            cache = sBaseCache;
+        } else {
+            return;
+        }
+        array[0] = null;
+        array[1] = hashes;
+        for (int i = size - 1; i >= 2; i--) {
+            array[i] = null;
+        }
+        if (cache.release(array)) {
+            if (DEBUG) {
+                Log.d(TAG, "Storing " + (hashes.length / BASE_SIZE) + "x cache " + array);
             }
         }
     }
 
+    /**
+     * @hide Print hit and miss counts for the recycled array caches.
+     */
+    public static void dumpArrayCacheStats(PrintWriter pw, String prefix) {
+        pw.print(prefix); pw.println("ArraySet 1x cache:");
+        sBaseCache.dump(pw, prefix + "  ");
+        pw.print(prefix); pw.println("ArraySet 2x cache:");
+        sTwiceBaseCache.dump(pw, prefix + "  ");
+    }
+
     /**
      * Create a new empty ArraySet.  The default capacity of an array map is 0, and
      * will grow once items are added to it.
@@ -16,6 +16,10 @@
 
 package android.util;
 
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 /**
  * Helper class for crating pools of objects. An example use looks like this:
  * <pre>
@@ -162,4 +166,164 @@ public final class Pools {
             }
         }
     }
+
+    /**
+     * Lock-free pool of objects, striped by thread to keep concurrent callers
+     * from contending on a single monitor or cache line.  Each stripe holds up
+     * to a fixed number of instances; a thread only ever looks at the stripe
+     * its id hashes to, so an instance released on one thread may not be seen
+     * by another.  Unlike {@link SimplePool}, releasing an instance that is
+     * already pooled is not detected.
+     *
+     * <p>Hit, miss and drop counts are kept per stripe and are approximate
+     * only in the sense that they are read without stopping writers.</p>
+     *
+     * @param <T> The pooled type.
+     */
+    public static class StripedPool<T> implements Pool<T> {
+        /** Upper bound on stripes, regardless of how many cores the device has. */
+        private static final int MAX_STRIPES = 16;
+
+        /**
+         * Minimum distance, in slots, between the start of two stripes.  Keeps
+         * stripes on separate cache lines so that threads in different stripes
+         * do not invalidate each other.
+         */
+        private static final int MIN_STRIPE_STRIDE = 16;
+
+        /** Distance, in longs, between the counters of two stripes. */
+        private static final int COUNTER_STRIDE = 8;
+
+        private static final int COUNTER_HIT = 0;
+        private static final int COUNTER_MISS = 1;
+        private static final int COUNTER_RELEASED = 2;
+        private static final int COUNTER_DROPPED = 3;
+
+        private final AtomicReferenceArray<T> mSlots;
+        private final AtomicLongArray mCounters;
+        private final int mStripeMask;
+        private final int mStripeStride;
+        private final int mDepth;
+
+        /**
+         * Creates a new instance with one stripe per available processor.
+         *
+         * @param depth The max number of instances held by each stripe.
+         *
+         * @throws IllegalArgumentException If the depth is less than one.
+         */
+        public StripedPool(int depth) {
+            this(depth, Runtime.getRuntime().availableProcessors());
+        }
+
+        /**
+         * Creates a new instance.
+         *
+         * @param depth The max number of instances held by each stripe.
+         * @param stripes The desired number of stripes; rounded up to a power
+         *        of two and capped at {@link #MAX_STRIPES}.
+         *
+         * @throws IllegalArgumentException If the depth or stripe count is
+         *         less than one.
+         */
+        public StripedPool(int depth, int stripes) {
+            if (depth <= 0) {
+                throw new IllegalArgumentException("The pool depth must be > 0");
+            }
+            if (stripes <= 0) {
+                throw new IllegalArgumentException("The stripe count must be > 0");
+            }
+            int stripeCount = 1;
+            while (stripeCount < stripes && stripeCount < MAX_STRIPES) {
+                stripeCount <<= 1;
+            }
+            mStripeMask = stripeCount - 1;
+            mStripeStride = Math.max(depth, MIN_STRIPE_STRIDE);
+            mDepth = depth;
+            mSlots = new AtomicReferenceArray<>(stripeCount * mStripeStride);
+            mCounters = new AtomicLongArray(stripeCount * COUNTER_STRIDE);
+        }
+
+        private int stripeIndex() {
+            return (int) Thread.currentThread().getId() & mStripeMask;
+        }
+
+        @Override
+        public T acquire() {
+            final int stripe = stripeIndex();
+            final int base = stripe * mStripeStride;
+            for (int i = base; i < base + mDepth; i++) {
+                final T instance = mSlots.get(i);
+                if (instance != null && mSlots.compareAndSet(i, instance, null)) {
+                    mCounters.incrementAndGet(stripe * COUNTER_STRIDE + COUNTER_HIT);
+                    return instance;
+                }
+            }
+            mCounters.incrementAndGet(stripe * COUNTER_STRIDE + COUNTER_MISS);
+            return null;
+        }
+
+        @Override
+        public boolean release(T instance) {
+            final int stripe = stripeIndex();
+            final int base = stripe * mStripeStride;
+            for (int i = base; i < base + mDepth; i++) {
+                if (mSlots.get(i) == null && mSlots.compareAndSet(i, null, instance)) {
+                    mCounters.incrementAndGet(stripe * COUNTER_STRIDE + COUNTER_RELEASED);
+                    return true;
+                }
+            }
+            mCounters.incrementAndGet(stripe * COUNTER_STRIDE + COUNTER_DROPPED);
+            return false;
+        }
+
+        /** @return The number of stripes in this pool. */
+        public int getStripeCount() {
+            return mStripeMask + 1;
+        }
+
+        /** @return The number of {@link #acquire()} calls that returned an instance. */
+        public long getHitCount() {
+            return sumCounter(COUNTER_HIT);
+        }
+
+        /** @return The number of {@link #acquire()} calls that returned null. */
+        public long getMissCount() {
+            return sumCounter(COUNTER_MISS);
+        }
+
+        /** @return The number of {@link #release(Object)} calls that pooled the instance. */
+        public long getReleasedCount() {
+            return sumCounter(COUNTER_RELEASED);
+        }
+
+        /** @return The number of {@link #release(Object)} calls that found the stripe full. */
+        public long getDroppedCount() {
+            return sumCounter(COUNTER_DROPPED);
+        }
+
+        private long sumCounter(int counter) {
+            long sum = 0;
+            for (int i = counter; i < mCounters.length(); i += COUNTER_STRIDE) {
+                sum += mCounters.get(i);
+            }
+            return sum;
+        }
+
+        /**
+         * Prints the pool configuration and counters.
+         */
+        public void dump(PrintWriter pw, String prefix) {
+            final long hits = getHitCount();
+            final long misses = getMissCount();
+            pw.print(prefix); pw.print("stripes="); pw.print(getStripeCount());
+            pw.print(" depth="); pw.print(mDepth);
+            pw.print(" hits="); pw.print(hits);
+            pw.print(" misses="); pw.print(misses);
+            pw.print(" hitRate=");
+            pw.print(hits + misses == 0 ? 0 : (100 * hits) / (hits + misses));
+            pw.print("% released="); pw.print(getReleasedCount());
+            pw.print(" dropped="); pw.println(getDroppedCount());
+        }
+    }
 }
@@ -26,12 +26,26 @@ import android.content.res.XmlResourceParser;
 import android.graphics.Canvas;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemProperties;
 import android.os.Trace;
+import android.util.ArrayMap;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.util.TypedValue;
 import android.util.Xml;
+import android.widget.Button;
+import android.widget.CheckBox;
+import android.widget.EditText;
 import android.widget.FrameLayout;
+import android.widget.ImageButton;
+import android.widget.ImageView;
+import android.widget.LinearLayout;
+import android.widget.ListView;
+import android.widget.ProgressBar;
+import android.widget.RelativeLayout;
+import android.widget.ScrollView;
+import android.widget.Space;
+import android.widget.TextView;
 
 import com.android.internal.R;
 
@@ -95,6 +109,39 @@ public abstract class LayoutInflater {
 
     private HashMap<String, Boolean> mFilterMap;
 
+    /** Creates a framework view directly, without going through reflection. */
+    private interface BuiltInViewFactory {
+        View create(Context context, AttributeSet attrs);
+    }
+
+    /**
+     * Factories for the framework views that appear most often in layouts, keyed by class name.
+     * Framework classes come from the boot class path for every class loader, so these produce
+     * the same views as {@link #createView}'s reflective path.
+     */
+    private static final ArrayMap<String, BuiltInViewFactory> sBuiltInFactories =
+            new ArrayMap<>();
+    static {
+        sBuiltInFactories.put("android.view.View", View::new);
+        sBuiltInFactories.put("android.view.ViewStub", ViewStub::new);
+        sBuiltInFactories.put("android.widget.Button", Button::new);
+        sBuiltInFactories.put("android.widget.CheckBox", CheckBox::new);
+        sBuiltInFactories.put("android.widget.EditText", EditText::new);
+        sBuiltInFactories.put("android.widget.FrameLayout", FrameLayout::new);
+        sBuiltInFactories.put("android.widget.ImageButton", ImageButton::new);
+        sBuiltInFactories.put("android.widget.ImageView", ImageView::new);
+        sBuiltInFactories.put("android.widget.LinearLayout", LinearLayout::new);
+        sBuiltInFactories.put("android.widget.ListView", ListView::new);
+        sBuiltInFactories.put("android.widget.ProgressBar", ProgressBar::new);
+        sBuiltInFactories.put("android.widget.RelativeLayout", RelativeLayout::new);
+        sBuiltInFactories.put("android.widget.ScrollView", ScrollView::new);
+        sBuiltInFactories.put("android.widget.Space", Space::new);
+        sBuiltInFactories.put("android.widget.TextView", TextView::new);
+    }
+
+    private static volatile boolean sUseBuiltInFactories =
+            SystemProperties.getBoolean("debug.layoutinflater.builtin_factories", false);
+
     private TypedValue mTempValue;
 
     private static final String TAG_MERGE = "merge";
@@ -572,6 +619,17 @@ public abstract class LayoutInflater {
         return false;
     }
 
+    /**
+     * Sets whether {@link #createView} constructs common framework views directly instead of
+     * through reflection.  Off by default; can also be turned on with the
+     * debug.layoutinflater.builtin_factories system property.
+     *
+     * @hide
+     */
+    public static void setBuiltInFactoriesEnabled(boolean enabled) {
+        sUseBuiltInFactories = enabled;
+    }
+
     /**
      * Low-level function for instantiating a view by name. This attempts to
      * instantiate a view class of the given <var>name</var> found in this
@@ -591,6 +649,9 @@ public abstract class LayoutInflater {
      */
     public final View createView(String name, String prefix, AttributeSet attrs)
             throws ClassNotFoundException, InflateException {
+        // Filters need the class, so only use the built-in factories without one.
+        final BuiltInViewFactory factory = sUseBuiltInFactories && mFilter == null
+                ? sBuiltInFactories.get(prefix != null ? (prefix + name) : name) : null;
         Constructor<? extends View> constructor = sConstructorMap.get(name);
         if (constructor != null && !verifyClassLoader(constructor)) {
             constructor = null;
@@ -601,7 +662,7 @@ public abstract class LayoutInflater {
         try {
             Trace.traceBegin(Trace.TRACE_TAG_VIEW, name);
 
-            if (constructor == null) {
+            if (factory == null && constructor == null) {
                 // Class not found in the cache, see if it's real, and try to add it
                 clazz = mContext.getClassLoader().loadClass(
                         prefix != null ? (prefix + name) : name).asSubclass(View.class);
@@ -644,7 +705,8 @@ public abstract class LayoutInflater {
             Object[] args = mConstructorArgs;
             args[1] = attrs;
 
-            final View view = constructor.newInstance(args);
+            final View view = factory != null
+                    ? factory.create((Context) args[0], attrs) : constructor.newInstance(args);
             if (view instanceof ViewStub) {
                 // Use the same context when inflating ViewStub later.
                 final ViewStub viewStub = (ViewStub) view;
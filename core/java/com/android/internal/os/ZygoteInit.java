@@ -67,6 +67,10 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.security.Security;
 import java.security.Provider;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Startup class for the zygote process.
@@ -85,10 +89,18 @@ public class ZygoteInit {
 
     private static final String PROPERTY_DISABLE_OPENGL_PRELOADING = "ro.zygote.disable_gl_preload";
     private static final String PROPERTY_GFX_DRIVER = "ro.gfx.driver.0";
+    private static final String PROPERTY_PRELOAD_THREADS = "ro.zygote.preload_threads";
+    private static final String PROPERTY_PRELOAD_STRINGS = "ro.zygote.preload_strings";
 
     private static final int LOG_BOOT_PROGRESS_PRELOAD_START = 3020;
     private static final int LOG_BOOT_PROGRESS_PRELOAD_END = 3030;
 
+    /**
+     * How long the parallel class preload may take before the zygote gives up on it. It
+     * normally takes well under a second.
+     */
+    private static final long PRELOAD_GROUPS_TIMEOUT_MS = 10 * 1000;
+
     /** when preloading, GC after allocating this many bytes */
     private static final int PRELOAD_GC_THRESHOLD = 50000;
 
@@ -106,6 +118,18 @@ public class ZygoteInit {
      */
     private static final String PRELOADED_CLASSES = "/system/etc/preloaded-classes";
 
+    /**
+     * The path of an optional file, generated by frameworks/base/tools/preload from recorded
+     * class initializations, that splits the preloaded classes into groups whose static
+     * initializers do not depend on each other. Each line is
+     * "group medianInitTimeMicros className", most expensive groups first.
+     *
+     * No profile is checked in or installed by default, so classes are preloaded serially
+     * unless a device generates one with WritePreloadProfile and copies it here.
+     */
+    private static final String PRELOADED_CLASSES_PROFILE =
+            "/system/etc/preloaded-classes-profile";
+
     /** Controls whether we should preload resources during zygote init. */
     public static final boolean PRELOAD_RESOURCES = true;
 
@@ -123,10 +147,10 @@ public class ZygoteInit {
         beginPreload();
         bootTimingsTraceLog.traceEnd(); // BeginPreload
         bootTimingsTraceLog.traceBegin("PreloadClasses");
-        preloadClasses();
+        preloadClasses(bootTimingsTraceLog);
         bootTimingsTraceLog.traceEnd(); // PreloadClasses
         bootTimingsTraceLog.traceBegin("PreloadResources");
-        preloadResources();
+        preloadResources(bootTimingsTraceLog);
         bootTimingsTraceLog.traceEnd(); // PreloadResources
         Trace.traceBegin(Trace.TRACE_TAG_DALVIK, "PreloadAppProcessHALs");
         nativePreloadAppProcessHALs();
@@ -222,8 +246,13 @@ public class ZygoteInit {
      *
      * Most classes only cause a few hundred bytes to be allocated, but
      * a few will allocate a dozen Kbytes (in one case, 500+K).
+     *
+     * If a preload profile is present, classes it covers are initialized on
+     * a pool of worker threads, one initialization group at a time, starting
+     * with the most expensive groups. Classes the profile does not know about
+     * are initialized afterwards on this thread, in list order.
      */
-    private static void preloadClasses() {
+    private static void preloadClasses(TimingsTraceLog bootTimingsTraceLog) {
         final VMRuntime runtime = VMRuntime.getRuntime();
 
         InputStream is;
@@ -265,7 +294,7 @@ public class ZygoteInit {
             BufferedReader br
                 = new BufferedReader(new InputStreamReader(is), 256);
 
-            int count = 0;
+            final ArrayList<String> classNames = new ArrayList<>();
             String line;
             while ((line = br.readLine()) != null) {
                 // Skip comments and blank lines.
@@ -273,35 +302,29 @@ public class ZygoteInit {
                 if (line.startsWith("#") || line.equals("")) {
                     continue;
                 }
+                classNames.add(line);
+            }
 
-                Trace.traceBegin(Trace.TRACE_TAG_DALVIK, line);
-                try {
-                    if (false) {
-                        Log.v(TAG, "Preloading " + line + "...");
-                    }
-                    // Load and explicitly initialize the given class. Use
-                    // Class.forName(String, boolean, ClassLoader) to avoid repeated stack lookups
-                    // (to derive the caller's class-loader). Use true to force initialization, and
-                    // null for the boot classpath class-loader (could as well cache the
-                    // class-loader of this class in a variable).
-                    Class.forName(line, true, null);
+            int count = 0;
+            final int threads = SystemProperties.getInt(PROPERTY_PRELOAD_THREADS,
+                    Runtime.getRuntime().availableProcessors());
+            final ArrayList<ArrayList<String>> groups =
+                    threads > 1 ? readPreloadProfile(classNames) : null;
+            if (groups != null) {
+                // Worker threads inherit the unprivileged credentials dropped above, and are
+                // all gone again before they are restored.
+                bootTimingsTraceLog.traceBegin("PreloadClassesParallel");
+                count += preloadClassGroups(groups, threads);
+                bootTimingsTraceLog.traceEnd(); // PreloadClassesParallel
+            }
+
+            bootTimingsTraceLog.traceBegin("PreloadClassesSerial");
+            for (int i = 0; i < classNames.size(); i++) {
+                if (preloadClass(classNames.get(i))) {
                     count++;
-                } catch (ClassNotFoundException e) {
-                    Log.w(TAG, "Class not found for preloading: " + line);
-                } catch (UnsatisfiedLinkError e) {
-                    Log.w(TAG, "Problem preloading " + line + ": " + e);
-                } catch (Throwable t) {
-                    Log.e(TAG, "Error preloading " + line + ".", t);
-                    if (t instanceof Error) {
-                        throw (Error) t;
-                    }
-                    if (t instanceof RuntimeException) {
-                        throw (RuntimeException) t;
-                    }
-                    throw new RuntimeException(t);
                 }
-                Trace.traceEnd(Trace.TRACE_TAG_DALVIK);
             }
+            bootTimingsTraceLog.traceEnd(); // PreloadClassesSerial
 
             Log.i(TAG, "...preloaded " + count + " classes in "
                     + (SystemClock.uptimeMillis()-startTime) + "ms.");
@@ -313,9 +336,9 @@ public class ZygoteInit {
             runtime.setTargetHeapUtilization(defaultUtilization);
 
             // Fill in dex caches with classes, fields, and methods brought in by preloading.
-            Trace.traceBegin(Trace.TRACE_TAG_DALVIK, "PreloadDexCaches");
+            bootTimingsTraceLog.traceBegin("PreloadDexCaches");
             runtime.preloadDexCaches();
-            Trace.traceEnd(Trace.TRACE_TAG_DALVIK);
+            bootTimingsTraceLog.traceEnd(); // PreloadDexCaches
 
             // Bring back root. We'll need it later if we're in the zygote.
             if (droppedPriviliges) {
@@ -329,14 +352,192 @@ public class ZygoteInit {
         }
     }
 
+    /**
+     * Loads and initializes a single class on the boot classpath.
+     *
+     * @return true if the class was found.
+     */
+    private static boolean preloadClass(String className) {
+        Trace.traceBegin(Trace.TRACE_TAG_DALVIK, className);
+        try {
+            if (false) {
+                Log.v(TAG, "Preloading " + className + "...");
+            }
+            // Load and explicitly initialize the given class. Use
+            // Class.forName(String, boolean, ClassLoader) to avoid repeated stack lookups
+            // (to derive the caller's class-loader). Use true to force initialization, and
+            // null for the boot classpath class-loader (could as well cache the
+            // class-loader of this class in a variable).
+            Class.forName(className, true, null);
+            return true;
+        } catch (ClassNotFoundException e) {
+            Log.w(TAG, "Class not found for preloading: " + className);
+        } catch (UnsatisfiedLinkError e) {
+            Log.w(TAG, "Problem preloading " + className + ": " + e);
+        } catch (Throwable t) {
+            Log.e(TAG, "Error preloading " + className + ".", t);
+            if (t instanceof Error) {
+                throw (Error) t;
+            }
+            if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            }
+            throw new RuntimeException(t);
+        } finally {
+            Trace.traceEnd(Trace.TRACE_TAG_DALVIK);
+        }
+        return false;
+    }
+
+    /**
+     * Reads {@link #PRELOADED_CLASSES_PROFILE} and returns the initialization groups it
+     * describes, most expensive first, restricted to classes in {@code classNames}. Classes
+     * that end up in a group are removed from {@code classNames}.
+     *
+     * @return the groups, or null if there is no usable profile.
+     */
+    private static ArrayList<ArrayList<String>> readPreloadProfile(
+            ArrayList<String> classNames) {
+        final HashSet<String> wanted = new HashSet<>(classNames);
+        final ArrayList<ArrayList<String>> groups = new ArrayList<>();
+        final HashSet<String> grouped = new HashSet<>();
+        try (BufferedReader br = new BufferedReader(
+                new InputStreamReader(new FileInputStream(PRELOADED_CLASSES_PROFILE)), 256)) {
+            String line;
+            int lastGroup = -1;
+            ArrayList<String> group = null;
+            while ((line = br.readLine()) != null) {
+                line = line.trim();
+                if (line.startsWith("#") || line.equals("")) {
+                    continue;
+                }
+                final String[] fields = line.split(" ");
+                if (fields.length != 3) {
+                    Log.w(TAG, "Ignoring malformed preload profile line: " + line);
+                    continue;
+                }
+                final String className = fields[2];
+                if (!wanted.contains(className) || !grouped.add(className)) {
+                    continue;
+                }
+                final int groupId = Integer.parseInt(fields[0]);
+                if (group == null || groupId != lastGroup) {
+                    group = new ArrayList<>();
+                    groups.add(group);
+                    lastGroup = groupId;
+                }
+                group.add(className);
+            }
+        } catch (FileNotFoundException e) {
+            Log.i(TAG, "No " + PRELOADED_CLASSES_PROFILE + ", preloading classes serially");
+            return null;
+        } catch (IOException | NumberFormatException e) {
+            Log.w(TAG, "Error reading " + PRELOADED_CLASSES_PROFILE + ", preloading serially", e);
+            return null;
+        }
+        if (groups.isEmpty()) {
+            return null;
+        }
+        classNames.removeAll(grouped);
+        return groups;
+    }
+
+    /**
+     * Initializes the given groups on {@code threads} worker threads. Each group is
+     * initialized in order by a single thread, so the only classes initialized concurrently
+     * are ones whose initializers were never seen to depend on each other.
+     *
+     * @return the number of classes preloaded.
+     */
+    private static int preloadClassGroups(final ArrayList<ArrayList<String>> groups,
+            int threads) {
+        final AtomicInteger nextGroup = new AtomicInteger();
+        final AtomicInteger count = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread[] workers = new Thread[Math.min(threads, groups.size())];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(() -> {
+                int g;
+                while (failure.get() == null
+                        && (g = nextGroup.getAndIncrement()) < groups.size()) {
+                    final ArrayList<String> group = groups.get(g);
+                    try {
+                        for (int j = 0; j < group.size(); j++) {
+                            if (preloadClass(group.get(j))) {
+                                count.incrementAndGet();
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            }, "ZygotePreload-" + i);
+            workers[i].start();
+        }
+
+        // A stale profile may put classes whose initializers depend on each other in
+        // different groups, and workers initializing them can deadlock. Nothing can safely
+        // take over from a stuck worker: preloading its classes here would block on the same
+        // initialization locks, and the zygote must be single threaded again before it can
+        // fork. So give up loudly, with the stacks showing which classes are involved.
+        if (!joinWorkers(workers, SystemClock.uptimeMillis() + PRELOAD_GROUPS_TIMEOUT_MS)) {
+            for (Thread worker : workers) {
+                if (!worker.isAlive()) continue;
+                final Throwable stack = new Throwable(worker.getName());
+                stack.setStackTrace(worker.getStackTrace());
+                Log.e(TAG, "Preload worker still running", stack);
+            }
+            throw new IllegalStateException("Parallel class preload did not finish within "
+                    + PRELOAD_GROUPS_TIMEOUT_MS + "ms; " + PRELOADED_CLASSES_PROFILE
+                    + " is probably stale. Set " + PROPERTY_PRELOAD_THREADS
+                    + "=1 to preload serially.");
+        }
+
+        final Throwable t = failure.get();
+        if (t instanceof Error) {
+            throw (Error) t;
+        } else if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t != null) {
+            throw new RuntimeException(t);
+        }
+        return count.get();
+    }
+
+    /**
+     * Waits for every thread in {@code workers} to exit, or until {@code deadline} (in
+     * {@link SystemClock#uptimeMillis()} time) has passed.
+     *
+     * @return whether all of them exited.
+     */
+    private static boolean joinWorkers(Thread[] workers, long deadline) {
+        for (Thread worker : workers) {
+            while (worker.isAlive()) {
+                final long remaining = deadline - SystemClock.uptimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    worker.join(remaining);
+                } catch (InterruptedException e) {
+                    // Keep waiting.
+                }
+            }
+        }
+        return true;
+    }
+
     /**
      * Load in commonly used resources, so they can be shared across
      * processes.
      *
      * These tend to be a few Kbytes, but are frequently in the 20-40K
      * range, and occasionally even larger.
+     *
+     * Unlike classes, resources are preloaded serially: the preloaded drawable
+     * and color caches in ResourcesImpl are not safe for concurrent writers.
      */
-    private static void preloadResources() {
+    private static void preloadResources(TimingsTraceLog bootTimingsTraceLog) {
         final VMRuntime runtime = VMRuntime.getRuntime();
 
         try {
@@ -346,31 +547,46 @@ public class ZygoteInit {
                 Log.i(TAG, "Preloading resources...");
 
                 long startTime = SystemClock.uptimeMillis();
+                bootTimingsTraceLog.traceBegin("PreloadDrawables");
                 TypedArray ar = mResources.obtainTypedArray(
                         com.android.internal.R.array.preloaded_drawables);
                 int N = preloadDrawables(ar);
                 ar.recycle();
+                bootTimingsTraceLog.traceEnd(); // PreloadDrawables
                 Log.i(TAG, "...preloaded " + N + " resources in "
                         + (SystemClock.uptimeMillis()-startTime) + "ms.");
 
                 startTime = SystemClock.uptimeMillis();
+                bootTimingsTraceLog.traceBegin("PreloadColorStateLists");
                 ar = mResources.obtainTypedArray(
                         com.android.internal.R.array.preloaded_color_state_lists);
                 N = preloadColorStateLists(ar);
                 ar.recycle();
+                bootTimingsTraceLog.traceEnd(); // PreloadColorStateLists
                 Log.i(TAG, "...preloaded " + N + " resources in "
                         + (SystemClock.uptimeMillis()-startTime) + "ms.");
 
                 if (mResources.getBoolean(
                         com.android.internal.R.bool.config_freeformWindowManagement)) {
                     startTime = SystemClock.uptimeMillis();
+                    bootTimingsTraceLog.traceBegin("PreloadFreeformDrawables");
                     ar = mResources.obtainTypedArray(
                             com.android.internal.R.array.preloaded_freeform_multi_window_drawables);
                     N = preloadDrawables(ar);
                     ar.recycle();
+                    bootTimingsTraceLog.traceEnd(); // PreloadFreeformDrawables
                     Log.i(TAG, "...preloaded " + N + " resource in "
                             + (SystemClock.uptimeMillis() - startTime) + "ms.");
                 }
+
+                if (SystemProperties.getBoolean(PROPERTY_PRELOAD_STRINGS, false)) {
+                    startTime = SystemClock.uptimeMillis();
+                    bootTimingsTraceLog.traceBegin("PreloadStrings");
+                    N = mResources.getAssets().preloadStringBlocks();
+                    bootTimingsTraceLog.traceEnd(); // PreloadStrings
+                    Log.i(TAG, "...preloaded " + N + " strings in "
+                            + (SystemClock.uptimeMillis() - startTime) + "ms.");
+                }
             }
             mResources.finishPreloading();
         } catch (RuntimeException e) {
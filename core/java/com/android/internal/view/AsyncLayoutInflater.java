@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.internal.view;
+
+import android.annotation.LayoutRes;
+import android.annotation.Nullable;
+import android.content.Context;
+import android.os.Process;
+import android.os.Trace;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Inflates layouts on a shared pool of background threads and hands the inflated views back to
+ * the thread that created it at the start of its next frame.  Typical usage is:
+ * <pre><code>
+ *     new AsyncLayoutInflater(activity).inflate(R.layout.main, null,
+ *             (view, resId, parent) -> activity.setContentView(view));
+ * </code></pre>
+ * <p>
+ * The views are created off the UI thread but are not attached to anything until the callback
+ * runs, so nothing checks which thread they belong to until then.  Layouts whose views need a
+ * Looper in their constructor (e.g. because they create a Handler) fail to inflate in the
+ * background; they are inflated again on the UI thread before the callback is called.
+ * <p>
+ * Each instance has its own {@link LayoutInflater} and runs one inflation at a time on the
+ * pool, so layouts queued on the same instance are inflated, and their callbacks called, in
+ * order.  Different instances inflate in parallel.  The inflater's factories are copied from
+ * the context's inflater and must be safe to call from a background thread.
+ */
+public final class AsyncLayoutInflater {
+    private static final String TAG = "AsyncLayoutInflater";
+
+    private static final int POOL_SIZE = 2;
+    private static final int KEEP_ALIVE_SECONDS = 30;
+
+    private static ExecutorService sExecutor;
+
+    private final Context mContext;
+    private final LayoutInflater mInflater;
+    private final Choreographer mChoreographer;
+
+    // Inflates layouts that failed in the background.  Separate from mInflater, so the UI
+    // thread never waits for a background inflation to release mInflater.  UI thread only.
+    private LayoutInflater mFallbackInflater;
+
+    // Inflations waiting for the one running on the pool, if any.
+    @GuardedBy("mQueue")
+    private final ArrayDeque<Runnable> mQueue = new ArrayDeque<>();
+    @GuardedBy("mQueue")
+    private boolean mRunning;
+
+    /** Called on the UI thread with an inflated view. */
+    public interface OnInflateFinishedListener {
+        /**
+         * @param view the root of the inflated layout, not attached to {@code parent}
+         * @param resId the layout that was inflated
+         * @param parent the parent passed to {@link #inflate}
+         */
+        void onInflateFinished(View view, @LayoutRes int resId, @Nullable ViewGroup parent);
+    }
+
+    /**
+     * Must be called on the thread that will use the inflated views, which must have a Looper.
+     */
+    public AsyncLayoutInflater(Context context) {
+        mContext = context;
+        mInflater = LayoutInflater.from(context).cloneInContext(context);
+        mChoreographer = Choreographer.getInstance();
+    }
+
+    /**
+     * Inflates {@code resId} in the background.  The root view gets layout params generated by
+     * {@code parent}, if it isn't null, but isn't attached to it.
+     *
+     * @param callback called on the UI thread at the start of the next frame after the layout
+     *        has been inflated
+     */
+    public void inflate(@LayoutRes int resId, @Nullable ViewGroup parent,
+            OnInflateFinishedListener callback) {
+        if (callback == null) {
+            throw new NullPointerException("callback argument may not be null!");
+        }
+        enqueue(() -> {
+            View view = null;
+            Trace.traceBegin(Trace.TRACE_TAG_VIEW, "AsyncLayoutInflater#inflate");
+            try {
+                view = mInflater.inflate(resId, parent, false);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Failed to inflate resource in the background! Retrying on the UI "
+                        + "thread", e);
+            } finally {
+                Trace.traceEnd(Trace.TRACE_TAG_VIEW);
+            }
+
+            final View backgroundView = view;
+            mChoreographer.postFrameCallback(frameTimeNanos -> {
+                final View result = backgroundView != null
+                        ? backgroundView : getFallbackInflater().inflate(resId, parent, false);
+                callback.onInflateFinished(result, resId, parent);
+            });
+        });
+    }
+
+    private LayoutInflater getFallbackInflater() {
+        if (mFallbackInflater == null) {
+            mFallbackInflater = mInflater.cloneInContext(mContext);
+        }
+        return mFallbackInflater;
+    }
+
+    private void enqueue(Runnable inflation) {
+        synchronized (mQueue) {
+            mQueue.addLast(inflation);
+            if (!mRunning) {
+                runNextLocked();
+            }
+        }
+    }
+
+    @GuardedBy("mQueue")
+    private void runNextLocked() {
+        final Runnable inflation = mQueue.pollFirst();
+        mRunning = inflation != null;
+        if (inflation == null) {
+            return;
+        }
+        getExecutor().execute(() -> {
+            try {
+                inflation.run();
+            } finally {
+                synchronized (mQueue) {
+                    runNextLocked();
+                }
+            }
+        });
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger(1);
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            return new Thread(() -> {
+                                // The UI thread is waiting for these layouts, so don't run
+                                // at background priority.
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_DEFAULT);
+                                r.run();
+                            }, TAG + " #" + mCount.getAndIncrement());
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            sExecutor = executor;
+        }
+        return sExecutor;
+    }
+}
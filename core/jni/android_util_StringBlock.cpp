@@ -29,6 +29,8 @@
 
 namespace android {
 
+static jclass gStringClass;
+
 // ----------------------------------------------------------------------------
 
 static jlong android_content_StringBlock_nativeCreate(JNIEnv* env, jobject clazz,
@@ -95,6 +97,57 @@ static jstring android_content_StringBlock_nativeGetString(JNIEnv* env, jobject
     return env->NewString((const jchar*)str, len);
 }
 
+static jobjectArray android_content_StringBlock_nativeGetStrings(JNIEnv* env, jobject clazz,
+                                                              jlong token, jint start,
+                                                              jint count)
+{
+    ResStringPool* osb = reinterpret_cast<ResStringPool*>(token);
+    if (osb == NULL) {
+        jniThrowNullPointerException(env, NULL);
+        return NULL;
+    }
+
+    if (start < 0 || count < 0 || (size_t) start + (size_t) count > osb->size()) {
+        jniThrowException(env, "java/lang/IndexOutOfBoundsException", NULL);
+        return NULL;
+    }
+
+    jobjectArray array = env->NewObjectArray(count, gStringClass, NULL);
+    if (array == NULL) { // NewObjectArray already threw OutOfMemoryError.
+        return NULL;
+    }
+
+    for (jint i = 0; i < count; i++) {
+        const size_t idx = start + i;
+
+        // Styled strings are left null; the caller decodes them with their spans.
+        const ResStringPool_span* spans = osb->styleAt(idx);
+        if (spans != NULL && spans->name.index != ResStringPool_span::END) {
+            continue;
+        }
+
+        size_t len;
+        jstring str;
+        const char* str8 = osb->string8At(idx, &len);
+        if (str8 != NULL) {
+            str = env->NewStringUTF(str8);
+        } else {
+            const char16_t* str16 = osb->stringAt(idx, &len);
+            if (str16 == NULL) {
+                continue;
+            }
+            str = env->NewString((const jchar*) str16, len);
+        }
+        if (str == NULL) { // Already threw OutOfMemoryError.
+            return NULL;
+        }
+        env->SetObjectArrayElement(array, i, str);
+        env->DeleteLocalRef(str);
+    }
+
+    return array;
+}
+
 static jintArray android_content_StringBlock_nativeGetStyle(JNIEnv* env, jobject clazz,
                                                          jlong token, jint idx)
 {
@@ -163,6 +216,8 @@ static const JNINativeMethod gStringBlockMethods[] = {
             (void*) android_content_StringBlock_nativeGetSize },
     { "nativeGetString",    "(JI)Ljava/lang/String;",
             (void*) android_content_StringBlock_nativeGetString },
+    { "nativeGetStrings",   "(JII)[Ljava/lang/String;",
+            (void*) android_content_StringBlock_nativeGetStrings },
     { "nativeGetStyle",    "(JI)[I",
             (void*) android_content_StringBlock_nativeGetStyle },
     { "nativeDestroy",      "(J)V",
@@ -171,6 +226,8 @@ static const JNINativeMethod gStringBlockMethods[] = {
 
 int register_android_content_StringBlock(JNIEnv* env)
 {
+    gStringClass = MakeGlobalRefOrDie(env, FindClassOrDie(env, "java/lang/String"));
+
     return RegisterMethodsOrDie(env,
             "android/content/res/StringBlock", gStringBlockMethods, NELEM(gStringBlockMethods));
 }
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content.res;
+
+import android.graphics.drawable.Drawable;
+import android.graphics.drawable.GradientDrawable;
+import android.support.test.filters.SmallTest;
+import android.test.AndroidTestCase;
+import android.view.DisplayAdjustments;
+
+import com.android.frameworks.coretests.R;
+
+@SmallTest
+public class SharedDrawableCacheTest extends AndroidTestCase {
+    private static final int ACCENT = 0xff00ff00;
+
+    private Resources newResources(ResourcesKey key) {
+        final Resources base = getContext().getResources();
+        final ResourcesImpl impl = new ResourcesImpl(base.getAssets(), base.getDisplayMetrics(),
+                base.getConfiguration(), new DisplayAdjustments());
+        impl.setResourcesKey(key);
+        final Resources res = new Resources(null);
+        res.setImpl(impl);
+        return res;
+    }
+
+    private static int getColor(Resources res) {
+        final Resources.Theme theme = res.newTheme();
+        theme.applyStyle(R.style.SharedDrawableCacheTheme, true);
+        final Drawable dr = res.getDrawable(R.drawable.themed_shape, theme);
+        return ((GradientDrawable) dr).getColor().getDefaultColor();
+    }
+
+    public void testThemedDrawableFromSharedCache() {
+        final ResourcesKey key = new ResourcesKey("SharedDrawableCacheTest", null, null, null,
+                0, null, null);
+
+        // The first instance loads the drawable; the second, created from an equal key, has an
+        // empty weak cache and gets it from the shared cache.
+        assertEquals(ACCENT, getColor(newResources(key)));
+        assertEquals(ACCENT, getColor(newResources(key)));
+    }
+}
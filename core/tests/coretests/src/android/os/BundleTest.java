@@ -16,10 +16,14 @@
 
 package android.os;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import android.graphics.Rect;
 import android.support.test.runner.AndroidJUnit4;
 import android.test.suitebuilder.annotation.SmallTest;
 
@@ -137,4 +141,116 @@ public class BundleTest {
         checkBundle(b, withFd);
         p.recycle();
     }
+
+    @Test
+    public void testLazyUnparcel() throws Exception {
+        final Bundle nested = new Bundle();
+        nested.putString("inner", "value");
+        final Bundle source = new Bundle();
+        source.putString("string", "abc");
+        source.putIntArray("ints", new int[] {1, 2, 3});
+        source.putBundle("bundle", nested);
+        source.putSerializable("serializable", Long.valueOf(42));
+        source.putParcelable("size", new Rect(1, 2, 3, 4));
+
+        final Parcel p = Parcel.obtain();
+        source.writeToParcel(p, 0);
+        p.setDataPosition(0);
+
+        BaseBundle.setLazyUnparcelEnabled(true);
+        try {
+            final Bundle b = Bundle.CREATOR.createFromParcel(p);
+
+            // Reading single keys must not unparcel the whole bundle.
+            assertEquals("abc", b.getString("string"));
+            assertNull(b.getString("missing"));
+            assertTrue(b.containsKey("ints"));
+            assertEquals(5, b.size());
+            assertTrue(b.isParcelled());
+
+            // Modify a value that has been read; re-parcelling must pick it up.
+            b.getIntArray("ints")[0] = 10;
+            final Parcel p2 = Parcel.obtain();
+            b.writeToParcel(p2, 0);
+            p2.setDataPosition(0);
+            final Bundle copy = Bundle.CREATOR.createFromParcel(p2);
+            p2.recycle();
+
+            assertArrayEquals(new int[] {10, 2, 3}, copy.getIntArray("ints"));
+            assertEquals("value", copy.getBundle("bundle").getString("inner"));
+            assertEquals(Long.valueOf(42), copy.getSerializable("serializable"));
+            assertEquals(new Rect(1, 2, 3, 4), copy.getParcelable("size"));
+
+            // Anything needing the full map reads the remaining values.
+            assertEquals(5, b.keySet().size());
+            assertFalse(b.isParcelled());
+            assertEquals("value", b.getBundle("bundle").getString("inner"));
+        } finally {
+            BaseBundle.setLazyUnparcelEnabled(false);
+            p.recycle();
+        }
+    }
+
+    @Test
+    public void testLazyIndexRejectsNestedBundleWithBadMagic() {
+        final Parcel data = Parcel.obtain();
+        data.writeInt(2);
+        data.writeString("nested");
+        data.writeInt(3); // VAL_BUNDLE
+        data.writeInt(4);
+        data.writeInt(0xdeadbeef); // not BUNDLE_MAGIC
+        data.writeInt(0);
+        data.writeString("key");
+        data.writeValue("value");
+
+        final Parcel p = Parcel.obtain();
+        p.writeInt(data.dataSize());
+        p.writeInt(BaseBundle.BUNDLE_MAGIC);
+        p.appendFrom(data, 0, data.dataSize());
+        p.setDataPosition(0);
+        data.recycle();
+
+        BaseBundle.setLazyUnparcelEnabled(true);
+        try {
+            // The index must not accept what a full read rejects.
+            final Bundle b = Bundle.CREATOR.createFromParcel(p);
+            try {
+                b.getString("key");
+                fail("Expected IllegalStateException");
+            } catch (IllegalStateException expected) {
+            }
+        } finally {
+            BaseBundle.setLazyUnparcelEnabled(false);
+            p.recycle();
+        }
+    }
+
+    @Test
+    public void testLazyKindofEqualsSeesResolvedChanges() {
+        final Bundle source = new Bundle();
+        source.putString("string", "abc");
+        source.putIntArray("ints", new int[] {1, 2, 3});
+        final Parcel p = Parcel.obtain();
+        source.writeToParcel(p, 0);
+
+        BaseBundle.setLazyUnparcelEnabled(true);
+        try {
+            p.setDataPosition(0);
+            final Bundle a = Bundle.CREATOR.createFromParcel(p);
+            p.setDataPosition(0);
+            final Bundle b = Bundle.CREATOR.createFromParcel(p);
+
+            // Reading immutable values keeps comparing the parcelled bytes.
+            assertEquals("abc", a.getString("string"));
+            assertTrue(a.kindofEquals(b));
+            assertTrue(a.isParcelled());
+
+            // A changed value is no longer described by those bytes.
+            a.getIntArray("ints")[0] = 10;
+            assertFalse(a.kindofEquals(b));
+        } finally {
+            BaseBundle.setLazyUnparcelEnabled(false);
+            p.recycle();
+        }
+    }
 }
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.text;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.text.Layout.Alignment;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ParagraphMeasureCacheTest {
+    private static final String TEXT = "The quick brown fox jumps over the lazy dog.\n"
+            + "Pack my box with five dozen liquor jugs.";
+    private static final int WIDTH = 150;
+
+    private TextPaint mPaint;
+
+    @Before
+    public void setup() {
+        ParagraphMeasureCache.clear();
+        mPaint = new TextPaint();
+        mPaint.setTextSize(20);
+    }
+
+    private StaticLayout build(CharSequence text, TextPaint paint, int width) {
+        return StaticLayout.Builder.obtain(text, 0, text.length(), paint, width)
+                .setAlignment(Alignment.ALIGN_NORMAL)
+                .build();
+    }
+
+    private static void assertSameLayout(StaticLayout expected, StaticLayout actual) {
+        assertEquals(expected.getLineCount(), actual.getLineCount());
+        for (int i = 0; i < expected.getLineCount(); i++) {
+            assertEquals(expected.getLineEnd(i), actual.getLineEnd(i));
+            assertEquals(expected.getLineTop(i), actual.getLineTop(i));
+            assertEquals(expected.getLineWidth(i), actual.getLineWidth(i), 0f);
+        }
+        for (int i = 0; i <= expected.getText().length(); i++) {
+            assertEquals(expected.getPrimaryHorizontal(i), actual.getPrimaryHorizontal(i), 0f);
+        }
+    }
+
+    @Test
+    public void testSecondLayoutUsesCache() {
+        final StaticLayout first = build(TEXT, mPaint, WIDTH);
+        final int hits = ParagraphMeasureCache.getHitCount();
+        final StaticLayout second = build(TEXT, mPaint, WIDTH);
+
+        assertEquals(hits + 2, ParagraphMeasureCache.getHitCount());
+        assertSameLayout(first, second);
+    }
+
+    @Test
+    public void testCacheFromOtherThread() throws Exception {
+        final Thread thread = new Thread(() -> build(TEXT, new TextPaint(mPaint), WIDTH));
+        thread.start();
+        thread.join();
+
+        final int hits = ParagraphMeasureCache.getHitCount();
+        final StaticLayout layout = build(TEXT, mPaint, WIDTH);
+        assertEquals(hits + 2, ParagraphMeasureCache.getHitCount());
+
+        ParagraphMeasureCache.clear();
+        assertSameLayout(build(TEXT, mPaint, WIDTH), layout);
+    }
+
+    @Test
+    public void testDifferentPaintOrWidthIsNotShared() {
+        build(TEXT, mPaint, WIDTH);
+        final int hits = ParagraphMeasureCache.getHitCount();
+
+        final TextPaint bigger = new TextPaint(mPaint);
+        bigger.setTextSize(30);
+        build(TEXT, bigger, WIDTH);
+        build(TEXT, mPaint, WIDTH * 2);
+        assertEquals(hits, ParagraphMeasureCache.getHitCount());
+    }
+
+    @Test
+    public void testSpannedTextIsNotCached() {
+        final int misses = ParagraphMeasureCache.getMissCount();
+        build(new SpannableString(TEXT), mPaint, WIDTH);
+        build(new SpannableString(TEXT), mPaint, WIDTH);
+        assertEquals(misses, ParagraphMeasureCache.getMissCount());
+    }
+
+    @Test
+    public void testEllipsizingDoesNotChangeCachedBreaks() {
+        final StaticLayout full = build(TEXT, mPaint, WIDTH);
+        assertTrue(full.getLineCount() > 2);
+
+        StaticLayout.Builder.obtain(TEXT, 0, TEXT.length(), mPaint, WIDTH)
+                .setEllipsize(TextUtils.TruncateAt.END)
+                .setMaxLines(1)
+                .build();
+        assertSameLayout(full, build(TEXT, mPaint, WIDTH));
+    }
+}
@@ -21,7 +21,9 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 
 import android.text.style.BulletSpan;
+import android.text.style.MetricAffectingSpan;
 import android.text.style.QuoteSpan;
+import android.text.style.StyleSpan;
 import android.text.style.SubscriptSpan;
 import android.text.style.UnderlineSpan;
 
@@ -58,4 +60,27 @@ public class SpannableStringBuilderTest extends SpannableTest {
         assertEquals(second, spans[2]);
         assertEquals(first, spans[3]);
     }
+
+    @Test
+    public void testQueriesForKindTrackSpansAddedAndRemoved() {
+        SpannableStringBuilder builder = new SpannableStringBuilder("abcdef");
+        builder.setSpan(new UnderlineSpan(), 0, 6, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        assertEquals(0, builder.getSpans(0, 6, MetricAffectingSpan.class).length);
+        assertEquals(6, builder.nextSpanTransition(1, 6, MetricAffectingSpan.class));
+
+        Object style = new StyleSpan(0);
+        builder.setSpan(style, 2, 4, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        assertEquals(1, builder.getSpans(0, 6, MetricAffectingSpan.class).length);
+        assertEquals(2, builder.nextSpanTransition(1, 6, MetricAffectingSpan.class));
+
+        builder.delete(2, 4);
+        assertEquals(0, builder.getSpans(0, 4, MetricAffectingSpan.class).length);
+        assertEquals(4, builder.nextSpanTransition(0, 4, MetricAffectingSpan.class));
+
+        builder.setSpan(style, 0, 2, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        builder.clearSpans();
+        builder.setSpan(new SubscriptSpan(), 1, 3, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        assertEquals(1, builder.getSpans(0, 4, MetricAffectingSpan.class).length);
+        assertEquals(0, builder.getSpans(0, 4, UnderlineSpan.class).length);
+    }
 }
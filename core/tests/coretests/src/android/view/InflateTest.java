@@ -24,6 +24,9 @@ import android.test.suitebuilder.annotation.SmallTest;
 import android.util.AttributeSet;
 import android.view.LayoutInflater;
 import android.view.View;
+import android.widget.ImageView;
+import android.widget.LinearLayout;
+import android.widget.TextView;
 import com.android.frameworks.coretests.R;
 
 import java.util.Map;
@@ -127,6 +130,23 @@ public class InflateTest extends AndroidTestCase implements PerformanceTestCase
         inflateCachedTest(R.layout.layout_six);
     }
 
+    @SmallTest
+    public void testBuiltInFactories() throws Exception {
+        LayoutInflater.setBuiltInFactoriesEnabled(true);
+        try {
+            View view = mInflater.inflate(android.R.layout.activity_list_item, null);
+            assertEquals(LinearLayout.class, view.getClass());
+            assertEquals(ImageView.class, view.findViewById(android.R.id.icon).getClass());
+            assertEquals(TextView.class, view.findViewById(android.R.id.text1).getClass());
+
+            // Views without a built-in factory are still created through reflection.
+            assertEquals(ViewOne.class, mInflater.inflate(R.layout.layout_two, null)
+                    .findViewById(R.id.viewOne).getClass());
+        } finally {
+            LayoutInflater.setBuiltInFactoriesEnabled(false);
+        }
+    }
+
 //    public void testLayoutTag() throws Exception {
 //        public void setUp
 //        (Context
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.view;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.os.Looper;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.view.View;
+import android.widget.FrameLayout;
+import android.widget.LinearLayout;
+import android.widget.TextView;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class AsyncLayoutInflaterTest {
+
+    @Test
+    public void testInflatedViewIsDeliveredOnUiThread() throws Exception {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final FrameLayout[] parent = new FrameLayout[1];
+        final AsyncLayoutInflater[] inflater = new AsyncLayoutInflater[1];
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> {
+            parent[0] = new FrameLayout(context);
+            inflater[0] = new AsyncLayoutInflater(context);
+        });
+
+        final CountDownLatch latch = new CountDownLatch(2);
+        final View[] views = new View[2];
+        final boolean[] onUiThread = new boolean[2];
+        inflater[0].inflate(android.R.layout.simple_list_item_1, parent[0],
+                (view, resId, p) -> {
+                    views[0] = view;
+                    onUiThread[0] = Looper.myLooper() == Looper.getMainLooper();
+                    latch.countDown();
+                });
+        inflater[0].inflate(android.R.layout.activity_list_item, null,
+                (view, resId, p) -> {
+                    views[1] = view;
+                    onUiThread[1] = Looper.myLooper() == Looper.getMainLooper();
+                    latch.countDown();
+                });
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+
+        assertEquals(TextView.class, views[0].getClass());
+        assertTrue(views[0].getLayoutParams() instanceof FrameLayout.LayoutParams);
+        assertNull(views[0].getParent());
+        assertEquals(LinearLayout.class, views[1].getClass());
+        assertTrue(onUiThread[0]);
+        assertTrue(onUiThread[1]);
+    }
+
+    @Test
+    public void testCallbacksArriveInOrder() throws Exception {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final AsyncLayoutInflater[] inflater = new AsyncLayoutInflater[1];
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(
+                () -> inflater[0] = new AsyncLayoutInflater(context));
+
+        // Alternate a large and a small layout, so that a small one inflated concurrently
+        // would finish first.
+        final int count = 20;
+        final List<Integer> order = new ArrayList<>();
+        final CountDownLatch latch = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            inflater[0].inflate(i % 2 == 0 ? android.R.layout.activity_list_item
+                    : android.R.layout.simple_list_item_1, null, (view, resId, p) -> {
+                        order.add(index);
+                        latch.countDown();
+                    });
+        }
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, (int) order.get(i));
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.location;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long the location manager takes to deliver one location from a mock provider to
+ * many listeners of the same app. The test app must be allowed to mock locations:
+ *
+ * adb shell appops set com.android.frameworks.locationtests android:mock_location allow
+ */
+@LargeTest
+public class LocationFanOutTest extends AndroidTestCase {
+    private static final String LOG_TAG = "LocationFanOutTest";
+    private static final String PROVIDER = "fanout_test";
+    private static final int LISTENER_COUNT = 200;
+    private static final int ROUNDS = 20;
+
+    private LocationManager mManager;
+    private HandlerThread mListenerThread;
+    private final ArrayList<CountingListener> mListeners = new ArrayList<>();
+    private volatile CountDownLatch mLatch;
+
+    private class CountingListener implements LocationListener {
+        @Override
+        public void onLocationChanged(Location location) {
+            mLatch.countDown();
+        }
+
+        @Override
+        public void onStatusChanged(String provider, int status, Bundle extras) {}
+
+        @Override
+        public void onProviderEnabled(String provider) {}
+
+        @Override
+        public void onProviderDisabled(String provider) {}
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mManager = (LocationManager) mContext.getSystemService(Context.LOCATION_SERVICE);
+        mManager.addTestProvider(PROVIDER, false, false, false, false, false, false, false,
+                Criteria.POWER_LOW, Criteria.ACCURACY_FINE);
+        mManager.setTestProviderEnabled(PROVIDER, true);
+        mListenerThread = new HandlerThread(LOG_TAG);
+        mListenerThread.start();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        for (CountingListener listener : mListeners) {
+            mManager.removeUpdates(listener);
+        }
+        mManager.removeTestProvider(PROVIDER);
+        mListenerThread.quit();
+        super.tearDown();
+    }
+
+    public void testFanOut() throws Exception {
+        for (int i = 0; i < LISTENER_COUNT; i++) {
+            final CountingListener listener = new CountingListener();
+            mManager.requestLocationUpdates(PROVIDER, 0, 0, listener,
+                    mListenerThread.getLooper());
+            mListeners.add(listener);
+        }
+
+        long totalMs = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            mLatch = new CountDownLatch(LISTENER_COUNT);
+            final long start = SystemClock.elapsedRealtime();
+            mManager.setTestProviderLocation(PROVIDER, makeLocation(round));
+            assertTrue("Not all listeners got the location",
+                    mLatch.await(10, TimeUnit.SECONDS));
+            totalMs += SystemClock.elapsedRealtime() - start;
+        }
+        Log.i(LOG_TAG, "Delivered a location to " + LISTENER_COUNT + " listeners in "
+                + (totalMs / ROUNDS) + "ms on average");
+    }
+
+    private static Location makeLocation(int round) {
+        final Location location = new Location(PROVIDER);
+        location.setLatitude(37.0 + round * 0.001);
+        location.setLongitude(-122.0);
+        location.setAccuracy(5);
+        location.setTime(System.currentTimeMillis());
+        location.setElapsedRealtimeNanos(SystemClock.elapsedRealtimeNanos());
+        return location;
+    }
+}
@@ -17,10 +17,10 @@
 package com.android.systemui.statusbar.notification;
 
 import android.content.Context;
-import android.support.v4.view.AsyncLayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 
+import com.android.internal.view.AsyncLayoutInflater;
 import com.android.systemui.R;
 import com.android.systemui.statusbar.InflationTask;
 import com.android.systemui.statusbar.ExpandableNotificationRow;
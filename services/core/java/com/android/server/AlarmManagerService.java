@@ -750,10 +750,28 @@ class AlarmManagerService extends SystemService {
         return (index == 0);
     }
 
+    // Return the index of the first batch whose start is strictly after the given time.
+    static int firstBatchStartingAfterLocked(ArrayList<Batch> list, long when) {
+        int lo = 0;
+        int hi = list.size();
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (list.get(mid).start > when) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+
     // Return the index of the matching batch, or -1 if none found.
     int attemptCoalesceLocked(long whenElapsed, long maxWhen) {
-        final int N = mAlarmBatches.size();
-        for (int i = 0; i < N; i++) {
+        // Returns the first batch that can hold the alarm, as a scan of the whole list would.
+        // Batches are ordered by start, so none after those starting by maxWhen can hold it,
+        // and the scan stops there.
+        final int hi = firstBatchStartingAfterLocked(mAlarmBatches, maxWhen);
+        for (int i = 0; i < hi; i++) {
             Batch b = mAlarmBatches.get(i);
             if ((b.flags&AlarmManager.FLAG_STANDALONE) == 0 && b.canHold(whenElapsed, maxWhen)) {
                 return i;
@@ -762,6 +780,35 @@ class AlarmManagerService extends SystemService {
         return -1;
     }
 
+    /**
+     * Restores the batch list after alarms were removed from some of its batches, without
+     * rebatching every alarm.  Removing alarms only ever widens a batch's window, so every
+     * remaining alarm still fits the batch it is in; but a batch's start may have moved
+     * earlier, and its window may now overlap its neighbor's.  Put the batches back in
+     * order and fold each batch into the one before it when their windows now overlap.
+     */
+    void repairBatchesAfterRemovalLocked() {
+        final int N = mAlarmBatches.size();
+        for (int i = 1; i < N; i++) {
+            if (mAlarmBatches.get(i - 1).start > mAlarmBatches.get(i).start) {
+                Collections.sort(mAlarmBatches, sBatchOrder);
+                break;
+            }
+        }
+        for (int i = mAlarmBatches.size() - 1; i > 0; i--) {
+            final Batch prev = mAlarmBatches.get(i - 1);
+            final Batch b = mAlarmBatches.get(i);
+            if (((prev.flags | b.flags) & AlarmManager.FLAG_STANDALONE) == 0
+                    && prev.canHold(b.start, b.end)) {
+                // prev.start <= b.start, so prev's new start is still in order.
+                for (int j = 0; j < b.size(); j++) {
+                    prev.add(b.get(j));
+                }
+                mAlarmBatches.remove(i);
+            }
+        }
+    }
+
     // The RTC clock has moved arbitrarily, so we need to recalculate all the batching
     void rebatchAllAlarms() {
         synchronized (mLock) {
@@ -1981,18 +2028,30 @@ class AlarmManagerService extends SystemService {
         }
 
         if (didRemove) {
-            if (DEBUG_BATCH) {
-                Slog.v(TAG, "remove(operation) changed bounds; rebatching");
-            }
             boolean restorePending = false;
+            boolean needRebatch = false;
             if (mPendingIdleUntil != null && mPendingIdleUntil.matches(operation, directReceiver)) {
                 mPendingIdleUntil = null;
                 restorePending = true;
+                needRebatch = true;
             }
             if (mNextWakeFromIdle != null && mNextWakeFromIdle.matches(operation, directReceiver)) {
                 mNextWakeFromIdle = null;
+                // The idle until alarm may have been pulled in to this one.
+                needRebatch |= mPendingIdleUntil != null;
+            }
+            if (needRebatch) {
+                if (DEBUG_BATCH) {
+                    Slog.v(TAG, "remove(operation) changed idle state; rebatching");
+                }
+                rebatchAllAlarmsLocked(true);
+            } else {
+                if (DEBUG_BATCH) {
+                    Slog.v(TAG, "remove(operation) changed bounds; repairing batches");
+                }
+                repairBatchesAfterRemovalLocked();
+                rescheduleKernelAlarmsLocked();
             }
-            rebatchAllAlarmsLocked(true);
             if (restorePending) {
                 restorePendingWhileIdleAlarmsLocked();
             }
@@ -2019,9 +2078,9 @@ class AlarmManagerService extends SystemService {
 
         if (didRemove) {
             if (DEBUG_BATCH) {
-                Slog.v(TAG, "remove(package) changed bounds; rebatching");
+                Slog.v(TAG, "remove(package) changed bounds; repairing batches");
             }
-            rebatchAllAlarmsLocked(true);
+            repairBatchesAfterRemovalLocked();
             rescheduleKernelAlarmsLocked();
             updateNextAlarmClockLocked();
         }
@@ -2046,9 +2105,9 @@ class AlarmManagerService extends SystemService {
 
         if (didRemove) {
             if (DEBUG_BATCH) {
-                Slog.v(TAG, "remove(package) changed bounds; rebatching");
+                Slog.v(TAG, "remove(package) changed bounds; repairing batches");
             }
-            rebatchAllAlarmsLocked(true);
+            repairBatchesAfterRemovalLocked();
             rescheduleKernelAlarmsLocked();
             updateNextAlarmClockLocked();
         }
@@ -2078,9 +2137,9 @@ class AlarmManagerService extends SystemService {
 
         if (didRemove) {
             if (DEBUG_BATCH) {
-                Slog.v(TAG, "remove(user) changed bounds; rebatching");
+                Slog.v(TAG, "remove(user) changed bounds; repairing batches");
             }
-            rebatchAllAlarmsLocked(true);
+            repairBatchesAfterRemovalLocked();
             rescheduleKernelAlarmsLocked();
             updateNextAlarmClockLocked();
         }
@@ -33,6 +33,7 @@ import android.os.Binder;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Parcel;
 import android.os.Process;
 import android.os.RemoteException;
 import android.os.ResultReceiver;
@@ -250,6 +251,15 @@ public class AppOpsService extends IAppOpsService.Stub {
         ServiceManager.addService(Context.APP_OPS_SERVICE, asBinder());
     }
 
+    @Override
+    public boolean onTransact(int code, Parcel data, Parcel reply, int flags)
+            throws RemoteException {
+        // Nearly every call carries a package name, and the same few hundred
+        // come up over and over; share them rather than allocating each time.
+        data.setStringDeduplicationEnabled(true);
+        return super.onTransact(code, data, reply, flags);
+    }
+
     public void systemReady() {
         synchronized (this) {
             boolean changed = false;
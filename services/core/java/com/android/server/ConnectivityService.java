@@ -151,6 +151,7 @@ import com.android.server.connectivity.NetworkDiagnostics;
 import com.android.server.connectivity.NetworkMonitor;
 import com.android.server.connectivity.NetworkNotificationManager;
 import com.android.server.connectivity.NetworkNotificationManager.NotificationType;
+import com.android.server.connectivity.NetworkRequestIndex;
 import com.android.server.connectivity.PacManager;
 import com.android.server.connectivity.PermissionMonitor;
 import com.android.server.connectivity.ProxyTracker;
@@ -706,6 +707,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
         mDefaultRequest = createDefaultInternetRequestForTransport(-1, NetworkRequest.Type.REQUEST);
         NetworkRequestInfo defaultNRI = new NetworkRequestInfo(null, mDefaultRequest, new Binder());
         mNetworkRequests.put(mDefaultRequest, defaultNRI);
+        mRequestIndex.put(mDefaultRequest, defaultNRI);
         mNetworkRequestInfoLogs.log("REGISTER " + defaultNRI);
 
         mDefaultMobileDataRequest = createDefaultInternetRequestForTransport(
@@ -2019,6 +2021,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
         for (NetworkRequestInfo nri : mNetworkRequests.values()) {
             pw.println(nri.toString());
         }
+        mRequestIndex.dump(pw);
         pw.println();
         pw.decreaseIndent();
 
@@ -2524,6 +2527,9 @@ public class ConnectivityService extends IConnectivityManager.Stub
 
     private void handleRegisterNetworkRequest(NetworkRequestInfo nri) {
         mNetworkRequests.put(nri.request, nri);
+        if (!nri.request.isListen()) {
+            mRequestIndex.put(nri.request, nri);
+        }
         mNetworkRequestInfoLogs.log("REGISTER " + nri);
         if (nri.request.isListen()) {
             for (NetworkAgentInfo network : mNetworkAgentInfos.values()) {
@@ -2641,6 +2647,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
     private void handleRemoveNetworkRequest(final NetworkRequestInfo nri) {
         nri.unlinkDeathRecipient();
         mNetworkRequests.remove(nri.request);
+        mRequestIndex.remove(nri.request);
 
         synchronized (mUidToNetworkRequestCount) {
             int requests = mUidToNetworkRequestCount.get(nri.mUid, 0);
@@ -3996,6 +4003,10 @@ public class ConnectivityService extends IConnectivityManager.Stub
 
     private final HashMap<Messenger, NetworkFactoryInfo> mNetworkFactoryInfos = new HashMap<>();
     private final HashMap<NetworkRequest, NetworkRequestInfo> mNetworkRequests = new HashMap<>();
+    // The requests (not listens) in mNetworkRequests, indexed by the capabilities and transports
+    // they need so that rematching a network only looks at requests it might satisfy.
+    private final NetworkRequestIndex<NetworkRequestInfo> mRequestIndex =
+            new NetworkRequestIndex<>();
 
     private static final int MAX_NETWORK_REQUESTS_PER_UID = 100;
     // Map from UID to number of NetworkRequests that UID has filed.
@@ -5059,7 +5070,20 @@ public class ConnectivityService extends IConnectivityManager.Stub
         ArrayList<NetworkRequestInfo> addedRequests = new ArrayList<>();
         NetworkCapabilities nc = newNetwork.networkCapabilities;
         if (VDBG) log(" network has: " + nc);
-        for (NetworkRequestInfo nri : mNetworkRequests.values()) {
+        // Only two kinds of requests can be affected: those the network already satisfies, which
+        // it may have stopped satisfying, and those whose capability and transport bits it now
+        // matches. Collect both before the loop below changes the network's request list.
+        final ArrayList<NetworkRequestInfo> candidates = new ArrayList<>();
+        for (int i = 0; i < newNetwork.numNetworkRequests(); i++) {
+            final NetworkRequestInfo nri = mNetworkRequests.get(newNetwork.requestAt(i));
+            if (nri != null) candidates.add(nri);
+        }
+        final ArrayList<NetworkRequestInfo> matching = new ArrayList<>();
+        mRequestIndex.getCandidates(nc, matching);
+        for (NetworkRequestInfo nri : matching) {
+            if (!newNetwork.isSatisfyingRequest(nri.request.requestId)) candidates.add(nri);
+        }
+        for (NetworkRequestInfo nri : candidates) {
             // Process requests in the first pass and listens in the second pass. This allows us to
             // change a network's capabilities depending on which requests it has. This is only
             // correct if the change in capabilities doesn't affect whether the network satisfies
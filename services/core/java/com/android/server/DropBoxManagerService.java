@@ -32,6 +32,7 @@ import android.os.FileUtils;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.Process;
 import android.os.StatFs;
 import android.os.SystemClock;
 import android.os.UserHandle;
@@ -43,12 +44,15 @@ import android.util.Slog;
 
 import libcore.io.IoUtils;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.os.IDropBoxManagerService;
 import com.android.internal.util.DumpUtils;
 import com.android.internal.util.ObjectUtils;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileOutputStream;
@@ -57,6 +61,8 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.SequenceInputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Objects;
 import java.util.SortedSet;
@@ -77,6 +83,14 @@ public final class DropBoxManagerService extends SystemService {
     private static final int DEFAULT_RESERVE_PERCENT = 10;
     private static final int QUOTA_RESCAN_MILLIS = 5000;
 
+    // Entries up to this size are copied into memory and written out on the I/O thread, so
+    // that callers don't wait for the disk.  Bigger entries are written by the caller.
+    private static final int MAX_ASYNC_ENTRY_BYTES = 64 * 1024;
+    // Once this much data is waiting to be written, callers write their entries themselves.
+    private static final int MAX_PENDING_BYTES = 512 * 1024;
+    // Tags system_server uses for reports about itself, which are never queued.
+    private static final String SYSTEM_SERVER_TAG_PREFIX = "system_server_";
+
     // mHandler 'what' value.
     private static final int MSG_SEND_BROADCAST = 1;
 
@@ -110,6 +124,40 @@ public final class DropBoxManagerService extends SystemService {
 
     private int mMaxFiles = -1; // -1 means uninitialized.
 
+    // Entries accepted by add() that haven't been written to disk yet.  They are written in
+    // order on mWriteHandler, or by a reader that needs to see them (see writePendingEntries()).
+    // Lock ordering: mWriteLock, then this, then mPendingLock.
+
+    private final Handler mWriteHandler;
+    private final Object mWriteLock = new Object();
+    private final Object mPendingLock = new Object();
+
+    @GuardedBy("mPendingLock")
+    private final ArrayDeque<PendingEntry> mPendingEntries = new ArrayDeque<>();
+    @GuardedBy("mPendingLock")
+    private int mPendingBytes = 0;
+
+    // Ingest statistics, for dump().
+    @GuardedBy("mPendingLock")
+    private int mPeakPendingBytes = 0;
+    @GuardedBy("mPendingLock")
+    private long mAsyncAdds = 0;
+    @GuardedBy("mPendingLock")
+    private long mSyncAdds = 0;
+    @GuardedBy("mPendingLock")
+    private long mAddNanos = 0;
+    @GuardedBy("mPendingLock")
+    private long mMaxAddNanos = 0;
+    @GuardedBy("mPendingLock")
+    private long mAsyncWriteNanos = 0;
+
+    private final Runnable mWritePendingRunnable = new Runnable() {
+        @Override
+        public void run() {
+            writePendingEntries();
+        }
+    };
+
     /** Receives events that might indicate a need to clean up files. */
     private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
         @Override
@@ -186,6 +234,7 @@ public final class DropBoxManagerService extends SystemService {
                 }
             }
         };
+        mWriteHandler = IoThread.getHandler();
     }
 
     @Override
@@ -226,21 +275,143 @@ public final class DropBoxManagerService extends SystemService {
     }
 
     public void add(DropBoxManager.Entry entry) {
-        File temp = null;
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
         InputStream input = null;
-        OutputStream output = null;
         final String tag = entry.getTag();
+        boolean async = false;
         try {
             int flags = entry.getFlags();
             if ((flags & DropBoxManager.IS_EMPTY) != 0) throw new IllegalArgumentException();
 
-            init();
             if (!isTagEnabled(tag)) return;
+            input = entry.getInputStream();
+
+            // Small entries are queued and written on the I/O thread, and stamped when they are
+            // written.  If the entry is too big or too much is already queued, write it here,
+            // starting with what has been read.  So are system_server's reports about itself
+            // (its own crash, WTF, ANR or watchdog), which may be the last thing it does.
+
+            int limit = 0;
+            if (!isOwnReport(tag)) {
+                synchronized (mPendingLock) {
+                    limit = Math.min(MAX_ASYNC_ENTRY_BYTES, MAX_PENDING_BYTES - mPendingBytes);
+                }
+            }
+            final ByteArrayOutputStream head = new ByteArrayOutputStream();
+            if (limit > 0 && readUpTo(input, head, limit)) {
+                enqueueEntry(new PendingEntry(tag, flags, head.toByteArray()));
+                async = true;
+            } else {
+                final long time = System.currentTimeMillis();
+                writeEntry(tag, flags, time, new SequenceInputStream(
+                        new ByteArrayInputStream(head.toByteArray()), input));
+            }
+        } catch (IOException e) {
+            Slog.e(TAG, "Can't write: " + tag, e);
+        } finally {
+            IoUtils.closeQuietly(input);
+            entry.close();
+            noteAdd(async, SystemClock.elapsedRealtimeNanos() - startNanos);
+        }
+    }
+
+    /**
+     * Returns whether an entry is system_server reporting on itself, e.g. as
+     * "system_server_crash" or "system_server_watchdog".  Those must be on disk before add()
+     * returns; crash and ANR reports it files for apps are queued like any other entry.
+     */
+    private static boolean isOwnReport(String tag) {
+        return Binder.getCallingPid() == Process.myPid()
+                && tag != null && tag.startsWith(SYSTEM_SERVER_TAG_PREFIX);
+    }
+
+    /**
+     * Reads {@code input} into {@code out} until the end of the stream, or until more than
+     * {@code limit} bytes have been read.
+     *
+     * @return whether the whole stream was read
+     */
+    private static boolean readUpTo(InputStream input, ByteArrayOutputStream out, int limit)
+            throws IOException {
+        final byte[] buffer = new byte[Math.min(limit + 1, 8192)];
+        while (out.size() <= limit) {
+            int n = input.read(buffer, 0, Math.min(buffer.length, limit + 1 - out.size()));
+            if (n < 0) return true;
+            out.write(buffer, 0, n);
+        }
+        return false;
+    }
+
+    private void enqueueEntry(PendingEntry pending) {
+        final boolean wasEmpty;
+        synchronized (mPendingLock) {
+            wasEmpty = mPendingEntries.isEmpty();
+            mPendingEntries.addLast(pending);
+            mPendingBytes += pending.data.length;
+            mPeakPendingBytes = Math.max(mPeakPendingBytes, mPendingBytes);
+        }
+        if (wasEmpty) mWriteHandler.post(mWritePendingRunnable);
+    }
+
+    /**
+     * Writes all entries queued by {@link #add} to disk, in order.  Runs on the I/O thread, and
+     * is also called before reading so that readers see every entry that has been added.
+     * Must not be called while holding the service lock.
+     */
+    private void writePendingEntries() {
+        synchronized (mWriteLock) {
+            while (true) {
+                final PendingEntry pending;
+                synchronized (mPendingLock) {
+                    // Leave the entry queued while it's written, so that enqueueEntry()
+                    // doesn't post another write and the bytes still count as pending.
+                    pending = mPendingEntries.peekFirst();
+                    if (pending == null) return;
+                }
+                final long startNanos = SystemClock.elapsedRealtimeNanos();
+                try {
+                    // Stamped now rather than when it was queued, so that a reader that
+                    // has seen a later synchronous entry can't miss this one.
+                    writeEntry(pending.tag, pending.flags, System.currentTimeMillis(),
+                            new ByteArrayInputStream(pending.data));
+                } catch (IOException e) {
+                    Slog.e(TAG, "Can't write: " + pending.tag, e);
+                }
+                synchronized (mPendingLock) {
+                    mPendingEntries.removeFirst();
+                    mPendingBytes -= pending.data.length;
+                    mAsyncWriteNanos += SystemClock.elapsedRealtimeNanos() - startNanos;
+                }
+            }
+        }
+    }
+
+    private void noteAdd(boolean async, long nanos) {
+        synchronized (mPendingLock) {
+            if (async) {
+                mAsyncAdds++;
+            } else {
+                mSyncAdds++;
+            }
+            mAddNanos += nanos;
+            mMaxAddNanos = Math.max(mMaxAddNanos, nanos);
+        }
+    }
+
+    /**
+     * Copies an entry's data into a new log file, compressing it if it is at least one block
+     * long, and trims old entries to make room for it.
+     */
+    private void writeEntry(String tag, int flags, long time, InputStream input)
+            throws IOException {
+        File temp = null;
+        OutputStream output = null;
+        try {
+            init();
             long max = trimToFit();
             long lastTrim = System.currentTimeMillis();
 
             byte[] buffer = new byte[mBlockSize];
-            input = entry.getInputStream();
 
             // First, accumulate up to one block worth of data in memory before
             // deciding whether to compress the data or not.
@@ -293,7 +464,7 @@ public final class DropBoxManagerService extends SystemService {
                 }
             } while (read > 0);
 
-            long time = createEntry(temp, tag, flags);
+            time = createEntry(temp, tag, flags, time);
             temp = null;
 
             final Intent dropboxIntent = new Intent(DropBoxManager.ACTION_DROPBOX_ENTRY_ADDED);
@@ -307,12 +478,8 @@ public final class DropBoxManagerService extends SystemService {
             // lock in ActivityManagerService. ActivityManagerService has been caught holding that
             // very lock while waiting for the WindowManagerService lock.
             mHandler.sendMessage(mHandler.obtainMessage(MSG_SEND_BROADCAST, dropboxIntent));
-        } catch (IOException e) {
-            Slog.e(TAG, "Can't write: " + tag, e);
         } finally {
             IoUtils.closeQuietly(output);
-            IoUtils.closeQuietly(input);
-            entry.close();
             if (temp != null) temp.delete();
         }
     }
@@ -327,12 +494,17 @@ public final class DropBoxManagerService extends SystemService {
         }
     }
 
-    public synchronized DropBoxManager.Entry getNextEntry(String tag, long millis) {
+    public DropBoxManager.Entry getNextEntry(String tag, long millis) {
         if (getContext().checkCallingOrSelfPermission(android.Manifest.permission.READ_LOGS)
                 != PackageManager.PERMISSION_GRANTED) {
             throw new SecurityException("READ_LOGS permission required");
         }
 
+        writePendingEntries();
+        return getNextEntryInternal(tag, millis);
+    }
+
+    private synchronized DropBoxManager.Entry getNextEntryInternal(String tag, long millis) {
         try {
             init();
         } catch (IOException e) {
@@ -361,9 +533,14 @@ public final class DropBoxManagerService extends SystemService {
         return null;
     }
 
-    public synchronized void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
         if (!DumpUtils.checkDumpAndUsageStatsPermission(getContext(), TAG, pw)) return;
 
+        writePendingEntries();
+        dumpInternal(pw, args);
+    }
+
+    private synchronized void dumpInternal(PrintWriter pw, String[] args) {
         try {
             init();
         } catch (IOException e) {
@@ -399,6 +576,15 @@ public final class DropBoxManagerService extends SystemService {
 
         out.append("Drop box contents: ").append(mAllFiles.contents.size()).append(" entries\n");
         out.append("Max entries: ").append(mMaxFiles).append("\n");
+        synchronized (mPendingLock) {
+            final long adds = mAsyncAdds + mSyncAdds;
+            out.append("Adds: ").append(mAsyncAdds).append(" queued, ").append(mSyncAdds)
+                    .append(" written by caller, avg ")
+                    .append(adds == 0 ? 0 : mAddNanos / adds / 1000).append("us, max ")
+                    .append(mMaxAddNanos / 1000).append("us in caller; queued writes avg ")
+                    .append(mAsyncAdds == 0 ? 0 : mAsyncWriteNanos / mAsyncAdds / 1000)
+                    .append("us, peak ").append(mPeakPendingBytes).append(" bytes queued\n");
+        }
 
         if (!searchArgs.isEmpty()) {
             out.append("Searching for:");
@@ -508,6 +694,19 @@ public final class DropBoxManagerService extends SystemService {
 
     ///////////////////////////////////////////////////////////////////////////
 
+    /** An entry copied into memory by {@link #add}, waiting to be written to disk. */
+    private static final class PendingEntry {
+        public final String tag;
+        public final int flags;
+        public final byte[] data;
+
+        PendingEntry(String tag, int flags, byte[] data) {
+            this.tag = tag;
+            this.flags = flags;
+            this.data = data;
+        }
+    }
+
     /** Chronologically sorted list of {@link EntryFile} */
     private static final class FileList implements Comparable<FileList> {
         public int blocks = 0;
@@ -772,15 +971,21 @@ public final class DropBoxManagerService extends SystemService {
         }
     }
 
-    /** Moves a temporary file to a final log filename and enrolls it. */
-    private synchronized long createEntry(File temp, String tag, int flags) throws IOException {
-        long t = System.currentTimeMillis();
+    /**
+     * Moves a temporary file to a final log filename and enrolls it.  The entry is stamped with
+     * {@code time}, or later if that is already taken.
+     */
+    private synchronized long createEntry(File temp, String tag, int flags, long time)
+            throws IOException {
+        long t = time;
 
         // Require each entry to have a unique timestamp; if there are entries
         // >10sec in the future (due to clock skew), drag them back to avoid
-        // keeping them around forever.
+        // keeping them around forever.  "Future" is relative to now rather than
+        // to the entry, which may have taken a while to copy.
 
-        SortedSet<EntryFile> tail = mAllFiles.contents.tailSet(new EntryFile(t + 10000));
+        final long now = Math.max(t, System.currentTimeMillis());
+        SortedSet<EntryFile> tail = mAllFiles.contents.tailSet(new EntryFile(now + 10000));
         EntryFile[] future = null;
         if (!tail.isEmpty()) {
             future = tail.toArray(new EntryFile[tail.size()]);
@@ -214,6 +214,15 @@ public class LocationManagerService extends ILocationManager.Stub {
 
     private final LocationRequestStatistics mRequestStatistics = new LocationRequestStatistics();
 
+    // cost of delivering locations to listeners, reported by dump()
+    private long mFanOutCount;
+    private long mFanOutRecords;
+    private long mFanOutSkippedRecords;
+    private long mFanOutAccessChecks;
+    private long mFanOutDeliveries;
+    private long mFanOutTotalNanos;
+    private long mFanOutMaxNanos;
+
     // mapping from provider name to last known location
     private final HashMap<String, Location> mLastLocation = new HashMap<>();
 
@@ -1494,6 +1503,31 @@ public class LocationManagerService extends ILocationManager.Stub {
         return getAllowedResolutionLevel(pid, uid) >= allowedResolutionLevel;
     }
 
+    /**
+     * Checks (or, if {@code note} is set, notes) the receiver's location access, reusing the
+     * result for other receivers of the same app at the same resolution level. A listener-heavy
+     * app then costs one app op call per location update instead of one per listener.
+     */
+    private boolean checkLocationAccessCachedLocked(Receiver receiver,
+            ArrayMap<String, Boolean> accessByIdentity, boolean note) {
+        final Identity identity = receiver.mIdentity;
+        final String key = identity.mPid + "/" + identity.mUid + "/" + identity.mPackageName
+                + "/" + receiver.mAllowedResolutionLevel;
+        Boolean allowed = accessByIdentity.get(key);
+        if (allowed == null) {
+            if (note) {
+                mFanOutAccessChecks++;
+                allowed = reportLocationAccessNoThrow(identity.mPid, identity.mUid,
+                        identity.mPackageName, receiver.mAllowedResolutionLevel);
+            } else {
+                allowed = checkLocationAccess(identity.mPid, identity.mUid,
+                        identity.mPackageName, receiver.mAllowedResolutionLevel);
+            }
+            accessByIdentity.put(key, allowed);
+        }
+        return allowed;
+    }
+
     boolean checkLocationAccess(int pid, int uid, String packageName, int allowedResolutionLevel) {
         int op = resolutionLevelToOp(allowedResolutionLevel);
         if (op >= 0) {
@@ -1701,13 +1735,14 @@ public class LocationManagerService extends ILocationManager.Stub {
                 DEFAULT_BACKGROUND_THROTTLE_INTERVAL_MS);
 
         if (records != null) {
+            // Records whose client has permission to receive location data.
+            final ArrayList<UpdateRecord> allowedRecords = new ArrayList<>(records.size());
+            final ArrayMap<String, Boolean> accessByIdentity = new ArrayMap<>();
             for (UpdateRecord record : records) {
                 if (isCurrentProfile(UserHandle.getUserId(record.mReceiver.mIdentity.mUid))) {
-                    if (checkLocationAccess(
-                            record.mReceiver.mIdentity.mPid,
-                            record.mReceiver.mIdentity.mUid,
-                            record.mReceiver.mIdentity.mPackageName,
-                            record.mReceiver.mAllowedResolutionLevel)) {
+                    if (checkLocationAccessCachedLocked(record.mReceiver, accessByIdentity,
+                            false)) {
+                        allowedRecords.add(record);
                         LocationRequest locationRequest = record.mRealRequest;
                         long interval = locationRequest.getInterval();
 
@@ -1738,29 +1773,22 @@ public class LocationManagerService extends ILocationManager.Stub {
                 // spread the blame across all applications with a request
                 // under that threshold.
                 long thresholdInterval = (providerRequest.interval + 1000) * 3 / 2;
-                for (UpdateRecord record : records) {
-                    if (isCurrentProfile(UserHandle.getUserId(record.mReceiver.mIdentity.mUid))) {
-                        LocationRequest locationRequest = record.mRequest;
-
-                        // Don't assign battery blame for update records whose
-                        // client has no permission to receive location data.
-                        if (!providerRequest.locationRequests.contains(locationRequest)) {
-                            continue;
-                        }
-
-                        if (locationRequest.getInterval() <= thresholdInterval) {
-                            if (record.mReceiver.mWorkSource != null
-                                    && record.mReceiver.mWorkSource.size() > 0
-                                    && record.mReceiver.mWorkSource.getName(0) != null) {
-                                // Assign blame to another work source.
-                                // Can only assign blame if the WorkSource contains names.
-                                worksource.add(record.mReceiver.mWorkSource);
-                            } else {
-                                // Assign blame to caller.
-                                worksource.add(
-                                        record.mReceiver.mIdentity.mUid,
-                                        record.mReceiver.mIdentity.mPackageName);
-                            }
+                // Don't assign battery blame for update records whose
+                // client has no permission to receive location data.
+                for (UpdateRecord record : allowedRecords) {
+                    LocationRequest locationRequest = record.mRequest;
+                    if (locationRequest.getInterval() <= thresholdInterval) {
+                        if (record.mReceiver.mWorkSource != null
+                                && record.mReceiver.mWorkSource.size() > 0
+                                && record.mReceiver.mWorkSource.getName(0) != null) {
+                            // Assign blame to another work source.
+                            // Can only assign blame if the WorkSource contains names.
+                            worksource.add(record.mReceiver.mWorkSource);
+                        } else {
+                            // Assign blame to caller.
+                            worksource.add(
+                                    record.mReceiver.mIdentity.mUid,
+                                    record.mReceiver.mIdentity.mPackageName);
                         }
                     }
                 }
@@ -2605,6 +2633,11 @@ public class LocationManagerService extends ILocationManager.Stub {
         ArrayList<Receiver> deadReceivers = null;
         ArrayList<UpdateRecord> deadUpdateRecords = null;
 
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+        final ArrayMap<String, Boolean> accessByIdentity = new ArrayMap<>();
+        mFanOutCount++;
+        mFanOutRecords += records.size();
+
         // Broadcast location or status to all listeners
         for (UpdateRecord r : records) {
             Receiver receiver = r.mReceiver;
@@ -2627,43 +2660,48 @@ public class LocationManagerService extends ILocationManager.Stub {
                 continue;
             }
 
-            if (!reportLocationAccessNoThrow(
-                    receiver.mIdentity.mPid,
-                    receiver.mIdentity.mUid,
-                    receiver.mIdentity.mPackageName,
-                    receiver.mAllowedResolutionLevel)) {
-                if (D) Log.d(TAG, "skipping loc update for no op app: " +
-                        receiver.mIdentity.mPackageName);
-                continue;
-            }
-
             Location notifyLocation;
             if (receiver.mAllowedResolutionLevel < RESOLUTION_LEVEL_FINE) {
                 notifyLocation = coarseLocation;  // use coarse location
             } else {
                 notifyLocation = lastLocation;  // use fine location
             }
-            if (notifyLocation != null) {
-                Location lastLoc = r.mLastFixBroadcast;
-                if ((lastLoc == null) || shouldBroadcastSafe(notifyLocation, lastLoc, r, now)) {
-                    if (lastLoc == null) {
-                        lastLoc = new Location(notifyLocation);
-                        r.mLastFixBroadcast = lastLoc;
-                    } else {
-                        lastLoc.set(notifyLocation);
-                    }
-                    if (!receiver.callLocationChangedLocked(notifyLocation)) {
-                        Slog.w(TAG, "RemoteException calling onLocationChanged on " + receiver);
-                        receiverDead = true;
-                    }
-                    r.mRealRequest.decrementNumUpdates();
-                }
+            Location lastLoc = r.mLastFixBroadcast;
+            final boolean sendLocation = notifyLocation != null
+                    && ((lastLoc == null) || shouldBroadcastSafe(notifyLocation, lastLoc, r, now));
+            long prevStatusUpdateTime = r.mLastStatusBroadcast;
+            final boolean sendStatus = (newStatusUpdateTime > prevStatusUpdateTime) &&
+                    (prevStatusUpdateTime != 0 || status != LocationProvider.AVAILABLE);
+            if (!sendLocation && !sendStatus && r.mRealRequest.getNumUpdates() > 0
+                    && r.mRealRequest.getExpireAt() >= now) {
+                // Nothing is due for this listener yet (e.g. its interval hasn't passed), so
+                // don't bother checking, or noting, its access.
+                mFanOutSkippedRecords++;
+                continue;
             }
 
-            long prevStatusUpdateTime = r.mLastStatusBroadcast;
-            if ((newStatusUpdateTime > prevStatusUpdateTime) &&
-                    (prevStatusUpdateTime != 0 || status != LocationProvider.AVAILABLE)) {
+            if (!checkLocationAccessCachedLocked(receiver, accessByIdentity, true)) {
+                if (D) Log.d(TAG, "skipping loc update for no op app: " +
+                        receiver.mIdentity.mPackageName);
+                continue;
+            }
 
+            if (sendLocation) {
+                if (lastLoc == null) {
+                    lastLoc = new Location(notifyLocation);
+                    r.mLastFixBroadcast = lastLoc;
+                } else {
+                    lastLoc.set(notifyLocation);
+                }
+                mFanOutDeliveries++;
+                if (!receiver.callLocationChangedLocked(notifyLocation)) {
+                    Slog.w(TAG, "RemoteException calling onLocationChanged on " + receiver);
+                    receiverDead = true;
+                }
+                r.mRealRequest.decrementNumUpdates();
+            }
+
+            if (sendStatus) {
                 r.mLastStatusBroadcast = newStatusUpdateTime;
                 if (!receiver.callStatusChangedLocked(provider, status, extras)) {
                     receiverDead = true;
@@ -2689,6 +2727,10 @@ public class LocationManagerService extends ILocationManager.Stub {
             }
         }
 
+        final long fanOutNanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+        mFanOutTotalNanos += fanOutNanos;
+        mFanOutMaxNanos = Math.max(mFanOutMaxNanos, fanOutNanos);
+
         // remove dead records and receivers outside the loop
         if (deadReceivers != null) {
             for (Receiver receiver : deadReceivers) {
@@ -3042,6 +3084,13 @@ public class LocationManagerService extends ILocationManager.Stub {
                             + ((LocationProviderProxy) provider).getConnectedPackageName());
                 }
             }
+            pw.println("  Location Fan-out: updates=" + mFanOutCount
+                    + " records=" + mFanOutRecords
+                    + " skipped=" + mFanOutSkippedRecords
+                    + " accessChecks=" + mFanOutAccessChecks
+                    + " deliveries=" + mFanOutDeliveries
+                    + " totalMs=" + mFanOutTotalNanos / 1000000
+                    + " maxUs=" + mFanOutMaxNanos / 1000);
             pw.println("  Historical Records by Provider:");
             for (Map.Entry<PackageProviderKey, PackageStatistics> entry
                     : mRequestStatistics.statistics.entrySet()) {
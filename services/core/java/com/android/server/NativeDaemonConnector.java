@@ -25,6 +25,7 @@ import android.os.Message;
 import android.os.PowerManager;
 import android.os.SystemClock;
 import android.os.SystemProperties;
+import android.util.ArrayMap;
 import android.util.LocalLog;
 import android.util.Slog;
 
@@ -40,6 +41,7 @@ import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
@@ -74,6 +76,8 @@ final class NativeDaemonConnector implements Runnable, Handler.Callback, Watchdo
 
     private AtomicInteger mSequenceNumber;
 
+    private final LatencyStats mLatencyStats = new LatencyStats();
+
     private static final long DEFAULT_TIMEOUT = 1 * 60 * 1000; /* 1 minute */
     private static final long WARN_EXECUTE_DELAY_MS = 500; /* .5 sec */
 
@@ -460,26 +464,119 @@ final class NativeDaemonConnector implements Runnable, Handler.Callback, Watchdo
      */
     public NativeDaemonEvent[] executeForList(long timeoutMs, String cmd, Object... args)
             throws NativeDaemonConnectorException {
-        if (mWarnIfHeld != null && Thread.holdsLock(mWarnIfHeld)) {
-            Slog.wtf(TAG, "Calling thread " + Thread.currentThread().getName() + " is holding 0x"
-                    + Integer.toHexString(System.identityHashCode(mWarnIfHeld)), new Throwable());
-        }
+        checkWarnIfHeld();
 
         final long startTime = SystemClock.elapsedRealtime();
 
-        final ArrayList<NativeDaemonEvent> events = Lists.newArrayList();
-
         final StringBuilder rawBuilder = new StringBuilder();
         final StringBuilder logBuilder = new StringBuilder();
         final int sequenceNumber = mSequenceNumber.incrementAndGet();
 
         makeCommand(rawBuilder, logBuilder, sequenceNumber, cmd, args);
 
-        final String rawCmd = rawBuilder.toString();
         final String logCmd = logBuilder.toString();
 
         log("SND -> {" + logCmd + "}");
+        send(rawBuilder.toString());
+
+        final NativeDaemonEvent[] events = awaitResponses(sequenceNumber, timeoutMs, logCmd);
+        noteCommandTime(cmd, logCmd, startTime);
+        throwIfError(logCmd, events[events.length - 1]);
+        return events;
+    }
+
+    /**
+     * Issue all of the given commands to the native daemon with a single socket write, then wait
+     * for the responses to all of them. Commands are matched to their responses by sequence
+     * number, so this costs one write instead of one per command, and the daemon can start on
+     * the next command without waiting for the caller. Responses that arrive before they are
+     * waited for are buffered in the response queue, so commands are sent in chunks no bigger
+     * than the queue; a bigger chunk would push the earliest responses out of it.
+     *
+     * @return the responses to each command, as {@link #executeForList(Command)} would return
+     *         them, in the order the commands were given.
+     * @throws NativeDaemonConnectorException when problem communicating with native daemon, or
+     *             if the response to any command is an error. The responses to all the other
+     *             commands are still consumed first.
+     */
+    public NativeDaemonEvent[][] executeBatch(Command... cmds)
+            throws NativeDaemonConnectorException {
+        return executeBatch(DEFAULT_TIMEOUT, cmds);
+    }
+
+    public NativeDaemonEvent[][] executeBatch(long timeoutMs, Command... cmds)
+            throws NativeDaemonConnectorException {
+        checkWarnIfHeld();
+
+        final NativeDaemonEvent[][] results = new NativeDaemonEvent[cmds.length][];
+        final int chunkSize = mResponseQueue.getMaxCount();
+        NativeDaemonConnectorException error = null;
+        for (int start = 0; start < cmds.length; start += chunkSize) {
+            final int end = Math.min(start + chunkSize, cmds.length);
+            final NativeDaemonConnectorException e =
+                    executeChunk(timeoutMs, cmds, start, end, results);
+            if (error == null) error = e;
+        }
+        if (error != null) {
+            throw error;
+        }
+        return results;
+    }
+
+    /**
+     * Sends {@code cmds[start]} to {@code cmds[end - 1]} with a single write and stores their
+     * responses in {@code results}.
+     *
+     * @return the first error response, if any.
+     * @throws NativeDaemonTimeoutException if any response doesn't arrive in time.
+     */
+    private NativeDaemonConnectorException executeChunk(long timeoutMs, Command[] cmds,
+            int start, int end, NativeDaemonEvent[][] results)
+            throws NativeDaemonConnectorException {
+        final long startTime = SystemClock.elapsedRealtime();
+
+        final StringBuilder rawBuilder = new StringBuilder();
+        final StringBuilder logBuilder = new StringBuilder();
+        final int count = end - start;
+        final int[] sequenceNumbers = new int[count];
+        final String[] logCmds = new String[count];
+        for (int i = 0; i < count; i++) {
+            final Command cmd = cmds[start + i];
+            sequenceNumbers[i] = mSequenceNumber.incrementAndGet();
+            logBuilder.setLength(0);
+            makeCommand(rawBuilder, logBuilder, sequenceNumbers[i], cmd.mCmd,
+                    cmd.mArguments.toArray());
+            logCmds[i] = logBuilder.toString();
+            log("SND -> {" + logCmds[i] + "}");
+        }
+        send(rawBuilder.toString());
 
+        NativeDaemonConnectorException error = null;
+        for (int i = 0; i < count; i++) {
+            try {
+                final NativeDaemonEvent[] events =
+                        awaitResponses(sequenceNumbers[i], timeoutMs, logCmds[i]);
+                results[start + i] = events;
+                noteCommandTime(cmds[start + i].mCmd, logCmds[i], startTime);
+                throwIfError(logCmds[i], events[events.length - 1]);
+            } catch (NativeDaemonTimeoutException e) {
+                // Later responses are unlikely to arrive either; don't wait for each of them.
+                throw e;
+            } catch (NativeDaemonConnectorException e) {
+                if (error == null) error = e;
+            }
+        }
+        return error;
+    }
+
+    private void checkWarnIfHeld() {
+        if (mWarnIfHeld != null && Thread.holdsLock(mWarnIfHeld)) {
+            Slog.wtf(TAG, "Calling thread " + Thread.currentThread().getName() + " is holding 0x"
+                    + Integer.toHexString(System.identityHashCode(mWarnIfHeld)), new Throwable());
+        }
+    }
+
+    private void send(String rawCmd) throws NativeDaemonConnectorException {
         synchronized (mDaemonLock) {
             if (mOutputStream == null) {
                 throw new NativeDaemonConnectorException("missing output stream");
@@ -491,7 +588,14 @@ final class NativeDaemonConnector implements Runnable, Handler.Callback, Watchdo
                 }
             }
         }
+    }
 
+    /**
+     * Waits for the responses to the given command, up to and including its terminal response.
+     */
+    private NativeDaemonEvent[] awaitResponses(int sequenceNumber, long timeoutMs, String logCmd)
+            throws NativeDaemonConnectorException {
+        final ArrayList<NativeDaemonEvent> events = Lists.newArrayList();
         NativeDaemonEvent event = null;
         do {
             event = mResponseQueue.remove(sequenceNumber, timeoutMs, logCmd);
@@ -502,20 +606,25 @@ final class NativeDaemonConnector implements Runnable, Handler.Callback, Watchdo
             if (VDBG) log("RMV <- {" + event + "}");
             events.add(event);
         } while (event.isClassContinue());
+        return events.toArray(new NativeDaemonEvent[events.size()]);
+    }
 
-        final long endTime = SystemClock.elapsedRealtime();
-        if (endTime - startTime > WARN_EXECUTE_DELAY_MS) {
-            loge("NDC Command {" + logCmd + "} took too long (" + (endTime - startTime) + "ms)");
+    private void noteCommandTime(String cmd, String logCmd, long startTime) {
+        final long duration = SystemClock.elapsedRealtime() - startTime;
+        if (duration > WARN_EXECUTE_DELAY_MS) {
+            loge("NDC Command {" + logCmd + "} took too long (" + duration + "ms)");
         }
+        mLatencyStats.record(cmd, duration);
+    }
 
+    private static void throwIfError(String logCmd, NativeDaemonEvent event)
+            throws NativeDaemonConnectorException {
         if (event.isClassClientError()) {
             throw new NativeDaemonArgumentException(logCmd, event);
         }
         if (event.isClassServerError()) {
             throw new NativeDaemonFailureException(logCmd, event);
         }
-
-        return events.toArray(new NativeDaemonEvent[events.size()]);
     }
 
     /**
@@ -594,6 +703,8 @@ final class NativeDaemonConnector implements Runnable, Handler.Callback, Watchdo
         mLocalLog.dump(fd, pw, args);
         pw.println();
         mResponseQueue.dump(fd, pw, args);
+        pw.println();
+        mLatencyStats.dump(pw);
     }
 
     private void log(String logstring) {
@@ -606,6 +717,51 @@ final class NativeDaemonConnector implements Runnable, Handler.Callback, Watchdo
         mLocalLog.log(logstring);
     }
 
+    /**
+     * Histograms of how long each kind of command took, from being issued to its terminal
+     * response, keyed by the base command (e.g. "firewall").
+     */
+    @VisibleForTesting
+    static class LatencyStats {
+        /** Upper bounds of the histogram buckets in milliseconds; the last bucket is unbounded. */
+        static final long[] BUCKET_LIMITS_MS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000 };
+
+        private final ArrayMap<String, long[]> mHistograms = new ArrayMap<>();
+
+        synchronized void record(String cmd, long durationMs) {
+            long[] histogram = mHistograms.get(cmd);
+            if (histogram == null) {
+                histogram = new long[BUCKET_LIMITS_MS.length + 1];
+                mHistograms.put(cmd, histogram);
+            }
+            int bucket = 0;
+            while (bucket < BUCKET_LIMITS_MS.length && durationMs >= BUCKET_LIMITS_MS[bucket]) {
+                bucket++;
+            }
+            histogram[bucket]++;
+        }
+
+        synchronized long[] getHistogram(String cmd) {
+            final long[] histogram = mHistograms.get(cmd);
+            return histogram != null ? histogram.clone() : null;
+        }
+
+        synchronized void dump(PrintWriter pw) {
+            pw.print("Command latency (ms buckets <");
+            for (int i = 0; i < BUCKET_LIMITS_MS.length; i++) {
+                pw.print(i == 0 ? "" : ",<");
+                pw.print(BUCKET_LIMITS_MS[i]);
+            }
+            pw.println(",more):");
+            for (int i = 0; i < mHistograms.size(); i++) {
+                pw.print("  ");
+                pw.print(mHistograms.keyAt(i));
+                pw.print(": ");
+                pw.println(Arrays.toString(mHistograms.valueAt(i)));
+            }
+        }
+    }
+
     private static class ResponseQueue {
 
         private static class PendingCmd {
@@ -646,6 +802,10 @@ final class NativeDaemonConnector implements Runnable, Handler.Callback, Watchdo
             mMaxCount = maxCount;
         }
 
+        int getMaxCount() {
+            return mMaxCount;
+        }
+
         public void add(int cmdNum, NativeDaemonEvent response) {
             PendingCmd found = null;
             synchronized (mPendingCmds) {
@@ -41,8 +41,10 @@ import android.util.SparseIntArray;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.net.InetAddress;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 
 import com.android.internal.annotations.VisibleForTesting;
@@ -703,6 +705,27 @@ public class NsdService extends INsdManager.Stub {
             return true;
         }
 
+        /** Issues one mdnssd command per element of {@code argsList} in a single batch. */
+        public boolean executeBatch(List<Object[]> argsList) {
+            if (DBG) {
+                for (Object[] args : argsList) {
+                    Slog.d(TAG, "mdnssd " + Arrays.toString(args));
+                }
+            }
+            final NativeDaemonConnector.Command[] cmds =
+                    new NativeDaemonConnector.Command[argsList.size()];
+            for (int i = 0; i < cmds.length; i++) {
+                cmds[i] = new NativeDaemonConnector.Command("mdnssd", argsList.get(i));
+            }
+            try {
+                mNativeConnector.executeBatch(cmds);
+            } catch (NativeDaemonConnectorException e) {
+                Slog.e(TAG, "Failed to execute " + cmds.length + " mdnssd commands", e);
+                return false;
+            }
+            return true;
+        }
+
         public void start() {
             execute("start-service");
         }
@@ -844,7 +867,9 @@ public class NsdService extends INsdManager.Stub {
         // and send cancellations to the daemon.
         private void expungeAllRequests() {
             int globalId, clientId, i;
-            // TODO: to keep handler responsive, do not clean all requests for that client at once.
+            // Cancellations are sent as one batch, so that a client with many requests costs
+            // one round trip to the daemon rather than one per request.
+            final ArrayList<Object[]> cancellations = new ArrayList<>();
             for (i = 0; i < mClientIds.size(); i++) {
                 clientId = mClientIds.keyAt(i);
                 globalId = mClientIds.valueAt(i);
@@ -853,18 +878,21 @@ public class NsdService extends INsdManager.Stub {
                         " global-ID " + globalId + " type " + mClientRequests.get(clientId));
                 switch (mClientRequests.get(clientId)) {
                     case NsdManager.DISCOVER_SERVICES:
-                        stopServiceDiscovery(globalId);
+                        cancellations.add(new Object[] { "stop-discover", globalId });
                         break;
                     case NsdManager.RESOLVE_SERVICE:
-                        stopResolveService(globalId);
+                        cancellations.add(new Object[] { "stop-resolve", globalId });
                         break;
                     case NsdManager.REGISTER_SERVICE:
-                        unregisterService(globalId);
+                        cancellations.add(new Object[] { "stop-register", globalId });
                         break;
                     default:
                         break;
                 }
             }
+            if (!cancellations.isEmpty()) {
+                mDaemon.executeBatch(cancellations);
+            }
             mClientIds.clear();
             mClientRequests.clear();
         }
@@ -23,6 +23,8 @@ import android.os.RemoteException;
 import android.system.ErrnoException;
 import android.system.OsConstants;
 import android.system.StructRlimit;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.os.BackgroundThread;
 import com.android.internal.os.ZygoteConnectionConstants;
 import com.android.server.am.ActivityManagerService;
 
@@ -33,6 +35,7 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.hidl.manager.V1_0.IServiceManager;
 import android.os.Debug;
+import android.os.DropBoxManager;
 import android.os.Handler;
 import android.os.IPowerManager;
 import android.os.Looper;
@@ -77,6 +80,18 @@ public class Watchdog extends Thread {
     static final int WAITED_HALF = 2;
     static final int OVERDUE = 3;
 
+    // Telemetry settings.  When the sample interval is non-zero, the checkers are re-run that
+    // often instead of only every CHECK_INTERVAL, so that their latency is recorded
+    // continuously.  Note that this also runs the monitors, and so takes their locks, that
+    // often.  A handler check or monitor that is still running after the slow threshold gets
+    // a snapshot of its thread and of the recent latencies written to DropBox.
+    static final String SAMPLE_INTERVAL_PROPERTY = "persist.sys.watchdog.sample_ms";
+    static final String SLOW_THRESHOLD_PROPERTY = "persist.sys.watchdog.slow_ms";
+    static final long DEFAULT_SLOW_THRESHOLD = DEFAULT_TIMEOUT / 6;
+    static final long MIN_SAMPLE_INTERVAL = 100;
+    static final long MIN_SNAPSHOT_INTERVAL = 10*60*1000;
+    static final String SNAPSHOT_DROPBOX_TAG = "system_server_watchdog_latency";
+
     // Which native processes to dump into dropbox's stack traces
     public static final String[] NATIVE_STACKS_OF_INTEREST = new String[] {
         "/system/bin/audioserver",
@@ -115,6 +130,8 @@ public class Watchdog extends Thread {
     IActivityController mController;
     boolean mAllowRestart = true;
     final OpenFdMonitor mOpenFdMonitor;
+    DropBoxManager mDropBox;
+    long mLastSnapshotTime;
 
     /**
      * Used for checking status of handle threads and scheduling monitor callbacks.
@@ -127,6 +144,10 @@ public class Watchdog extends Thread {
         private boolean mCompleted;
         private Monitor mCurrentMonitor;
         private long mStartTime;
+        private long mStartNanos;
+        // Time from posting a check until it runs, and time spent in each monitor.
+        private final LatencyHistory mLatency = new LatencyHistory();
+        private final ArrayList<LatencyHistory> mMonitorLatencies = new ArrayList<>();
 
         HandlerChecker(Handler handler, String name, long waitMaxMillis) {
             mHandler = handler;
@@ -137,6 +158,7 @@ public class Watchdog extends Thread {
 
         public void addMonitor(Monitor monitor) {
             mMonitors.add(monitor);
+            mMonitorLatencies.add(new LatencyHistory());
         }
 
         public void scheduleCheckLocked() {
@@ -159,6 +181,7 @@ public class Watchdog extends Thread {
             mCompleted = false;
             mCurrentMonitor = null;
             mStartTime = SystemClock.uptimeMillis();
+            mStartNanos = System.nanoTime();
             mHandler.postAtFrontOfQueue(this);
         }
 
@@ -188,6 +211,23 @@ public class Watchdog extends Thread {
             return mName;
         }
 
+        /** @return how long the check in flight has been running, or 0 if it has completed. */
+        public long getRunningTimeLocked() {
+            return mCompleted ? 0 : SystemClock.uptimeMillis() - mStartTime;
+        }
+
+        public void describeLatenciesLocked(StringBuilder sb) {
+            sb.append(mName).append(": ");
+            mLatency.describe(sb);
+            sb.append('\n');
+            for (int i = 0; i < mMonitors.size(); i++) {
+                sb.append("  monitor ").append(mMonitors.get(i).getClass().getName())
+                        .append(": ");
+                mMonitorLatencies.get(i).describe(sb);
+                sb.append('\n');
+            }
+        }
+
         public String describeBlockedStateLocked() {
             if (mCurrentMonitor == null) {
                 return "Blocked in handler on " + mName + " (" + getThread().getName() + ")";
@@ -199,12 +239,20 @@ public class Watchdog extends Thread {
 
         @Override
         public void run() {
+            synchronized (Watchdog.this) {
+                mLatency.add(System.nanoTime() - mStartNanos);
+            }
             final int size = mMonitors.size();
             for (int i = 0 ; i < size ; i++) {
                 synchronized (Watchdog.this) {
                     mCurrentMonitor = mMonitors.get(i);
                 }
+                final long monitorStart = System.nanoTime();
                 mCurrentMonitor.monitor();
+                final long monitorNanos = System.nanoTime() - monitorStart;
+                synchronized (Watchdog.this) {
+                    mMonitorLatencies.get(i).add(monitorNanos);
+                }
             }
 
             synchronized (Watchdog.this) {
@@ -214,6 +262,58 @@ public class Watchdog extends Thread {
         }
     }
 
+    /**
+     * Ring buffer of the most recent latency samples of a handler check or a monitor.
+     */
+    @VisibleForTesting
+    static final class LatencyHistory {
+        static final int CAPACITY = 128;
+
+        private final long[] mSamples = new long[CAPACITY];
+        private int mNext;
+        private long mCount;
+        private long mMaxNanos;
+
+        void add(long nanos) {
+            mSamples[mNext] = nanos;
+            mNext = (mNext + 1) % CAPACITY;
+            mCount++;
+            mMaxNanos = Math.max(mMaxNanos, nanos);
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        /** @return the given percentile of the retained samples, or 0 if there are none. */
+        long getPercentileNanos(int percentile) {
+            return percentile(getSortedSamples(), percentile);
+        }
+
+        /** Appends the sample count, percentiles of the retained samples and the maximum. */
+        void describe(StringBuilder sb) {
+            final long[] sorted = getSortedSamples();
+            sb.append("n=").append(mCount)
+                    .append(" p50=").append(percentile(sorted, 50) / 1000).append("us")
+                    .append(" p90=").append(percentile(sorted, 90) / 1000).append("us")
+                    .append(" p99=").append(percentile(sorted, 99) / 1000).append("us")
+                    .append(" max=").append(mMaxNanos / 1000).append("us");
+        }
+
+        private long[] getSortedSamples() {
+            final long[] sorted = Arrays.copyOf(mSamples, (int) Math.min(mCount, CAPACITY));
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+        private static long percentile(long[] sorted, int percentile) {
+            if (sorted.length == 0) return 0;
+            // Nearest-rank percentile.
+            final int rank = (sorted.length * percentile + 99) / 100;
+            return sorted[Math.max(0, rank - 1)];
+        }
+    }
+
     final class RebootRequestReceiver extends BroadcastReceiver {
         @Override
         public void onReceive(Context c, Intent intent) {
@@ -287,6 +387,7 @@ public class Watchdog extends Thread {
     public void init(Context context, ActivityManagerService activity) {
         mResolver = context.getContentResolver();
         mActivity = activity;
+        mDropBox = context.getSystemService(DropBoxManager.class);
 
         context.registerReceiver(new RebootRequestReceiver(),
                 new IntentFilter(Intent.ACTION_REBOOT),
@@ -357,6 +458,67 @@ public class Watchdog extends Thread {
         return state;
     }
 
+    /**
+     * Writes a snapshot of the latencies, and the stacks of the checkers that have been running
+     * for longer than the slow threshold, to DropBox.  This happens at most every
+     * MIN_SNAPSHOT_INTERVAL, long before the checkers would become overdue.
+     */
+    private void maybeReportSlowCheckersLocked(long slowThreshold) {
+        final long now = SystemClock.uptimeMillis();
+        if (mDropBox == null
+                || (mLastSnapshotTime != 0 && now - mLastSnapshotTime < MIN_SNAPSHOT_INTERVAL)) {
+            return;
+        }
+        final ArrayList<Thread> slowThreads = new ArrayList<>();
+        final StringBuilder sb = new StringBuilder(1024);
+        for (int i=0; i<mHandlerCheckers.size(); i++) {
+            HandlerChecker hc = mHandlerCheckers.get(i);
+            final long runningTime = hc.getRunningTimeLocked();
+            if (runningTime > slowThreshold) {
+                sb.append(hc.describeBlockedStateLocked()).append(" for ").append(runningTime)
+                        .append("ms\n");
+                slowThreads.add(hc.getThread());
+            }
+        }
+        if (slowThreads.isEmpty()) {
+            return;
+        }
+        mLastSnapshotTime = now;
+        sb.append("\nRecent latencies:\n");
+        for (int i=0; i<mHandlerCheckers.size(); i++) {
+            mHandlerCheckers.get(i).describeLatenciesLocked(sb);
+        }
+
+        // Collect the stacks and write the entry off the watchdog thread, and without our lock.
+        final DropBoxManager dropBox = mDropBox;
+        BackgroundThread.getHandler().post(() -> {
+            for (Thread thread : slowThreads) {
+                sb.append("\n\"").append(thread.getName()).append("\"\n");
+                for (StackTraceElement element : thread.getStackTrace()) {
+                    sb.append("    at ").append(element).append('\n');
+                }
+            }
+            dropBox.addText(SNAPSHOT_DROPBOX_TAG, sb.toString());
+        });
+    }
+
+    /**
+     * Returns how long to wait before looking at the checkers again.  The wait is bounded by
+     * the slow threshold, whether or not sampling is enabled, so that slow checkers are
+     * reported well before the end of the check interval.
+     */
+    @VisibleForTesting
+    static long getWaitTime(long timeout, long sampleInterval, long slowThreshold) {
+        long wait = timeout;
+        if (sampleInterval > 0) {
+            wait = Math.min(wait, sampleInterval);
+        }
+        if (slowThreshold > 0) {
+            wait = Math.min(wait, slowThreshold);
+        }
+        return wait;
+    }
+
     private ArrayList<HandlerChecker> getBlockedCheckersLocked() {
         ArrayList<HandlerChecker> checkers = new ArrayList<HandlerChecker>();
         for (int i=0; i<mHandlerCheckers.size(); i++) {
@@ -426,6 +588,12 @@ public class Watchdog extends Thread {
             int debuggerWasConnected = 0;
             synchronized (this) {
                 long timeout = CHECK_INTERVAL;
+                long sampleInterval = SystemProperties.getLong(SAMPLE_INTERVAL_PROPERTY, 0);
+                if (sampleInterval > 0) {
+                    sampleInterval = Math.max(sampleInterval, MIN_SAMPLE_INTERVAL);
+                }
+                final long slowThreshold = SystemProperties.getLong(SLOW_THRESHOLD_PROPERTY,
+                        DEFAULT_SLOW_THRESHOLD);
                 // Make sure we (re)spin the checkers that have become idle within
                 // this wait-and-check interval
                 for (int i=0; i<mHandlerCheckers.size(); i++) {
@@ -447,7 +615,7 @@ public class Watchdog extends Thread {
                         debuggerWasConnected = 2;
                     }
                     try {
-                        wait(timeout);
+                        wait(getWaitTime(timeout, sampleInterval, slowThreshold));
                     } catch (InterruptedException e) {
                         Log.wtf(TAG, e);
                     }
@@ -455,6 +623,13 @@ public class Watchdog extends Thread {
                         debuggerWasConnected = 2;
                     }
                     timeout = CHECK_INTERVAL - (SystemClock.uptimeMillis() - start);
+                    maybeReportSlowCheckersLocked(slowThreshold);
+                    if (sampleInterval > 0 && timeout > 0) {
+                        // Take another sample from the checkers that have completed.
+                        for (int i=0; i<mHandlerCheckers.size(); i++) {
+                            mHandlerCheckers.get(i).scheduleCheckLocked();
+                        }
+                    }
                 }
 
                 boolean fdLimitTriggered = false;
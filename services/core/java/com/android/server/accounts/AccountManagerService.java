@@ -126,7 +126,9 @@ import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -209,10 +211,20 @@ public class AccountManagerService
         final HashMap<String, Account[]> accountCache = new LinkedHashMap<>();
         /** protected by the {@link #cacheLock} */
         private final Map<Account, Map<String, String>> userDataCache = new HashMap<>();
-        /** protected by the {@link #cacheLock} */
-        private final Map<Account, Map<String, String>> authTokenCache = new HashMap<>();
-        /** protected by the {@link #cacheLock} */
+        /**
+         * Modified only with the {@link #cacheLock} held, but read without it. The per-account
+         * maps are never changed once published; writers replace them with an updated copy.
+         */
+        private final Map<Account, Map<String, String>> authTokenCache =
+                new ConcurrentHashMap<>();
+        /** Thread safe on its own; updated with the {@link #cacheLock} held. */
         private final TokenCache accountTokenCaches = new TokenCache();
+        /** Lookups served from {@link #authTokenCache} without reading the database. */
+        final AtomicLong authTokenCacheHits = new AtomicLong();
+        /** Lookups that had to load an account's tokens from the database. */
+        final AtomicLong authTokenCacheMisses = new AtomicLong();
+        /** Total time cache misses spent waiting for {@link #dbLock}. */
+        final AtomicLong authTokenDbLockWaitNanos = new AtomicLong();
         /** protected by the {@link #cacheLock} */
         private final Map<Account, Map<String, Integer>> visibilityCache = new HashMap<>();
 
@@ -2048,7 +2060,9 @@ public class AccountManagerService
              * account.
              */
                 accounts.userDataCache.put(renamedAccount, tmpData);
-                accounts.authTokenCache.put(renamedAccount, tmpTokens);
+                if (tmpTokens != null) {
+                    accounts.authTokenCache.put(renamedAccount, tmpTokens);
+                }
                 accounts.visibilityCache.put(renamedAccount, tmpVisibility);
                 accounts.previousNameCache.put(
                         renamedAccount,
@@ -5184,6 +5198,14 @@ public class AccountManagerService
                 }
             }
 
+            fout.println();
+            fout.println("Auth token cache: hits=" + userAccounts.authTokenCacheHits.get()
+                    + " misses=" + userAccounts.authTokenCacheMisses.get()
+                    + " dbLockWaitMs="
+                    + userAccounts.authTokenDbLockWaitNanos.get() / 1000000
+                    + " cachedAccounts=" + userAccounts.authTokenCache.size());
+            userAccounts.accountTokenCaches.dump(fout);
+
             fout.println();
             mAuthenticatorCache.dump(fd, fout, args, userAccounts.userId);
 
@@ -5959,10 +5981,8 @@ public class AccountManagerService
             String tokenType,
             String callingPackage,
             byte[] pkgSigDigest) {
-        synchronized (accounts.cacheLock) {
-            return accounts.accountTokenCaches.get(
-                    account, tokenType, callingPackage, pkgSigDigest);
-        }
+        // TokenCache does its own locking, so hits don't wait for database writes.
+        return accounts.accountTokenCaches.get(account, tokenType, callingPackage, pkgSigDigest);
     }
 
     /** protected by the {@code dbLock}, {@code cacheLock} */
@@ -5971,32 +5991,40 @@ public class AccountManagerService
         Map<String, String> authTokensForAccount = accounts.authTokenCache.get(account);
         if (authTokensForAccount == null) {
             authTokensForAccount = accounts.accountsDb.findAuthTokensByAccount(account);
-            accounts.authTokenCache.put(account, authTokensForAccount);
+        } else {
+            // Lock-free readers may still be using the old map, so never modify it in place.
+            authTokensForAccount = new HashMap<>(authTokensForAccount);
         }
         if (value == null) {
             authTokensForAccount.remove(key);
         } else {
             authTokensForAccount.put(key, value);
         }
+        accounts.authTokenCache.put(account, authTokensForAccount);
     }
 
     protected String readAuthTokenInternal(UserAccounts accounts, Account account,
             String authTokenType) {
-        // Fast path - check if account is already cached
-        synchronized (accounts.cacheLock) {
-            Map<String, String> authTokensForAccount = accounts.authTokenCache.get(account);
-            if (authTokensForAccount != null) {
-                return authTokensForAccount.get(authTokenType);
-            }
+        // Fast path - check if account is already cached. This needs no lock, see authTokenCache.
+        Map<String, String> authTokensForAccount = accounts.authTokenCache.get(account);
+        if (authTokensForAccount != null) {
+            accounts.authTokenCacheHits.incrementAndGet();
+            return authTokensForAccount.get(authTokenType);
         }
         // If not cached yet - do slow path and sync with db if necessary
+        final long waitStart = SystemClock.elapsedRealtimeNanos();
         synchronized (accounts.dbLock) {
             synchronized (accounts.cacheLock) {
-                Map<String, String> authTokensForAccount = accounts.authTokenCache.get(account);
+                accounts.authTokenDbLockWaitNanos.addAndGet(
+                        SystemClock.elapsedRealtimeNanos() - waitStart);
+                authTokensForAccount = accounts.authTokenCache.get(account);
                 if (authTokensForAccount == null) {
                     // need to populate the cache for this account
+                    accounts.authTokenCacheMisses.incrementAndGet();
                     authTokensForAccount = accounts.accountsDb.findAuthTokensByAccount(account);
                     accounts.authTokenCache.put(account, authTokensForAccount);
+                } else {
+                    accounts.authTokenCacheHits.incrementAndGet();
                 }
                 return authTokensForAccount.get(authTokenType);
             }
@@ -22,14 +22,20 @@ import android.util.Pair;
 
 import com.android.internal.util.Preconditions;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * TokenCaches manage time limited authentication tokens in memory. 
+ * TokenCaches manage time limited authentication tokens in memory.
+ *
+ * <p>Thread safe. Lookups only take the {@link LruCache}'s own short lock, unless the token they
+ * find has expired; changes also hold the TokenCache itself so the evictor maps stay
+ * consistent.</p>
  */
 /* default */ class TokenCache {
 
@@ -174,7 +180,11 @@ import java.util.Objects;
      * Map associating basic token lookup information with with actual tokens (and optionally their
      * expiration times). 
      */
-    private TokenLruCache mCachedTokens = new TokenLruCache();
+    private final TokenLruCache mCachedTokens = new TokenLruCache();
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mExpired = new AtomicLong();
 
     /**
      * Caches the specified token until the specified expiryMillis. The token will be associated
@@ -186,7 +196,7 @@ import java.util.Objects;
      * @param sigDigest
      * @param expiryMillis
      */
-    public void put(
+    public synchronized void put(
             Account account,
             String token,
             String tokenType,
@@ -206,11 +216,11 @@ import java.util.Objects;
      * Evicts the specified token from the cache. This should be called as part of a token
      * invalidation workflow.
      */
-    public void remove(String accountType, String token) {
+    public synchronized void remove(String accountType, String token) {
         mCachedTokens.evict(accountType, token);
     }
 
-    public void remove(Account account) {
+    public synchronized void remove(Account account) {
         mCachedTokens.evict(account);
     }
 
@@ -222,10 +232,18 @@ import java.util.Objects;
         Value v = mCachedTokens.get(k);
         long currentTime = System.currentTimeMillis();
         if (v != null && currentTime < v.expiryEpochMillis) {
+            mHits.incrementAndGet();
             return v.token;
         } else if (v != null) {
+            mExpired.incrementAndGet();
             remove(account.type, v.token);
         }
+        mMisses.incrementAndGet();
         return null;
     }
+
+    public void dump(PrintWriter pw) {
+        pw.println("Token cache: hits=" + mHits.get() + " misses=" + mMisses.get()
+                + " expired=" + mExpired.get() + " sizeChars=" + mCachedTokens.size());
+    }
 }
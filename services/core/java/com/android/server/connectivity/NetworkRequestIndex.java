@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.util.ArrayMap;
+
+import com.android.internal.util.BitUtils;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Groups network requests by the capabilities and transports they require, so that the requests
+ * a network might satisfy can be found without checking every request against it.
+ *
+ * Only the capability, unwanted capability and transport bits are indexed. Candidates must still
+ * be checked with {@link NetworkAgentInfo#satisfies}, which also looks at the specifier, UIDs,
+ * bandwidth and signal strength.
+ *
+ * Most requests share one of a few shapes (e.g. INTERNET + NOT_RESTRICTED on any transport), so
+ * groups are kept in a list and scanned linearly.
+ *
+ * Not thread safe; ConnectivityService only uses it on its handler thread.
+ *
+ * @param <T> the value stored for each request.
+ */
+public class NetworkRequestIndex<T> {
+
+    private static class Group<T> {
+        final long capabilities;
+        final long unwantedCapabilities;
+        final long transports;
+        final ArrayMap<NetworkRequest, T> requests = new ArrayMap<>();
+
+        Group(long capabilities, long unwantedCapabilities, long transports) {
+            this.capabilities = capabilities;
+            this.unwantedCapabilities = unwantedCapabilities;
+            this.transports = transports;
+        }
+
+        boolean mayBeSatisfiedBy(long netCapabilities, long netTransports) {
+            return (netCapabilities & capabilities) == capabilities
+                    && (netCapabilities & unwantedCapabilities) == 0
+                    && (transports == 0 || (netTransports & transports) != 0);
+        }
+    }
+
+    private final ArrayList<Group<T>> mGroups = new ArrayList<>();
+    private final ArrayMap<NetworkRequest, Group<T>> mGroupForRequest = new ArrayMap<>();
+
+    private long mLookups;
+    private long mCandidates;
+    private long mSkipped;
+
+    /** Adds {@code request}, replacing any value already stored for it. */
+    public void put(NetworkRequest request, T value) {
+        remove(request);
+        final NetworkCapabilities nc = request.networkCapabilities;
+        final long capabilities = BitUtils.packBits(nc.getCapabilities());
+        final long unwanted = BitUtils.packBits(nc.getUnwantedCapabilities());
+        final long transports = BitUtils.packBits(nc.getTransportTypes());
+        Group<T> group = null;
+        for (int i = 0; i < mGroups.size(); i++) {
+            final Group<T> g = mGroups.get(i);
+            if (g.capabilities == capabilities && g.unwantedCapabilities == unwanted
+                    && g.transports == transports) {
+                group = g;
+                break;
+            }
+        }
+        if (group == null) {
+            group = new Group<>(capabilities, unwanted, transports);
+            mGroups.add(group);
+        }
+        group.requests.put(request, value);
+        mGroupForRequest.put(request, group);
+    }
+
+    public void remove(NetworkRequest request) {
+        final Group<T> group = mGroupForRequest.remove(request);
+        if (group == null) return;
+        group.requests.remove(request);
+        if (group.requests.isEmpty()) {
+            mGroups.remove(group);
+        }
+    }
+
+    public int size() {
+        return mGroupForRequest.size();
+    }
+
+    /**
+     * Adds to {@code out} the value of every request whose capability and transport bits are
+     * satisfied by {@code nc}.
+     */
+    public void getCandidates(NetworkCapabilities nc, List<T> out) {
+        final long netCapabilities = BitUtils.packBits(nc.getCapabilities());
+        final long netTransports = BitUtils.packBits(nc.getTransportTypes());
+        mLookups++;
+        for (int i = 0; i < mGroups.size(); i++) {
+            final Group<T> group = mGroups.get(i);
+            final int n = group.requests.size();
+            if (!group.mayBeSatisfiedBy(netCapabilities, netTransports)) {
+                mSkipped += n;
+                continue;
+            }
+            mCandidates += n;
+            for (int j = 0; j < n; j++) {
+                out.add(group.requests.valueAt(j));
+            }
+        }
+    }
+
+    public void dump(IndentingPrintWriter pw) {
+        pw.println("Request index: " + size() + " requests in " + mGroups.size() + " groups, "
+                + mLookups + " lookups, " + mCandidates + " candidates, "
+                + mSkipped + " skipped");
+    }
+}
@@ -40,6 +40,7 @@ import android.os.Message;
 import android.os.Parcel;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.util.*;
 
@@ -56,6 +57,7 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -136,6 +138,10 @@ public class SyncStorageEngine extends Handler {
     private static final int MSG_WRITE_STATISTICS = 2;
     private static final long WRITE_STATISTICS_DELAY = 1000*60*30; // 1/2 hour
 
+    // Delay for changes that should reach disk soon (e.g. an authority's first failure), so that
+    // a burst of them from many authorities is written out once.
+    private static final long WRITE_SOON_DELAY = 1000*10; // 10 seconds
+
     private static final boolean SYNC_ENABLED_DEFAULT = false;
 
     // the version of the accounts xml file format
@@ -423,6 +429,15 @@ public class SyncStorageEngine extends Handler {
 
     // We keep 4 weeks of stats.
     private final DayStats[] mDayStats = new DayStats[7*4];
+    // The statistics are only needed once a sync finishes or they are dumped, so they are read
+    // on first use rather than at boot.
+    private boolean mStatisticsLoaded = false;
+    private boolean mStatisticsDirty = false;
+
+    // Uptime at which the scheduled MSG_WRITE_STATUS / MSG_WRITE_STATISTICS will be handled.
+    private long mStatusWriteUptime;
+    private long mStatisticsWriteUptime;
+
     private final Calendar mCal;
     private int mYear;
     private int mYearInDays;
@@ -483,11 +498,10 @@ public class SyncStorageEngine extends Handler {
 
         readAccountInfoLocked();
         readStatusLocked();
-        readStatisticsLocked();
         readAndDeleteLegacyAccountInfoLocked();
         writeAccountInfoLocked();
-        writeStatusLocked();
-        writeStatisticsLocked();
+        // Drops the status of authorities that no longer exist; it doesn't need to hold up boot.
+        scheduleWriteStatusLocked(WRITE_SOON_DELAY);
     }
 
     public static SyncStorageEngine newTestInstance(Context context) {
@@ -1006,8 +1020,7 @@ public class SyncStorageEngine extends Handler {
                     }
                 }
                 writeAccountInfoLocked();
-                writeStatusLocked();
-                writeStatisticsLocked();
+                scheduleWriteStatusLocked(WRITE_SOON_DELAY);
             }
         }
     }
@@ -1150,6 +1163,8 @@ public class SyncStorageEngine extends Handler {
             }
 
             boolean writeStatisticsNow = false;
+            ensureStatisticsLoadedLocked();
+            mStatisticsDirty = true;
             int day = getCurrentDayLocked();
             if (mDayStats[0] == null) {
                 mDayStats[0] = new DayStats(day);
@@ -1200,18 +1215,9 @@ public class SyncStorageEngine extends Handler {
 
             status.addEvent(event.toString());
 
-            if (writeStatusNow) {
-                writeStatusLocked();
-            } else if (!hasMessages(MSG_WRITE_STATUS)) {
-                sendMessageDelayed(obtainMessage(MSG_WRITE_STATUS),
-                        WRITE_STATUS_DELAY);
-            }
-            if (writeStatisticsNow) {
-                writeStatisticsLocked();
-            } else if (!hasMessages(MSG_WRITE_STATISTICS)) {
-                sendMessageDelayed(obtainMessage(MSG_WRITE_STATISTICS),
-                        WRITE_STATISTICS_DELAY);
-            }
+            scheduleWriteStatusLocked(writeStatusNow ? WRITE_SOON_DELAY : WRITE_STATUS_DELAY);
+            scheduleWriteStatisticsLocked(
+                    writeStatisticsNow ? WRITE_SOON_DELAY : WRITE_STATISTICS_DELAY);
         }
 
         reportChange(ContentResolver.SYNC_OBSERVER_TYPE_STATUS);
@@ -1340,6 +1346,7 @@ public class SyncStorageEngine extends Handler {
      */
     public DayStats[] getDayStatistics() {
         synchronized (mAuthorities) {
+            ensureStatisticsLoadedLocked();
             DayStats[] ds = new DayStats[mDayStats.length];
             System.arraycopy(mDayStats, 0, ds, 0, ds.length);
             return ds;
@@ -1494,14 +1501,15 @@ public class SyncStorageEngine extends Handler {
             mServices.clear();
             mSyncStatus.clear();
             mSyncHistory.clear();
+            Arrays.fill(mDayStats, null);
+            mStatisticsLoaded = false;
+            mStatisticsDirty = false;
 
             readAccountInfoLocked();
             readStatusLocked();
-            readStatisticsLocked();
             readAndDeleteLegacyAccountInfoLocked();
             writeAccountInfoLocked();
             writeStatusLocked();
-            writeStatisticsLocked();
         }
     }
 
@@ -2092,6 +2100,22 @@ public class SyncStorageEngine extends Handler {
         }
     }
 
+    /**
+     * Schedules a write of the sync status file in {@code delayMillis}, unless one is already
+     * scheduled sooner.  All changes made before it happens are written together.
+     */
+    private void scheduleWriteStatusLocked(long delayMillis) {
+        final long when = SystemClock.uptimeMillis() + delayMillis;
+        if (hasMessages(MSG_WRITE_STATUS)) {
+            if (mStatusWriteUptime <= when) {
+                return;
+            }
+            removeMessages(MSG_WRITE_STATUS);
+        }
+        sendMessageAtTime(obtainMessage(MSG_WRITE_STATUS), when);
+        mStatusWriteUptime = when;
+    }
+
     /**
      * Write all sync status to the sync status file.
      */
@@ -2162,6 +2186,14 @@ public class SyncStorageEngine extends Handler {
     public static final int STATISTICS_FILE_ITEM_OLD = 100;
     public static final int STATISTICS_FILE_ITEM = 101;
 
+    /** Reads the sync statistics if that hasn't been done since boot. */
+    private void ensureStatisticsLoadedLocked() {
+        if (!mStatisticsLoaded) {
+            readStatisticsLocked();
+            mStatisticsLoaded = true;
+        }
+    }
+
     /**
      * Read all sync statistics back in to the initial engine state.
      */
@@ -2201,17 +2233,39 @@ public class SyncStorageEngine extends Handler {
     }
 
     /**
-     * Write all sync statistics to the sync status file.
+     * Schedules a write of the sync statistics file in {@code delayMillis}, unless one is already
+     * scheduled sooner.
      */
-    private void writeStatisticsLocked() {
-        if (Log.isLoggable(TAG_FILE, Log.VERBOSE)) {
-            Slog.v(TAG, "Writing new " + mStatisticsFile.getBaseFile());
+    private void scheduleWriteStatisticsLocked(long delayMillis) {
+        final long when = SystemClock.uptimeMillis() + delayMillis;
+        if (hasMessages(MSG_WRITE_STATISTICS)) {
+            if (mStatisticsWriteUptime <= when) {
+                return;
+            }
+            removeMessages(MSG_WRITE_STATISTICS);
         }
+        sendMessageAtTime(obtainMessage(MSG_WRITE_STATISTICS), when);
+        mStatisticsWriteUptime = when;
+    }
 
+    /**
+     * Write all sync statistics to the sync status file, if they have changed since they were
+     * read or last written.
+     */
+    private void writeStatisticsLocked() {
         // The file is being written, so we don't need to have a scheduled
         // write until the next change.
         removeMessages(MSG_WRITE_STATISTICS);
 
+        if (!mStatisticsDirty) {
+            return;
+        }
+        mStatisticsDirty = false;
+
+        if (Log.isLoggable(TAG_FILE, Log.VERBOSE)) {
+            Slog.v(TAG, "Writing new " + mStatisticsFile.getBaseFile());
+        }
+
         FileOutputStream fos = null;
         try {
             fos = mStatisticsFile.startWrite();
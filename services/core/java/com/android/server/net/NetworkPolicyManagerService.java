@@ -150,6 +150,7 @@ import android.os.RemoteException;
 import android.os.ResultReceiver;
 import android.os.ServiceManager;
 import android.os.ShellCallback;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.Trace;
 import android.os.UserHandle;
@@ -324,6 +325,12 @@ public class NetworkPolicyManagerService extends INetworkPolicyManager.Stub {
 
     private static final long TIME_CACHE_MAX_AGE = DAY_IN_MILLIS;
 
+    /**
+     * Chain updates changing at most this many UID rules are applied one rule at a time; larger
+     * ones replace the whole chain with a single netd command.
+     */
+    private static final int MAX_INCREMENTAL_FIREWALL_RULES = 10;
+
     private static final int MSG_RULES_CHANGED = 1;
     private static final int MSG_METERED_IFACES_CHANGED = 2;
     private static final int MSG_LIMIT_REACHED = 5;
@@ -398,6 +405,22 @@ public class NetworkPolicyManagerService extends INetworkPolicyManager.Stub {
     @GuardedBy("mUidRulesFirstLock")
     final SparseBooleanArray mFirewallChainStates = new SparseBooleanArray();
 
+    /** Firewall chain updates that found no UID rule to change. */
+    @GuardedBy("mUidRulesFirstLock")
+    private long mFirewallChainUpdatesUnchanged;
+    /** Firewall chain updates applied as a few single-UID rule changes. */
+    @GuardedBy("mUidRulesFirstLock")
+    private long mFirewallChainUpdatesIncremental;
+    /** Firewall chain updates applied by replacing the whole chain. */
+    @GuardedBy("mUidRulesFirstLock")
+    private long mFirewallChainUpdatesReplaced;
+    @GuardedBy("mUidRulesFirstLock")
+    private long mFirewallRulesChanged;
+    @GuardedBy("mUidRulesFirstLock")
+    private long mFirewallChainUpdateTotalNanos;
+    @GuardedBy("mUidRulesFirstLock")
+    private long mFirewallChainUpdateMaxNanos;
+
     /**
      * UIDs that have been white-listed to always be able to have network access
      * in power save mode, except device idle (doze) still applies.
@@ -2877,6 +2900,13 @@ public class NetworkPolicyManagerService extends INetworkPolicyManager.Stub {
                 fout.print("Restrict power: "); fout.println(mRestrictPower);
                 fout.print("Device idle: "); fout.println(mDeviceIdleMode);
                 fout.print("Metered ifaces: "); fout.println(String.valueOf(mMeteredIfaces));
+                fout.print("Firewall chain updates: unchanged=");
+                fout.print(mFirewallChainUpdatesUnchanged);
+                fout.print(" incremental="); fout.print(mFirewallChainUpdatesIncremental);
+                fout.print(" replaced="); fout.print(mFirewallChainUpdatesReplaced);
+                fout.print(" rulesChanged="); fout.print(mFirewallRulesChanged);
+                fout.print(" totalMs="); fout.print(mFirewallChainUpdateTotalNanos / 1000000);
+                fout.print(" maxMs="); fout.println(mFirewallChainUpdateMaxNanos / 1000000);
 
                 fout.println();
                 fout.println("Network policies:");
@@ -3137,8 +3167,7 @@ public class NetworkPolicyManagerService extends INetworkPolicyManager.Stub {
     void updateRulesForPowerSaveUL() {
         Trace.traceBegin(Trace.TRACE_TAG_NETWORK, "updateRulesForPowerSaveUL");
         try {
-            updateRulesForWhitelistedPowerSaveUL(mRestrictPower, FIREWALL_CHAIN_POWERSAVE,
-                    mUidFirewallPowerSaveRules);
+            updateRulesForWhitelistedPowerSaveUL(mRestrictPower, FIREWALL_CHAIN_POWERSAVE);
         } finally {
             Trace.traceEnd(Trace.TRACE_TAG_NETWORK);
         }
@@ -3151,8 +3180,7 @@ public class NetworkPolicyManagerService extends INetworkPolicyManager.Stub {
     void updateRulesForDeviceIdleUL() {
         Trace.traceBegin(Trace.TRACE_TAG_NETWORK, "updateRulesForDeviceIdleUL");
         try {
-            updateRulesForWhitelistedPowerSaveUL(mDeviceIdleMode, FIREWALL_CHAIN_DOZABLE,
-                    mUidFirewallDozableRules);
+            updateRulesForWhitelistedPowerSaveUL(mDeviceIdleMode, FIREWALL_CHAIN_DOZABLE);
         } finally {
             Trace.traceEnd(Trace.TRACE_TAG_NETWORK);
         }
@@ -3164,13 +3192,11 @@ public class NetworkPolicyManagerService extends INetworkPolicyManager.Stub {
 
     // NOTE: since both fw_dozable and fw_powersave uses the same map
     // (mPowerSaveTempWhitelistAppIds) for whitelisting, we can reuse their logic in this method.
-    private void updateRulesForWhitelistedPowerSaveUL(boolean enabled, int chain,
-            SparseIntArray rules) {
+    private void updateRulesForWhitelistedPowerSaveUL(boolean enabled, int chain) {
         if (enabled) {
             // Sync the whitelists before enabling the chain.  We don't care about the rules if
             // we are disabling the chain.
-            final SparseIntArray uidRules = rules;
-            uidRules.clear();
+            final SparseIntArray uidRules = new SparseIntArray();
             final List<UserInfo> users = mUserManager.getUsers();
             for (int ui = users.size() - 1; ui >= 0; ui--) {
                 UserInfo user = users.get(ui);
@@ -3235,8 +3261,7 @@ public class NetworkPolicyManagerService extends INetworkPolicyManager.Stub {
     void updateRulesForAppIdleUL() {
         Trace.traceBegin(Trace.TRACE_TAG_NETWORK, "updateRulesForAppIdleUL");
         try {
-            final SparseIntArray uidRules = mUidFirewallStandbyRules;
-            uidRules.clear();
+            final SparseIntArray uidRules = new SparseIntArray();
 
             // Fully update the app idle firewall chain.
             final List<UserInfo> users = mUserManager.getUsers();
@@ -4121,22 +4146,93 @@ public class NetworkPolicyManagerService extends INetworkPolicyManager.Stub {
      * Set uid rules on a particular firewall chain. This is going to synchronize the rules given
      * here to netd.  It will clean up dead rules and make sure the target chain only contains rules
      * specified here.
+     *
+     * Only rules that differ from the ones last set on the chain are sent: nothing if none
+     * changed, single-UID updates if a few did, and otherwise one command replacing the chain.
      */
     private void setUidFirewallRulesUL(int chain, SparseIntArray uidRules) {
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+        final SparseIntArray currentRules = getUidFirewallRulesUL(chain);
+        final SparseIntArray changedRules = diffUidFirewallRules(currentRules, uidRules);
+        final int changed = changedRules.size();
         try {
-            int size = uidRules.size();
-            int[] uids = new int[size];
-            int[] rules = new int[size];
-            for(int index = size - 1; index >= 0; --index) {
-                uids[index] = uidRules.keyAt(index);
-                rules[index] = uidRules.valueAt(index);
-            }
-            mNetworkManager.setFirewallUidRules(chain, uids, rules);
+            if (changed == 0) {
+                mFirewallChainUpdatesUnchanged++;
+            } else if (changed <= MAX_INCREMENTAL_FIREWALL_RULES) {
+                for (int i = 0; i < changed; i++) {
+                    mNetworkManager.setFirewallUidRule(chain, changedRules.keyAt(i),
+                            changedRules.valueAt(i));
+                }
+                mFirewallChainUpdatesIncremental++;
+            } else {
+                int size = uidRules.size();
+                int[] uids = new int[size];
+                int[] rules = new int[size];
+                for(int index = size - 1; index >= 0; --index) {
+                    uids[index] = uidRules.keyAt(index);
+                    rules[index] = uidRules.valueAt(index);
+                }
+                mNetworkManager.setFirewallUidRules(chain, uids, rules);
+                mFirewallChainUpdatesReplaced++;
+            }
         } catch (IllegalStateException e) {
             Log.wtf(TAG, "problem setting firewall uid rules", e);
         } catch (RemoteException e) {
             // ignored; service lives in system_server
         }
+        if (currentRules != null) {
+            currentRules.clear();
+            for (int i = 0; i < uidRules.size(); i++) {
+                currentRules.put(uidRules.keyAt(i), uidRules.valueAt(i));
+            }
+        }
+        mFirewallRulesChanged += changed;
+        final long nanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+        mFirewallChainUpdateTotalNanos += nanos;
+        mFirewallChainUpdateMaxNanos = Math.max(mFirewallChainUpdateMaxNanos, nanos);
+    }
+
+    /**
+     * Returns the UID rules that must change to turn {@code currentRules} into {@code newRules},
+     * treating a missing rule as {@link NetworkPolicyManager#FIREWALL_RULE_DEFAULT}. If
+     * {@code currentRules} is {@code null} every rule in {@code newRules} is returned.
+     */
+    @VisibleForTesting
+    static SparseIntArray diffUidFirewallRules(@Nullable SparseIntArray currentRules,
+            SparseIntArray newRules) {
+        final SparseIntArray changedRules = new SparseIntArray();
+        for (int i = 0; i < newRules.size(); i++) {
+            final int uid = newRules.keyAt(i);
+            final int rule = newRules.valueAt(i);
+            final int oldRule = currentRules != null
+                    ? currentRules.get(uid, FIREWALL_RULE_DEFAULT) : FIREWALL_RULE_DEFAULT;
+            if (currentRules == null || rule != oldRule) {
+                changedRules.put(uid, rule);
+            }
+        }
+        if (currentRules != null) {
+            for (int i = 0; i < currentRules.size(); i++) {
+                final int uid = currentRules.keyAt(i);
+                if (currentRules.valueAt(i) != FIREWALL_RULE_DEFAULT
+                        && newRules.get(uid, FIREWALL_RULE_DEFAULT) == FIREWALL_RULE_DEFAULT) {
+                    changedRules.put(uid, FIREWALL_RULE_DEFAULT);
+                }
+            }
+        }
+        return changedRules;
+    }
+
+    private @Nullable SparseIntArray getUidFirewallRulesUL(int chain) {
+        switch (chain) {
+            case FIREWALL_CHAIN_DOZABLE:
+                return mUidFirewallDozableRules;
+            case FIREWALL_CHAIN_STANDBY:
+                return mUidFirewallStandbyRules;
+            case FIREWALL_CHAIN_POWERSAVE:
+                return mUidFirewallPowerSaveRules;
+            default:
+                return null;
+        }
     }
 
     /**
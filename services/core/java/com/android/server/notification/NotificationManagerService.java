@@ -326,6 +326,9 @@ public class NotificationManagerService extends SystemService {
     final ArrayList<NotificationRecord> mEnqueuedNotifications = new ArrayList<>();
     @GuardedBy("mNotificationLock")
     final ArrayMap<Integer, ArrayMap<String, String>> mAutobundledSummaries = new ArrayMap<>();
+    @GuardedBy("mNotificationLock")
+    final ArrayMap<ManagedServiceInfo, RankingUpdateTracker> mRankingUpdateTrackers =
+            new ArrayMap<>();
     final ArrayList<ToastRecord> mToastQueue = new ArrayList<>();
     final ArrayMap<String, NotificationRecord> mSummaryByGroupKey = new ArrayMap<>();
 
@@ -2473,6 +2476,15 @@ public class NotificationManagerService extends SystemService {
             }
         }
 
+        @Override
+        public void requestFullRankingUpdateFromListener(INotificationListener token) {
+            synchronized (mNotificationLock) {
+                final ManagedServiceInfo info = mListeners.checkServiceTokenLocked(token);
+                if (info == null) return;
+                mListeners.notifyFullRankingUpdateLocked(info);
+            }
+        }
+
         @Override
         public int getZenMode() {
             return mZenModeHelper.getZenMode();
@@ -3332,6 +3344,10 @@ public class NotificationManagerService extends SystemService {
 
                 pw.println("\n  Notification listeners:");
                 mListeners.dump(pw, filter);
+                for (int i = 0; i < mRankingUpdateTrackers.size(); i++) {
+                    pw.print("    "); pw.print(mRankingUpdateTrackers.keyAt(i).component);
+                    mRankingUpdateTrackers.valueAt(i).dump(pw, " ");
+                }
                 pw.print("    mListenerHints: "); pw.println(mListenerHints);
                 pw.print("    mListenersDisablingEffects: (");
                 N = mListenersDisablingEffects.size();
@@ -5217,58 +5233,32 @@ public class NotificationManagerService extends SystemService {
 
     /**
      * Generates a NotificationRankingUpdate from 'sbns', considering only
-     * notifications visible to the given listener.
+     * notifications visible to the given listener. Unless {@code full} is
+     * set, the update only carries the entries that changed since the last
+     * update sent to the listener.
      */
     @GuardedBy("mNotificationLock")
     private NotificationRankingUpdate makeRankingUpdateLocked(ManagedServiceInfo info) {
+        return makeRankingUpdateLocked(info, false);
+    }
+
+    @GuardedBy("mNotificationLock")
+    private NotificationRankingUpdate makeRankingUpdateLocked(ManagedServiceInfo info,
+            boolean full) {
         final int N = mNotificationList.size();
-        ArrayList<String> keys = new ArrayList<String>(N);
-        ArrayList<String> interceptedKeys = new ArrayList<String>(N);
-        ArrayList<Integer> importance = new ArrayList<>(N);
-        Bundle overrideGroupKeys = new Bundle();
-        Bundle visibilityOverrides = new Bundle();
-        Bundle suppressedVisualEffects = new Bundle();
-        Bundle explanation = new Bundle();
-        Bundle channels = new Bundle();
-        Bundle overridePeople = new Bundle();
-        Bundle snoozeCriteria = new Bundle();
-        Bundle showBadge = new Bundle();
+        final ArrayList<NotificationRecord> records = new ArrayList<>(N);
         for (int i = 0; i < N; i++) {
             NotificationRecord record = mNotificationList.get(i);
-            if (!isVisibleToListener(record.sbn, info)) {
-                continue;
-            }
-            final String key = record.sbn.getKey();
-            keys.add(key);
-            importance.add(record.getImportance());
-            if (record.getImportanceExplanation() != null) {
-                explanation.putCharSequence(key, record.getImportanceExplanation());
-            }
-            if (record.isIntercepted()) {
-                interceptedKeys.add(key);
-
-            }
-            suppressedVisualEffects.putInt(key, record.getSuppressedVisualEffects());
-            if (record.getPackageVisibilityOverride()
-                    != NotificationListenerService.Ranking.VISIBILITY_NO_OVERRIDE) {
-                visibilityOverrides.putInt(key, record.getPackageVisibilityOverride());
+            if (isVisibleToListener(record.sbn, info)) {
+                records.add(record);
             }
-            overrideGroupKeys.putString(key, record.sbn.getOverrideGroupKey());
-            channels.putParcelable(key, record.getChannel());
-            overridePeople.putStringArrayList(key, record.getPeopleOverride());
-            snoozeCriteria.putParcelableArrayList(key, record.getSnoozeCriteria());
-            showBadge.putBoolean(key, record.canShowBadge());
         }
-        final int M = keys.size();
-        String[] keysAr = keys.toArray(new String[M]);
-        String[] interceptedKeysAr = interceptedKeys.toArray(new String[interceptedKeys.size()]);
-        int[] importanceAr = new int[M];
-        for (int i = 0; i < M; i++) {
-            importanceAr[i] = importance.get(i);
+        RankingUpdateTracker tracker = mRankingUpdateTrackers.get(info);
+        if (tracker == null) {
+            tracker = new RankingUpdateTracker();
+            mRankingUpdateTrackers.put(info, tracker);
         }
-        return new NotificationRankingUpdate(keysAr, interceptedKeysAr, visibilityOverrides,
-                suppressedVisualEffects, importanceAr, explanation, overrideGroupKeys,
-                channels, overridePeople, snoozeCriteria, showBadge);
+        return tracker.makeUpdate(records, full);
     }
 
     boolean hasCompanionDevice(ManagedServiceInfo info) {
@@ -5494,7 +5484,7 @@ public class NotificationManagerService extends SystemService {
             final INotificationListener listener = (INotificationListener) info.service;
             final NotificationRankingUpdate update;
             synchronized (mNotificationLock) {
-                update = makeRankingUpdateLocked(info);
+                update = makeRankingUpdateLocked(info, true /* full */);
             }
             try {
                 listener.onListenerConnected(update);
@@ -5511,6 +5501,7 @@ public class NotificationManagerService extends SystemService {
                 updateEffectsSuppressorLocked();
             }
             mLightTrimListeners.remove(removed);
+            mRankingUpdateTrackers.remove(removed);
         }
 
         @GuardedBy("mNotificationLock")
@@ -5611,6 +5602,15 @@ public class NotificationManagerService extends SystemService {
             }
         }
 
+        /**
+         * asynchronously send one listener a full ranking update, after it lost an update
+         */
+        @GuardedBy("mNotificationLock")
+        public void notifyFullRankingUpdateLocked(final ManagedServiceInfo info) {
+            final NotificationRankingUpdate update = makeRankingUpdateLocked(info, true /* full */);
+            mHandler.post(() -> notifyRankingUpdate(info, update));
+        }
+
         @GuardedBy("mNotificationLock")
         public void notifyListenerHintsChangedLocked(final int hints) {
             for (final ManagedServiceInfo serviceInfo : getServices()) {
@@ -5693,6 +5693,8 @@ public class NotificationManagerService extends SystemService {
         private void notifyRemoved(ManagedServiceInfo info, StatusBarNotification sbn,
                 NotificationRankingUpdate rankingUpdate, int reason) {
             if (!info.enabledAndUserMatches(sbn.getUserId())) {
+                // Later updates may be deltas against this one.
+                notifyRankingUpdate(info, rankingUpdate);
                 return;
             }
             final INotificationListener listener = (INotificationListener) info.service;
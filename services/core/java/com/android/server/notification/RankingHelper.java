@@ -54,6 +54,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.List;
 import java.util.Map;
@@ -87,6 +88,8 @@ public class RankingHelper implements RankingConfig {
     private final NotificationSignalExtractor[] mSignalExtractors;
     private final NotificationComparator mPreliminaryComparator;
     private final GlobalSortKeyComparator mFinalComparator = new GlobalSortKeyComparator();
+    // Only used while holding mProxyByGroupTmp.
+    private final StringBuilder mSortKeyTmp = new StringBuilder();
 
     private final ArrayMap<String, Record> mRecords = new ArrayMap<>(); // pkg|uid => Record
     private final ArrayMap<String, NotificationRecord> mProxyByGroupTmp = new ArrayMap<>();
@@ -420,13 +423,9 @@ public class RankingHelper implements RankingConfig {
 
     public void sort(ArrayList<NotificationRecord> notificationList) {
         final int N = notificationList.size();
-        // clear global sort keys
-        for (int i = N - 1; i >= 0; i--) {
-            notificationList.get(i).setGlobalSortKey(null);
-        }
 
         // rank each record individually
-        Collections.sort(notificationList, mPreliminaryComparator);
+        sortIfNeeded(notificationList, mPreliminaryComparator);
 
         synchronized (mProxyByGroupTmp) {
             // record individual ranking result and nominate proxies for each group
@@ -441,41 +440,72 @@ public class RankingHelper implements RankingConfig {
             }
             // assign global sort key:
             //   is_recently_intrusive:group_rank:is_group_summary:group_sort_key:rank
+            final StringBuilder sortKey = mSortKeyTmp;
             for (int i = 0; i < N; i++) {
                 final NotificationRecord record = notificationList.get(i);
                 NotificationRecord groupProxy = mProxyByGroupTmp.get(record.getGroupKey());
                 String groupSortKey = record.getNotification().getSortKey();
 
+                sortKey.setLength(0);
+                sortKey.append("intrsv=").append(record.isRecentlyIntrusive()
+                        && record.getImportance() > NotificationManager.IMPORTANCE_MIN
+                        ? '0' : '1');
+                sortKey.append(":grnk=0x");
+                appendHex(sortKey, groupProxy.getAuthoritativeRank());
+                sortKey.append(":gsmry=")
+                        .append(record.getNotification().isGroupSummary() ? '0' : '1');
+
                 // We need to make sure the developer provided group sort key (gsk) is handled
                 // correctly:
                 //   gsk="" < gsk=non-null-string < gsk=null
                 //
                 // We enforce this by using different prefixes for these three cases.
-                String groupSortKeyPortion;
                 if (groupSortKey == null) {
-                    groupSortKeyPortion = "nsk";
+                    sortKey.append(":nsk");
                 } else if (groupSortKey.equals("")) {
-                    groupSortKeyPortion = "esk";
+                    sortKey.append(":esk");
                 } else {
-                    groupSortKeyPortion = "gsk=" + groupSortKey;
+                    sortKey.append(":gsk=").append(groupSortKey);
                 }
+                sortKey.append(":rnk=0x");
+                appendHex(sortKey, record.getAuthoritativeRank());
 
-                boolean isGroupSummary = record.getNotification().isGroupSummary();
-                record.setGlobalSortKey(
-                        String.format("intrsv=%c:grnk=0x%04x:gsmry=%c:%s:rnk=0x%04x",
-                        record.isRecentlyIntrusive()
-                                && record.getImportance() > NotificationManager.IMPORTANCE_MIN
-                                ? '0' : '1',
-                        groupProxy.getAuthoritativeRank(),
-                        isGroupSummary ? '0' : '1',
-                        groupSortKeyPortion,
-                        record.getAuthoritativeRank()));
+                // Records whose position didn't move keep their existing key.
+                final String existingKey = record.getGlobalSortKey();
+                if (existingKey == null || !existingKey.contentEquals(sortKey)) {
+                    record.setGlobalSortKey(sortKey.toString());
+                }
             }
             mProxyByGroupTmp.clear();
         }
 
         // Do a second ranking pass, using group proxies
-        Collections.sort(notificationList, mFinalComparator);
+        sortIfNeeded(notificationList, mFinalComparator);
+    }
+
+    /**
+     * Sorts the list unless it is already in order, which is the common case
+     * when a single notification is updated without changing its rank.
+     */
+    private static void sortIfNeeded(ArrayList<NotificationRecord> notificationList,
+            Comparator<NotificationRecord> comparator) {
+        for (int i = notificationList.size() - 1; i > 0; i--) {
+            if (comparator.compare(notificationList.get(i - 1), notificationList.get(i)) > 0) {
+                Collections.sort(notificationList, comparator);
+                return;
+            }
+        }
+    }
+
+    /** Appends {@code value} in lower-case hex, zero padded to at least four digits. */
+    private static void appendHex(StringBuilder sb, int value) {
+        if ((value & 0xffff) != value) {
+            sb.append(Integer.toHexString(value));
+            return;
+        }
+        for (int shift = 12; shift >= 0; shift -= 4) {
+            sb.append(Character.forDigit((value >> shift) & 0xf, 16));
+        }
     }
 
     public int indexOf(ArrayList<NotificationRecord> notificationList, NotificationRecord target) {
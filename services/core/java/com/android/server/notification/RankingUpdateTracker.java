@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.notification;
+
+import android.app.NotificationChannel;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.service.notification.NotificationListenerService;
+import android.service.notification.NotificationRankingUpdate;
+import android.service.notification.SnoozeCriterion;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Builds the {@link NotificationRankingUpdate}s sent to one notification
+ * listener, remembering what was last sent so that most updates only carry
+ * the entries of notifications whose ranking information changed. Every
+ * {@link #FULL_UPDATE_INTERVAL}th update is sent in full regardless.
+ *
+ * <p>Not thread safe; NotificationManagerService calls it with
+ * {@code mNotificationLock} held.</p>
+ */
+final class RankingUpdateTracker {
+    static final int FULL_UPDATE_INTERVAL = 20;
+
+    /**
+     * Versions must keep increasing across trackers, since a listener that
+     * is rebound keeps its last ranking map.
+     */
+    private static long sNextVersion = 1;
+
+    private ArrayMap<String, Entry> mSent = new ArrayMap<>();
+    private long mLastVersion;
+    private int mUpdatesSinceFull;
+
+    private long mFullUpdates;
+    private long mDeltaUpdates;
+    private long mEntriesSent;
+    private long mEntriesSkipped;
+
+    /** The ranking information of one notification as last sent. */
+    private static final class Entry {
+        final int mSuppressedVisualEffects;
+        final int mVisibilityOverride;
+        final CharSequence mExplanation;
+        final String mOverrideGroupKey;
+        // Channels are updated in place, so this is a snapshot of the channel as sent rather
+        // than the record's channel itself.
+        final NotificationChannel mChannel;
+        final ArrayList<String> mPeople;
+        final ArrayList<SnoozeCriterion> mSnoozeCriteria;
+        final boolean mShowBadge;
+
+        /**
+         * @param previous The entry last sent for the same notification, whose channel
+         *         snapshot is reused while the channel is unchanged.
+         */
+        Entry(NotificationRecord record, Entry previous) {
+            mSuppressedVisualEffects = record.getSuppressedVisualEffects();
+            mVisibilityOverride = record.getPackageVisibilityOverride();
+            mExplanation = record.getImportanceExplanation();
+            mOverrideGroupKey = record.sbn.getOverrideGroupKey();
+            final NotificationChannel channel = record.getChannel();
+            if (previous != null && Objects.equals(channel, previous.mChannel)) {
+                mChannel = previous.mChannel;
+            } else {
+                mChannel = copy(channel);
+            }
+            mPeople = copy(record.getPeopleOverride());
+            mSnoozeCriteria = copy(record.getSnoozeCriteria());
+            mShowBadge = record.canShowBadge();
+        }
+
+        boolean matches(Entry other) {
+            return mSuppressedVisualEffects == other.mSuppressedVisualEffects
+                    && mVisibilityOverride == other.mVisibilityOverride
+                    && TextUtils.equals(mExplanation, other.mExplanation)
+                    && Objects.equals(mOverrideGroupKey, other.mOverrideGroupKey)
+                    && Objects.equals(mChannel, other.mChannel)
+                    && Objects.equals(mPeople, other.mPeople)
+                    && Objects.equals(mSnoozeCriteria, other.mSnoozeCriteria)
+                    && mShowBadge == other.mShowBadge;
+        }
+
+        private static <T> ArrayList<T> copy(ArrayList<T> list) {
+            return list != null ? new ArrayList<>(list) : null;
+        }
+
+        private static NotificationChannel copy(NotificationChannel channel) {
+            if (channel == null) {
+                return null;
+            }
+            final Parcel parcel = Parcel.obtain();
+            try {
+                channel.writeToParcel(parcel, 0);
+                parcel.setDataPosition(0);
+                return NotificationChannel.CREATOR.createFromParcel(parcel);
+            } finally {
+                parcel.recycle();
+            }
+        }
+    }
+
+    /**
+     * Builds the next update for the listener.
+     *
+     * @param records The notifications visible to the listener, in ranking order.
+     * @param full Whether to send a full update, as on connection.
+     */
+    NotificationRankingUpdate makeUpdate(List<NotificationRecord> records, boolean full) {
+        full |= mLastVersion == 0 || ++mUpdatesSinceFull >= FULL_UPDATE_INTERVAL;
+
+        final int N = records.size();
+        final ArrayMap<String, Entry> sent = new ArrayMap<>(N);
+        final String[] keys = new String[N];
+        final ArrayList<String> changedKeys = new ArrayList<>();
+        final ArrayList<String> interceptedKeys = new ArrayList<>();
+        final int[] importance = new int[N];
+        final Bundle overrideGroupKeys = new Bundle();
+        final Bundle visibilityOverrides = new Bundle();
+        final Bundle suppressedVisualEffects = new Bundle();
+        final Bundle explanation = new Bundle();
+        final Bundle channels = new Bundle();
+        final Bundle overridePeople = new Bundle();
+        final Bundle snoozeCriteria = new Bundle();
+        final Bundle showBadge = new Bundle();
+        for (int i = 0; i < N; i++) {
+            final NotificationRecord record = records.get(i);
+            final String key = record.sbn.getKey();
+            keys[i] = key;
+            importance[i] = record.getImportance();
+            if (record.isIntercepted()) {
+                interceptedKeys.add(key);
+            }
+
+            final Entry previous = mSent.get(key);
+            final Entry entry = new Entry(record, previous);
+            sent.put(key, entry);
+            if (!full && previous != null && previous.matches(entry)) {
+                mEntriesSkipped++;
+                continue;
+            }
+            mEntriesSent++;
+            changedKeys.add(key);
+
+            if (entry.mExplanation != null) {
+                explanation.putCharSequence(key, entry.mExplanation);
+            }
+            suppressedVisualEffects.putInt(key, entry.mSuppressedVisualEffects);
+            if (entry.mVisibilityOverride
+                    != NotificationListenerService.Ranking.VISIBILITY_NO_OVERRIDE) {
+                visibilityOverrides.putInt(key, entry.mVisibilityOverride);
+            }
+            overrideGroupKeys.putString(key, entry.mOverrideGroupKey);
+            channels.putParcelable(key, entry.mChannel);
+            overridePeople.putStringArrayList(key, entry.mPeople);
+            snoozeCriteria.putParcelableArrayList(key, entry.mSnoozeCriteria);
+            showBadge.putBoolean(key, entry.mShowBadge);
+        }
+        mSent = sent;
+
+        final long version = sNextVersion++;
+        final long baseVersion = full ? 0 : mLastVersion;
+        mLastVersion = version;
+        if (full) {
+            mUpdatesSinceFull = 0;
+            mFullUpdates++;
+        } else {
+            mDeltaUpdates++;
+        }
+        return new NotificationRankingUpdate(version, baseVersion,
+                changedKeys.toArray(new String[changedKeys.size()]), keys,
+                interceptedKeys.toArray(new String[interceptedKeys.size()]),
+                visibilityOverrides, suppressedVisualEffects, importance, explanation,
+                overrideGroupKeys, channels, overridePeople, snoozeCriteria, showBadge);
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix); pw.print("ranking updates: full="); pw.print(mFullUpdates);
+        pw.print(" delta="); pw.print(mDeltaUpdates);
+        pw.print(" entriesSent="); pw.print(mEntriesSent);
+        pw.print(" entriesSkipped="); pw.println(mEntriesSkipped);
+    }
+}
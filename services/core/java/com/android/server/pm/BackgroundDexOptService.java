@@ -29,17 +29,23 @@ import android.content.IntentFilter;
 import android.os.BatteryManager;
 import android.os.Environment;
 import android.os.ServiceManager;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.storage.StorageManager;
+import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
+import android.util.TimeUtils;
 
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.util.IndentingPrintWriter;
 import com.android.server.pm.dex.DexManager;
 import com.android.server.LocalServices;
 import com.android.server.PinnerService;
 import com.android.server.pm.dex.DexoptOptions;
 
 import java.io.File;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.TimeUnit;
@@ -73,6 +79,8 @@ public class BackgroundDexOptService extends JobService {
     private static final int OPTIMIZE_ABORT_BY_JOB_SCHEDULER = 2;
     // Optimizations should be aborted. No space left on device.
     private static final int OPTIMIZE_ABORT_NO_SPACE_LEFT = 3;
+    // Optimizations should be aborted and retried later. The device is too hot.
+    private static final int OPTIMIZE_ABORT_THERMAL = 4;
 
     // Used for calculating space threshold for downgrading unused apps.
     private static final int LOW_THRESHOLD_MULTIPLIER_FOR_DOWNGRADE = 2;
@@ -99,6 +107,35 @@ public class BackgroundDexOptService extends JobService {
     private static final long mDowngradeUnusedAppsThresholdInMillis =
             getDowngradeUnusedAppsThresholdInMillis();
 
+    // Battery temperature, in tenths of a degree Celsius, above which idle optimizations
+    // stop until the job is next run.
+    private static final int sMaxBatteryTemperature =
+            SystemProperties.getInt("pm.dexopt.max_battery_temp", 450);
+
+    /**
+     * Time spent optimizing each package by these jobs, and a summary of the last idle run,
+     * for dumpsys.
+     */
+    @GuardedBy("sPackageDexoptTimes")
+    private static final ArrayMap<String, PackageDexoptTime> sPackageDexoptTimes =
+            new ArrayMap<>();
+    @GuardedBy("sPackageDexoptTimes")
+    private static long sLastIdleRunStartTime;
+    @GuardedBy("sPackageDexoptTimes")
+    private static long sLastIdleRunDurationMs;
+    @GuardedBy("sPackageDexoptTimes")
+    private static int sLastIdleRunPackageCount;
+    @GuardedBy("sPackageDexoptTimes")
+    private static int sLastIdleRunResult = -1;
+
+    private static final class PackageDexoptTime {
+        int mReason;
+        long mLastTime;
+        long mLastDurationMs;
+        long mTotalDurationMs;
+        int mCount;
+    }
+
     public static void schedule(Context context) {
         if (isBackgroundDexoptDisabled()) {
             return;
@@ -159,6 +196,34 @@ public class BackgroundDexOptService extends JobService {
         return (100 * level / scale);
     }
 
+    // Returns true if the battery is hotter than sMaxBatteryTemperature. The idle job only
+    // runs while charging, so this is the heat we add on top of the charger's.
+    private static boolean isBatteryTooHot(Context context) {
+        IntentFilter filter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
+        Intent intent = context.registerReceiver(null, filter);
+        if (intent == null) {
+            return false;
+        }
+        int temperature = intent.getIntExtra(BatteryManager.EXTRA_TEMPERATURE,
+                Integer.MIN_VALUE);
+        return temperature > sMaxBatteryTemperature;
+    }
+
+    private static void recordDexoptTime(String pkg, int reason, long durationMs) {
+        synchronized (sPackageDexoptTimes) {
+            PackageDexoptTime time = sPackageDexoptTimes.get(pkg);
+            if (time == null) {
+                time = new PackageDexoptTime();
+                sPackageDexoptTimes.put(pkg, time);
+            }
+            time.mReason = reason;
+            time.mLastTime = System.currentTimeMillis();
+            time.mLastDurationMs = durationMs;
+            time.mTotalDurationMs += durationMs;
+            time.mCount++;
+        }
+    }
+
     private long getLowStorageThreshold(Context context) {
         @SuppressWarnings("deprecation")
         final long lowThreshold = StorageManager.from(context).getStorageLowBytes(mDataDir);
@@ -170,7 +235,7 @@ public class BackgroundDexOptService extends JobService {
     }
 
     private boolean runPostBootUpdate(final JobParameters jobParams,
-            final PackageManagerService pm, final ArraySet<String> pkgs) {
+            final PackageManagerService pm, final List<String> pkgs) {
         if (mExitPostBootUpdate.get()) {
             // This job has already been superseded. Do not start it.
             return false;
@@ -186,7 +251,7 @@ public class BackgroundDexOptService extends JobService {
     }
 
     private void postBootUpdate(JobParameters jobParams, PackageManagerService pm,
-            ArraySet<String> pkgs) {
+            List<String> pkgs) {
         // Load low battery threshold from the system config. This is a 0-100 integer.
         final int lowBatteryThreshold = getResources().getInteger(
                 com.android.internal.R.integer.config_lowBatteryWarningLevel);
@@ -228,12 +293,15 @@ public class BackgroundDexOptService extends JobService {
             // Unfortunately this will also means that "pm.dexopt.boot=speed-profile" will
             // behave differently than "pm.dexopt.bg-dexopt=speed-profile" but that's a
             // trade-off worth doing to save boot time work.
+            final long start = SystemClock.elapsedRealtime();
             int result = pm.performDexOptWithStatus(new DexoptOptions(
                     pkg,
                     PackageManagerService.REASON_BOOT,
                     DexoptOptions.DEXOPT_BOOT_COMPLETE));
             if (result == PackageDexOptimizer.DEX_OPT_PERFORMED)  {
                 updatedPackages.add(pkg);
+                recordDexoptTime(pkg, PackageManagerService.REASON_BOOT,
+                        SystemClock.elapsedRealtime() - start);
             }
         }
         notifyPinService(updatedPackages);
@@ -242,12 +310,15 @@ public class BackgroundDexOptService extends JobService {
     }
 
     private boolean runIdleOptimization(final JobParameters jobParams,
-            final PackageManagerService pm, final ArraySet<String> pkgs) {
+            final PackageManagerService pm, final List<String> pkgs) {
         new Thread("BackgroundDexOptService_IdleOptimization") {
             @Override
             public void run() {
                 int result = idleOptimization(pm, pkgs, BackgroundDexOptService.this);
-                if (result != OPTIMIZE_ABORT_BY_JOB_SCHEDULER) {
+                if (result == OPTIMIZE_ABORT_THERMAL) {
+                    Log.w(TAG, "Idle optimizations paused because the device is too hot.");
+                    jobFinished(jobParams, /* reschedule */ true);
+                } else if (result != OPTIMIZE_ABORT_BY_JOB_SCHEDULER) {
                     Log.w(TAG, "Idle optimizations aborted because of space constraints.");
                     // If we didn't abort we ran to completion (or stopped because of space).
                     // Abandon our timeslice and do not reschedule.
@@ -259,19 +330,34 @@ public class BackgroundDexOptService extends JobService {
     }
 
     // Optimize the given packages and return the optimization result (one of the OPTIMIZE_* codes).
-    private int idleOptimization(PackageManagerService pm, ArraySet<String> pkgs,
+    private int idleOptimization(PackageManagerService pm, List<String> pkgs,
             Context context) {
         Log.i(TAG, "Performing idle optimizations");
         // If post-boot update is still running, request that it exits early.
         mExitPostBootUpdate.set(true);
         mAbortIdleOptimization.set(false);
 
+        final long startTime = System.currentTimeMillis();
+        final long start = SystemClock.elapsedRealtime();
+        final int[] packageCount = new int[1];
+        int result = doIdleOptimization(pm, pkgs, context, packageCount);
+        synchronized (sPackageDexoptTimes) {
+            sLastIdleRunStartTime = startTime;
+            sLastIdleRunDurationMs = SystemClock.elapsedRealtime() - start;
+            sLastIdleRunPackageCount = packageCount[0];
+            sLastIdleRunResult = result;
+        }
+        return result;
+    }
+
+    private int doIdleOptimization(PackageManagerService pm, List<String> pkgs,
+            Context context, int[] packageCount) {
         long lowStorageThreshold = getLowStorageThreshold(context);
         // Optimize primary apks.
         int result = optimizePackages(pm, pkgs, lowStorageThreshold, /*is_for_primary_dex*/ true,
-                sFailedPackageNamesPrimary);
+                sFailedPackageNamesPrimary, context, packageCount);
 
-        if (result == OPTIMIZE_ABORT_BY_JOB_SCHEDULER) {
+        if (result == OPTIMIZE_ABORT_BY_JOB_SCHEDULER || result == OPTIMIZE_ABORT_THERMAL) {
             return result;
         }
 
@@ -282,14 +368,16 @@ public class BackgroundDexOptService extends JobService {
             }
 
             result = optimizePackages(pm, pkgs, lowStorageThreshold, /*is_for_primary_dex*/ false,
-                    sFailedPackageNamesSecondary);
+                    sFailedPackageNamesSecondary, context, packageCount);
         }
         return result;
     }
 
-    private int optimizePackages(PackageManagerService pm, ArraySet<String> pkgs,
+    // Optimize the given packages in order, which is most recently used first, so that
+    // the packages that matter most are done if the idle window ends early.
+    private int optimizePackages(PackageManagerService pm, List<String> pkgs,
             long lowStorageThreshold, boolean is_for_primary_dex,
-            ArraySet<String> failedPackageNames) {
+            ArraySet<String> failedPackageNames, Context context, int[] packageCount) {
         ArraySet<String> updatedPackages = new ArraySet<>();
         Set<String> unusedPackages = pm.getUnusedPackages(mDowngradeUnusedAppsThresholdInMillis);
         // Only downgrade apps when space is low on device.
@@ -299,8 +387,9 @@ public class BackgroundDexOptService extends JobService {
                 lowStorageThreshold;
         boolean shouldDowngrade = shouldDowngrade(lowStorageThresholdForDowngrade);
         for (String pkg : pkgs) {
-            int abort_code = abortIdleOptimizations(lowStorageThreshold);
-            if (abort_code == OPTIMIZE_ABORT_BY_JOB_SCHEDULER) {
+            int abort_code = abortIdleOptimizations(lowStorageThreshold, context);
+            if (abort_code == OPTIMIZE_ABORT_BY_JOB_SCHEDULER
+                    || abort_code == OPTIMIZE_ABORT_THERMAL) {
                 return abort_code;
             }
 
@@ -348,6 +437,7 @@ public class BackgroundDexOptService extends JobService {
                     DexoptOptions.DEXOPT_BOOT_COMPLETE |
                     (downgrade ? DexoptOptions.DEXOPT_DOWNGRADE : 0) |
                     DexoptOptions.DEXOPT_IDLE_BACKGROUND_JOB;
+            final long start = SystemClock.elapsedRealtime();
             if (is_for_primary_dex) {
                 int result = pm.performDexOptWithStatus(new DexoptOptions(pkg,
                         PackageManagerService.REASON_BACKGROUND_DEXOPT,
@@ -355,11 +445,14 @@ public class BackgroundDexOptService extends JobService {
                 success = result != PackageDexOptimizer.DEX_OPT_FAILED;
                 if (result == PackageDexOptimizer.DEX_OPT_PERFORMED) {
                     updatedPackages.add(pkg);
+                    recordDexoptTime(pkg, reason, SystemClock.elapsedRealtime() - start);
                 }
             } else {
                 success = pm.performDexOpt(new DexoptOptions(pkg,
                         reason, dexoptFlags | DexoptOptions.DEXOPT_ONLY_SECONDARY_DEX));
+                recordDexoptTime(pkg, reason, SystemClock.elapsedRealtime() - start);
             }
+            packageCount[0]++;
             if (success) {
                 // Dexopt succeeded, remove package from the list of failing ones.
                 synchronized (failedPackageNames) {
@@ -383,11 +476,15 @@ public class BackgroundDexOptService extends JobService {
     }
 
     // Evaluate whether or not idle optimizations should continue.
-    private int abortIdleOptimizations(long lowStorageThreshold) {
+    private int abortIdleOptimizations(long lowStorageThreshold, Context context) {
         if (mAbortIdleOptimization.get()) {
             // JobScheduler requested an early abort.
             return OPTIMIZE_ABORT_BY_JOB_SCHEDULER;
         }
+        if (isBatteryTooHot(context)) {
+            // Let the device cool down and try again later.
+            return OPTIMIZE_ABORT_THERMAL;
+        }
         long usableSpace = mDataDir.getUsableSpace();
         if (usableSpace < lowStorageThreshold) {
             // Rather bail than completely fill up the disk.
@@ -416,7 +513,7 @@ public class BackgroundDexOptService extends JobService {
         // Note that this may still run at the same time with the job scheduled by the
         // JobScheduler but the scheduler will not be able to cancel it.
         BackgroundDexOptService bdos = new BackgroundDexOptService();
-        int result = bdos.idleOptimization(pm, pm.getOptimizablePackages(), context);
+        int result = bdos.idleOptimization(pm, pm.getOptimizablePackagesByUsage(), context);
         return result == OPTIMIZE_PROCESSED;
     }
 
@@ -437,7 +534,7 @@ public class BackgroundDexOptService extends JobService {
             return false;
         }
 
-        final ArraySet<String> pkgs = pm.getOptimizablePackages();
+        final List<String> pkgs = pm.getOptimizablePackagesByUsage();
         if (pkgs.isEmpty()) {
             if (DEBUG_DEXOPT) {
                 Log.i(TAG, "No packages to optimize");
@@ -476,6 +573,47 @@ public class BackgroundDexOptService extends JobService {
         }
     }
 
+    /**
+     * Dumps the time spent optimizing each package, or only {@code packageName} if not null.
+     */
+    static void dump(IndentingPrintWriter ipw, String packageName) {
+        synchronized (sPackageDexoptTimes) {
+            ipw.println();
+            ipw.println("Background dexopt:");
+            ipw.increaseIndent();
+            if (packageName == null && sLastIdleRunStartTime != 0) {
+                ipw.print("Last idle run: ");
+                ipw.print(TimeUtils.formatForLogging(sLastIdleRunStartTime));
+                ipw.print(" took ");
+                TimeUtils.formatDuration(sLastIdleRunDurationMs, ipw);
+                ipw.print(" packages=");
+                ipw.print(sLastIdleRunPackageCount);
+                ipw.print(" result=");
+                ipw.println(sLastIdleRunResult);
+            }
+            for (int i = 0; i < sPackageDexoptTimes.size(); i++) {
+                final String pkg = sPackageDexoptTimes.keyAt(i);
+                if (packageName != null && !packageName.equals(pkg)) {
+                    continue;
+                }
+                final PackageDexoptTime time = sPackageDexoptTimes.valueAt(i);
+                ipw.print("[");
+                ipw.print(pkg);
+                ipw.print("] last=");
+                ipw.print(time.mLastDurationMs);
+                ipw.print("ms (");
+                ipw.print(PackageManagerServiceCompilerMapping.getReasonName(time.mReason));
+                ipw.print(" at ");
+                ipw.print(TimeUtils.formatForLogging(time.mLastTime));
+                ipw.print(") total=");
+                ipw.print(time.mTotalDurationMs);
+                ipw.print("ms count=");
+                ipw.println(time.mCount);
+            }
+            ipw.decreaseIndent();
+        }
+    }
+
     private void notifyPinService(ArraySet<String> updatedPackages) {
         PinnerService pinnerService = LocalServices.getService(PinnerService.class);
         if (pinnerService != null) {
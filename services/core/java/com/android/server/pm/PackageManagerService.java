@@ -1753,7 +1753,7 @@ public class PackageManagerService extends IPackageManager.Stub
                     synchronized (mPackages) {
                         removeMessages(WRITE_SETTINGS);
                         removeMessages(WRITE_PACKAGE_RESTRICTIONS);
-                        mSettings.writeLPr();
+                        mSettings.writeAsyncLPr();
                         mDirtyUsers.clear();
                     }
                     Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
@@ -1763,7 +1763,7 @@ public class PackageManagerService extends IPackageManager.Stub
                     synchronized (mPackages) {
                         removeMessages(WRITE_PACKAGE_RESTRICTIONS);
                         for (int userId : mDirtyUsers) {
-                            mSettings.writePackageRestrictionsLPr(userId);
+                            mSettings.writePackageRestrictionsAsyncLPr(userId);
                         }
                         mDirtyUsers.clear();
                     }
@@ -3790,6 +3790,9 @@ public class PackageManagerService extends IPackageManager.Stub
     @Override
     public boolean onTransact(int code, Parcel data, Parcel reply, int flags)
             throws RemoteException {
+        // Package and permission names make up most of the strings passed in,
+        // and they repeat constantly; share them rather than allocating each time.
+        data.setStringDeduplicationEnabled(true);
         try {
             return super.onTransact(code, data, reply, flags);
         } catch (RuntimeException e) {
@@ -10080,6 +10083,27 @@ public class PackageManagerService extends IPackageManager.Stub
         return pkgs;
     }
 
+    /**
+     * Returns the optimizable packages, most recently used first, so that background dexopt
+     * gets to the packages that matter most before its idle window closes.
+     */
+    public List<String> getOptimizablePackagesByUsage() {
+        final List<PackageParser.Package> pkgs = new ArrayList<>();
+        synchronized (mPackages) {
+            for (PackageParser.Package p : mPackages.values()) {
+                if (PackageDexOptimizer.canOptimizePackage(p)) {
+                    pkgs.add(p);
+                }
+            }
+        }
+        PackageManagerServiceUtils.sortPackagesByUsageDate(pkgs, this);
+        final List<String> pkgNames = new ArrayList<>(pkgs.size());
+        for (PackageParser.Package p : pkgs) {
+            pkgNames.add(p.packageName);
+        }
+        return pkgNames;
+    }
+
     private int performDexOptInternalWithDependenciesLI(PackageParser.Package p,
             DexoptOptions options) {
         // Select the dex optimizer based on the force parameter.
@@ -10250,6 +10274,7 @@ public class PackageManagerService extends IPackageManager.Stub
                 mDirtyUsers.clear();
             }
         }
+        mSettings.flushPendingWrites();
     }
 
     @Override
@@ -23333,6 +23358,8 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
                     mDexManager.getPackageUseInfoOrDefault(pkg.packageName));
             ipw.decreaseIndent();
         }
+
+        BackgroundDexOptService.dump(ipw, packageName);
     }
 
     private void dumpCompilerStatsLPr(PrintWriter pw, String packageName) {
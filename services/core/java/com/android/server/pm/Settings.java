@@ -85,7 +85,6 @@ import com.android.internal.os.BackgroundThread;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.FastXmlSerializer;
 import com.android.internal.util.IndentingPrintWriter;
-import com.android.internal.util.JournaledFile;
 import com.android.internal.util.XmlUtils;
 import com.android.server.backup.PreferredActivityBackupHelper;
 import com.android.server.pm.Installer.InstallerException;
@@ -101,6 +100,7 @@ import org.xmlpull.v1.XmlSerializer;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -257,6 +257,8 @@ final class Settings {
 
     private final File mSettingsFilename;
     private final File mBackupSettingsFilename;
+    private final SettingsFileWriter mFileWriter =
+            new SettingsFileWriter(BackgroundThread.getHandler().getLooper());
     private final File mPackageListFilename;
     private final File mStoppedPackagesFilename;
     private final File mBackupStoppedPackagesFilename;
@@ -1441,11 +1443,15 @@ final class Settings {
     }
 
     void writeAllUsersPackageRestrictionsLPr() {
+        writeAllUsersPackageRestrictionsLPr(true);
+    }
+
+    private void writeAllUsersPackageRestrictionsLPr(boolean sync) {
         List<UserInfo> users = getAllUsers(UserManagerService.getInstance());
         if (users == null) return;
 
         for (UserInfo user : users) {
-            writePackageRestrictionsLPr(user.id);
+            writePackageRestrictionsLPr(user.id, sync);
         }
     }
 
@@ -1655,6 +1661,8 @@ final class Settings {
         if (DEBUG_MU) {
             Log.i(TAG, "Reading package restrictions for user=" + userId);
         }
+        // Make sure we read back anything still queued for writing.
+        mFileWriter.flush();
         FileInputStream str = null;
         File userPackagesStateFile = getUserPackagesStateFile(userId);
         File backupFile = getUserPackagesStateBackupFile(userId);
@@ -2059,153 +2067,134 @@ final class Settings {
     }
 
     void writePackageRestrictionsLPr(int userId) {
+        writePackageRestrictionsLPr(userId, true);
+    }
+
+    /**
+     * Like {@link #writePackageRestrictionsLPr(int)}, but writes the file on
+     * {@link #mFileWriter}'s thread.
+     */
+    void writePackageRestrictionsAsyncLPr(int userId) {
+        writePackageRestrictionsLPr(userId, false);
+    }
+
+    private void writePackageRestrictionsLPr(int userId, boolean sync) {
         if (DEBUG_MU) {
             Log.i(TAG, "Writing package restrictions for user=" + userId);
         }
-        // Keep the old stopped packages around until we know the new ones have
-        // been successfully written.
-        File userPackagesStateFile = getUserPackagesStateFile(userId);
-        File backupFile = getUserPackagesStateBackupFile(userId);
-        new File(userPackagesStateFile.getParent()).mkdirs();
-        if (userPackagesStateFile.exists()) {
-            // Presence of backup settings file indicates that we failed
-            // to persist packages earlier. So preserve the older
-            // backup for future reference since the current packages
-            // might have been corrupted.
-            if (!backupFile.exists()) {
-                if (!userPackagesStateFile.renameTo(backupFile)) {
-                    Slog.wtf(PackageManagerService.TAG,
-                            "Unable to backup user packages state file, "
-                            + "current changes will be lost at reboot");
-                    return;
-                }
-            } else {
-                userPackagesStateFile.delete();
-                Slog.w(PackageManagerService.TAG, "Preserving older stopped packages backup");
-            }
-        }
 
+        final byte[] data;
         try {
-            final FileOutputStream fstr = new FileOutputStream(userPackagesStateFile);
-            final BufferedOutputStream str = new BufferedOutputStream(fstr);
+            data = serializePackageRestrictionsLPr(userId);
+        } catch(java.io.IOException e) {
+            Slog.wtf(PackageManagerService.TAG,
+                    "Unable to write package manager user packages state, "
+                    + " current changes will be lost at reboot", e);
+            return;
+        }
+        final File userPackagesStateFile = getUserPackagesStateFile(userId);
+        final File backupFile = getUserPackagesStateBackupFile(userId);
+        if (sync) {
+            mFileWriter.write(userPackagesStateFile, backupFile, data);
+        } else {
+            mFileWriter.writeAsync(userPackagesStateFile, backupFile, data);
+        }
+    }
 
-            final XmlSerializer serializer = new FastXmlSerializer();
-            serializer.setOutput(str, StandardCharsets.UTF_8.name());
-            serializer.startDocument(null, true);
-            serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
+    private byte[] serializePackageRestrictionsLPr(int userId) throws IOException {
+        final ByteArrayOutputStream str = new ByteArrayOutputStream();
 
-            serializer.startTag(null, TAG_PACKAGE_RESTRICTIONS);
+        final XmlSerializer serializer = new FastXmlSerializer();
+        serializer.setOutput(str, StandardCharsets.UTF_8.name());
+        serializer.startDocument(null, true);
+        serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
 
-            for (final PackageSetting pkg : mPackages.values()) {
-                final PackageUserState ustate = pkg.readUserState(userId);
-                if (DEBUG_MU) Log.i(TAG, "  pkg=" + pkg.name + ", state=" + ustate.enabled);
+        serializer.startTag(null, TAG_PACKAGE_RESTRICTIONS);
 
-                serializer.startTag(null, TAG_PACKAGE);
-                serializer.attribute(null, ATTR_NAME, pkg.name);
-                if (ustate.ceDataInode != 0) {
-                    XmlUtils.writeLongAttribute(serializer, ATTR_CE_DATA_INODE, ustate.ceDataInode);
-                }
-                if (!ustate.installed) {
-                    serializer.attribute(null, ATTR_INSTALLED, "false");
-                }
-                if (ustate.stopped) {
-                    serializer.attribute(null, ATTR_STOPPED, "true");
-                }
-                if (ustate.notLaunched) {
-                    serializer.attribute(null, ATTR_NOT_LAUNCHED, "true");
-                }
-                if (ustate.hidden) {
-                    serializer.attribute(null, ATTR_HIDDEN, "true");
-                }
-                if (ustate.suspended) {
-                    serializer.attribute(null, ATTR_SUSPENDED, "true");
-                }
-                if (ustate.instantApp) {
-                    serializer.attribute(null, ATTR_INSTANT_APP, "true");
-                }
-                if (ustate.virtualPreload) {
-                    serializer.attribute(null, ATTR_VIRTUAL_PRELOAD, "true");
+        for (final PackageSetting pkg : mPackages.values()) {
+            final PackageUserState ustate = pkg.readUserState(userId);
+            if (DEBUG_MU) Log.i(TAG, "  pkg=" + pkg.name + ", state=" + ustate.enabled);
+
+            serializer.startTag(null, TAG_PACKAGE);
+            serializer.attribute(null, ATTR_NAME, pkg.name);
+            if (ustate.ceDataInode != 0) {
+                XmlUtils.writeLongAttribute(serializer, ATTR_CE_DATA_INODE, ustate.ceDataInode);
+            }
+            if (!ustate.installed) {
+                serializer.attribute(null, ATTR_INSTALLED, "false");
+            }
+            if (ustate.stopped) {
+                serializer.attribute(null, ATTR_STOPPED, "true");
+            }
+            if (ustate.notLaunched) {
+                serializer.attribute(null, ATTR_NOT_LAUNCHED, "true");
+            }
+            if (ustate.hidden) {
+                serializer.attribute(null, ATTR_HIDDEN, "true");
+            }
+            if (ustate.suspended) {
+                serializer.attribute(null, ATTR_SUSPENDED, "true");
+            }
+            if (ustate.instantApp) {
+                serializer.attribute(null, ATTR_INSTANT_APP, "true");
+            }
+            if (ustate.virtualPreload) {
+                serializer.attribute(null, ATTR_VIRTUAL_PRELOAD, "true");
+            }
+            if (ustate.enabled != COMPONENT_ENABLED_STATE_DEFAULT) {
+                serializer.attribute(null, ATTR_ENABLED,
+                        Integer.toString(ustate.enabled));
+                if (ustate.lastDisableAppCaller != null) {
+                    serializer.attribute(null, ATTR_ENABLED_CALLER,
+                            ustate.lastDisableAppCaller);
                 }
-                if (ustate.enabled != COMPONENT_ENABLED_STATE_DEFAULT) {
-                    serializer.attribute(null, ATTR_ENABLED,
-                            Integer.toString(ustate.enabled));
-                    if (ustate.lastDisableAppCaller != null) {
-                        serializer.attribute(null, ATTR_ENABLED_CALLER,
-                                ustate.lastDisableAppCaller);
-                    }
+            }
+            if (ustate.domainVerificationStatus !=
+                    PackageManager.INTENT_FILTER_DOMAIN_VERIFICATION_STATUS_UNDEFINED) {
+                XmlUtils.writeIntAttribute(serializer, ATTR_DOMAIN_VERIFICATON_STATE,
+                        ustate.domainVerificationStatus);
+            }
+            if (ustate.appLinkGeneration != 0) {
+                XmlUtils.writeIntAttribute(serializer, ATTR_APP_LINK_GENERATION,
+                        ustate.appLinkGeneration);
+            }
+            if (ustate.installReason != PackageManager.INSTALL_REASON_UNKNOWN) {
+                serializer.attribute(null, ATTR_INSTALL_REASON,
+                        Integer.toString(ustate.installReason));
+            }
+            if (!ArrayUtils.isEmpty(ustate.enabledComponents)) {
+                serializer.startTag(null, TAG_ENABLED_COMPONENTS);
+                for (final String name : ustate.enabledComponents) {
+                    serializer.startTag(null, TAG_ITEM);
+                    serializer.attribute(null, ATTR_NAME, name);
+                    serializer.endTag(null, TAG_ITEM);
                 }
-                if (ustate.domainVerificationStatus !=
-                        PackageManager.INTENT_FILTER_DOMAIN_VERIFICATION_STATUS_UNDEFINED) {
-                    XmlUtils.writeIntAttribute(serializer, ATTR_DOMAIN_VERIFICATON_STATE,
-                            ustate.domainVerificationStatus);
-                }
-                if (ustate.appLinkGeneration != 0) {
-                    XmlUtils.writeIntAttribute(serializer, ATTR_APP_LINK_GENERATION,
-                            ustate.appLinkGeneration);
-                }
-                if (ustate.installReason != PackageManager.INSTALL_REASON_UNKNOWN) {
-                    serializer.attribute(null, ATTR_INSTALL_REASON,
-                            Integer.toString(ustate.installReason));
-                }
-                if (!ArrayUtils.isEmpty(ustate.enabledComponents)) {
-                    serializer.startTag(null, TAG_ENABLED_COMPONENTS);
-                    for (final String name : ustate.enabledComponents) {
-                        serializer.startTag(null, TAG_ITEM);
-                        serializer.attribute(null, ATTR_NAME, name);
-                        serializer.endTag(null, TAG_ITEM);
-                    }
-                    serializer.endTag(null, TAG_ENABLED_COMPONENTS);
-                }
-                if (!ArrayUtils.isEmpty(ustate.disabledComponents)) {
-                    serializer.startTag(null, TAG_DISABLED_COMPONENTS);
-                    for (final String name : ustate.disabledComponents) {
-                        serializer.startTag(null, TAG_ITEM);
-                        serializer.attribute(null, ATTR_NAME, name);
-                        serializer.endTag(null, TAG_ITEM);
-                    }
-                    serializer.endTag(null, TAG_DISABLED_COMPONENTS);
+                serializer.endTag(null, TAG_ENABLED_COMPONENTS);
+            }
+            if (!ArrayUtils.isEmpty(ustate.disabledComponents)) {
+                serializer.startTag(null, TAG_DISABLED_COMPONENTS);
+                for (final String name : ustate.disabledComponents) {
+                    serializer.startTag(null, TAG_ITEM);
+                    serializer.attribute(null, ATTR_NAME, name);
+                    serializer.endTag(null, TAG_ITEM);
                 }
-
-                serializer.endTag(null, TAG_PACKAGE);
+                serializer.endTag(null, TAG_DISABLED_COMPONENTS);
             }
 
-            writePreferredActivitiesLPr(serializer, userId, true);
-            writePersistentPreferredActivitiesLPr(serializer, userId);
-            writeCrossProfileIntentFiltersLPr(serializer, userId);
-            writeDefaultAppsLPr(serializer, userId);
-            writeBlockUninstallPackagesLPr(serializer, userId);
-
-            serializer.endTag(null, TAG_PACKAGE_RESTRICTIONS);
+            serializer.endTag(null, TAG_PACKAGE);
+        }
 
-            serializer.endDocument();
+        writePreferredActivitiesLPr(serializer, userId, true);
+        writePersistentPreferredActivitiesLPr(serializer, userId);
+        writeCrossProfileIntentFiltersLPr(serializer, userId);
+        writeDefaultAppsLPr(serializer, userId);
+        writeBlockUninstallPackagesLPr(serializer, userId);
 
-            str.flush();
-            FileUtils.sync(fstr);
-            str.close();
+        serializer.endTag(null, TAG_PACKAGE_RESTRICTIONS);
 
-            // New settings successfully written, old ones are no longer
-            // needed.
-            backupFile.delete();
-            FileUtils.setPermissions(userPackagesStateFile.toString(),
-                    FileUtils.S_IRUSR|FileUtils.S_IWUSR
-                    |FileUtils.S_IRGRP|FileUtils.S_IWGRP,
-                    -1, -1);
+        serializer.endDocument();
 
-            // Done, all is good!
-            return;
-        } catch(java.io.IOException e) {
-            Slog.wtf(PackageManagerService.TAG,
-                    "Unable to write package manager user packages state, "
-                    + " current changes will be lost at reboot", e);
-        }
-
-        // Clean up partially written files
-        if (userPackagesStateFile.exists()) {
-            if (!userPackagesStateFile.delete()) {
-                Log.i(PackageManagerService.TAG, "Failed to clean up mangled file: "
-                        + mStoppedPackagesFilename);
-            }
-        }
+        return str.toByteArray();
     }
 
     void readInstallPermissionsLPr(XmlPullParser parser,
@@ -2450,174 +2439,172 @@ final class Settings {
     }
 
     void writeLPr() {
-        //Debug.startMethodTracing("/data/system/packageprof", 8 * 1024 * 1024);
+        writeLPr(true);
+    }
 
-        // Keep the old settings around until we know the new ones have
-        // been successfully written.
-        if (mSettingsFilename.exists()) {
-            // Presence of backup settings file indicates that we failed
-            // to persist settings earlier. So preserve the older
-            // backup for future reference since the current settings
-            // might have been corrupted.
-            if (!mBackupSettingsFilename.exists()) {
-                if (!mSettingsFilename.renameTo(mBackupSettingsFilename)) {
-                    Slog.wtf(PackageManagerService.TAG,
-                            "Unable to backup package manager settings, "
-                            + " current changes will be lost at reboot");
-                    return;
-                }
-            } else {
-                mSettingsFilename.delete();
-                Slog.w(PackageManagerService.TAG, "Preserving older settings backup");
-            }
-        }
+    /**
+     * Like {@link #writeLPr()}, but leaves the file writes that follow
+     * serialization to {@link #mFileWriter}'s thread, so they happen outside
+     * the package manager lock.
+     *
+     * <p>Serialization itself still runs under the lock. It reads package,
+     * permission and shared user state that is mutated in place through
+     * public fields, so moving it out first needs a consistent copy of all of
+     * that state, which is left to a follow-up change.</p>
+     */
+    void writeAsyncLPr() {
+        writeLPr(false);
+    }
+
+    private void writeLPr(boolean sync) {
+        //Debug.startMethodTracing("/data/system/packageprof", 8 * 1024 * 1024);
 
         mPastSignatures.clear();
 
+        final byte[] data;
         try {
-            FileOutputStream fstr = new FileOutputStream(mSettingsFilename);
-            BufferedOutputStream str = new BufferedOutputStream(fstr);
+            data = serializeSettingsLPr();
+        } catch(XmlPullParserException e) {
+            Slog.wtf(PackageManagerService.TAG, "Unable to write package manager settings, "
+                    + "current changes will be lost at reboot", e);
+            return;
+        } catch(java.io.IOException e) {
+            Slog.wtf(PackageManagerService.TAG, "Unable to write package manager settings, "
+                    + "current changes will be lost at reboot", e);
+            return;
+        }
+        if (sync) {
+            mFileWriter.write(mSettingsFilename, mBackupSettingsFilename, data);
+        } else {
+            mFileWriter.writeAsync(mSettingsFilename, mBackupSettingsFilename, data);
+        }
 
-            //XmlSerializer serializer = XmlUtils.serializerInstance();
-            XmlSerializer serializer = new FastXmlSerializer();
-            serializer.setOutput(str, StandardCharsets.UTF_8.name());
-            serializer.startDocument(null, true);
-            serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
+        writeKernelMappingLPr();
+        writePackageListLPr(-1, sync);
+        writeAllUsersPackageRestrictionsLPr(sync);
+        writeAllRuntimePermissionsLPr();
+        //Debug.stopMethodTracing();
+    }
 
-            serializer.startTag(null, "packages");
+    private byte[] serializeSettingsLPr() throws XmlPullParserException, IOException {
+        final ByteArrayOutputStream str = new ByteArrayOutputStream();
 
-            for (int i = 0; i < mVersion.size(); i++) {
-                final String volumeUuid = mVersion.keyAt(i);
-                final VersionInfo ver = mVersion.valueAt(i);
+        //XmlSerializer serializer = XmlUtils.serializerInstance();
+        XmlSerializer serializer = new FastXmlSerializer();
+        serializer.setOutput(str, StandardCharsets.UTF_8.name());
+        serializer.startDocument(null, true);
+        serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
 
-                serializer.startTag(null, TAG_VERSION);
-                XmlUtils.writeStringAttribute(serializer, ATTR_VOLUME_UUID, volumeUuid);
-                XmlUtils.writeIntAttribute(serializer, ATTR_SDK_VERSION, ver.sdkVersion);
-                XmlUtils.writeIntAttribute(serializer, ATTR_DATABASE_VERSION, ver.databaseVersion);
-                XmlUtils.writeStringAttribute(serializer, ATTR_FINGERPRINT, ver.fingerprint);
-                serializer.endTag(null, TAG_VERSION);
-            }
+        serializer.startTag(null, "packages");
 
-            if (mVerifierDeviceIdentity != null) {
-                serializer.startTag(null, "verifier");
-                serializer.attribute(null, "device", mVerifierDeviceIdentity.toString());
-                serializer.endTag(null, "verifier");
-            }
+        for (int i = 0; i < mVersion.size(); i++) {
+            final String volumeUuid = mVersion.keyAt(i);
+            final VersionInfo ver = mVersion.valueAt(i);
 
-            if (mReadExternalStorageEnforced != null) {
-                serializer.startTag(null, TAG_READ_EXTERNAL_STORAGE);
-                serializer.attribute(
-                        null, ATTR_ENFORCEMENT, mReadExternalStorageEnforced ? "1" : "0");
-                serializer.endTag(null, TAG_READ_EXTERNAL_STORAGE);
-            }
+            serializer.startTag(null, TAG_VERSION);
+            XmlUtils.writeStringAttribute(serializer, ATTR_VOLUME_UUID, volumeUuid);
+            XmlUtils.writeIntAttribute(serializer, ATTR_SDK_VERSION, ver.sdkVersion);
+            XmlUtils.writeIntAttribute(serializer, ATTR_DATABASE_VERSION, ver.databaseVersion);
+            XmlUtils.writeStringAttribute(serializer, ATTR_FINGERPRINT, ver.fingerprint);
+            serializer.endTag(null, TAG_VERSION);
+        }
 
-            serializer.startTag(null, "permission-trees");
-            for (BasePermission bp : mPermissionTrees.values()) {
-                writePermissionLPr(serializer, bp);
-            }
-            serializer.endTag(null, "permission-trees");
+        if (mVerifierDeviceIdentity != null) {
+            serializer.startTag(null, "verifier");
+            serializer.attribute(null, "device", mVerifierDeviceIdentity.toString());
+            serializer.endTag(null, "verifier");
+        }
 
-            serializer.startTag(null, "permissions");
-            for (BasePermission bp : mPermissions.values()) {
-                writePermissionLPr(serializer, bp);
-            }
-            serializer.endTag(null, "permissions");
+        if (mReadExternalStorageEnforced != null) {
+            serializer.startTag(null, TAG_READ_EXTERNAL_STORAGE);
+            serializer.attribute(
+                    null, ATTR_ENFORCEMENT, mReadExternalStorageEnforced ? "1" : "0");
+            serializer.endTag(null, TAG_READ_EXTERNAL_STORAGE);
+        }
 
-            for (final PackageSetting pkg : mPackages.values()) {
-                writePackageLPr(serializer, pkg);
-            }
+        serializer.startTag(null, "permission-trees");
+        for (BasePermission bp : mPermissionTrees.values()) {
+            writePermissionLPr(serializer, bp);
+        }
+        serializer.endTag(null, "permission-trees");
 
-            for (final PackageSetting pkg : mDisabledSysPackages.values()) {
-                writeDisabledSysPackageLPr(serializer, pkg);
-            }
+        serializer.startTag(null, "permissions");
+        for (BasePermission bp : mPermissions.values()) {
+            writePermissionLPr(serializer, bp);
+        }
+        serializer.endTag(null, "permissions");
 
-            for (final SharedUserSetting usr : mSharedUsers.values()) {
-                serializer.startTag(null, "shared-user");
-                serializer.attribute(null, ATTR_NAME, usr.name);
-                serializer.attribute(null, "userId",
-                        Integer.toString(usr.userId));
-                usr.signatures.writeXml(serializer, "sigs", mPastSignatures);
-                writePermissionsLPr(serializer, usr.getPermissionsState()
-                        .getInstallPermissionStates());
-                serializer.endTag(null, "shared-user");
-            }
+        for (final PackageSetting pkg : mPackages.values()) {
+            writePackageLPr(serializer, pkg);
+        }
 
-            if (mPackagesToBeCleaned.size() > 0) {
-                for (PackageCleanItem item : mPackagesToBeCleaned) {
-                    final String userStr = Integer.toString(item.userId);
-                    serializer.startTag(null, "cleaning-package");
-                    serializer.attribute(null, ATTR_NAME, item.packageName);
-                    serializer.attribute(null, ATTR_CODE, item.andCode ? "true" : "false");
-                    serializer.attribute(null, ATTR_USER, userStr);
-                    serializer.endTag(null, "cleaning-package");
-                }
-            }
+        for (final PackageSetting pkg : mDisabledSysPackages.values()) {
+            writeDisabledSysPackageLPr(serializer, pkg);
+        }
 
-            if (mRenamedPackages.size() > 0) {
-                for (Map.Entry<String, String> e : mRenamedPackages.entrySet()) {
-                    serializer.startTag(null, "renamed-package");
-                    serializer.attribute(null, "new", e.getKey());
-                    serializer.attribute(null, "old", e.getValue());
-                    serializer.endTag(null, "renamed-package");
-                }
+        for (final SharedUserSetting usr : mSharedUsers.values()) {
+            serializer.startTag(null, "shared-user");
+            serializer.attribute(null, ATTR_NAME, usr.name);
+            serializer.attribute(null, "userId",
+                    Integer.toString(usr.userId));
+            usr.signatures.writeXml(serializer, "sigs", mPastSignatures);
+            writePermissionsLPr(serializer, usr.getPermissionsState()
+                    .getInstallPermissionStates());
+            serializer.endTag(null, "shared-user");
+        }
+
+        if (mPackagesToBeCleaned.size() > 0) {
+            for (PackageCleanItem item : mPackagesToBeCleaned) {
+                final String userStr = Integer.toString(item.userId);
+                serializer.startTag(null, "cleaning-package");
+                serializer.attribute(null, ATTR_NAME, item.packageName);
+                serializer.attribute(null, ATTR_CODE, item.andCode ? "true" : "false");
+                serializer.attribute(null, ATTR_USER, userStr);
+                serializer.endTag(null, "cleaning-package");
             }
+        }
 
-            final int numIVIs = mRestoredIntentFilterVerifications.size();
-            if (numIVIs > 0) {
-                if (DEBUG_DOMAIN_VERIFICATION) {
-                    Slog.i(TAG, "Writing restored-ivi entries to packages.xml");
-                }
-                serializer.startTag(null, "restored-ivi");
-                for (int i = 0; i < numIVIs; i++) {
-                    IntentFilterVerificationInfo ivi = mRestoredIntentFilterVerifications.valueAt(i);
-                    writeDomainVerificationsLPr(serializer, ivi);
-                }
-                serializer.endTag(null, "restored-ivi");
-            } else {
-                if (DEBUG_DOMAIN_VERIFICATION) {
-                    Slog.i(TAG, "  no restored IVI entries to write");
-                }
+        if (mRenamedPackages.size() > 0) {
+            for (Map.Entry<String, String> e : mRenamedPackages.entrySet()) {
+                serializer.startTag(null, "renamed-package");
+                serializer.attribute(null, "new", e.getKey());
+                serializer.attribute(null, "old", e.getValue());
+                serializer.endTag(null, "renamed-package");
             }
+        }
 
-            mKeySetManagerService.writeKeySetManagerServiceLPr(serializer);
+        final int numIVIs = mRestoredIntentFilterVerifications.size();
+        if (numIVIs > 0) {
+            if (DEBUG_DOMAIN_VERIFICATION) {
+                Slog.i(TAG, "Writing restored-ivi entries to packages.xml");
+            }
+            serializer.startTag(null, "restored-ivi");
+            for (int i = 0; i < numIVIs; i++) {
+                IntentFilterVerificationInfo ivi = mRestoredIntentFilterVerifications.valueAt(i);
+                writeDomainVerificationsLPr(serializer, ivi);
+            }
+            serializer.endTag(null, "restored-ivi");
+        } else {
+            if (DEBUG_DOMAIN_VERIFICATION) {
+                Slog.i(TAG, "  no restored IVI entries to write");
+            }
+        }
 
-            serializer.endTag(null, "packages");
+        mKeySetManagerService.writeKeySetManagerServiceLPr(serializer);
 
-            serializer.endDocument();
+        serializer.endTag(null, "packages");
 
-            str.flush();
-            FileUtils.sync(fstr);
-            str.close();
+        serializer.endDocument();
 
-            // New settings successfully written, old ones are no longer
-            // needed.
-            mBackupSettingsFilename.delete();
-            FileUtils.setPermissions(mSettingsFilename.toString(),
-                    FileUtils.S_IRUSR|FileUtils.S_IWUSR
-                    |FileUtils.S_IRGRP|FileUtils.S_IWGRP,
-                    -1, -1);
-
-            writeKernelMappingLPr();
-            writePackageListLPr();
-            writeAllUsersPackageRestrictionsLPr();
-            writeAllRuntimePermissionsLPr();
-            return;
+        return str.toByteArray();
+    }
 
-        } catch(XmlPullParserException e) {
-            Slog.wtf(PackageManagerService.TAG, "Unable to write package manager settings, "
-                    + "current changes will be lost at reboot", e);
-        } catch(java.io.IOException e) {
-            Slog.wtf(PackageManagerService.TAG, "Unable to write package manager settings, "
-                    + "current changes will be lost at reboot", e);
-        }
-        // Clean up partially written files
-        if (mSettingsFilename.exists()) {
-            if (!mSettingsFilename.delete()) {
-                Slog.wtf(PackageManagerService.TAG, "Failed to clean up mangled file: "
-                        + mSettingsFilename);
-            }
-        }
-        //Debug.stopMethodTracing();
+    /**
+     * Writes any settings files still queued by {@link #writeAsyncLPr()} or
+     * {@link #writePackageRestrictionsAsyncLPr(int)}.
+     */
+    void flushPendingWrites() {
+        mFileWriter.flush();
     }
 
     private void writeKernelRemoveUserLPr(int userId) {
@@ -2720,6 +2707,16 @@ final class Settings {
     }
 
     void writePackageListLPr(int creatingUserId) {
+        writePackageListLPr(creatingUserId, true);
+    }
+
+    /**
+     * Writes packages.list through {@link #mFileWriter}, on its thread unless
+     * {@code sync}. An asynchronous write is committed in the same pass as the
+     * packages.xml write queued with it, so the two files describe the same
+     * packages.
+     */
+    private void writePackageListLPr(int creatingUserId, boolean sync) {
         // Only derive GIDs for active users (not dying)
         final List<UserInfo> users = UserManagerService.getInstance().getUsers(true);
         int[] userIds = new int[users.size()];
@@ -2730,17 +2727,11 @@ final class Settings {
             userIds = ArrayUtils.appendInt(userIds, creatingUserId);
         }
 
-        // Write package list file now, use a JournaledFile.
-        File tempFile = new File(mPackageListFilename.getAbsolutePath() + ".tmp");
-        JournaledFile journal = new JournaledFile(mPackageListFilename, tempFile);
-
-        final File writeTarget = journal.chooseForWrite();
-        FileOutputStream fstr;
-        BufferedWriter writer = null;
+        final byte[] data;
         try {
-            fstr = new FileOutputStream(writeTarget);
-            writer = new BufferedWriter(new OutputStreamWriter(fstr, Charset.defaultCharset()));
-            FileUtils.setPermissions(fstr.getFD(), 0640, SYSTEM_UID, PACKAGE_INFO_GID);
+            final ByteArrayOutputStream str = new ByteArrayOutputStream();
+            final BufferedWriter writer = new BufferedWriter(
+                    new OutputStreamWriter(str, Charset.defaultCharset()));
 
             StringBuilder sb = new StringBuilder();
             for (final PackageSetting pkg : mPackages.values()) {
@@ -2799,13 +2790,19 @@ final class Settings {
                 writer.append(sb);
             }
             writer.flush();
-            FileUtils.sync(fstr);
-            writer.close();
-            journal.commit();
+            data = str.toByteArray();
         } catch (Exception e) {
             Slog.wtf(TAG, "Failed to write packages.list", e);
-            IoUtils.closeQuietly(writer);
-            journal.rollback();
+            return;
+        }
+
+        // Readers outside system_server must never find the file missing, so
+        // it is replaced through a temporary file rather than a backup.
+        if (sync) {
+            mFileWriter.replace(mPackageListFilename, data, 0640, SYSTEM_UID, PACKAGE_INFO_GID);
+        } else {
+            mFileWriter.replaceAsync(mPackageListFilename, data, 0640, SYSTEM_UID,
+                    PACKAGE_INFO_GID);
         }
     }
 
@@ -4277,6 +4274,7 @@ final class Settings {
         }
         mPreferredActivities.remove(userId);
         File file = getUserPackagesStateFile(userId);
+        mFileWriter.cancel(file);
         file.delete();
         file = getUserPackagesStateBackupFile(userId);
         file.delete();
@@ -5098,6 +5096,7 @@ final class Settings {
     void dumpReadMessagesLPr(PrintWriter pw, DumpState dumpState) {
         pw.println("Settings parse messages:");
         pw.print(mReadMessages.toString());
+        mFileWriter.dump(pw);
     }
 
     void dumpRestoredPermissionGrantsLPr(PrintWriter pw, DumpState dumpState) {
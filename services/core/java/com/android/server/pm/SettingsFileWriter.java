@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import android.os.FileUtils;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.ArrayMap;
+import android.util.Slog;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Commits serialized package manager settings files to disk.
+ *
+ * <p>Settings are serialized to memory while holding the package manager
+ * lock. This class then does the slow part, writing and syncing the file,
+ * either right away or later on its own thread. Files whose contents have
+ * not changed since the last write are skipped. Repeated asynchronous writes
+ * of the same file that are still queued collapse into one, and all queued
+ * files are committed together by a single pass of the writer thread, so
+ * files serialized under the same lock hold reach disk back to back.</p>
+ *
+ * <p>Files written with {@link #write} keep the same backup protocol as
+ * before: the old file is renamed to the backup file, the new contents are
+ * written and synced, and the backup is deleted only once that succeeds.
+ * Files written with {@link #replace} are read outside system_server and must
+ * never be missing, so they are written to a temporary file that is renamed
+ * over the old one.</p>
+ */
+final class SettingsFileWriter {
+    private static final String TAG = "SettingsFileWriter";
+
+    private final Handler mHandler;
+
+    /** Serializes disk writes; taken before {@link #mLock} when both are needed. */
+    private final Object mWriteLock = new Object();
+
+    private final Object mLock = new Object();
+
+    /** Latest contents queued for each file. */
+    @GuardedBy("mLock")
+    private final ArrayMap<File, PendingWrite> mPending = new ArrayMap<>();
+
+    /** Digest of the contents last written to each file. */
+    @GuardedBy("mWriteLock")
+    private final ArrayMap<File, byte[]> mWrittenDigests = new ArrayMap<>();
+
+    @GuardedBy("mLock")
+    private long mWriteCount;
+    @GuardedBy("mLock")
+    private long mUnchangedCount;
+    @GuardedBy("mLock")
+    private long mCoalescedCount;
+
+    private static final class PendingWrite {
+        /** Backup file, or null to replace the file through a temporary file. */
+        final File mBackupFile;
+        final byte[] mData;
+        final int mMode;
+        final int mUid;
+        final int mGid;
+
+        PendingWrite(File backupFile, byte[] data) {
+            this(backupFile, data, FileUtils.S_IRUSR|FileUtils.S_IWUSR
+                    |FileUtils.S_IRGRP|FileUtils.S_IWGRP, -1, -1);
+        }
+
+        PendingWrite(File backupFile, byte[] data, int mode, int uid, int gid) {
+            mBackupFile = backupFile;
+            mData = data;
+            mMode = mode;
+            mUid = uid;
+            mGid = gid;
+        }
+    }
+
+    SettingsFileWriter(Looper looper) {
+        mHandler = new Handler(looper);
+    }
+
+    /**
+     * Writes {@code data} to {@code file} before returning, replacing any
+     * queued asynchronous write of the same file.
+     *
+     * @return whether the file now holds {@code data}
+     */
+    boolean write(File file, File backupFile, byte[] data) {
+        return writeNow(file, new PendingWrite(backupFile, data));
+    }
+
+    /**
+     * Queues {@code data} to be written to {@code file} on the writer thread.
+     * Replaces the contents of any write of the same file that is still queued.
+     */
+    void writeAsync(File file, File backupFile, byte[] data) {
+        enqueue(file, new PendingWrite(backupFile, data));
+    }
+
+    /**
+     * Writes {@code data} to {@code file} before returning, through a
+     * temporary file renamed over it, and gives it {@code mode}, {@code uid}
+     * and {@code gid}. Replaces any queued asynchronous write of the same file.
+     *
+     * @return whether the file now holds {@code data}
+     */
+    boolean replace(File file, byte[] data, int mode, int uid, int gid) {
+        return writeNow(file, new PendingWrite(null, data, mode, uid, gid));
+    }
+
+    /**
+     * Like {@link #replace}, but queues the write for the writer thread.
+     */
+    void replaceAsync(File file, byte[] data, int mode, int uid, int gid) {
+        enqueue(file, new PendingWrite(null, data, mode, uid, gid));
+    }
+
+    private boolean writeNow(File file, PendingWrite write) {
+        synchronized (mWriteLock) {
+            synchronized (mLock) {
+                mPending.remove(file);
+            }
+            return writeLocked(file, write);
+        }
+    }
+
+    private void enqueue(File file, PendingWrite write) {
+        synchronized (mLock) {
+            // A pass is already queued if anything is pending; it will pick this write up.
+            final boolean schedule = mPending.isEmpty();
+            if (mPending.put(file, write) != null) {
+                mCoalescedCount++;
+            }
+            if (!schedule) {
+                return;
+            }
+        }
+        mHandler.post(this::flush);
+    }
+
+    /**
+     * Writes every queued file before returning.
+     */
+    void flush() {
+        synchronized (mWriteLock) {
+            final ArrayMap<File, PendingWrite> pending;
+            synchronized (mLock) {
+                pending = new ArrayMap<>(mPending);
+                mPending.clear();
+            }
+            for (int i = 0; i < pending.size(); i++) {
+                writeLocked(pending.keyAt(i), pending.valueAt(i));
+            }
+        }
+    }
+
+    /**
+     * Drops any queued write of {@code file}, which its owner is about to delete.
+     */
+    void cancel(File file) {
+        synchronized (mWriteLock) {
+            synchronized (mLock) {
+                mPending.remove(file);
+            }
+            mWrittenDigests.remove(file);
+        }
+    }
+
+    @GuardedBy("mWriteLock")
+    private boolean writeLocked(File file, PendingWrite write) {
+        final byte[] digest = digest(write.mData);
+        if (digest != null && file.exists()
+                && Arrays.equals(digest, mWrittenDigests.get(file))) {
+            synchronized (mLock) {
+                mUnchangedCount++;
+            }
+            return true;
+        }
+        mWrittenDigests.remove(file);
+
+        file.getParentFile().mkdirs();
+        final boolean written = write.mBackupFile != null
+                ? commitWithBackup(file, write.mBackupFile, write.mData)
+                : commitByRename(file, write);
+        if (!written) {
+            return false;
+        }
+        if (digest != null) {
+            mWrittenDigests.put(file, digest);
+        }
+        synchronized (mLock) {
+            mWriteCount++;
+        }
+        return true;
+    }
+
+    private static boolean commitWithBackup(File file, File backupFile, byte[] data) {
+        // Keep the old file around until we know the new one has been
+        // successfully written.
+        if (file.exists()) {
+            // Presence of a backup file indicates that we failed to persist
+            // earlier, so preserve the older backup since the current file
+            // might have been corrupted.
+            if (!backupFile.exists()) {
+                if (!file.renameTo(backupFile)) {
+                    Slog.wtf(PackageManagerService.TAG, "Unable to backup " + file
+                            + ", current changes will be lost at reboot");
+                    return false;
+                }
+            } else {
+                file.delete();
+                Slog.w(PackageManagerService.TAG, "Preserving older backup " + backupFile);
+            }
+        }
+
+        try (FileOutputStream fstr = new FileOutputStream(file)) {
+            fstr.write(data);
+            FileUtils.sync(fstr);
+        } catch (IOException e) {
+            Slog.wtf(PackageManagerService.TAG, "Unable to write " + file
+                    + ", current changes will be lost at reboot", e);
+            // Clean up partially written files
+            if (file.exists() && !file.delete()) {
+                Slog.wtf(PackageManagerService.TAG, "Failed to clean up mangled file: " + file);
+            }
+            return false;
+        }
+
+        // New file successfully written, the old one is no longer needed.
+        backupFile.delete();
+        FileUtils.setPermissions(file.toString(),
+                FileUtils.S_IRUSR|FileUtils.S_IWUSR
+                |FileUtils.S_IRGRP|FileUtils.S_IWGRP,
+                -1, -1);
+        return true;
+    }
+
+    private static boolean commitByRename(File file, PendingWrite write) {
+        final File tempFile = new File(file.getAbsolutePath() + ".tmp");
+        try (FileOutputStream fstr = new FileOutputStream(tempFile)) {
+            FileUtils.setPermissions(fstr.getFD(), write.mMode, write.mUid, write.mGid);
+            fstr.write(write.mData);
+            FileUtils.sync(fstr);
+        } catch (IOException e) {
+            Slog.wtf(PackageManagerService.TAG, "Failed to write " + file, e);
+            tempFile.delete();
+            return false;
+        }
+        if (!tempFile.renameTo(file)) {
+            Slog.wtf(PackageManagerService.TAG, "Failed to rename " + tempFile + " to " + file);
+            tempFile.delete();
+            return false;
+        }
+        return true;
+    }
+
+    private static byte[] digest(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            Slog.w(TAG, "SHA-256 unavailable, not skipping unchanged writes", e);
+            return null;
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.print("Settings file writes: written="); pw.print(mWriteCount);
+            pw.print(" unchanged="); pw.print(mUnchangedCount);
+            pw.print(" coalesced="); pw.print(mCoalescedCount);
+            pw.print(" pending="); pw.println(mPending.size());
+        }
+    }
+}
@@ -19,21 +19,32 @@ package com.android.server.pm.dex;
 import android.util.AtomicFile;
 import android.util.Slog;
 import android.os.Build;
+import android.os.FileUtils;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.util.FastPrintWriter;
 import com.android.server.pm.AbstractStatsBase;
 import com.android.server.pm.PackageManagerServiceUtils;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.PushbackInputStream;
 import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -86,6 +97,20 @@ public class PackageDexUsage extends AbstractStatsBase<Void> {
     /*package*/ static final String UNKNOWN_CLASS_LOADER_CONTEXT =
             "=UnknownClassLoaderContext=";
 
+    // Dex loads recorded since the last write are appended to a binary journal next to the
+    // main file, so that a new secondary dex file costs a few bytes of I/O rather than a
+    // rewrite of the whole file. Strings are written once per journal and referred to by
+    // index afterwards. The main file is rewritten, and the journal dropped, once the journal
+    // holds more than MAX_JOURNAL_RECORDS records or after a change other than a dex load.
+    // The journal is emptied before a rewrite is committed, so that a crash in between can
+    // never replay it on top of a main file that already holds, or has dropped, its records.
+    private final static String JOURNAL_FILE_NAME = "package-dex-usage.journal";
+    private final static int JOURNAL_MAGIC = 0x50445544; // "PDUD"
+    private final static int JOURNAL_VERSION = 1;
+    private final static int JOURNAL_RECORD_TAG = 1;
+    private final static int JOURNAL_NULL_STRING = -1;
+    /*package*/ final static int MAX_JOURNAL_RECORDS = 512;
+
     // Map which structures the information we have on a package.
     // Maps package name to package data (which stores info about UsedByOtherApps and
     // secondary dex files.).
@@ -93,6 +118,26 @@ public class PackageDexUsage extends AbstractStatsBase<Void> {
     @GuardedBy("mPackageUseInfoMap")
     private final Map<String, PackageUseInfo> mPackageUseInfoMap;
 
+    // Dex loads recorded since the last write, to be appended to the journal.
+    @GuardedBy("mPackageUseInfoMap")
+    private final List<DexLoad> mPendingDexLoads = new ArrayList<>();
+
+    // Whether the next write must rewrite the main file rather than append to the journal.
+    @GuardedBy("mPackageUseInfoMap")
+    private boolean mNeedsFullWrite;
+
+    private final Object mJournalLock = new Object();
+
+    // The strings defined so far in the journal, by index, and their indices.
+    @GuardedBy("mJournalLock")
+    private final List<String> mJournalStrings = new ArrayList<>();
+    @GuardedBy("mJournalLock")
+    private final Map<String, Integer> mJournalStringIndices = new HashMap<>();
+
+    // Number of records in the journal; 0 if it has yet to be started.
+    @GuardedBy("mJournalLock")
+    private int mJournalRecordCount;
+
     public PackageDexUsage() {
         super("package-dex-usage.list", "PackageDexUsage_DiskWriter", /*lock*/ false);
         mPackageUseInfoMap = new HashMap<>();
@@ -119,6 +164,23 @@ public class PackageDexUsage extends AbstractStatsBase<Void> {
     public boolean record(String owningPackageName, String dexPath, int ownerUserId,
             String loaderIsa, boolean isUsedByOtherApps, boolean primaryOrSplit,
             String loadingPackageName, String classLoaderContext) {
+        // Both under one hold of the lock, so that a write in between can never see the
+        // update without its pending journal record.
+        synchronized (mPackageUseInfoMap) {
+            boolean updated = recordInternal(owningPackageName, dexPath, ownerUserId, loaderIsa,
+                    isUsedByOtherApps, primaryOrSplit, loadingPackageName, classLoaderContext);
+            if (updated) {
+                mPendingDexLoads.add(new DexLoad(owningPackageName, dexPath, ownerUserId,
+                        loaderIsa, isUsedByOtherApps, primaryOrSplit, loadingPackageName,
+                        classLoaderContext));
+            }
+            return updated;
+        }
+    }
+
+    private boolean recordInternal(String owningPackageName, String dexPath, int ownerUserId,
+            String loaderIsa, boolean isUsedByOtherApps, boolean primaryOrSplit,
+            String loadingPackageName, String classLoaderContext) {
         if (!PackageManagerServiceUtils.checkISA(loaderIsa)) {
             throw new IllegalArgumentException("loaderIsa " + loaderIsa + " is unsupported");
         }
@@ -211,6 +273,28 @@ public class PackageDexUsage extends AbstractStatsBase<Void> {
 
     @Override
     protected void writeInternal(Void data) {
+        synchronized (mJournalLock) {
+            final boolean fullWrite;
+            synchronized (mPackageUseInfoMap) {
+                fullWrite = mNeedsFullWrite
+                        || mJournalRecordCount + mPendingDexLoads.size() > MAX_JOURNAL_RECORDS;
+                if (fullWrite) {
+                    // Loads recorded from here on are in the snapshot and may also end up in
+                    // the next journal, which is harmless since replaying a load is idempotent.
+                    mPendingDexLoads.clear();
+                    mNeedsFullWrite = false;
+                }
+            }
+            if (fullWrite) {
+                writeFullLocked();
+            } else {
+                appendJournalLocked();
+            }
+        }
+    }
+
+    @GuardedBy("mJournalLock")
+    private void writeFullLocked() {
         AtomicFile file = getFile();
         FileOutputStream f = null;
 
@@ -219,15 +303,188 @@ public class PackageDexUsage extends AbstractStatsBase<Void> {
             OutputStreamWriter osw = new OutputStreamWriter(f);
             write(osw);
             osw.flush();
+            // Everything in the journal is in the new main file. Empty it before the new file
+            // replaces the old one: a crash in between then loses the journaled loads, which
+            // are recorded again the next time the app loads them, rather than replaying the
+            // journal over a main file that may have dropped its packages since.
+            truncateJournalLocked();
             file.finishWrite(f);
         } catch (IOException e) {
             if (f != null) {
                 file.failWrite(f);
             }
             Slog.e(TAG, "Failed to write usage for dex files", e);
+            synchronized (mPackageUseInfoMap) {
+                mNeedsFullWrite = true;
+            }
+            return;
+        }
+
+        getJournalFile().delete();
+    }
+
+    @GuardedBy("mJournalLock")
+    private void truncateJournalLocked() throws IOException {
+        File journalFile = getJournalFile();
+        if (journalFile.exists()) {
+            try (FileOutputStream out = new FileOutputStream(journalFile, /*append*/ false)) {
+                FileUtils.sync(out);
+            }
+        }
+        resetJournalLocked();
+    }
+
+    @GuardedBy("mJournalLock")
+    private void appendJournalLocked() {
+        synchronized (mPackageUseInfoMap) {
+            if (mPendingDexLoads.isEmpty()) {
+                return;
+            }
+        }
+        // Start the journal over if it has no records yet; it may hold a partial write.
+        try (FileOutputStream out = new FileOutputStream(getJournalFile(),
+                /*append*/ mJournalRecordCount > 0)) {
+            writeJournal(out);
+            FileUtils.sync(out);
+        } catch (IOException e) {
+            Slog.e(TAG, "Failed to append to dex usage journal", e);
+            resetJournalLocked();
+            synchronized (mPackageUseInfoMap) {
+                mNeedsFullWrite = true;
+            }
+        }
+    }
+
+    private File getJournalFile() {
+        return new File(getFile().getBaseFile().getParentFile(), JOURNAL_FILE_NAME);
+    }
+
+    @GuardedBy("mJournalLock")
+    private void resetJournalLocked() {
+        mJournalStrings.clear();
+        mJournalStringIndices.clear();
+        mJournalRecordCount = 0;
+    }
+
+    /**
+     * Writes the dex loads recorded since the last write to {@code out}, preceded by the
+     * journal header if the journal has no records yet.
+     *
+     * Journal format, all values as written by {@link DataOutputStream}:
+     *
+     * magic, version
+     * tag, owning_package, dex_path, owner_user_id, loader_isa, is_used_by_other_apps,
+     *     primary_or_split, loading_package, class_loader_context
+     * ...
+     *
+     * Strings are written as an index into the strings defined so far in the journal, followed
+     * by the string itself when the index is a new one.
+     */
+    /* package */ void writeJournal(OutputStream out) throws IOException {
+        final List<DexLoad> dexLoads;
+        synchronized (mPackageUseInfoMap) {
+            dexLoads = new ArrayList<>(mPendingDexLoads);
+            mPendingDexLoads.clear();
+        }
+        synchronized (mJournalLock) {
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out));
+            if (mJournalRecordCount == 0) {
+                resetJournalLocked();
+                dos.writeInt(JOURNAL_MAGIC);
+                dos.writeInt(JOURNAL_VERSION);
+            }
+            for (DexLoad dexLoad : dexLoads) {
+                dos.writeByte(JOURNAL_RECORD_TAG);
+                writeJournalString(dos, dexLoad.mOwningPackageName);
+                writeJournalString(dos, dexLoad.mDexPath);
+                dos.writeInt(dexLoad.mOwnerUserId);
+                writeJournalString(dos, dexLoad.mLoaderIsa);
+                dos.writeBoolean(dexLoad.mIsUsedByOtherApps);
+                dos.writeBoolean(dexLoad.mPrimaryOrSplit);
+                writeJournalString(dos, dexLoad.mLoadingPackageName);
+                writeJournalString(dos, dexLoad.mClassLoaderContext);
+                mJournalRecordCount++;
+            }
+            dos.flush();
+        }
+    }
+
+    @GuardedBy("mJournalLock")
+    private void writeJournalString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(JOURNAL_NULL_STRING);
+            return;
+        }
+        Integer index = mJournalStringIndices.get(s);
+        if (index != null) {
+            out.writeInt(index);
+        } else {
+            out.writeInt(mJournalStrings.size());
+            out.writeUTF(s);
+            mJournalStringIndices.put(s, mJournalStrings.size());
+            mJournalStrings.add(s);
+        }
+    }
+
+    /**
+     * Replays the dex loads in the journal read from {@code in} on top of the current data.
+     * Stops at the end of the last complete record. An empty journal, left by a rewrite of the
+     * main file, holds no records.
+     */
+    /* package */ void readJournal(InputStream in) throws IOException {
+        synchronized (mJournalLock) {
+            resetJournalLocked();
+            PushbackInputStream pin = new PushbackInputStream(in);
+            int first = pin.read();
+            if (first == -1) {
+                return;
+            }
+            pin.unread(first);
+            DataInputStream dis = new DataInputStream(pin);
+            if (dis.readInt() != JOURNAL_MAGIC || dis.readInt() != JOURNAL_VERSION) {
+                throw new IOException("Invalid dex usage journal header");
+            }
+            int tag;
+            while ((tag = dis.read()) != -1) {
+                if (tag != JOURNAL_RECORD_TAG) {
+                    throw new IOException("Invalid dex usage journal record tag " + tag);
+                }
+                String owningPackageName = readJournalString(dis);
+                String dexPath = readJournalString(dis);
+                int ownerUserId = dis.readInt();
+                String loaderIsa = readJournalString(dis);
+                boolean isUsedByOtherApps = dis.readBoolean();
+                boolean primaryOrSplit = dis.readBoolean();
+                String loadingPackageName = readJournalString(dis);
+                String classLoaderContext = readJournalString(dis);
+                try {
+                    recordInternal(owningPackageName, dexPath, ownerUserId, loaderIsa,
+                            isUsedByOtherApps, primaryOrSplit, loadingPackageName,
+                            classLoaderContext);
+                } catch (IllegalArgumentException e) {
+                    Slog.w(TAG, "Ignoring invalid dex usage journal record", e);
+                }
+                mJournalRecordCount++;
+            }
         }
     }
 
+    @GuardedBy("mJournalLock")
+    private String readJournalString(DataInputStream in) throws IOException {
+        final int index = in.readInt();
+        if (index == JOURNAL_NULL_STRING) {
+            return null;
+        } else if (index < mJournalStrings.size()) {
+            return mJournalStrings.get(index);
+        } else if (index == mJournalStrings.size()) {
+            String s = in.readUTF();
+            mJournalStringIndices.put(s, index);
+            mJournalStrings.add(s);
+            return s;
+        }
+        throw new IOException("Invalid dex usage journal string index " + index);
+    }
+
     /**
      * File format:
      *
@@ -305,6 +562,26 @@ public class PackageDexUsage extends AbstractStatsBase<Void> {
         } finally {
             IoUtils.closeQuietly(in);
         }
+
+        InputStream journalIn = null;
+        try {
+            journalIn = new BufferedInputStream(new FileInputStream(getJournalFile()));
+            readJournal(journalIn);
+        } catch (FileNotFoundException expected) {
+            // Nothing was recorded since the main file was last written.
+        } catch (IOException e) {
+            // Most likely a record cut short by a crash. Keep what we could read and fold it
+            // into the main file on the next write.
+            Slog.w(TAG, "Failed to read package dex usage journal.", e);
+            synchronized (mJournalLock) {
+                resetJournalLocked();
+            }
+            synchronized (mPackageUseInfoMap) {
+                mNeedsFullWrite = true;
+            }
+        } finally {
+            IoUtils.closeQuietly(journalIn);
+        }
     }
 
     /* package */ void read(Reader reader) throws IOException {
@@ -489,6 +766,8 @@ public class PackageDexUsage extends AbstractStatsBase<Void> {
     /*package*/ void syncData(Map<String, Set<Integer>> packageToUsersMap,
             Map<String, Set<String>> packageToCodePaths) {
         synchronized (mPackageUseInfoMap) {
+            // Entries may be pruned or amended below, which the journal can't express.
+            mNeedsFullWrite = true;
             Iterator<Map.Entry<String, PackageUseInfo>> pIt =
                     mPackageUseInfoMap.entrySet().iterator();
             while (pIt.hasNext()) {
@@ -550,7 +829,9 @@ public class PackageDexUsage extends AbstractStatsBase<Void> {
             if (packageUseInfo == null) {
                 return false;
             }
-            return packageUseInfo.clearCodePathUsedByOtherApps();
+            boolean updated = packageUseInfo.clearCodePathUsedByOtherApps();
+            mNeedsFullWrite |= updated;
+            return updated;
         }
     }
 
@@ -560,7 +841,9 @@ public class PackageDexUsage extends AbstractStatsBase<Void> {
      */
     public boolean removePackage(String packageName) {
         synchronized (mPackageUseInfoMap) {
-            return mPackageUseInfoMap.remove(packageName) != null;
+            boolean updated = mPackageUseInfoMap.remove(packageName) != null;
+            mNeedsFullWrite |= updated;
+            return updated;
         }
     }
 
@@ -594,6 +877,7 @@ public class PackageDexUsage extends AbstractStatsBase<Void> {
                 mPackageUseInfoMap.remove(packageName);
                 updated = true;
             }
+            mNeedsFullWrite |= updated;
             return updated;
         }
     }
@@ -610,7 +894,9 @@ public class PackageDexUsage extends AbstractStatsBase<Void> {
             if (packageUseInfo == null) {
                 return false;
             }
-            return removeDexFile(packageUseInfo, dexFile, userId);
+            boolean updated = removeDexFile(packageUseInfo, dexFile, userId);
+            mNeedsFullWrite |= updated;
+            return updated;
         }
     }
 
@@ -656,6 +942,8 @@ public class PackageDexUsage extends AbstractStatsBase<Void> {
     public void clear() {
         synchronized (mPackageUseInfoMap) {
             mPackageUseInfoMap.clear();
+            mPendingDexLoads.clear();
+            mNeedsFullWrite = true;
         }
     }
     // Creates a deep copy of the class' mPackageUseInfoMap.
@@ -679,6 +967,33 @@ public class PackageDexUsage extends AbstractStatsBase<Void> {
         throw new IllegalArgumentException("Unknown bool encoding: " + bool);
     }
 
+    /**
+     * A dex load that added information, as passed to {@link #record}.
+     */
+    private static class DexLoad {
+        private final String mOwningPackageName;
+        private final String mDexPath;
+        private final int mOwnerUserId;
+        private final String mLoaderIsa;
+        private final boolean mIsUsedByOtherApps;
+        private final boolean mPrimaryOrSplit;
+        private final String mLoadingPackageName;
+        private final String mClassLoaderContext;
+
+        private DexLoad(String owningPackageName, String dexPath, int ownerUserId,
+                String loaderIsa, boolean isUsedByOtherApps, boolean primaryOrSplit,
+                String loadingPackageName, String classLoaderContext) {
+            mOwningPackageName = owningPackageName;
+            mDexPath = dexPath;
+            mOwnerUserId = ownerUserId;
+            mLoaderIsa = loaderIsa;
+            mIsUsedByOtherApps = isUsedByOtherApps;
+            mPrimaryOrSplit = primaryOrSplit;
+            mLoadingPackageName = loadingPackageName;
+            mClassLoaderContext = classLoaderContext;
+        }
+    }
+
     public String dump() {
         StringWriter sw = new StringWriter();
         write(sw);
@@ -64,6 +64,7 @@ import android.service.power.SuspendBlockerProto;
 import android.service.power.WakeLockProto;
 import android.service.vr.IVrManager;
 import android.service.vr.IVrStateCallbacks;
+import android.util.ArraySet;
 import android.util.EventLog;
 import android.util.KeyValueListParser;
 import android.util.Log;
@@ -269,6 +270,11 @@ public final class PowerManagerService extends SystemService
     // A bitfield that summarizes the state of all active wakelocks.
     private int mWakeLockSummary;
 
+    // Number of wake locks contributing each bit of the summary before it is adjusted for the
+    // current wakefulness, indexed by bit number.  Kept up to date as wake locks come and go
+    // so the summary does not have to be recomputed from every wake lock.
+    private final int[] mWakeLockSummaryCounts = new int[Integer.SIZE];
+
     // Have we scheduled a message to check for long wake locks?  This is when we will check.
     private long mNotifyLongScheduled;
 
@@ -540,11 +546,18 @@ public final class PowerManagerService extends SystemService
 
     private final SparseArray<UidState> mUidState = new SparseArray<>();
 
+    // Time spent in each phase of updatePowerStateLocked, for dumpsys.
+    private static final String[] UPDATE_PHASE_NAMES = {
+            "basic", "wakefulness", "display", "dream", "notify", "suspend" };
+    private final long[] mUpdatePhaseTotalNanos = new long[UPDATE_PHASE_NAMES.length];
+    private final long[] mUpdatePhaseMaxNanos = new long[UPDATE_PHASE_NAMES.length];
+    private long mUpdatePowerStateCount;
+
     // We are currently in the middle of a batch change of uids.
     private boolean mUidsChanging;
 
-    // Some uids have actually changed while mUidsChanging was true.
-    private boolean mUidsChanged;
+    // Uids that have actually changed while mUidsChanging was true.
+    private final ArraySet<UidState> mChangedUidStates = new ArraySet<>();
 
     // True if theater mode is enabled
     private boolean mTheaterModeEnabled;
@@ -605,8 +618,12 @@ public final class PowerManagerService extends SystemService
                     Slog.e(TAG, "Bad alarm manager settings", e);
                 }
 
+                final boolean noCachedWakeLocks = NO_CACHED_WAKE_LOCKS;
                 NO_CACHED_WAKE_LOCKS = mParser.getBoolean(KEY_NO_CACHED_WAKE_LOCKS,
                         DEFAULT_NO_CACHED_WAKE_LOCKS);
+                if (noCachedWakeLocks != NO_CACHED_WAKE_LOCKS) {
+                    updateWakeLockDisabledStatesLocked();
+                }
             }
         }
 
@@ -1034,7 +1051,8 @@ public final class PowerManagerService extends SystemService
         updatePowerStateLocked();
     }
 
-    private void acquireWakeLockInternal(IBinder lock, int flags, String tag, String packageName,
+    @VisibleForTesting
+    void acquireWakeLockInternal(IBinder lock, int flags, String tag, String packageName,
             WorkSource ws, String historyTag, int uid, int pid) {
         synchronized (mLock) {
             if (DEBUG_SPEW) {
@@ -1052,7 +1070,13 @@ public final class PowerManagerService extends SystemService
                     // Update existing wake lock.  This shouldn't happen but is harmless.
                     notifyWakeLockChangingLocked(wakeLock, flags, tag, packageName,
                             uid, pid, ws, historyTag);
+                    // updateProperties() throws if the owner changed, so only move the wake
+                    // lock's summary counts once it has succeeded.
+                    final int oldSummaryFlags =
+                            getWakeLockSummaryFlags(wakeLock.mFlags, wakeLock.mDisabled);
                     wakeLock.updateProperties(flags, tag, packageName, ws, historyTag, uid, pid);
+                    addWakeLockSummaryCounts(mWakeLockSummaryCounts, oldSummaryFlags, -1);
+                    updateWakeLockSummaryCountsLocked(wakeLock, 1);
                 }
                 notifyAcquire = false;
             } else {
@@ -1062,7 +1086,6 @@ public final class PowerManagerService extends SystemService
                     state.mProcState = ActivityManager.PROCESS_STATE_NONEXISTENT;
                     mUidState.put(uid, state);
                 }
-                state.mNumWakeLocks++;
                 wakeLock = new WakeLock(lock, flags, tag, packageName, ws, historyTag, uid, pid,
                         state);
                 try {
@@ -1071,7 +1094,9 @@ public final class PowerManagerService extends SystemService
                     throw new IllegalArgumentException("Wake lock is already dead.");
                 }
                 mWakeLocks.add(wakeLock);
+                state.mWakeLocks.add(wakeLock);
                 setWakeLockDisabledStateLocked(wakeLock);
+                updateWakeLockSummaryCountsLocked(wakeLock, 1);
                 notifyAcquire = true;
             }
 
@@ -1118,7 +1143,8 @@ public final class PowerManagerService extends SystemService
         }
     }
 
-    private void releaseWakeLockInternal(IBinder lock, int flags) {
+    @VisibleForTesting
+    void releaseWakeLockInternal(IBinder lock, int flags) {
         synchronized (mLock) {
             int index = findWakeLockIndexLocked(lock);
             if (index < 0) {
@@ -1162,9 +1188,10 @@ public final class PowerManagerService extends SystemService
 
     private void removeWakeLockLocked(WakeLock wakeLock, int index) {
         mWakeLocks.remove(index);
+        updateWakeLockSummaryCountsLocked(wakeLock, -1);
         UidState state = wakeLock.mUidState;
-        state.mNumWakeLocks--;
-        if (state.mNumWakeLocks <= 0 &&
+        state.mWakeLocks.remove(wakeLock);
+        if (state.mWakeLocks.isEmpty() &&
                 state.mProcState == ActivityManager.PROCESS_STATE_NONEXISTENT) {
             mUidState.remove(state.mUid);
         }
@@ -1646,10 +1673,14 @@ public final class PowerManagerService extends SystemService
 
         Trace.traceBegin(Trace.TRACE_TAG_POWER, "updatePowerState");
         try {
+            mUpdatePowerStateCount++;
+            long phaseStart = System.nanoTime();
+
             // Phase 0: Basic state updates.
             updateIsPoweredLocked(mDirty);
             updateStayOnLocked(mDirty);
             updateScreenBrightnessBoostLocked(mDirty);
+            phaseStart = recordUpdatePhaseLocked(0, phaseStart);
 
             // Phase 1: Update wakefulness.
             // Loop because the wake lock and user activity computations are influenced
@@ -1667,25 +1698,40 @@ public final class PowerManagerService extends SystemService
                     break;
                 }
             }
+            phaseStart = recordUpdatePhaseLocked(1, phaseStart);
 
             // Phase 2: Update display power state.
             boolean displayBecameReady = updateDisplayPowerStateLocked(dirtyPhase2);
+            phaseStart = recordUpdatePhaseLocked(2, phaseStart);
 
             // Phase 3: Update dream state (depends on display ready signal).
             updateDreamLocked(dirtyPhase2, displayBecameReady);
+            phaseStart = recordUpdatePhaseLocked(3, phaseStart);
 
             // Phase 4: Send notifications, if needed.
             finishWakefulnessChangeIfNeededLocked();
+            phaseStart = recordUpdatePhaseLocked(4, phaseStart);
 
             // Phase 5: Update suspend blocker.
             // Because we might release the last suspend blocker here, we need to make sure
             // we finished everything else first!
             updateSuspendBlockerLocked();
+            recordUpdatePhaseLocked(5, phaseStart);
         } finally {
             Trace.traceEnd(Trace.TRACE_TAG_POWER);
         }
     }
 
+    private long recordUpdatePhaseLocked(int phase, long phaseStart) {
+        final long now = System.nanoTime();
+        final long duration = now - phaseStart;
+        mUpdatePhaseTotalNanos[phase] += duration;
+        if (duration > mUpdatePhaseMaxNanos[phase]) {
+            mUpdatePhaseMaxNanos[phase] = duration;
+        }
+        return now;
+    }
+
     /**
      * Updates the value of mIsPowered.
      * Sets DIRTY_IS_POWERED if a change occurred.
@@ -1819,35 +1865,9 @@ public final class PowerManagerService extends SystemService
     private void updateWakeLockSummaryLocked(int dirty) {
         if ((dirty & (DIRTY_WAKE_LOCKS | DIRTY_WAKEFULNESS)) != 0) {
             mWakeLockSummary = 0;
-
-            final int numWakeLocks = mWakeLocks.size();
-            for (int i = 0; i < numWakeLocks; i++) {
-                final WakeLock wakeLock = mWakeLocks.get(i);
-                switch (wakeLock.mFlags & PowerManager.WAKE_LOCK_LEVEL_MASK) {
-                    case PowerManager.PARTIAL_WAKE_LOCK:
-                        if (!wakeLock.mDisabled) {
-                            // We only respect this if the wake lock is not disabled.
-                            mWakeLockSummary |= WAKE_LOCK_CPU;
-                        }
-                        break;
-                    case PowerManager.FULL_WAKE_LOCK:
-                        mWakeLockSummary |= WAKE_LOCK_SCREEN_BRIGHT | WAKE_LOCK_BUTTON_BRIGHT;
-                        break;
-                    case PowerManager.SCREEN_BRIGHT_WAKE_LOCK:
-                        mWakeLockSummary |= WAKE_LOCK_SCREEN_BRIGHT;
-                        break;
-                    case PowerManager.SCREEN_DIM_WAKE_LOCK:
-                        mWakeLockSummary |= WAKE_LOCK_SCREEN_DIM;
-                        break;
-                    case PowerManager.PROXIMITY_SCREEN_OFF_WAKE_LOCK:
-                        mWakeLockSummary |= WAKE_LOCK_PROXIMITY_SCREEN_OFF;
-                        break;
-                    case PowerManager.DOZE_WAKE_LOCK:
-                        mWakeLockSummary |= WAKE_LOCK_DOZE;
-                        break;
-                    case PowerManager.DRAW_WAKE_LOCK:
-                        mWakeLockSummary |= WAKE_LOCK_DRAW;
-                        break;
+            for (int bit = 0; bit < mWakeLockSummaryCounts.length; bit++) {
+                if (mWakeLockSummaryCounts[bit] > 0) {
+                    mWakeLockSummary |= 1 << bit;
                 }
             }
 
@@ -1884,6 +1904,78 @@ public final class PowerManagerService extends SystemService
         }
     }
 
+    /**
+     * Returns the summary bits contributed by a wake lock, before they are adjusted for the
+     * current wakefulness.
+     */
+    @SuppressWarnings("deprecation")
+    private static int getWakeLockSummaryFlags(int wakeLockFlags, boolean disabled) {
+        switch (wakeLockFlags & PowerManager.WAKE_LOCK_LEVEL_MASK) {
+            case PowerManager.PARTIAL_WAKE_LOCK:
+                // We only respect this if the wake lock is not disabled.
+                return disabled ? 0 : WAKE_LOCK_CPU;
+            case PowerManager.FULL_WAKE_LOCK:
+                return WAKE_LOCK_SCREEN_BRIGHT | WAKE_LOCK_BUTTON_BRIGHT;
+            case PowerManager.SCREEN_BRIGHT_WAKE_LOCK:
+                return WAKE_LOCK_SCREEN_BRIGHT;
+            case PowerManager.SCREEN_DIM_WAKE_LOCK:
+                return WAKE_LOCK_SCREEN_DIM;
+            case PowerManager.PROXIMITY_SCREEN_OFF_WAKE_LOCK:
+                return WAKE_LOCK_PROXIMITY_SCREEN_OFF;
+            case PowerManager.DOZE_WAKE_LOCK:
+                return WAKE_LOCK_DOZE;
+            case PowerManager.DRAW_WAKE_LOCK:
+                return WAKE_LOCK_DRAW;
+        }
+        return 0;
+    }
+
+    /**
+     * Adds (delta 1) or removes (delta -1) a wake lock's contribution to
+     * mWakeLockSummaryCounts.  Must be called around any change to the wake lock's level
+     * or disabled state.
+     */
+    private void updateWakeLockSummaryCountsLocked(WakeLock wakeLock, int delta) {
+        addWakeLockSummaryCounts(mWakeLockSummaryCounts,
+                getWakeLockSummaryFlags(wakeLock.mFlags, wakeLock.mDisabled), delta);
+    }
+
+    private static void addWakeLockSummaryCounts(int[] counts, int flags, int delta) {
+        while (flags != 0) {
+            final int bit = Integer.numberOfTrailingZeros(flags);
+            counts[bit] += delta;
+            flags &= ~(1 << bit);
+        }
+    }
+
+    @VisibleForTesting
+    int[] getWakeLockSummaryCounts() {
+        synchronized (mLock) {
+            return mWakeLockSummaryCounts.clone();
+        }
+    }
+
+    /**
+     * Computes the wake lock summary counts from scratch, re-evaluating the disabled state of
+     * every wake lock, for checking them against the incrementally kept ones.  Changes nothing.
+     */
+    @VisibleForTesting
+    int[] computeWakeLockSummaryCounts() {
+        synchronized (mLock) {
+            final int[] counts = new int[Integer.SIZE];
+            final int numWakeLocks = mWakeLocks.size();
+            for (int i = 0; i < numWakeLocks; i++) {
+                final WakeLock wakeLock = mWakeLocks.get(i);
+                final boolean disabled = (wakeLock.mFlags & PowerManager.WAKE_LOCK_LEVEL_MASK)
+                        == PowerManager.PARTIAL_WAKE_LOCK
+                        ? isWakeLockDisabledLocked(wakeLock) : wakeLock.mDisabled;
+                addWakeLockSummaryCounts(counts,
+                        getWakeLockSummaryFlags(wakeLock.mFlags, disabled), 1);
+            }
+            return counts;
+        }
+    }
+
     void checkForLongWakeLocks() {
         synchronized (mLock) {
             final long now = SystemClock.uptimeMillis();
@@ -2858,18 +2950,26 @@ public final class PowerManagerService extends SystemService
     void finishUidChangesInternal() {
         synchronized (mLock) {
             mUidsChanging = false;
-            if (mUidsChanged) {
-                updateWakeLockDisabledStatesLocked();
-                mUidsChanged = false;
+            if (!mChangedUidStates.isEmpty()) {
+                boolean changed = false;
+                for (int i = mChangedUidStates.size() - 1; i >= 0; i--) {
+                    changed |= updateWakeLockDisabledStatesLocked(mChangedUidStates.valueAt(i));
+                }
+                mChangedUidStates.clear();
+                if (changed) {
+                    mDirty |= DIRTY_WAKE_LOCKS;
+                    updatePowerStateLocked();
+                }
             }
         }
     }
 
-    private void handleUidStateChangeLocked() {
+    private void handleUidStateChangeLocked(UidState state) {
         if (mUidsChanging) {
-            mUidsChanged = true;
-        } else {
-            updateWakeLockDisabledStatesLocked();
+            mChangedUidStates.add(state);
+        } else if (updateWakeLockDisabledStatesLocked(state)) {
+            mDirty |= DIRTY_WAKE_LOCKS;
+            updatePowerStateLocked();
         }
     }
 
@@ -2883,14 +2983,14 @@ public final class PowerManagerService extends SystemService
             final boolean oldShouldAllow = state.mProcState
                     <= ActivityManager.PROCESS_STATE_RECEIVER;
             state.mProcState = procState;
-            if (state.mNumWakeLocks > 0) {
+            if (!state.mWakeLocks.isEmpty()) {
                 if (mDeviceIdleMode) {
-                    handleUidStateChangeLocked();
+                    handleUidStateChangeLocked(state);
                 } else if (!state.mActive && oldShouldAllow !=
                         (procState <= ActivityManager.PROCESS_STATE_RECEIVER)) {
                     // If this uid is not active, but the process state has changed such
                     // that we may still want to allow it to hold a wake lock, then take care of it.
-                    handleUidStateChangeLocked();
+                    handleUidStateChangeLocked(state);
                 }
             }
         }
@@ -2904,8 +3004,8 @@ public final class PowerManagerService extends SystemService
                 state.mProcState = ActivityManager.PROCESS_STATE_NONEXISTENT;
                 state.mActive = false;
                 mUidState.removeAt(index);
-                if (mDeviceIdleMode && state.mNumWakeLocks > 0) {
-                    handleUidStateChangeLocked();
+                if (mDeviceIdleMode && !state.mWakeLocks.isEmpty()) {
+                    handleUidStateChangeLocked(state);
                 }
             }
         }
@@ -2920,8 +3020,8 @@ public final class PowerManagerService extends SystemService
                 mUidState.put(uid, state);
             }
             state.mActive = true;
-            if (state.mNumWakeLocks > 0) {
-                handleUidStateChangeLocked();
+            if (!state.mWakeLocks.isEmpty()) {
+                handleUidStateChangeLocked(state);
             }
         }
     }
@@ -2931,30 +3031,20 @@ public final class PowerManagerService extends SystemService
             UidState state = mUidState.get(uid);
             if (state != null) {
                 state.mActive = false;
-                if (state.mNumWakeLocks > 0) {
-                    handleUidStateChangeLocked();
+                if (!state.mWakeLocks.isEmpty()) {
+                    handleUidStateChangeLocked(state);
                 }
             }
         }
     }
 
     private void updateWakeLockDisabledStatesLocked() {
+        // Every wake lock is about to be looked at, so pending uid changes are covered.
+        mChangedUidStates.clear();
         boolean changed = false;
         final int numWakeLocks = mWakeLocks.size();
         for (int i = 0; i < numWakeLocks; i++) {
-            final WakeLock wakeLock = mWakeLocks.get(i);
-            if ((wakeLock.mFlags & PowerManager.WAKE_LOCK_LEVEL_MASK)
-                    == PowerManager.PARTIAL_WAKE_LOCK) {
-                if (setWakeLockDisabledStateLocked(wakeLock)) {
-                    changed = true;
-                    if (wakeLock.mDisabled) {
-                        // This wake lock is no longer being respected.
-                        notifyWakeLockReleasedLocked(wakeLock);
-                    } else {
-                        notifyWakeLockAcquiredLocked(wakeLock);
-                    }
-                }
-            }
+            changed |= updateWakeLockDisabledStateLocked(mWakeLocks.get(i));
         }
         if (changed) {
             mDirty |= DIRTY_WAKE_LOCKS;
@@ -2962,31 +3052,42 @@ public final class PowerManagerService extends SystemService
         }
     }
 
+    /**
+     * Updates the disabled state of the wake locks held through one uid state, returning
+     * whether any changed.  Leaves updating the power state to the caller.
+     */
+    private boolean updateWakeLockDisabledStatesLocked(UidState state) {
+        boolean changed = false;
+        final int numWakeLocks = state.mWakeLocks.size();
+        for (int i = 0; i < numWakeLocks; i++) {
+            changed |= updateWakeLockDisabledStateLocked(state.mWakeLocks.get(i));
+        }
+        return changed;
+    }
+
+    private boolean updateWakeLockDisabledStateLocked(WakeLock wakeLock) {
+        if ((wakeLock.mFlags & PowerManager.WAKE_LOCK_LEVEL_MASK)
+                != PowerManager.PARTIAL_WAKE_LOCK) {
+            return false;
+        }
+        updateWakeLockSummaryCountsLocked(wakeLock, -1);
+        final boolean changed = setWakeLockDisabledStateLocked(wakeLock);
+        updateWakeLockSummaryCountsLocked(wakeLock, 1);
+        if (changed) {
+            if (wakeLock.mDisabled) {
+                // This wake lock is no longer being respected.
+                notifyWakeLockReleasedLocked(wakeLock);
+            } else {
+                notifyWakeLockAcquiredLocked(wakeLock);
+            }
+        }
+        return changed;
+    }
+
     private boolean setWakeLockDisabledStateLocked(WakeLock wakeLock) {
         if ((wakeLock.mFlags & PowerManager.WAKE_LOCK_LEVEL_MASK)
                 == PowerManager.PARTIAL_WAKE_LOCK) {
-            boolean disabled = false;
-            final int appid = UserHandle.getAppId(wakeLock.mOwnerUid);
-            if (appid >= Process.FIRST_APPLICATION_UID) {
-                // Cached inactive processes are never allowed to hold wake locks.
-                if (mConstants.NO_CACHED_WAKE_LOCKS) {
-                    disabled = !wakeLock.mUidState.mActive &&
-                            wakeLock.mUidState.mProcState
-                                    != ActivityManager.PROCESS_STATE_NONEXISTENT &&
-                            wakeLock.mUidState.mProcState > ActivityManager.PROCESS_STATE_RECEIVER;
-                }
-                if (mDeviceIdleMode) {
-                    // If we are in idle mode, we will also ignore all partial wake locks that are
-                    // for application uids that are not whitelisted.
-                    final UidState state = wakeLock.mUidState;
-                    if (Arrays.binarySearch(mDeviceIdleWhitelist, appid) < 0 &&
-                            Arrays.binarySearch(mDeviceIdleTempWhitelist, appid) < 0 &&
-                            state.mProcState != ActivityManager.PROCESS_STATE_NONEXISTENT &&
-                            state.mProcState > ActivityManager.PROCESS_STATE_FOREGROUND_SERVICE) {
-                        disabled = true;
-                    }
-                }
-            }
+            final boolean disabled = isWakeLockDisabledLocked(wakeLock);
             if (wakeLock.mDisabled != disabled) {
                 wakeLock.mDisabled = disabled;
                 return true;
@@ -2995,6 +3096,35 @@ public final class PowerManagerService extends SystemService
         return false;
     }
 
+    /**
+     * Returns whether a partial wake lock should currently be disabled.
+     */
+    private boolean isWakeLockDisabledLocked(WakeLock wakeLock) {
+        boolean disabled = false;
+        final int appid = UserHandle.getAppId(wakeLock.mOwnerUid);
+        if (appid >= Process.FIRST_APPLICATION_UID) {
+            // Cached inactive processes are never allowed to hold wake locks.
+            if (mConstants.NO_CACHED_WAKE_LOCKS) {
+                disabled = !wakeLock.mUidState.mActive &&
+                        wakeLock.mUidState.mProcState
+                                != ActivityManager.PROCESS_STATE_NONEXISTENT &&
+                        wakeLock.mUidState.mProcState > ActivityManager.PROCESS_STATE_RECEIVER;
+            }
+            if (mDeviceIdleMode) {
+                // If we are in idle mode, we will also ignore all partial wake locks that are
+                // for application uids that are not whitelisted.
+                final UidState state = wakeLock.mUidState;
+                if (Arrays.binarySearch(mDeviceIdleWhitelist, appid) < 0 &&
+                        Arrays.binarySearch(mDeviceIdleTempWhitelist, appid) < 0 &&
+                        state.mProcState != ActivityManager.PROCESS_STATE_NONEXISTENT &&
+                        state.mProcState > ActivityManager.PROCESS_STATE_FOREGROUND_SERVICE) {
+                    disabled = true;
+                }
+            }
+        }
+        return disabled;
+    }
+
     private boolean isMaximumScreenOffTimeoutFromDeviceAdminEnforcedLocked() {
         return mMaximumScreenOffTimeoutFromDeviceAdmin >= 0
                 && mMaximumScreenOffTimeoutFromDeviceAdmin < Integer.MAX_VALUE;
@@ -3341,11 +3471,26 @@ public final class PowerManagerService extends SystemService
             pw.println("Screen off timeout: " + screenOffTimeout + " ms");
             pw.println("Screen dim duration: " + screenDimDuration + " ms");
 
+            pw.println();
+            pw.println("Power state updates: count=" + mUpdatePowerStateCount);
+            for (int i = 0; i < UPDATE_PHASE_NAMES.length; i++) {
+                pw.print("  ");
+                pw.print(UPDATE_PHASE_NAMES[i]);
+                pw.print(": total=");
+                TimeUtils.formatDuration(mUpdatePhaseTotalNanos[i] / 1000000, pw);
+                pw.print(" avg=");
+                pw.print(mUpdatePowerStateCount > 0
+                        ? mUpdatePhaseTotalNanos[i] / mUpdatePowerStateCount / 1000 : 0);
+                pw.print("us max=");
+                pw.print(mUpdatePhaseMaxNanos[i] / 1000);
+                pw.println("us");
+            }
+
             pw.println();
             pw.print("UID states (changing=");
             pw.print(mUidsChanging);
             pw.print(" changed=");
-            pw.print(mUidsChanged);
+            pw.print(!mChangedUidStates.isEmpty());
             pw.println("):");
             for (int i=0; i<mUidState.size(); i++) {
                 final UidState state = mUidState.valueAt(i);
@@ -3354,7 +3499,7 @@ public final class PowerManagerService extends SystemService
                 if (state.mActive) pw.print("  ACTIVE ");
                 else pw.print("INACTIVE ");
                 pw.print(" count=");
-                pw.print(state.mNumWakeLocks);
+                pw.print(state.mWakeLocks.size());
                 pw.print(" state=");
                 pw.println(state.mProcState);
             }
@@ -3700,7 +3845,7 @@ public final class PowerManagerService extends SystemService
             proto.write(PowerServiceDumpProto.SCREEN_OFF_TIMEOUT_MS, screenOffTimeout);
             proto.write(PowerServiceDumpProto.SCREEN_DIM_DURATION_MS, screenDimDuration);
             proto.write(PowerServiceDumpProto.ARE_UIDS_CHANGING, mUidsChanging);
-            proto.write(PowerServiceDumpProto.ARE_UIDS_CHANGED, mUidsChanged);
+            proto.write(PowerServiceDumpProto.ARE_UIDS_CHANGED, !mChangedUidStates.isEmpty());
 
             for (int i = 0; i < mUidState.size(); i++) {
                 final UidState state = mUidState.valueAt(i);
@@ -3709,7 +3854,8 @@ public final class PowerManagerService extends SystemService
                 proto.write(PowerServiceDumpProto.UidProto.UID, uid);
                 proto.write(PowerServiceDumpProto.UidProto.UID_STRING, UserHandle.formatUid(uid));
                 proto.write(PowerServiceDumpProto.UidProto.IS_ACTIVE, state.mActive);
-                proto.write(PowerServiceDumpProto.UidProto.NUM_WAKE_LOCKS, state.mNumWakeLocks);
+                proto.write(PowerServiceDumpProto.UidProto.NUM_WAKE_LOCKS,
+                        state.mWakeLocks.size());
                 if (state.mProcState == ActivityManager.PROCESS_STATE_UNKNOWN) {
                     proto.write(PowerServiceDumpProto.UidProto.IS_PROCESS_STATE_UNKNOWN, true);
                 } else {
@@ -4099,7 +4245,8 @@ public final class PowerManagerService extends SystemService
 
     static final class UidState {
         final int mUid;
-        int mNumWakeLocks;
+        // Wake locks acquired while this was the uid's state.
+        final ArrayList<WakeLock> mWakeLocks = new ArrayList<>();
         int mProcState;
         boolean mActive;
 
@@ -63,6 +63,103 @@ public class NotificationListenerServiceTest extends NotificationTestCase {
         }
     }
 
+    @Test
+    public void testDeltaRanking() throws Exception {
+        TestListenerService service = new TestListenerService();
+        NotificationRankingUpdate full = generateUpdate();
+        service.applyUpdateLocked(new NotificationRankingUpdate(1, 0, null,
+                full.getOrderedKeys(), full.getInterceptedKeys(), full.getVisibilityOverrides(),
+                full.getSuppressedVisualEffects(), full.getImportance(),
+                full.getImportanceExplanation(), full.getOverrideGroupKeys(),
+                full.getChannels(), full.getOverridePeople(), full.getSnoozeCriteria(),
+                full.getShowBadge()));
+
+        // Reverse the order and change only the explanation of "key1".
+        String[] reversed = new String[mKeys.length];
+        int[] importance = new int[mKeys.length];
+        for (int i = 0; i < mKeys.length; i++) {
+            reversed[i] = mKeys[mKeys.length - 1 - i];
+            importance[i] = getImportance(mKeys.length - 1 - i);
+        }
+        Bundle explanation = new Bundle();
+        explanation.putString("key1", "changed");
+        Bundle suppressedVisualEffects = new Bundle();
+        suppressedVisualEffects.putInt("key1", getSuppressedVisualEffects(1));
+        Bundle overrideGroupKeys = new Bundle();
+        overrideGroupKeys.putString("key1", getOverrideGroupKey("key1"));
+        Bundle visibilityOverrides = new Bundle();
+        visibilityOverrides.putInt("key1", getVisibilityOverride(1));
+        Bundle channels = new Bundle();
+        channels.putParcelable("key1", getChannel("key1", 1));
+        Bundle people = new Bundle();
+        people.putStringArrayList("key1", getPeople("key1", 1));
+        Bundle snooze = new Bundle();
+        snooze.putParcelableArrayList("key1", getSnoozeCriteria("key1", 1));
+        Bundle showBadge = new Bundle();
+        showBadge.putBoolean("key1", getShowBadge(1));
+        service.applyUpdateLocked(new NotificationRankingUpdate(2, 1, new String[] { "key1" },
+                reversed, full.getInterceptedKeys(), visibilityOverrides,
+                suppressedVisualEffects, importance, explanation, overrideGroupKeys, channels,
+                people, snooze, showBadge));
+
+        for (int i = 0; i < mKeys.length; i++) {
+            String key = mKeys[i];
+            Ranking ranking = new Ranking();
+            service.getCurrentRanking().getRanking(key, ranking);
+            assertEquals(mKeys.length - 1 - i, ranking.getRank());
+            assertEquals(getVisibilityOverride(i), ranking.getVisibilityOverride());
+            assertEquals(getOverrideGroupKey(key), ranking.getOverrideGroupKey());
+            assertEquals(getImportance(i), ranking.getImportance());
+            assertEquals(i == 1 ? "changed" : getExplanation(key),
+                    ranking.getImportanceExplanation());
+            assertEquals(getChannel(key, i), ranking.getChannel());
+            assertEquals(getPeople(key, i), ranking.getAdditionalPeople());
+            assertEquals(getShowBadge(i), ranking.canShowBadge());
+        }
+
+        // A delta against a version the listener doesn't have is ignored.
+        service.applyUpdateLocked(new NotificationRankingUpdate(4, 3, new String[0],
+                new String[0], new String[0], new Bundle(), new Bundle(), new int[0],
+                new Bundle(), new Bundle(), new Bundle(), new Bundle(), new Bundle(),
+                new Bundle()));
+        assertEquals(mKeys.length, service.getCurrentRanking().getOrderedKeys().length);
+    }
+
+    @Test
+    public void testFullUpdateReplacesRankingAfterLostDelta() throws Exception {
+        TestListenerService service = new TestListenerService();
+        NotificationRankingUpdate full = generateUpdate();
+        service.applyUpdateLocked(withVersion(full, 1));
+
+        // Update 2 was lost, so 3 can't be applied; the full update sent on request can.
+        service.applyUpdateLocked(new NotificationRankingUpdate(3, 2, new String[0],
+                new String[0], new String[0], new Bundle(), new Bundle(), new int[0],
+                new Bundle(), new Bundle(), new Bundle(), new Bundle(), new Bundle(),
+                new Bundle()));
+        assertEquals(mKeys.length, service.getCurrentRanking().getOrderedKeys().length);
+
+        String[] first = new String[] { mKeys[0] };
+        service.applyUpdateLocked(new NotificationRankingUpdate(4, 0, null, first,
+                new String[0], new Bundle(), new Bundle(), new int[] { getImportance(0) },
+                new Bundle(), new Bundle(), new Bundle(), new Bundle(), new Bundle(),
+                new Bundle()));
+        assertEquals(1, service.getCurrentRanking().getOrderedKeys().length);
+
+        // A full update older than the current one is still ignored.
+        service.applyUpdateLocked(withVersion(full, 2));
+        assertEquals(1, service.getCurrentRanking().getOrderedKeys().length);
+    }
+
+    private static NotificationRankingUpdate withVersion(NotificationRankingUpdate full,
+            long version) {
+        return new NotificationRankingUpdate(version, 0, null,
+                full.getOrderedKeys(), full.getInterceptedKeys(), full.getVisibilityOverrides(),
+                full.getSuppressedVisualEffects(), full.getImportance(),
+                full.getImportanceExplanation(), full.getOverrideGroupKeys(),
+                full.getChannels(), full.getOverridePeople(), full.getSnoozeCriteria(),
+                full.getShowBadge());
+    }
+
     private NotificationRankingUpdate generateUpdate() {
         List<String> interceptedKeys = new ArrayList<>();
         Bundle visibilityOverrides = new Bundle();
@@ -77,6 +77,7 @@ import java.util.concurrent.ThreadLocalRandom;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Matchers.anyInt;
@@ -322,6 +323,36 @@ public class RankingHelperTest extends NotificationTestCase {
         mHelper.sort(notificationList);
     }
 
+    @Test
+    public void testGlobalSortKeyFormat() throws Exception {
+        ArrayList<NotificationRecord> notificationList = new ArrayList<NotificationRecord>(1);
+        notificationList.add(mRecordNoGroup);
+        mHelper.sort(notificationList);
+        assertEquals("intrsv=1:grnk=0x0000:gsmry=1:nsk:rnk=0x0000",
+                mRecordNoGroup.getGlobalSortKey());
+    }
+
+    @Test
+    public void testResortKeepsOrderAndKeys() throws Exception {
+        ArrayList<NotificationRecord> notificationList = new ArrayList<NotificationRecord>(4);
+        notificationList.add(mRecordGroupGSortA);
+        notificationList.add(mRecordGroupGSortB);
+        notificationList.add(mRecordNoGroup);
+        notificationList.add(mRecordNoGroupSortA);
+        mHelper.sort(notificationList);
+        final ArrayList<NotificationRecord> sorted = new ArrayList<>(notificationList);
+        final String key = mRecordGroupGSortA.getGlobalSortKey();
+
+        mHelper.sort(notificationList);
+        assertEquals(sorted, notificationList);
+        assertSame(key, mRecordGroupGSortA.getGlobalSortKey());
+
+        notificationList.remove(mRecordNoGroup);
+        notificationList.add(0, mRecordNoGroup);
+        mHelper.sort(notificationList);
+        assertEquals(sorted, notificationList);
+    }
+
     @Test
     public void testChannelXml() throws Exception {
         NotificationChannelGroup ncg = new NotificationChannelGroup("1", "bye");
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.server.notification;
+
+import static android.app.NotificationManager.IMPORTANCE_HIGH;
+import static android.app.NotificationManager.IMPORTANCE_LOW;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import android.app.ActivityManager;
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.os.UserHandle;
+import android.service.notification.NotificationRankingUpdate;
+import android.service.notification.StatusBarNotification;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class RankingUpdateTrackerTest extends NotificationTestCase {
+
+    private String mPkg = "com.android.server.notification";
+    private int mId = 1001;
+    private int mUid = 1000;
+    private int mPid = 2000;
+    private UserHandle mUser = UserHandle.of(ActivityManager.getCurrentUser());
+
+    private NotificationRecord getNotificationRecord(NotificationChannel channel) {
+        Notification n = new Notification.Builder(getContext(), channel.getId())
+                .setContentTitle("foo")
+                .setSmallIcon(android.R.drawable.sym_def_app_icon)
+                .build();
+        StatusBarNotification sbn = new StatusBarNotification(mPkg, mPkg, mId, null, mUid,
+                mPid, n, mUser, null, System.currentTimeMillis());
+        return new NotificationRecord(getContext(), sbn, channel);
+    }
+
+    @Test
+    public void testUnchangedRecordIsSkipped() throws Exception {
+        NotificationRecord r = getNotificationRecord(
+                new NotificationChannel("a", "a", IMPORTANCE_HIGH));
+        List<NotificationRecord> records = Collections.singletonList(r);
+        RankingUpdateTracker tracker = new RankingUpdateTracker();
+
+        tracker.makeUpdate(records, true);
+        NotificationRankingUpdate update = tracker.makeUpdate(records, false);
+
+        assertTrue(update.isDelta());
+        assertEquals(0, update.getChangedKeys().length);
+    }
+
+    @Test
+    public void testChannelUpdatedInPlaceIsSent() throws Exception {
+        NotificationChannel channel = new NotificationChannel("a", "a", IMPORTANCE_HIGH);
+        NotificationRecord r = getNotificationRecord(channel);
+        List<NotificationRecord> records = Collections.singletonList(r);
+        RankingUpdateTracker tracker = new RankingUpdateTracker();
+        tracker.makeUpdate(records, true);
+
+        channel.setImportance(IMPORTANCE_LOW);
+        NotificationRankingUpdate update = tracker.makeUpdate(records, false);
+
+        assertEquals(Arrays.asList(r.getKey()), Arrays.asList(update.getChangedKeys()));
+        NotificationChannel sent = update.getChannels().getParcelable(r.getKey());
+        assertEquals(IMPORTANCE_LOW, sent.getImportance());
+
+        // The change is only sent once.
+        update = tracker.makeUpdate(records, false);
+        assertEquals(0, update.getChangedKeys().length);
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import android.app.AlarmManager;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.server.AlarmManagerService.Batch;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+
+/**
+ * Tests for the batch list helpers in {@link AlarmManagerService}.
+ *
+ * Run: adb shell am instrument -e class com.android.server.AlarmManagerServiceBatchTest -w \
+ *     com.android.frameworks.servicestests/android.support.test.runner.AndroidJUnitRunner
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class AlarmManagerServiceBatchTest {
+    private AlarmManagerService mService;
+
+    @Before
+    public void setUp() {
+        // The service's handler needs a Looper.
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> {
+            mService = new AlarmManagerService(InstrumentationRegistry.getContext());
+        });
+    }
+
+    private Batch batch(long start, long end, int flags) {
+        final Batch b = mService.new Batch();
+        b.start = start;
+        b.end = end;
+        b.flags = flags;
+        return b;
+    }
+
+    private Batch addBatch(long start, long end) {
+        return addBatch(start, end, 0);
+    }
+
+    private Batch addBatch(long start, long end, int flags) {
+        final Batch b = batch(start, end, flags);
+        mService.mAlarmBatches.add(b);
+        return b;
+    }
+
+    @Test
+    public void testFirstBatchStartingAfter() {
+        final ArrayList<Batch> list = new ArrayList<>();
+        assertEquals(0, AlarmManagerService.firstBatchStartingAfterLocked(list, 0));
+
+        list.add(batch(10, 100, 0));
+        list.add(batch(20, 100, 0));
+        list.add(batch(20, 100, 0));
+        list.add(batch(30, 100, 0));
+        assertEquals(0, AlarmManagerService.firstBatchStartingAfterLocked(list, 5));
+        assertEquals(1, AlarmManagerService.firstBatchStartingAfterLocked(list, 10));
+        assertEquals(1, AlarmManagerService.firstBatchStartingAfterLocked(list, 19));
+        assertEquals(3, AlarmManagerService.firstBatchStartingAfterLocked(list, 20));
+        assertEquals(3, AlarmManagerService.firstBatchStartingAfterLocked(list, 29));
+        assertEquals(4, AlarmManagerService.firstBatchStartingAfterLocked(list, 30));
+        assertEquals(4, AlarmManagerService.firstBatchStartingAfterLocked(list, 1000));
+    }
+
+    @Test
+    public void testCoalesceIsFirstFit() {
+        addBatch(0, 100);
+        addBatch(50, 60);
+        addBatch(70, 80);
+
+        // The first batch is still open, so it wins over the one starting inside the window.
+        assertEquals(0, mService.attemptCoalesceLocked(55, 58));
+        assertEquals(0, mService.attemptCoalesceLocked(100, 200));
+        // Nothing can hold an alarm after every batch has closed.
+        assertEquals(-1, mService.attemptCoalesceLocked(101, 200));
+    }
+
+    @Test
+    public void testCoalesceSkipsStandalone() {
+        addBatch(0, 100, AlarmManager.FLAG_STANDALONE);
+        addBatch(50, 60);
+
+        assertEquals(1, mService.attemptCoalesceLocked(55, 58));
+        assertEquals(-1, mService.attemptCoalesceLocked(61, 100));
+    }
+
+    @Test
+    public void testCoalesceBeforeFirstBatch() {
+        addBatch(50, 60);
+
+        assertEquals(-1, mService.attemptCoalesceLocked(10, 40));
+        assertEquals(0, mService.attemptCoalesceLocked(10, 50));
+    }
+
+    @Test
+    public void testRepairSortsBatches() {
+        final Batch late = addBatch(30, 40);
+        final Batch early = addBatch(10, 15);
+
+        mService.repairBatchesAfterRemovalLocked();
+
+        assertEquals(2, mService.mAlarmBatches.size());
+        assertSame(early, mService.mAlarmBatches.get(0));
+        assertSame(late, mService.mAlarmBatches.get(1));
+    }
+
+    @Test
+    public void testRepairFoldsOverlappingBatches() {
+        final Batch first = addBatch(10, 20);
+        addBatch(15, 25);
+        final Batch last = addBatch(30, 40);
+
+        mService.repairBatchesAfterRemovalLocked();
+
+        assertEquals(2, mService.mAlarmBatches.size());
+        assertSame(first, mService.mAlarmBatches.get(0));
+        assertSame(last, mService.mAlarmBatches.get(1));
+    }
+
+    @Test
+    public void testRepairKeepsStandaloneBatches() {
+        addBatch(10, 20);
+        addBatch(15, 25, AlarmManager.FLAG_STANDALONE);
+
+        mService.repairBatchesAfterRemovalLocked();
+
+        assertEquals(2, mService.mAlarmBatches.size());
+    }
+}
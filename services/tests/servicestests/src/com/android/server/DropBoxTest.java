@@ -27,9 +27,11 @@ import android.os.ParcelFileDescriptor;
 import android.os.Parcelable;
 import android.os.Process;
 import android.os.StatFs;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.test.AndroidTestCase;
+import android.util.Log;
 
 import com.android.server.DropBoxManagerService.EntryFile;
 
@@ -994,6 +996,89 @@ public class DropBoxTest extends AndroidTestCase {
                 new EntryFile(new File(dir, "aaa@100.dat"), 1)));
     }
 
+    public void testQueuedEntriesAreVisibleToReaders() throws Exception {
+        File dir = getEmptyDir("testQueuedEntriesAreVisibleToReaders");
+        DropBoxManagerService service = new DropBoxManagerService(getContext(), dir,
+                Looper.getMainLooper());
+        DropBoxManager dropbox = new DropBoxManager(getContext(), service.getServiceStub());
+
+        // One small entry that is queued, and one too big to queue, written by the caller.
+        byte[] big = new byte[256 * 1024];
+        new Random(42).nextBytes(big);
+        dropbox.addText("DropBoxTest", "TEST0");
+        dropbox.addData("DropBoxTest", big, 0);
+        dropbox.addText("DropBoxTest", "TEST2");
+
+        DropBoxManager.Entry e0 = dropbox.getNextEntry("DropBoxTest", 0);
+        DropBoxManager.Entry e1 = dropbox.getNextEntry("DropBoxTest", e0.getTimeMillis());
+        DropBoxManager.Entry e2 = dropbox.getNextEntry("DropBoxTest", e1.getTimeMillis());
+        assertTrue(null == dropbox.getNextEntry("DropBoxTest", e2.getTimeMillis()));
+
+        assertEquals("TEST0", e0.getText(80));
+        assertEquals(big.length, getEntrySize(e1));
+        assertEquals("TEST2", e2.getText(80));
+
+        e0.close();
+        e1.close();
+        e2.close();
+    }
+
+    /**
+     * Measures how long callers of add() are blocked and how many entries per second are stored
+     * during a burst of crash-sized entries.
+     */
+    public void testAddThroughput() throws Exception {
+        File dir = getEmptyDir("testAddThroughput");
+        DropBoxManagerService service = new DropBoxManagerService(getContext(), dir,
+                Looper.getMainLooper());
+        DropBoxManager dropbox = new DropBoxManager(getContext(), service.getServiceStub());
+
+        final int count = 200;
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 8192) text.append("at com.example.Crash.method(Crash.java:42)\n");
+
+        long maxAddNanos = 0;
+        final long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < count; i++) {
+            long addStart = SystemClock.elapsedRealtimeNanos();
+            dropbox.addText("DropBoxTest", text.toString());
+            maxAddNanos = Math.max(maxAddNanos, SystemClock.elapsedRealtimeNanos() - addStart);
+        }
+        final long addNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        // Reading waits for every queued entry to be written.
+        int found = 0;
+        for (DropBoxManager.Entry e = dropbox.getNextEntry("DropBoxTest", 0); e != null;
+                e = dropbox.getNextEntry("DropBoxTest", e.getTimeMillis())) {
+            found++;
+            e.close();
+        }
+        final long totalNanos = SystemClock.elapsedRealtimeNanos() - start;
+        assertEquals(count, found);
+
+        Log.i("DropBoxTest", count + " entries: callers blocked " + (addNanos / count / 1000)
+                + "us avg, " + (maxAddNanos / 1000) + "us max; "
+                + (count * 1000000000L / totalNanos) + " entries/s stored");
+    }
+
+    public void testOwnEntriesAreWrittenBeforeReturning() throws Exception {
+        File dir = getEmptyDir("testOwnEntriesAreWrittenBeforeReturning");
+        DropBoxManagerService service = new DropBoxManagerService(getContext(), dir,
+                Looper.getMainLooper());
+        DropBoxManager dropbox = new DropBoxManager(getContext(), service.getServiceStub());
+
+        // The test calls the service in its own process, like system_server reporting its
+        // own crash, so the entry is on disk as soon as add() returns.
+        dropbox.addText("system_server_crash", "TEST0");
+        assertEquals(1, dir.listFiles().length);
+
+        // Reports it files for apps are queued, but readers still see them.
+        dropbox.addText("data_app_crash", "TEST1");
+        DropBoxManager.Entry e = dropbox.getNextEntry("data_app_crash", 0);
+        assertEquals("TEST1", e.getText(80));
+        e.close();
+    }
+
     private void addRandomEntry(DropBoxManager dropbox, String tag, int size) throws Exception {
         byte[] bytes = new byte[size];
         new Random(System.currentTimeMillis()).nextBytes(bytes);
@@ -19,11 +19,23 @@ package com.android.server;
 import static com.android.server.NativeDaemonConnector.appendEscaped;
 import static com.android.server.NativeDaemonConnector.makeCommand;
 
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.os.HandlerThread;
 import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.MediumTest;
 
+import com.android.server.NativeDaemonConnector.Command;
+import com.android.server.NativeDaemonConnector.LatencyStats;
 import com.android.server.NativeDaemonConnector.SensitiveArg;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
 /**
  * Tests for {@link NativeDaemonConnector}.
  */
@@ -31,6 +43,24 @@ import com.android.server.NativeDaemonConnector.SensitiveArg;
 public class NativeDaemonConnectorTest extends AndroidTestCase {
     private static final String TAG = "NativeDaemonConnectorTest";
 
+    // Connectors keep trying to reconnect once a test is over, so every test uses its own socket.
+    private static int sSocketCount;
+
+    private HandlerThread mCallbackThread;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCallbackThread = new HandlerThread(TAG);
+        mCallbackThread.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCallbackThread.quit();
+        super.tearDown();
+    }
+
     public void testArgumentNormal() throws Exception {
         final StringBuilder builder = new StringBuilder();
 
@@ -94,4 +124,148 @@ public class NativeDaemonConnectorTest extends AndroidTestCase {
         assertEquals("1 foo \"foo bar\" \"baz baz\" wat\0", rawBuilder.toString());
         assertEquals("1 foo [scrubbed] \"baz baz\" [scrubbed]", logBuilder.toString());
     }
+
+    public void testPipelinedCommandsMatchedBySequenceNumber() throws Exception {
+        // The daemon answers only once both commands have arrived, and in reverse order.
+        final NativeDaemonConnector connector = connectToFakeDaemon(2);
+        final AtomicReference<NativeDaemonEvent> first = new AtomicReference<>();
+        final Thread thread = new Thread(() -> {
+            try {
+                first.set(connector.execute("echo", "first"));
+            } catch (NativeDaemonConnectorException e) {
+                // Leaves first unset, failing the test below.
+            }
+        });
+        thread.start();
+        final NativeDaemonEvent second = connector.execute("echo", "second");
+        thread.join();
+
+        assertEquals("echo first", first.get().getMessage());
+        assertEquals("echo second", second.getMessage());
+    }
+
+    public void testBatch() throws Exception {
+        final NativeDaemonConnector connector = connectToFakeDaemon(3);
+        final NativeDaemonEvent[][] results = connector.executeBatch(
+                new Command("echo", "a"), new Command("echo", "b"), new Command("echo", "c"));
+
+        assertEquals(3, results.length);
+        assertEquals("echo a", results[0][0].getMessage());
+        assertEquals("echo b", results[1][0].getMessage());
+        assertEquals("echo c", results[2][0].getMessage());
+    }
+
+    public void testBatchErrorConsumesAllResponses() throws Exception {
+        final NativeDaemonConnector connector = connectToFakeDaemon(0);
+        try {
+            connector.executeBatch(
+                    new Command("echo", "a"), new Command("fail"), new Command("echo", "c"));
+            fail("Expected the failed command to throw");
+        } catch (NativeDaemonConnectorException expected) {
+        }
+        // The response to the last command of the batch must not be mistaken for this one.
+        assertEquals("echo d", connector.execute("echo", "d").getMessage());
+    }
+
+    public void testLatencyStats() throws Exception {
+        final LatencyStats stats = new LatencyStats();
+        stats.record("firewall", 0);
+        stats.record("firewall", 3);
+        stats.record("firewall", 5000);
+
+        final long[] histogram = stats.getHistogram("firewall");
+        assertEquals(LatencyStats.BUCKET_LIMITS_MS.length + 1, histogram.length);
+        assertEquals(1, histogram[0]);
+        assertEquals(1, histogram[2]);
+        assertEquals(1, histogram[histogram.length - 1]);
+        assertNull(stats.getHistogram("bandwidth"));
+    }
+
+    private NativeDaemonConnector connectToFakeDaemon(int holdCount) throws Exception {
+        final String socketName = "__test__" + TAG + (sSocketCount++);
+        final LocalServerSocket server = new LocalServerSocket(socketName);
+        final NativeDaemonConnector connector = new NativeDaemonConnector(
+                new INativeDaemonConnectorCallbacks() {
+                    @Override
+                    public void onDaemonConnected() {}
+
+                    @Override
+                    public boolean onCheckHoldWakeLock(int code) {
+                        return false;
+                    }
+
+                    @Override
+                    public boolean onEvent(int code, String raw, String[] cooked) {
+                        return true;
+                    }
+                }, socketName, 10, TAG, 25, null, mCallbackThread.getLooper());
+        final Thread connectorThread = new Thread(connector, TAG);
+        connectorThread.setDaemon(true);
+        connectorThread.start();
+
+        final LocalSocket socket = server.accept();
+        server.close();
+        final FakeDaemon daemon = new FakeDaemon(socket, holdCount);
+        daemon.setDaemon(true);
+        daemon.start();
+        // Wait until the connector can send, as it only does so once connected.
+        connector.execute("echo", "ready");
+        return connector;
+    }
+
+    /**
+     * Stand-in for a libsysutils daemon. Answers "echo" with its arguments and "fail" with an
+     * error. After the first command, it holds commands until it has {@code holdCount} of them
+     * and then answers them in reverse order.
+     */
+    private static class FakeDaemon extends Thread {
+        private final LocalSocket mSocket;
+        private final int mHoldCount;
+
+        FakeDaemon(LocalSocket socket, int holdCount) {
+            mSocket = socket;
+            mHoldCount = holdCount;
+        }
+
+        @Override
+        public void run() {
+            try {
+                final InputStream in = mSocket.getInputStream();
+                final OutputStream out = mSocket.getOutputStream();
+                final StringBuilder command = new StringBuilder();
+                final ArrayList<String> held = new ArrayList<>();
+                boolean first = true;
+                int b;
+                while ((b = in.read()) >= 0) {
+                    if (b != 0) {
+                        command.append((char) b);
+                        continue;
+                    }
+                    held.add(command.toString());
+                    command.setLength(0);
+                    if (!first && held.size() < mHoldCount) {
+                        continue;
+                    }
+                    first = false;
+                    for (int i = held.size() - 1; i >= 0; i--) {
+                        out.write(respond(held.get(i)).getBytes(StandardCharsets.UTF_8));
+                    }
+                    held.clear();
+                }
+            } catch (IOException e) {
+                // Connection closed.
+            }
+        }
+
+        private static String respond(String command) {
+            // Commands look like "<seq> <cmd> <args...>".
+            final int space = command.indexOf(' ');
+            final String seq = command.substring(0, space);
+            final String rest = command.substring(space + 1);
+            if (rest.startsWith("fail")) {
+                return "500 " + seq + " Command failed\0";
+            }
+            return "200 " + seq + " " + rest + "\0";
+        }
+    }
 }
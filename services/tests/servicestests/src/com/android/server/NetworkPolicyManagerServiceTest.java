@@ -21,6 +21,9 @@ import static android.net.ConnectivityManager.TYPE_WIFI;
 import static android.net.NetworkPolicy.LIMIT_DISABLED;
 import static android.net.NetworkPolicy.SNOOZE_NEVER;
 import static android.net.NetworkPolicy.WARNING_DISABLED;
+import static android.net.NetworkPolicyManager.FIREWALL_RULE_ALLOW;
+import static android.net.NetworkPolicyManager.FIREWALL_RULE_DEFAULT;
+import static android.net.NetworkPolicyManager.FIREWALL_RULE_DENY;
 import static android.net.NetworkPolicyManager.POLICY_ALLOW_METERED_BACKGROUND;
 import static android.net.NetworkPolicyManager.POLICY_NONE;
 import static android.net.NetworkPolicyManager.POLICY_REJECT_METERED_BACKGROUND;
@@ -112,6 +115,7 @@ import android.text.format.Time;
 import android.util.Log;
 import android.util.Pair;
 import android.util.RecurrenceRule;
+import android.util.SparseIntArray;
 import android.util.TrustedTime;
 
 import com.android.internal.telephony.PhoneConstants;
@@ -1419,6 +1423,28 @@ public class NetworkPolicyManagerServiceTest {
                 true);
     }
 
+    @Test
+    public void testDiffUidFirewallRules() {
+        final SparseIntArray current = new SparseIntArray();
+        current.put(UID_A, FIREWALL_RULE_ALLOW);
+        current.put(UID_B, FIREWALL_RULE_ALLOW);
+        current.put(UID_C, FIREWALL_RULE_DEFAULT);
+
+        final SparseIntArray same = new SparseIntArray();
+        same.put(UID_A, FIREWALL_RULE_ALLOW);
+        same.put(UID_B, FIREWALL_RULE_ALLOW);
+        assertEquals(0, NetworkPolicyManagerService.diffUidFirewallRules(current, same).size());
+
+        final SparseIntArray changed = new SparseIntArray();
+        changed.put(UID_A, FIREWALL_RULE_ALLOW);
+        changed.put(UID_C, FIREWALL_RULE_DENY);
+        final SparseIntArray diff =
+                NetworkPolicyManagerService.diffUidFirewallRules(current, changed);
+        assertEquals(2, diff.size());
+        assertEquals(FIREWALL_RULE_DEFAULT, diff.get(UID_B, -1));
+        assertEquals(FIREWALL_RULE_DENY, diff.get(UID_C, -1));
+    }
+
     private NetworkPolicy buildDefaultFakeMobilePolicy() {
         NetworkPolicy p = mService.buildDefaultMobilePolicy(FAKE_SUB_ID, FAKE_SUBSCRIBER_ID);
         // set a deterministic cycle date
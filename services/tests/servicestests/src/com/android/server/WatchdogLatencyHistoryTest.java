@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.server.Watchdog.LatencyHistory;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Unit tests for {@link Watchdog.LatencyHistory} and slow checker reporting
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class WatchdogLatencyHistoryTest {
+
+    @Test
+    public void testSlowCheckerReportedBeforeCheckInterval() {
+        // Replays the watchdog loop with default settings: no sampling, default threshold.
+        // A checker blocked from the start of the interval is reported at the first wake-up
+        // after it has been running for longer than the threshold.
+        final long slowThreshold = Watchdog.DEFAULT_SLOW_THRESHOLD;
+        long now = 0;
+        long timeout = Watchdog.CHECK_INTERVAL;
+        long reportedAt = -1;
+        while (timeout > 0) {
+            now += Watchdog.getWaitTime(timeout, 0, slowThreshold);
+            timeout = Watchdog.CHECK_INTERVAL - now;
+            if (reportedAt < 0 && now > slowThreshold) {
+                reportedAt = now;
+            }
+        }
+        assertTrue("reported at " + reportedAt, reportedAt > 0);
+        assertTrue("reported at " + reportedAt, reportedAt < Watchdog.CHECK_INTERVAL);
+        assertTrue("reported at " + reportedAt, reportedAt <= 2 * slowThreshold);
+    }
+
+    @Test
+    public void testWaitTime() {
+        assertEquals(100, Watchdog.getWaitTime(30000, 100, 10000));
+        assertEquals(10000, Watchdog.getWaitTime(30000, 0, 10000));
+        assertEquals(5000, Watchdog.getWaitTime(5000, 0, 10000));
+        assertEquals(30000, Watchdog.getWaitTime(30000, 0, 0));
+    }
+
+    @Test
+    public void testEmpty() {
+        final LatencyHistory history = new LatencyHistory();
+        assertEquals(0, history.getCount());
+        assertEquals(0, history.getPercentileNanos(50));
+        final StringBuilder sb = new StringBuilder();
+        history.describe(sb);
+        assertEquals("n=0 p50=0us p90=0us p99=0us max=0us", sb.toString());
+    }
+
+    @Test
+    public void testPercentiles() {
+        final LatencyHistory history = new LatencyHistory();
+        for (int i = 100; i >= 1; i--) {
+            history.add(i * 1000L);
+        }
+        assertEquals(100, history.getCount());
+        assertEquals(1000, history.getPercentileNanos(1));
+        assertEquals(50000, history.getPercentileNanos(50));
+        assertEquals(90000, history.getPercentileNanos(90));
+        assertEquals(100000, history.getPercentileNanos(100));
+    }
+
+    @Test
+    public void testOnlyRecentSamplesAreKept() {
+        final LatencyHistory history = new LatencyHistory();
+        history.add(1000000);
+        for (int i = 0; i < LatencyHistory.CAPACITY; i++) {
+            history.add(1000);
+        }
+        assertEquals(LatencyHistory.CAPACITY + 1, history.getCount());
+        // The old slow sample has been overwritten, but is still the maximum.
+        assertEquals(1000, history.getPercentileNanos(100));
+        final StringBuilder sb = new StringBuilder();
+        history.describe(sb);
+        assertEquals("n=129 p50=1us p90=1us p99=1us max=1000us", sb.toString());
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.accounts;
+
+import android.accounts.Account;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests for {@link TokenCache}.
+ * <p>Run with:<pre>
+ * m FrameworksServicesTests &&
+ * adb install \
+ * -r out/target/product/marlin/data/app/FrameworksServicesTests/FrameworksServicesTests.apk &&
+ * adb shell am instrument -e class com.android.server.accounts.TokenCacheTest \
+ * -w com.android.frameworks.servicestests/android.support.test.runner.AndroidJUnitRunner
+ * </pre>
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class TokenCacheTest {
+    private static final Account ACCOUNT = new Account("name", "example.com");
+    private static final String TOKEN_TYPE = "tokenType";
+    private static final String PACKAGE = "com.example.app";
+    private static final byte[] DIGEST = new byte[] {1, 2, 3};
+
+    @Test
+    public void testPutAndGet() {
+        final TokenCache cache = new TokenCache();
+        cache.put(ACCOUNT, "token", TOKEN_TYPE, PACKAGE, DIGEST,
+                System.currentTimeMillis() + 60000);
+        assertEquals("token", cache.get(ACCOUNT, TOKEN_TYPE, PACKAGE, DIGEST));
+        assertNull(cache.get(ACCOUNT, TOKEN_TYPE, "com.example.other", DIGEST));
+    }
+
+    @Test
+    public void testExpiredTokenIsNotReturned() {
+        final TokenCache cache = new TokenCache();
+        cache.put(ACCOUNT, "token", TOKEN_TYPE, PACKAGE, DIGEST,
+                System.currentTimeMillis() - 1);
+        assertNull(cache.get(ACCOUNT, TOKEN_TYPE, PACKAGE, DIGEST));
+    }
+
+    @Test
+    public void testRemoveByToken() {
+        final TokenCache cache = new TokenCache();
+        cache.put(ACCOUNT, "token", TOKEN_TYPE, PACKAGE, DIGEST,
+                System.currentTimeMillis() + 60000);
+        cache.remove(ACCOUNT.type, "token");
+        assertNull(cache.get(ACCOUNT, TOKEN_TYPE, PACKAGE, DIGEST));
+    }
+
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        final TokenCache cache = new TokenCache();
+        final AtomicBoolean failed = new AtomicBoolean();
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final String pkg = PACKAGE + t;
+            final Thread thread = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 1000; i++) {
+                        final String token = pkg + i;
+                        cache.put(ACCOUNT, token, TOKEN_TYPE, pkg, DIGEST,
+                                System.currentTimeMillis() + 60000);
+                        cache.get(ACCOUNT, TOKEN_TYPE, pkg, DIGEST);
+                        cache.remove(ACCOUNT.type, token);
+                    }
+                } catch (RuntimeException e) {
+                    failed.set(true);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertFalse(failed.get());
+    }
+}
@@ -107,6 +107,30 @@ public class SyncStorageEngineTest extends AndroidTestCase {
         engine.stopSyncEvent(historyId, time1 - time0, "yay", 0, 0);
     }
 
+    @SmallTest
+    public void testStatisticsPersistence() throws Exception {
+        new File(getSyncDir(), "stats.bin").delete();
+        engine.clearAndReadState();
+        engine.setIsSyncable(account1, DEFAULT_USER, authority1, 1);
+
+        SyncOperation op = new SyncOperation(account1, DEFAULT_USER, 0, "foo",
+                SyncOperation.REASON_PERIODIC,
+                SyncStorageEngine.SOURCE_LOCAL,
+                authority1,
+                Bundle.EMPTY, true);
+        long historyId = engine.insertStartSyncEvent(op, System.currentTimeMillis());
+        engine.stopSyncEvent(historyId, 1000, SyncStorageEngine.MESG_SUCCESS, 0, 0);
+
+        // The statistics are read back lazily after a restart.
+        engine.writeAllState();
+        engine.clearAndReadState();
+
+        SyncStorageEngine.DayStats today = engine.getDayStatistics()[0];
+        assertNotNull(today);
+        assertEquals(1, today.successCount);
+        assertEquals(1000, today.successTime);
+    }
+
     @LargeTest
     public void testAuthorityPersistence() throws Exception {
         final Account account1 = new Account("a@example.com", "example.type");
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import libcore.io.IoUtils;
+import libcore.io.Streams;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class SettingsFileWriterTest {
+    private HandlerThread mThread;
+    private SettingsFileWriter mWriter;
+    private File mFile;
+    private File mBackupFile;
+    private File mListFile;
+
+    @Before
+    public void setUp() {
+        mThread = new HandlerThread("SettingsFileWriterTest");
+        mThread.start();
+        mWriter = new SettingsFileWriter(mThread.getLooper());
+        final File dir = new File(InstrumentationRegistry.getContext().getCacheDir(),
+                "SettingsFileWriterTest");
+        mFile = new File(dir, "settings.xml");
+        mBackupFile = new File(dir, "settings-backup.xml");
+        mListFile = new File(dir, "settings.list");
+        mFile.delete();
+        mBackupFile.delete();
+        mListFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mThread.quit();
+        mFile.delete();
+        mBackupFile.delete();
+        mListFile.delete();
+    }
+
+    @Test
+    public void testWrite() throws Exception {
+        assertTrue(mWriter.write(mFile, mBackupFile, bytes("one")));
+        assertArrayEquals(bytes("one"), read(mFile));
+        assertFalse(mBackupFile.exists());
+
+        assertTrue(mWriter.write(mFile, mBackupFile, bytes("two")));
+        assertArrayEquals(bytes("two"), read(mFile));
+        assertFalse(mBackupFile.exists());
+    }
+
+    @Test
+    public void testUnchangedWriteIsSkipped() throws Exception {
+        assertTrue(mWriter.write(mFile, mBackupFile, bytes("one")));
+        final long modified = mFile.lastModified() - 10000;
+        assertTrue(mFile.setLastModified(modified));
+
+        assertTrue(mWriter.write(mFile, mBackupFile, bytes("one")));
+        assertEquals(modified, mFile.lastModified());
+    }
+
+    @Test
+    public void testAsyncWritesCoalesce() throws Exception {
+        mWriter.writeAsync(mFile, mBackupFile, bytes("one"));
+        mWriter.writeAsync(mFile, mBackupFile, bytes("two"));
+        mWriter.writeAsync(mFile, mBackupFile, bytes("three"));
+        mWriter.flush();
+        assertArrayEquals(bytes("three"), read(mFile));
+    }
+
+    @Test
+    public void testSyncWriteReplacesQueuedWrite() throws Exception {
+        mWriter.writeAsync(mFile, mBackupFile, bytes("stale"));
+        assertTrue(mWriter.write(mFile, mBackupFile, bytes("fresh")));
+        mWriter.flush();
+        assertArrayEquals(bytes("fresh"), read(mFile));
+    }
+
+    @Test
+    public void testReplace() throws Exception {
+        assertTrue(mWriter.replace(mListFile, bytes("one"), 0640, -1, -1));
+        assertArrayEquals(bytes("one"), read(mListFile));
+
+        assertTrue(mWriter.replace(mListFile, bytes("two"), 0640, -1, -1));
+        assertArrayEquals(bytes("two"), read(mListFile));
+        assertFalse(new File(mListFile.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void testAsyncWritesCommitTogether() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final Handler handler = new Handler(mThread.getLooper());
+        handler.post(() -> {
+            try {
+                blocked.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        mWriter.writeAsync(mFile, mBackupFile, bytes("xml"));
+        mWriter.replaceAsync(mListFile, bytes("list"), 0640, -1, -1);
+        assertFalse(mFile.exists());
+        assertFalse(mListFile.exists());
+        blocked.countDown();
+
+        // Both files are committed before anything queued after them runs.
+        final CountDownLatch done = new CountDownLatch(1);
+        handler.post(done::countDown);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertArrayEquals(bytes("xml"), read(mFile));
+        assertArrayEquals(bytes("list"), read(mListFile));
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] read(File file) throws IOException {
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            return Streams.readFully(in);
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+}
@@ -26,6 +26,8 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
@@ -535,6 +537,87 @@ public class PackageDexUsageTests {
         assertPackageDexUsage(packageDexUsage, ignoredUsers, barBaseUser0, barSecondary1User0);
     }
 
+    @Test
+    public void testJournalReplay() throws IOException {
+        assertTrue(record(mFooSplit2UsedByOtherApps0));
+        assertTrue(record(mFooSecondary1User0));
+        ByteArrayOutputStream journal = new ByteArrayOutputStream();
+        mPackageDexUsage.writeJournal(journal);
+
+        // Appending continues the journal's string table across instances.
+        PackageDexUsage packageDexUsage = new PackageDexUsage();
+        packageDexUsage.readJournal(new ByteArrayInputStream(journal.toByteArray()));
+        assertTrue(record(packageDexUsage, mFooSecondary2UsedByOtherApps0,
+                Collections.singleton(mFooSecondary2UsedByOtherApps0.mUsedBy)));
+        packageDexUsage.writeJournal(journal);
+
+        mPackageDexUsage = new PackageDexUsage();
+        mPackageDexUsage.readJournal(new ByteArrayInputStream(journal.toByteArray()));
+        assertPackageDexUsage(mFooSplit2UsedByOtherApps0, mFooSecondary1User0,
+                mFooSecondary2UsedByOtherApps0);
+    }
+
+    @Test
+    public void testJournalTruncatedRecord() throws IOException {
+        assertTrue(record(mBarSecondary1User0));
+        assertTrue(record(mBarSecondary2User1));
+        ByteArrayOutputStream journal = new ByteArrayOutputStream();
+        mPackageDexUsage.writeJournal(journal);
+        byte[] bytes = journal.toByteArray();
+
+        mPackageDexUsage = new PackageDexUsage();
+        try {
+            mPackageDexUsage.readJournal(
+                    new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length - 1)));
+            fail("Expected IOException");
+        } catch (IOException expected) {
+        }
+        // The complete record is kept.
+        assertPackageDexUsage(null, mBarSecondary1User0);
+    }
+
+    @Test
+    public void testEmptyJournal() throws IOException {
+        assertTrue(record(mFooSecondary1User0));
+        StringWriter main = new StringWriter();
+        mPackageDexUsage.write(main);
+
+        // A journal emptied before the main file was committed adds nothing on top of it.
+        mPackageDexUsage = new PackageDexUsage();
+        mPackageDexUsage.read(new StringReader(main.toString()));
+        mPackageDexUsage.readJournal(new ByteArrayInputStream(new byte[0]));
+        assertPackageDexUsage(null, mFooSecondary1User0);
+
+        // And it is started over with a header on the next append.
+        assertTrue(record(mFooSecondary2UsedByOtherApps0));
+        ByteArrayOutputStream journal = new ByteArrayOutputStream();
+        mPackageDexUsage.writeJournal(journal);
+        mPackageDexUsage = new PackageDexUsage();
+        mPackageDexUsage.read(new StringReader(main.toString()));
+        mPackageDexUsage.readJournal(new ByteArrayInputStream(journal.toByteArray()));
+        assertPackageDexUsage(null, mFooSecondary1User0, mFooSecondary2UsedByOtherApps0);
+    }
+
+    @Test
+    public void testJournalAppendIsSmall() throws IOException {
+        String dataDir = "/data/user/0/" + mBarBaseUser0.mPackageName + "/";
+        for (int i = 0; i < 100; i++) {
+            assertTrue(record(new TestData(mBarBaseUser0.mPackageName, dataDir + i + ".dex",
+                    0, mBarBaseUser0.mLoaderIsa, false, false, mBarBaseUser0.mPackageName)));
+        }
+        mPackageDexUsage.writeJournal(new ByteArrayOutputStream());
+        StringWriter fullWrite = new StringWriter();
+        mPackageDexUsage.write(fullWrite);
+
+        // A new dex file only costs its own record.
+        assertTrue(record(mBarSecondary1User0));
+        ByteArrayOutputStream append = new ByteArrayOutputStream();
+        mPackageDexUsage.writeJournal(append);
+        assertTrue("append of " + append.size() + " bytes vs full write of "
+                + fullWrite.toString().length(),
+                append.size() * 20 < fullWrite.toString().length());
+    }
+
     private void assertPackageDexUsage(TestData primary, TestData... secondaries) {
         assertPackageDexUsage(mPackageDexUsage, null, primary, secondaries);
     }
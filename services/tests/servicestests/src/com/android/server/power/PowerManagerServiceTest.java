@@ -16,10 +16,14 @@
 
 package com.android.server.power;
 
+import android.app.ActivityManager;
 import android.content.Context;
 import android.hardware.display.DisplayManagerInternal.DisplayPowerRequest;
+import android.os.Binder;
+import android.os.IBinder;
 import android.os.PowerManager;
 import android.os.PowerSaveState;
+import android.os.Process;
 import android.os.SystemProperties;
 import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.SmallTest;
@@ -50,6 +54,7 @@ public class PowerManagerServiceTest extends AndroidTestCase {
     private static final float BRIGHTNESS_FACTOR = 0.7f;
     private static final boolean BATTERY_SAVER_ENABLED = true;
     private static final String TEST_LAST_REBOOT_PROPERTY = "test.sys.boot.reason";
+    private static final int APP_UID = Process.FIRST_APPLICATION_UID + 1;
 
     private @Mock BatterySaverPolicy mBatterySaverPolicy;
     private PowerManagerService mService;
@@ -116,4 +121,123 @@ public class PowerManagerServiceTest extends AndroidTestCase {
                 DisplayPowerRequest.POLICY_BRIGHT);
 
     }
+
+    @SmallTest
+    @SuppressWarnings("deprecation")
+    public void testWakeLockSummaryCounts_AcquireUpdateRelease() {
+        final IBinder partial = new Binder();
+        final IBinder dim = new Binder();
+        final IBinder full = new Binder();
+
+        acquireWakeLock(partial, PowerManager.PARTIAL_WAKE_LOCK);
+        assertWakeLockSummaryCounts(1);
+        acquireWakeLock(dim, PowerManager.SCREEN_DIM_WAKE_LOCK);
+        assertWakeLockSummaryCounts(2);
+        // A full wake lock contributes both screen bright and button bright.
+        acquireWakeLock(full, PowerManager.FULL_WAKE_LOCK);
+        assertWakeLockSummaryCounts(4);
+
+        // Re-acquiring a wake lock with new flags moves its contribution.
+        acquireWakeLock(partial, PowerManager.SCREEN_BRIGHT_WAKE_LOCK);
+        assertWakeLockSummaryCounts(4);
+        acquireWakeLock(full, PowerManager.PARTIAL_WAKE_LOCK);
+        assertWakeLockSummaryCounts(3);
+
+        mService.releaseWakeLockInternal(dim, 0);
+        assertWakeLockSummaryCounts(2);
+        mService.releaseWakeLockInternal(partial, 0);
+        mService.releaseWakeLockInternal(full, 0);
+        assertWakeLockSummaryCounts(0);
+
+        // Releasing a wake lock twice is harmless.
+        mService.releaseWakeLockInternal(full, 0);
+        assertWakeLockSummaryCounts(0);
+    }
+
+    @SmallTest
+    public void testWakeLockSummaryCounts_RejectedUpdate() {
+        final IBinder lock = new Binder();
+        acquireWakeLock(lock, PowerManager.PARTIAL_WAKE_LOCK);
+        assertWakeLockSummaryCounts(1);
+
+        // Re-acquiring a wake lock under another package is refused and changes nothing.
+        try {
+            mService.acquireWakeLockInternal(lock, PowerManager.SCREEN_DIM_WAKE_LOCK, "test",
+                    "com.android.other", null, null, APP_UID, 0);
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+        assertWakeLockSummaryCounts(1);
+
+        mService.releaseWakeLockInternal(lock, 0);
+        assertWakeLockSummaryCounts(0);
+    }
+
+    @SmallTest
+    public void testWakeLockSummaryCounts_UidStateChangesInDeviceIdle() {
+        final IBinder lock = new Binder();
+        acquireWakeLock(lock, PowerManager.PARTIAL_WAKE_LOCK);
+        mService.setDeviceIdleModeInternal(true);
+        assertWakeLockSummaryCounts(1);
+
+        // Cached apps lose their partial wake locks in device idle...
+        mService.updateUidProcStateInternal(APP_UID, ActivityManager.PROCESS_STATE_CACHED_EMPTY);
+        assertWakeLockSummaryCounts(0);
+
+        // ...and get them back once they run a foreground service.
+        mService.updateUidProcStateInternal(APP_UID,
+                ActivityManager.PROCESS_STATE_FOREGROUND_SERVICE);
+        assertWakeLockSummaryCounts(1);
+
+        // Batched changes apply when the batch finishes.
+        mService.startUidChangesInternal();
+        mService.updateUidProcStateInternal(APP_UID, ActivityManager.PROCESS_STATE_CACHED_EMPTY);
+        mService.finishUidChangesInternal();
+        assertWakeLockSummaryCounts(0);
+
+        mService.uidGoneInternal(APP_UID);
+        assertWakeLockSummaryCounts(1);
+
+        mService.setDeviceIdleModeInternal(false);
+        mService.releaseWakeLockInternal(lock, 0);
+        assertWakeLockSummaryCounts(0);
+    }
+
+    @SmallTest
+    public void testWakeLockSummaryCounts_CachedUidStateChanges() {
+        final IBinder lock = new Binder();
+        acquireWakeLock(lock, PowerManager.PARTIAL_WAKE_LOCK);
+        mService.updateUidProcStateInternal(APP_UID, ActivityManager.PROCESS_STATE_TOP);
+        assertWakeLockSummaryCounts(1);
+
+        // Inactive cached apps may not hold wake locks.
+        mService.updateUidProcStateInternal(APP_UID, ActivityManager.PROCESS_STATE_CACHED_EMPTY);
+        assertWakeLockSummaryCounts(0);
+        mService.uidActiveInternal(APP_UID);
+        assertWakeLockSummaryCounts(1);
+        mService.uidIdleInternal(APP_UID);
+        assertWakeLockSummaryCounts(0);
+
+        mService.releaseWakeLockInternal(lock, 0);
+        assertWakeLockSummaryCounts(0);
+    }
+
+    private void acquireWakeLock(IBinder lock, int flags) {
+        mService.acquireWakeLockInternal(lock, flags, "test", "com.android.test", null, null,
+                APP_UID, 0);
+    }
+
+    /**
+     * Checks that the incrementally kept wake lock summary counts match a recomputation from
+     * every wake lock, and that {@code expectedTotal} summary bits are held in total.
+     */
+    private void assertWakeLockSummaryCounts(int expectedTotal) {
+        final int[] counts = mService.getWakeLockSummaryCounts();
+        assertThat(counts).isEqualTo(mService.computeWakeLockSummaryCounts());
+        int total = 0;
+        for (int count : counts) {
+            total += count;
+        }
+        assertThat(total).isEqualTo(expectedTotal);
+    }
 }
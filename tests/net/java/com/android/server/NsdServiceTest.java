@@ -47,6 +47,11 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
 // TODOs:
 //  - test client can send requests and receive replies
 //  - test NSD_ON ENABLE/DISABLED listening
@@ -135,8 +140,8 @@ public class NsdServiceTest {
         client.disconnect();
         verify(mDaemon, timeout(mTimeoutMs).times(1)).stop();
 
-        // checks that request are cleaned
-        verifyDaemonCommands("stop-register 2", "stop-discover 3", "stop-resolve 4");
+        // checks that request are cleaned, with a single batch of cancellations
+        verifyDaemonBatch("stop-register 2", "stop-discover 3", "stop-resolve 4");
 
         client.disconnect();
     }
@@ -155,10 +160,6 @@ public class NsdServiceTest {
         return new NsdManager(mContext, service);
     }
 
-    void verifyDaemonCommands(String... wants) {
-        verifyDaemonCommand(String.join(" ", wants), wants.length);
-    }
-
     void verifyDaemonCommand(String want) {
         verifyDaemonCommand(want, 1);
     }
@@ -176,6 +177,17 @@ public class NsdServiceTest {
         when(mDaemon.execute(any())).thenReturn(true);
     }
 
+    void verifyDaemonBatch(String... wants) {
+        ArgumentCaptor<List> argumentsCaptor = ArgumentCaptor.forClass(List.class);
+        verify(mDaemon, timeout(mTimeoutMs).times(1)).executeBatch(argumentsCaptor.capture());
+        List<String> got = new ArrayList<>();
+        for (Object args : argumentsCaptor.getValue()) {
+            got.add(Arrays.stream((Object[]) args).map(String::valueOf)
+                    .collect(Collectors.joining(" ")));
+        }
+        assertEquals(Arrays.asList(wants), got);
+    }
+
     public static class TestHandler extends Handler {
         public Message lastMessage;
 
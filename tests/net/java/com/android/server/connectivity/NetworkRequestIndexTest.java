@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import static android.net.NetworkCapabilities.NET_CAPABILITY_INTERNET;
+import static android.net.NetworkCapabilities.NET_CAPABILITY_MMS;
+import static android.net.NetworkCapabilities.NET_CAPABILITY_NOT_METERED;
+import static android.net.NetworkCapabilities.NET_CAPABILITY_NOT_RESTRICTED;
+import static android.net.NetworkCapabilities.NET_CAPABILITY_NOT_VPN;
+import static android.net.NetworkCapabilities.NET_CAPABILITY_TRUSTED;
+import static android.net.NetworkCapabilities.TRANSPORT_BLUETOOTH;
+import static android.net.NetworkCapabilities.TRANSPORT_CELLULAR;
+import static android.net.NetworkCapabilities.TRANSPORT_ETHERNET;
+import static android.net.NetworkCapabilities.TRANSPORT_WIFI;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.net.ConnectivityManager;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.os.SystemClock;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class NetworkRequestIndexTest {
+    private static final String TAG = NetworkRequestIndexTest.class.getSimpleName();
+
+    private static final int[] TRANSPORTS = {
+            TRANSPORT_CELLULAR, TRANSPORT_WIFI, TRANSPORT_ETHERNET, TRANSPORT_BLUETOOTH };
+    private static final int[] CAPABILITIES = {
+            NET_CAPABILITY_INTERNET, NET_CAPABILITY_MMS, NET_CAPABILITY_NOT_METERED };
+
+    private int mNextRequestId = 1;
+
+    private NetworkRequest makeRequest(int transport, int... capabilities) {
+        final NetworkCapabilities nc = new NetworkCapabilities();
+        nc.clearAll();
+        if (transport >= 0) nc.addTransportType(transport);
+        for (int capability : capabilities) {
+            nc.addCapability(capability);
+        }
+        return new NetworkRequest(nc, ConnectivityManager.TYPE_NONE, mNextRequestId++,
+                NetworkRequest.Type.REQUEST);
+    }
+
+    private static NetworkCapabilities makeNetwork(int transport, int... capabilities) {
+        final NetworkCapabilities nc = new NetworkCapabilities();
+        nc.clearAll();
+        nc.addTransportType(transport);
+        nc.addCapability(NET_CAPABILITY_NOT_RESTRICTED);
+        nc.addCapability(NET_CAPABILITY_TRUSTED);
+        nc.addCapability(NET_CAPABILITY_NOT_VPN);
+        for (int capability : capabilities) {
+            nc.addCapability(capability);
+        }
+        return nc;
+    }
+
+    @Test
+    public void testCandidatesMatchTransportsAndCapabilities() {
+        final NetworkRequestIndex<NetworkRequest> index = new NetworkRequestIndex<>();
+        final NetworkRequest anyInternet = makeRequest(-1, NET_CAPABILITY_INTERNET);
+        final NetworkRequest cellInternet = makeRequest(TRANSPORT_CELLULAR,
+                NET_CAPABILITY_INTERNET);
+        final NetworkRequest wifiInternet = makeRequest(TRANSPORT_WIFI, NET_CAPABILITY_INTERNET);
+        final NetworkRequest cellMms = makeRequest(TRANSPORT_CELLULAR, NET_CAPABILITY_MMS);
+        for (NetworkRequest request : new NetworkRequest[] {
+                anyInternet, cellInternet, wifiInternet, cellMms }) {
+            index.put(request, request);
+        }
+        assertEquals(4, index.size());
+
+        final ArrayList<NetworkRequest> candidates = new ArrayList<>();
+        index.getCandidates(makeNetwork(TRANSPORT_CELLULAR, NET_CAPABILITY_INTERNET), candidates);
+        assertEquals(2, candidates.size());
+        assertTrue(candidates.contains(anyInternet));
+        assertTrue(candidates.contains(cellInternet));
+
+        candidates.clear();
+        index.remove(anyInternet);
+        index.getCandidates(makeNetwork(TRANSPORT_WIFI, NET_CAPABILITY_INTERNET), candidates);
+        assertEquals(1, candidates.size());
+        assertTrue(candidates.contains(wifiInternet));
+        assertEquals(3, index.size());
+    }
+
+    @Test
+    public void testUnwantedCapabilitiesExcludeNetwork() {
+        final NetworkRequestIndex<NetworkRequest> index = new NetworkRequestIndex<>();
+        final NetworkRequest request = makeRequest(-1, NET_CAPABILITY_INTERNET);
+        request.networkCapabilities.addUnwantedCapability(NET_CAPABILITY_NOT_METERED);
+        index.put(request, request);
+
+        final ArrayList<NetworkRequest> candidates = new ArrayList<>();
+        index.getCandidates(makeNetwork(TRANSPORT_WIFI, NET_CAPABILITY_INTERNET,
+                NET_CAPABILITY_NOT_METERED), candidates);
+        assertEquals(0, candidates.size());
+        index.getCandidates(makeNetwork(TRANSPORT_CELLULAR, NET_CAPABILITY_INTERNET),
+                candidates);
+        assertEquals(1, candidates.size());
+    }
+
+    /**
+     * Compares finding the requests 10 networks satisfy among 1000 requests by checking every
+     * request against every network with finding them through the index. Every satisfied request
+     * must be a candidate.
+     */
+    @Test
+    public void benchmarkRematchWithManyRequests() {
+        final int numRequests = 1000;
+        final int numNetworks = 10;
+        final int rounds = 100;
+        final Random random = new Random(42);
+
+        final NetworkRequestIndex<NetworkRequest> index = new NetworkRequestIndex<>();
+        final ArrayList<NetworkRequest> requests = new ArrayList<>();
+        for (int i = 0; i < numRequests; i++) {
+            final int transport = random.nextInt(3) == 0
+                    ? -1 : TRANSPORTS[random.nextInt(TRANSPORTS.length)];
+            final NetworkRequest request = makeRequest(transport,
+                    CAPABILITIES[random.nextInt(CAPABILITIES.length)]);
+            requests.add(request);
+            index.put(request, request);
+        }
+        final NetworkCapabilities[] networks = new NetworkCapabilities[numNetworks];
+        for (int i = 0; i < numNetworks; i++) {
+            networks[i] = makeNetwork(TRANSPORTS[i % TRANSPORTS.length],
+                    CAPABILITIES[i % CAPABILITIES.length]);
+        }
+
+        int scanned = 0;
+        final long scanStart = SystemClock.elapsedRealtimeNanos();
+        for (int round = 0; round < rounds; round++) {
+            for (NetworkCapabilities network : networks) {
+                for (NetworkRequest request : requests) {
+                    if (request.networkCapabilities.satisfiedByNetworkCapabilities(network)) {
+                        scanned++;
+                    }
+                }
+            }
+        }
+        final long scanNanos = SystemClock.elapsedRealtimeNanos() - scanStart;
+
+        int indexed = 0;
+        final ArrayList<NetworkRequest> candidates = new ArrayList<>();
+        final long indexStart = SystemClock.elapsedRealtimeNanos();
+        for (int round = 0; round < rounds; round++) {
+            for (NetworkCapabilities network : networks) {
+                candidates.clear();
+                index.getCandidates(network, candidates);
+                for (NetworkRequest request : candidates) {
+                    if (request.networkCapabilities.satisfiedByNetworkCapabilities(network)) {
+                        indexed++;
+                    }
+                }
+            }
+        }
+        final long indexNanos = SystemClock.elapsedRealtimeNanos() - indexStart;
+
+        Log.d(TAG, String.format("%d requests x %d networks: full scan %dus, index %dus",
+                numRequests, numNetworks, scanNanos / rounds / 1000, indexNanos / rounds / 1000));
+        assertEquals(scanned, indexed);
+    }
+}
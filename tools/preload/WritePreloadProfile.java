@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the preloaded-classes-profile file used by
+ * com.android.internal.os.ZygoteInit to initialize preloaded classes in
+ * parallel. Run after {@link WritePreloadedClassFile}, which marks the
+ * classes to preload in the compiled log.
+ *
+ * <p>Classes whose static initializers were observed to initialize one
+ * another, directly or transitively, are put in the same group. Different
+ * groups never touched each other's initializers in any recorded process,
+ * so the zygote can initialize them on different threads without risking a
+ * class initialization deadlock. Groups are written most expensive first, so
+ * that the slowest initializers start first.
+ *
+ * <p>Each line is "group medianInitTimeMicros className".
+ */
+public class WritePreloadProfile {
+
+    /** The location (in the build system) of the profile file. */
+    static final String PRELOAD_PROFILE_FILE
+            = "frameworks/base/config/preloaded-classes-profile";
+
+    public static void main(String[] args) throws IOException,
+            ClassNotFoundException {
+        if (args.length != 1) {
+            System.err.println("Usage: WritePreloadProfile [compiled log]");
+            System.exit(-1);
+        }
+        Root root = Root.fromFile(args[0]);
+
+        Map<LoadedClass, LoadedClass> parents = new HashMap<LoadedClass, LoadedClass>();
+        for (LoadedClass loadedClass : root.loadedClasses.values()) {
+            if (loadedClass.preloaded) {
+                parents.put(loadedClass, loadedClass);
+            }
+        }
+
+        // Join every preloaded class with the preloaded classes its initializer touched.
+        for (LoadedClass loadedClass : parents.keySet()) {
+            for (Operation init : loadedClass.initializations) {
+                union(parents, loadedClass, init.subops);
+            }
+        }
+
+        Map<LoadedClass, List<LoadedClass>> groups
+                = new HashMap<LoadedClass, List<LoadedClass>>();
+        for (LoadedClass loadedClass : parents.keySet()) {
+            LoadedClass root0 = find(parents, loadedClass);
+            List<LoadedClass> group = groups.get(root0);
+            if (group == null) {
+                group = new ArrayList<LoadedClass>();
+                groups.put(root0, group);
+            }
+            group.add(loadedClass);
+        }
+
+        List<List<LoadedClass>> sorted = new ArrayList<List<LoadedClass>>(groups.values());
+        for (List<LoadedClass> group : sorted) {
+            Collections.sort(group);
+        }
+        Collections.sort(sorted, (a, b) -> {
+            int cmp = Long.compare(totalInitTimeMicros(b), totalInitTimeMicros(a));
+            return cmp != 0 ? cmp : a.get(0).compareTo(b.get(0));
+        });
+
+        Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(PRELOAD_PROFILE_FILE),
+                Charset.forName("US-ASCII")));
+        out.write("# Initialization groups for classes preloaded by"
+                + " com.android.internal.os.ZygoteInit.\n");
+        out.write("# Automatically generated by frameworks/base/tools/preload/"
+                + WritePreloadProfile.class.getSimpleName() + ".java.\n");
+        out.write("# group medianInitTimeMicros className\n");
+        for (int i = 0; i < sorted.size(); i++) {
+            for (LoadedClass loadedClass : sorted.get(i)) {
+                out.write(i + " " + Math.max(0, loadedClass.medianInitTimeMicros())
+                        + " " + loadedClass.name + "\n");
+            }
+        }
+        out.close();
+
+        System.out.println("Wrote " + parents.size() + " classes in " + sorted.size()
+                + " groups.");
+    }
+
+    private static void union(Map<LoadedClass, LoadedClass> parents, LoadedClass loadedClass,
+            List<Operation> subops) {
+        for (Operation subop : subops) {
+            if (parents.containsKey(subop.loadedClass)) {
+                LoadedClass a = find(parents, loadedClass);
+                LoadedClass b = find(parents, subop.loadedClass);
+                if (a != b) {
+                    parents.put(a, b);
+                }
+            }
+            union(parents, loadedClass, subop.subops);
+        }
+    }
+
+    private static LoadedClass find(Map<LoadedClass, LoadedClass> parents,
+            LoadedClass loadedClass) {
+        LoadedClass parent = parents.get(loadedClass);
+        while (parent != loadedClass) {
+            LoadedClass grandParent = parents.get(parent);
+            parents.put(loadedClass, grandParent);
+            loadedClass = parent;
+            parent = grandParent;
+        }
+        return loadedClass;
+    }
+
+    private static long totalInitTimeMicros(List<LoadedClass> group) {
+        long total = 0;
+        for (LoadedClass loadedClass : group) {
+            total += Math.max(0, loadedClass.medianInitTimeMicros());
+        }
+        return total;
+    }
+}